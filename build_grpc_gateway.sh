@@ -1,3 +1,4 @@
+set -e
 docker build -t grpc-gateway -f grpc-gateway/Dockerfile .
 docker run grpc-gateway
 docker cp $(docker ps -alq):/code/output/yelp/nrtsearch/. ./grpc-gateway/
@@ -20,6 +20,9 @@ import com.yelp.nrtsearch.server.grpc.LuceneServerGrpc.LuceneServerFutureStub;
 import com.yelp.nrtsearch.server.grpc.LuceneServerGrpc.LuceneServerStub;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /** Easy entrypoint for clients to create a Lucene Server Stub. */
 public class LuceneServerStubBuilder {
@@ -44,6 +47,43 @@ public class LuceneServerStubBuilder {
     this(ManagedChannelBuilder.forAddress(host, port).usePlaintext().build());
   }
 
+  /**
+   * Create a builder with a plaintext channel that balances requests over all the addresses the
+   * target resolves to, such as the replicas of an index. A search that a replica rejects with
+   * status UNAVAILABLE, for example because it is more stale than the maxStalenessMs of the
+   * request, is retried on another replica, up to the given number of attempts in total.
+   *
+   * @param target target uri, such as "dns:///replicas.example.com:8000"
+   * @param maxSearchAttempts maximum number of attempts for each search, at least 2 to retry
+   * @return stub builder
+   */
+  public static LuceneServerStubBuilder forReplicas(String target, int maxSearchAttempts) {
+    return new LuceneServerStubBuilder(
+        ManagedChannelBuilder.forTarget(target)
+            .usePlaintext()
+            .defaultLoadBalancingPolicy("round_robin")
+            .defaultServiceConfig(getSearchRetryServiceConfig(maxSearchAttempts))
+            .enableRetry()
+            .build());
+  }
+
+  private static Map<String, ?> getSearchRetryServiceConfig(int maxSearchAttempts) {
+    Map<String, Object> retryPolicy =
+        Map.of(
+            "maxAttempts", (double) maxSearchAttempts,
+            "initialBackoff", "0.01s",
+            "maxBackoff", "0.1s",
+            "backoffMultiplier", 2.0,
+            "retryableStatusCodes", List.of("UNAVAILABLE"));
+    Map<String, Object> methodConfig =
+        Map.of(
+            "name",
+            List.of(Map.of("service", "luceneserver.LuceneServer", "method", "search")),
+            "retryPolicy",
+            retryPolicy);
+    return Collections.singletonMap("methodConfig", List.of(methodConfig));
+  }
+
   /**
    * Create a blocking stub for LuceneServer
    *
@@ -53,8 +53,8 @@ public class LuceneServerModule extends AbstractModule {
   @Inject
   @Singleton
   @Provides
-  public Tar providesTar() {
-    return new TarImpl(Tar.CompressionMode.LZ4);
+  public Tar providesTar(LuceneServerConfiguration luceneServerConfiguration) {
+    return new TarImpl(luceneServerConfiguration.getArchiveCompressionMode());
   }
 
   @Inject
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.cli;
+
+import com.yelp.nrtsearch.server.grpc.LuceneServerClient;
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+
+@CommandLine.Command(
+    name = BulkIndexCommand.BULK_INDEX,
+    description =
+        "Bulk load a document file from the bulk index dir of the server into the index using parallel private writers")
+public class BulkIndexCommand implements Callable<Integer> {
+  public static final String BULK_INDEX = "bulkIndex";
+
+  @CommandLine.ParentCommand private LuceneClientCommand baseCmd;
+
+  @CommandLine.Option(
+      names = {"-i", "--indexName"},
+      description = "Name of the index to load documents into",
+      required = true)
+  private String indexName;
+
+  public String getIndexName() {
+    return indexName;
+  }
+
+  @CommandLine.Option(
+      names = {"-f", "--fileName"},
+      description =
+          "Path of the document file relative to the bulkIndexDir of the server, in a csv or json format. For csv first row has names of fields and rows after are values",
+      required = true)
+  private String fileName;
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  @CommandLine.Option(
+      names = {"-t", "--fileType"},
+      description = "Type of input file: ('csv' | 'json')",
+      required = true)
+  private String fileType;
+
+  public String getFileType() {
+    return fileType;
+  }
+
+  @CommandLine.Option(
+      names = {"-w", "--numWriters"},
+      description =
+          "Number of private writers indexing in parallel, 0 uses the number of server processors (default: ${DEFAULT-VALUE})",
+      defaultValue = "0")
+  private int numWriters;
+
+  public int getNumWriters() {
+    return numWriters;
+  }
+
+  @CommandLine.Option(
+      names = {"-s", "--maxNumSegments"},
+      description =
+          "Maximum number of segments after the documents are attached to the index (default: ${DEFAULT-VALUE})",
+      defaultValue = "1")
+  private int maxNumSegments;
+
+  public int getMaxNumSegments() {
+    return maxNumSegments;
+  }
+
+  @Override
+  public Integer call() throws Exception {
+    LuceneServerClient client = baseCmd.getClient();
+    try {
+      client.bulkIndex(
+          getIndexName(), getFileName(), getFileType(), getNumWriters(), getMaxNumSegments());
+    } finally {
+      client.shutdown();
+    }
+    return 0;
+  }
+}
@@ -28,6 +28,7 @@ import picocli.CommandLine;
     subcommands = {
       AddDocumentsCommand.class,
       BackupIndexCommand.class,
+      BulkIndexCommand.class,
       CommitCommand.class,
       CreateIndexCommand.class,
       GetCurrentSearcherVersion.class,
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.config;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Configuration for running the server as a search coordinator. When shards are given, searches
+ * are sent to those nrtsearch servers instead of a local index, and their results are merged.
+ */
+public class CoordinatorConfiguration {
+  private static final int DEFAULT_SHARD_TIMEOUT_MS = 5000;
+
+  private final List<String> shards;
+  private final int shardTimeoutMs;
+  private final boolean allowPartialResults;
+
+  public CoordinatorConfiguration(YamlConfigReader configReader) {
+    shards = configReader.getStringList("coordinator.shards", Collections.emptyList());
+    for (String shard : shards) {
+      // fail on startup rather than on the first search
+      parsePort(shard);
+    }
+    shardTimeoutMs =
+        configReader.getInteger("coordinator.shardTimeoutMs", DEFAULT_SHARD_TIMEOUT_MS);
+    allowPartialResults = configReader.getBoolean("coordinator.allowPartialResults", true);
+  }
+
+  /** True if searches should be coordinated across shards instead of using a local index. */
+  public boolean isEnabled() {
+    return !shards.isEmpty();
+  }
+
+  /** Shard server addresses, as host:port. */
+  public List<String> getShards() {
+    return shards;
+  }
+
+  /** Deadline for each request sent to a shard. */
+  public int getShardTimeoutMs() {
+    return shardTimeoutMs;
+  }
+
+  /**
+   * If a search should return the results of the other shards when some shards fail or time out,
+   * instead of failing.
+   */
+  public boolean getAllowPartialResults() {
+    return allowPartialResults;
+  }
+
+  public static String parseHost(String shard) {
+    return shard.substring(0, shard.lastIndexOf(':'));
+  }
+
+  public static int parsePort(String shard) {
+    int separator = shard.lastIndexOf(':');
+    if (separator <= 0) {
+      throw new IllegalArgumentException("coordinator shard must be host:port, got: " + shard);
+    }
+    try {
+      return Integer.parseInt(shard.substring(separator + 1));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("coordinator shard must be host:port, got: " + shard, e);
+    }
+  }
+}
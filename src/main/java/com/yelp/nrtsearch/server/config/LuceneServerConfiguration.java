@@ -16,6 +16,7 @@
 package com.yelp.nrtsearch.server.config;
 
 import com.google.inject.Inject;
+import com.yelp.nrtsearch.server.utils.Tar;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -33,6 +34,8 @@ public class LuceneServerConfiguration {
       Paths.get(DEFAULT_USER_DIR.toString(), "default_state");
   public static final Path DEFAULT_INDEX_DIR =
       Paths.get(DEFAULT_USER_DIR.toString(), "default_index");
+  public static final Path DEFAULT_BULK_INDEX_DIR =
+      Paths.get(DEFAULT_USER_DIR.toString(), "bulk_index");
   private static final String DEFAULT_BUCKET_NAME = "DEFAULT_ARCHIVE_BUCKET";
   private static final String DEFAULT_HOSTNAME = "localhost";
   private static final int DEFAULT_PORT = 50051;
@@ -54,15 +57,20 @@ public class LuceneServerConfiguration {
   private final String hostName;
   private final String stateDir;
   private final String indexDir;
+  private final String bulkIndexDir;
   private final String archiveDirectory;
   private final String botoCfgPath;
   private final String bucketName;
+  private final Tar.CompressionMode archiveCompressionMode;
   private final double[] metricsBuckets;
   private final String[] plugins;
   private final String pluginSearchPath;
   private final String serviceName;
   private final boolean restoreState;
   private final ThreadPoolConfiguration threadPoolConfiguration;
+  private final CoordinatorConfiguration coordinatorConfiguration;
+  private final ReplicationConfiguration replicationConfiguration;
+  private final StartupConfiguration startupConfiguration;
 
   private final YamlConfigReader configReader;
 
@@ -78,9 +86,13 @@ public class LuceneServerConfiguration {
     hostName = configReader.getString("hostName", DEFAULT_HOSTNAME);
     stateDir = configReader.getString("stateDir", DEFAULT_STATE_DIR.toString());
     indexDir = configReader.getString("indexDir", DEFAULT_INDEX_DIR.toString());
+    bulkIndexDir = configReader.getString("bulkIndexDir", DEFAULT_BULK_INDEX_DIR.toString());
     archiveDirectory = configReader.getString("archiveDirectory", DEFAULT_ARCHIVER_DIR.toString());
     botoCfgPath = configReader.getString("botoCfgPath", DEFAULT_BOTO_CFG_PATH.toString());
     bucketName = configReader.getString("bucketName", DEFAULT_BUCKET_NAME);
+    archiveCompressionMode =
+        Tar.CompressionMode.valueOf(
+            configReader.getString("archiveCompressionMode", Tar.CompressionMode.LZ4.name()));
     double[] metricsBuckets;
     try {
       List<Double> bucketList = configReader.getDoubleList("metricsBuckets");
@@ -98,12 +110,27 @@ public class LuceneServerConfiguration {
     serviceName = configReader.getString("serviceName", DEFAULT_SERVICE_NAME);
     restoreState = configReader.getBoolean("restoreState", false);
     threadPoolConfiguration = new ThreadPoolConfiguration(configReader);
+    coordinatorConfiguration = new CoordinatorConfiguration(configReader);
+    replicationConfiguration = new ReplicationConfiguration(configReader);
+    startupConfiguration = new StartupConfiguration(configReader);
   }
 
   public ThreadPoolConfiguration getThreadPoolConfiguration() {
     return threadPoolConfiguration;
   }
 
+  public CoordinatorConfiguration getCoordinatorConfiguration() {
+    return coordinatorConfiguration;
+  }
+
+  public ReplicationConfiguration getReplicationConfiguration() {
+    return replicationConfiguration;
+  }
+
+  public StartupConfiguration getStartupConfiguration() {
+    return startupConfiguration;
+  }
+
   public int getPort() {
     return port;
   }
@@ -128,6 +155,11 @@ public class LuceneServerConfiguration {
     return indexDir;
   }
 
+  /** Dir of the document files that bulkIndex may load, request file paths are relative to it. */
+  public String getBulkIndexDir() {
+    return bulkIndexDir;
+  }
+
   public String getHostName() {
     return hostName;
   }
@@ -144,6 +176,10 @@ public class LuceneServerConfiguration {
     return archiveDirectory;
   }
 
+  public Tar.CompressionMode getArchiveCompressionMode() {
+    return archiveCompressionMode;
+  }
+
   public double[] getMetricsBuckets() {
     return metricsBuckets;
   }
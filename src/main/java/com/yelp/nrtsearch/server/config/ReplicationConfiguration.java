@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.config;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Configuration for NRT replication between a primary and its replicas. */
+public class ReplicationConfiguration {
+  private static final int DEFAULT_NEW_NRT_POINT_TIMEOUT_MS = 10000;
+  private static final int DEFAULT_COPY_CONCURRENCY = 4;
+  private static final int DEFAULT_FILE_CHUNK_SIZE_BYTES = 64 * 1024;
+  private static final int MIN_FILE_CHUNK_SIZE_BYTES = 1024;
+  private static final int DEFAULT_PEER_WAIT_MS = 5000;
+  // stored fields and term vectors data, which lucene already compresses
+  private static final List<String> DEFAULT_COMPRESS_SKIP_EXTENSIONS = Arrays.asList("fdt", "tvd");
+
+  private final int newNRTPointTimeoutMs;
+  private final int copyConcurrency;
+  private final int fileChunkSizeBytes;
+  private final boolean compressFiles;
+  private final Set<String> compressSkipExtensions;
+  private final double maxCopyMBPerSec;
+  private final double maxIndexCopyMBPerSec;
+  private final int fanout;
+  private final int peerWaitMs;
+
+  public ReplicationConfiguration(YamlConfigReader configReader) {
+    newNRTPointTimeoutMs =
+        configReader.getInteger(
+            "replication.newNRTPointTimeoutMs", DEFAULT_NEW_NRT_POINT_TIMEOUT_MS);
+    copyConcurrency =
+        configReader.getInteger("replication.copyConcurrency", DEFAULT_COPY_CONCURRENCY);
+    if (copyConcurrency < 1) {
+      throw new IllegalArgumentException(
+          "replication.copyConcurrency must be at least 1, got: " + copyConcurrency);
+    }
+    fileChunkSizeBytes =
+        configReader.getInteger("replication.fileChunkSizeBytes", DEFAULT_FILE_CHUNK_SIZE_BYTES);
+    if (fileChunkSizeBytes < MIN_FILE_CHUNK_SIZE_BYTES) {
+      throw new IllegalArgumentException(
+          "replication.fileChunkSizeBytes must be at least "
+              + MIN_FILE_CHUNK_SIZE_BYTES
+              + ", got: "
+              + fileChunkSizeBytes);
+    }
+    compressFiles = configReader.getBoolean("replication.compressFiles", false);
+    compressSkipExtensions =
+        new HashSet<>(
+            configReader.getStringList(
+                "replication.compressSkipExtensions", DEFAULT_COMPRESS_SKIP_EXTENSIONS));
+    maxCopyMBPerSec = configReader.getDouble("replication.maxCopyMBPerSec", 0.0);
+    maxIndexCopyMBPerSec = configReader.getDouble("replication.maxIndexCopyMBPerSec", 0.0);
+    fanout = configReader.getInteger("replication.fanout", 0);
+    if (fanout < 0) {
+      throw new IllegalArgumentException(
+          "replication.fanout must not be negative, got: " + fanout);
+    }
+    peerWaitMs = configReader.getInteger("replication.peerWaitMs", DEFAULT_PEER_WAIT_MS);
+  }
+
+  /** Deadline for each replica to acknowledge a new NRT point sent by the primary. */
+  public int getNewNRTPointTimeoutMs() {
+    return newNRTPointTimeoutMs;
+  }
+
+  /** Maximum number of files a replica copies from the primary at the same time for one job. */
+  public int getCopyConcurrency() {
+    return copyConcurrency;
+  }
+
+  /** Size of the chunks the primary sends when streaming a file to a replica. */
+  public int getFileChunkSizeBytes() {
+    return fileChunkSizeBytes;
+  }
+
+  /** If a replica should ask the primary to lz4 compress the files it copies. */
+  public boolean getCompressFiles() {
+    return compressFiles;
+  }
+
+  /**
+   * Limit on the rate a replica node pre-copies merged segments from its primaries, over all its
+   * indices. New NRT points are not limited. 0 (the default) means no limit.
+   */
+  public double getMaxCopyMBPerSec() {
+    return maxCopyMBPerSec;
+  }
+
+  /**
+   * Limit on the rate a replica pre-copies merged segments for one index. New NRT points are not
+   * limited. 0 (the default) means no limit.
+   */
+  public double getMaxIndexCopyMBPerSec() {
+    return maxIndexCopyMBPerSec;
+  }
+
+  /**
+   * Number of replicas the primary copies new NRT points to directly. The other replicas copy the
+   * files from a peer replica, forming a tree in which each replica feeds this many others. 0 (the
+   * default) means all replicas copy from the primary.
+   */
+  public int getFanout() {
+    return fanout;
+  }
+
+  /**
+   * How long a replica waits for its peer to reach a new NRT point before copying it from the
+   * primary instead.
+   */
+  public int getPeerWaitMs() {
+    return peerWaitMs;
+  }
+
+  /**
+   * If the primary should compress a file for a replica that asked for compression. Files with an
+   * extension in replication.compressSkipExtensions are already compressed and sent as is.
+   */
+  public boolean shouldCompress(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    return dot < 0 || compressSkipExtensions.contains(fileName.substring(dot + 1)) == false;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.config;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Configuration for starting again the indices that were started before the server went down. */
+public class StartupConfiguration {
+  private static final int DEFAULT_PARALLELISM = 4;
+
+  private final boolean startIndices;
+  private final int parallelism;
+  private final Set<String> lazyIndices;
+
+  public StartupConfiguration(YamlConfigReader configReader) {
+    startIndices = configReader.getBoolean("startup.startIndices", false);
+    parallelism = configReader.getInteger("startup.parallelism", DEFAULT_PARALLELISM);
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+          "startup.parallelism must be at least 1, got: " + parallelism);
+    }
+    List<String> lazyIndexList =
+        configReader.getStringList("startup.lazyIndices", Collections.emptyList());
+    lazyIndices = Collections.unmodifiableSet(new HashSet<>(lazyIndexList));
+  }
+
+  /**
+   * If the server should start the indices that were started on it before it went down, with the
+   * last start request each of them got.
+   */
+  public boolean getStartIndices() {
+    return startIndices;
+  }
+
+  /** Maximum number of indices started at the same time when the server comes up. */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Indices that are not started when the server comes up, but by the first request that uses
+   * them. Meant for rarely used indices, so they do not delay the others.
+   */
+  public Set<String> getLazyIndices() {
+    return lazyIndices;
+  }
+}
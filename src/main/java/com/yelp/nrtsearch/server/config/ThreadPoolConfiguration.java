@@ -23,6 +23,10 @@ public class ThreadPoolConfiguration {
   private static final int DEFAULT_MAX_SEARCH_BUFFERED_ITEMS =
       Math.max(1000, 2 * DEFAULT_MAX_SEARCHING_THREADS);
 
+  private static final int DEFAULT_MAX_SHARD_SEARCHING_THREADS = DEFAULT_MAX_SEARCHING_THREADS;
+  private static final int DEFAULT_MAX_SHARD_SEARCH_BUFFERED_ITEMS =
+      DEFAULT_MAX_SEARCH_BUFFERED_ITEMS;
+
   private static final int DEFAULT_MAX_INDEXING_THREADS =
       Runtime.getRuntime().availableProcessors() + 1;
   private static final int DEFAULT_MAX_INDEXING_BUFFERED_ITEMS =
@@ -40,6 +44,9 @@ public class ThreadPoolConfiguration {
   private final int maxSearchingThreads;
   private final int maxSearchBufferedItems;
 
+  private final int maxShardSearchingThreads;
+  private final int maxShardSearchBufferedItems;
+
   private final int maxIndexingThreads;
   private final int maxIndexingBufferedItems;
 
@@ -57,6 +64,15 @@ public class ThreadPoolConfiguration {
         configReader.getInteger(
             "threadPoolConfiguration.maxSearchBufferedItems", DEFAULT_MAX_SEARCH_BUFFERED_ITEMS);
 
+    maxShardSearchingThreads =
+        configReader.getInteger(
+            "threadPoolConfiguration.maxShardSearchingThreads",
+            DEFAULT_MAX_SHARD_SEARCHING_THREADS);
+    maxShardSearchBufferedItems =
+        configReader.getInteger(
+            "threadPoolConfiguration.maxShardSearchBufferedItems",
+            DEFAULT_MAX_SHARD_SEARCH_BUFFERED_ITEMS);
+
     maxIndexingThreads =
         configReader.getInteger(
             "threadPoolConfiguration.maxIndexingThreads", DEFAULT_MAX_INDEXING_THREADS);
@@ -92,6 +108,15 @@ public class ThreadPoolConfiguration {
     return maxSearchBufferedItems;
   }
 
+  /** Threads searching the shards of multi-shard indices, apart from the segment slice threads. */
+  public int getMaxShardSearchingThreads() {
+    return maxShardSearchingThreads;
+  }
+
+  public int getMaxShardSearchBufferedItems() {
+    return maxShardSearchBufferedItems;
+  }
+
   public int getMaxIndexingThreads() {
     return maxIndexingThreads;
   }
@@ -26,22 +26,29 @@ import com.google.protobuf.Empty;
 import com.yelp.nrtsearch.LuceneServerModule;
 import com.yelp.nrtsearch.server.MetricsRequestHandler;
 import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.config.ReplicationConfiguration;
 import com.yelp.nrtsearch.server.luceneserver.AddDocumentHandler.DocumentIndexer;
 import com.yelp.nrtsearch.server.luceneserver.AddReplicaHandler;
 import com.yelp.nrtsearch.server.luceneserver.BackupIndexRequestHandler;
 import com.yelp.nrtsearch.server.luceneserver.BuildSuggestHandler;
+import com.yelp.nrtsearch.server.luceneserver.BulkIndexHandler;
 import com.yelp.nrtsearch.server.luceneserver.CopyFilesHandler;
 import com.yelp.nrtsearch.server.luceneserver.CreateSnapshotHandler;
 import com.yelp.nrtsearch.server.luceneserver.DeleteAllDocumentsHandler;
 import com.yelp.nrtsearch.server.luceneserver.DeleteByQueryHandler;
 import com.yelp.nrtsearch.server.luceneserver.DeleteDocumentsHandler;
 import com.yelp.nrtsearch.server.luceneserver.DeleteIndexHandler;
+import com.yelp.nrtsearch.server.luceneserver.FileChunkReader;
+import com.yelp.nrtsearch.server.luceneserver.GetDocumentsHandler;
 import com.yelp.nrtsearch.server.luceneserver.GetNodesInfoHandler;
 import com.yelp.nrtsearch.server.luceneserver.GetStateHandler;
 import com.yelp.nrtsearch.server.luceneserver.GlobalState;
+import com.yelp.nrtsearch.server.luceneserver.IndexStartupManager;
 import com.yelp.nrtsearch.server.luceneserver.IndexState;
+import com.yelp.nrtsearch.server.luceneserver.IndexingChunkSizer;
 import com.yelp.nrtsearch.server.luceneserver.LiveSettingsHandler;
 import com.yelp.nrtsearch.server.luceneserver.NewNRTPointHandler;
+import com.yelp.nrtsearch.server.luceneserver.RawFileChunkCompression;
 import com.yelp.nrtsearch.server.luceneserver.RecvCopyStateHandler;
 import com.yelp.nrtsearch.server.luceneserver.RegisterFieldsHandler;
 import com.yelp.nrtsearch.server.luceneserver.ReleaseSnapshotHandler;
@@ -54,14 +61,21 @@ import com.yelp.nrtsearch.server.luceneserver.StartIndexHandler;
 import com.yelp.nrtsearch.server.luceneserver.StatsRequestHandler;
 import com.yelp.nrtsearch.server.luceneserver.StopIndexHandler;
 import com.yelp.nrtsearch.server.luceneserver.SuggestLookupHandler;
+import com.yelp.nrtsearch.server.luceneserver.UpdateDocValuesHandler.DocValuesUpdater;
 import com.yelp.nrtsearch.server.luceneserver.UpdateFieldsHandler;
 import com.yelp.nrtsearch.server.luceneserver.UpdateSuggestHandler;
 import com.yelp.nrtsearch.server.luceneserver.WriteNRTPointHandler;
 import com.yelp.nrtsearch.server.luceneserver.analysis.AnalyzerCreator;
+import com.yelp.nrtsearch.server.luceneserver.coordinator.SearchCoordinator;
 import com.yelp.nrtsearch.server.luceneserver.field.FieldDefCreator;
+import com.yelp.nrtsearch.server.luceneserver.merge.MergePolicyCreator;
 import com.yelp.nrtsearch.server.luceneserver.script.ScriptService;
+import com.yelp.nrtsearch.server.monitoring.BackupMetrics;
 import com.yelp.nrtsearch.server.monitoring.Configuration;
+import com.yelp.nrtsearch.server.monitoring.IndexingMetrics;
 import com.yelp.nrtsearch.server.monitoring.LuceneServerMonitoringServerInterceptor;
+import com.yelp.nrtsearch.server.monitoring.RefreshMetrics;
+import com.yelp.nrtsearch.server.monitoring.ReplicationMetrics;
 import com.yelp.nrtsearch.server.plugins.Plugin;
 import com.yelp.nrtsearch.server.plugins.PluginsService;
 import com.yelp.nrtsearch.server.utils.Archiver;
@@ -70,6 +84,7 @@ import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerInterceptors;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import io.prometheus.client.CollectorRegistry;
 import java.io.File;
@@ -78,13 +93,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
-import org.apache.lucene.store.IOContext;
-import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
@@ -113,6 +126,10 @@ public class LuceneServer {
 
   private void start() throws IOException {
     GlobalState globalState = new GlobalState(luceneServerConfiguration);
+    BackupMetrics.register(collectorRegistry);
+    IndexingMetrics.register(collectorRegistry);
+    RefreshMetrics.register(collectorRegistry);
+    ReplicationMetrics.register(collectorRegistry);
 
     List<Plugin> plugins = pluginsService.loadPlugins();
 
@@ -185,6 +202,9 @@ public class LuceneServer {
         logger.info("Loaded state for index " + index);
       }
     }
+    if (luceneServerConfiguration.getStartupConfiguration().getStartIndices()) {
+      globalState.getIndexStartupManager().startIndices(archiver);
+    }
   }
 
   private void stop() {
@@ -244,6 +264,7 @@ public class LuceneServer {
     private final Archiver archiver;
     private final CollectorRegistry collectorRegistry;
     private final ThreadPoolExecutor searchThreadPoolExecutor;
+    private final SearchCoordinator searchCoordinator;
 
     LuceneServerImpl(
         GlobalState globalState,
@@ -258,6 +279,10 @@ public class LuceneServer {
           ThreadPoolExecutorFactory.getThreadPoolExecutor(
               ThreadPoolExecutorFactory.ExecutorType.SEARCH,
               globalState.getThreadPoolConfiguration());
+      this.searchCoordinator =
+          configuration.getCoordinatorConfiguration().isEnabled()
+              ? new SearchCoordinator(configuration.getCoordinatorConfiguration())
+              : null;
 
       initExtendableComponents(configuration, plugins);
     }
@@ -267,6 +292,7 @@ public class LuceneServer {
       AnalyzerCreator.initialize(configuration, plugins);
       FieldDefCreator.initialize(configuration, plugins);
       ScriptService.initialize(configuration, plugins);
+      MergePolicyCreator.initialize(configuration, plugins);
     }
 
     @Override
@@ -463,6 +489,7 @@ public class LuceneServer {
         indexState =
             globalState.getIndex(startIndexRequest.getIndexName(), startIndexRequest.hasRestore());
         StartIndexResponse reply = startIndexHandler.handle(indexState, startIndexRequest);
+        globalState.getIndexStartupManager().addStartRequest(startIndexRequest);
         logger.info("StartIndexHandler returned " + reply.toString());
         responseObserver.onNext(reply);
         responseObserver.onCompleted();
@@ -498,37 +525,36 @@ public class LuceneServer {
       return new StreamObserver<AddDocumentRequest>() {
         List<Future<Long>> futures = new ArrayList<>();
         // Map of {indexName: addDocumentRequestQueue}
-        Map<String, ArrayBlockingQueue<AddDocumentRequest>> addDocumentRequestQueueMap =
+        Map<String, List<AddDocumentRequest>> addDocumentRequestQueueMap =
             new ConcurrentHashMap<>();
+        // Map of {indexName: serialized bytes in addDocumentRequestQueue}
+        Map<String, Long> queuedBytesMap = new ConcurrentHashMap<>();
+        // Map of {indexName: chunkSizer}
+        Map<String, IndexingChunkSizer> chunkSizerMap = new ConcurrentHashMap<>();
         // Map of {indexName: count}
         Map<String, Long> countMap = new ConcurrentHashMap<>();
-        private static final int DEFAULT_MAX_BUFFER_LEN = 100;
 
-        private int getAddDocumentsMaxBufferLen(String indexName) {
-          try {
-            return globalState.getIndex(indexName).getAddDocumentsMaxBufferLen();
-          } catch (Exception e) {
-            logger.warn(
-                String.format(
-                    "error while trying to get addDocumentsMaxBufferLen from"
-                        + "liveSettings of index %s. Using DEFAULT_MAX_BUFFER_LEN %d.",
-                    indexName, DEFAULT_MAX_BUFFER_LEN),
-                e);
-            return DEFAULT_MAX_BUFFER_LEN;
-          }
+        private IndexingChunkSizer getChunkSizer(String indexName) {
+          return chunkSizerMap.computeIfAbsent(
+              indexName,
+              k -> {
+                try {
+                  return globalState.getIndex(indexName).getChunkSizer();
+                } catch (Exception e) {
+                  logger.warn(
+                      String.format(
+                          "error while trying to get chunk sizer of index %s. "
+                              + "Using default chunk size.",
+                          indexName),
+                      e);
+                  // the index may not exist, do not create metrics for its name
+                  return IndexingChunkSizer.withoutMetrics();
+                }
+              });
         }
 
-        private ArrayBlockingQueue<AddDocumentRequest> getAddDocumentRequestQueue(
-            String indexName) {
-          if (addDocumentRequestQueueMap.containsKey(indexName)) {
-            return addDocumentRequestQueueMap.get(indexName);
-          } else {
-            int addDocumentsMaxBufferLen = getAddDocumentsMaxBufferLen(indexName);
-            ArrayBlockingQueue<AddDocumentRequest> addDocumentRequestQueue =
-                new ArrayBlockingQueue<>(addDocumentsMaxBufferLen);
-            addDocumentRequestQueueMap.put(indexName, addDocumentRequestQueue);
-            return addDocumentRequestQueue;
-          }
+        private List<AddDocumentRequest> getAddDocumentRequestQueue(String indexName) {
+          return addDocumentRequestQueueMap.computeIfAbsent(indexName, k -> new ArrayList<>());
         }
 
         private long getCount(String indexName) {
@@ -546,19 +572,23 @@ public class LuceneServer {
         @Override
         public void onNext(AddDocumentRequest addDocumentRequest) {
           String indexName = addDocumentRequest.getIndexName();
-          ArrayBlockingQueue<AddDocumentRequest> addDocumentRequestQueue =
-              getAddDocumentRequestQueue(indexName);
+          List<AddDocumentRequest> addDocumentRequestQueue = getAddDocumentRequestQueue(indexName);
+          IndexingChunkSizer chunkSizer = getChunkSizer(indexName);
           logger.debug(
               String.format(
                   "onNext, index: %s, addDocumentRequestQueue size: %s",
                   indexName, addDocumentRequestQueue.size()));
           incrementCount(indexName);
           addDocumentRequestQueue.add(addDocumentRequest);
-          if (addDocumentRequestQueue.remainingCapacity() == 0) {
+          long queuedBytes =
+              queuedBytesMap.merge(
+                  indexName, (long) addDocumentRequest.getSerializedSize(), Long::sum);
+          if (addDocumentRequestQueue.size() >= chunkSizer.getChunkDocs()
+              || queuedBytes >= chunkSizer.getMaxChunkBytes()) {
             logger.debug(
                 String.format(
-                    "indexing addDocumentRequestQueue size: %s, total: %s",
-                    addDocumentRequestQueue.size(), getCount(indexName)));
+                    "indexing addDocumentRequestQueue size: %s, bytes: %s, total: %s",
+                    addDocumentRequestQueue.size(), queuedBytes, getCount(indexName)));
             try {
               List<AddDocumentRequest> addDocRequestList = new ArrayList<>(addDocumentRequestQueue);
               Future<Long> future =
@@ -569,6 +599,7 @@ public class LuceneServer {
               responseObserver.onError(e);
             } finally {
               addDocumentRequestQueue.clear();
+              queuedBytesMap.put(indexName, 0L);
             }
           }
         }
@@ -580,8 +611,7 @@ public class LuceneServer {
         }
 
         private void onCompletedForIndex(String indexName) {
-          ArrayBlockingQueue<AddDocumentRequest> addDocumentRequestQueue =
-              getAddDocumentRequestQueue(indexName);
+          List<AddDocumentRequest> addDocumentRequestQueue = getAddDocumentRequestQueue(indexName);
           logger.debug(
               String.format(
                   "onCompleted, addDocumentRequestQueue: %s", addDocumentRequestQueue.size()));
@@ -626,6 +656,7 @@ public class LuceneServer {
 
           } finally {
             addDocumentRequestQueue.clear();
+            queuedBytesMap.put(indexName, 0L);
             countMap.put(indexName, 0L);
           }
         }
@@ -639,15 +670,113 @@ public class LuceneServer {
       };
     }
 
+    @Override
+    public StreamObserver<UpdateDocValuesRequest> updateDocValues(
+        StreamObserver<AddDocumentResponse> responseObserver) {
+
+      return new StreamObserver<UpdateDocValuesRequest>() {
+        List<Future<Long>> futures = new ArrayList<>();
+        long count = 0;
+
+        @Override
+        public void onNext(UpdateDocValuesRequest updateDocValuesRequest) {
+          count += updateDocValuesRequest.getUpdatesCount();
+          try {
+            // each request is applied as one batch
+            Future<Long> future =
+                globalState.submitIndexingTask(
+                    new DocValuesUpdater(globalState, updateDocValuesRequest));
+            futures.add(future);
+          } catch (Exception e) {
+            responseObserver.onError(e);
+          }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          logger.warn("updateDocValues Cancelled");
+          responseObserver.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+          try {
+            long maxGen = -1;
+            long t0 = System.nanoTime();
+            for (Future<Long> result : futures) {
+              maxGen = Math.max(maxGen, result.get());
+            }
+            long t1 = System.nanoTime();
+            responseObserver.onNext(
+                AddDocumentResponse.newBuilder().setGenId(String.valueOf(maxGen)).build());
+            responseObserver.onCompleted();
+            logger.debug(
+                String.format(
+                    "Doc values update completed for %s docs, in %s batches, with latest sequence number: %s, took: %s micro seconds",
+                    count, futures.size(), maxGen, ((t1 - t0) / 1000)));
+          } catch (Exception e) {
+            logger.warn("error while trying to updateDocValues", e);
+            responseObserver.onError(
+                Status.INTERNAL
+                    .withDescription("error while trying to updateDocValues ")
+                    .augmentDescription(e.getMessage())
+                    .withCause(e)
+                    .asRuntimeException());
+          } finally {
+            futures.clear();
+            count = 0;
+          }
+        }
+      };
+    }
+
+    @Override
+    public void getDocuments(
+        GetDocumentsRequest getDocumentsRequest,
+        StreamObserver<GetDocumentsResponse> responseObserver) {
+      try {
+        IndexState indexState = globalState.getIndex(getDocumentsRequest.getIndexName());
+        GetDocumentsResponse reply =
+            new GetDocumentsHandler().handle(indexState, getDocumentsRequest);
+        responseObserver.onNext(reply);
+        responseObserver.onCompleted();
+      } catch (IllegalArgumentException e) {
+        logger.warn("index: " + getDocumentsRequest.getIndexName() + " was not yet created", e);
+        responseObserver.onError(
+            Status.INVALID_ARGUMENT
+                .withDescription("invalid indexName: " + getDocumentsRequest.getIndexName())
+                .augmentDescription(e.getMessage())
+                .asRuntimeException());
+      } catch (GetDocumentsHandler.SearcherExpiredException e) {
+        logger.debug(e.getMessage());
+        responseObserver.onError(
+            Status.NOT_FOUND.withDescription(e.getMessage()).withCause(e).asRuntimeException());
+      } catch (Exception e) {
+        logger.warn(
+            "error while trying to get documents for index: "
+                + getDocumentsRequest.getIndexName(),
+            e);
+        responseObserver.onError(
+            Status.INTERNAL
+                .withDescription(
+                    "error while trying to get documents for index: "
+                        + getDocumentsRequest.getIndexName())
+                .augmentDescription(e.getMessage())
+                .withCause(e)
+                .asRuntimeException());
+      }
+    }
+
     @Override
     public void refresh(
         RefreshRequest refreshRequest,
         StreamObserver<RefreshResponse> refreshResponseStreamObserver) {
       try {
         IndexState indexState = globalState.getIndex(refreshRequest.getIndexName());
-        final ShardState shardState = indexState.getShard(0);
         long t0 = System.nanoTime();
-        shardState.maybeRefreshBlocking();
+        for (ShardState shardState : indexState.shards.values()) {
+          shardState.maybeRefreshBlocking();
+        }
         long t1 = System.nanoTime();
         double refreshTimeMs = (t1 - t0) / 1000000.0;
         RefreshResponse reply =
@@ -759,9 +888,23 @@ public class LuceneServer {
     public void search(
         SearchRequest searchRequest, StreamObserver<SearchResponse> searchResponseStreamObserver) {
       try {
-        IndexState indexState = globalState.getIndex(searchRequest.getIndexName());
-        SearchHandler searchHandler = new SearchHandler(searchThreadPoolExecutor);
-        SearchResponse reply = searchHandler.handle(indexState, searchRequest);
+        SearchResponse reply;
+        if (searchCoordinator != null) {
+          // the index is spread across other servers
+          reply = searchCoordinator.search(searchRequest);
+        } else {
+          IndexState indexState = globalState.getIndex(searchRequest.getIndexName());
+          String staleReason = getStaleReason(indexState, searchRequest.getMaxStalenessMs());
+          if (staleReason != null) {
+            logger.debug(staleReason);
+            searchResponseStreamObserver.onError(
+                Status.UNAVAILABLE.withDescription(staleReason).asRuntimeException());
+            return;
+          }
+          SearchHandler searchHandler =
+              new SearchHandler(searchThreadPoolExecutor, globalState.getShardSearchExecutor());
+          reply = searchHandler.handle(indexState, searchRequest);
+        }
         searchResponseStreamObserver.onNext(reply);
         searchResponseStreamObserver.onCompleted();
       } catch (IOException e) {
@@ -794,6 +937,31 @@ public class LuceneServer {
       }
     }
 
+    /**
+     * Returns why this replica is too stale to serve a search with the given max staleness, or null
+     * if it may serve it.
+     */
+    private static String getStaleReason(IndexState indexState, long maxStalenessMs)
+        throws IOException {
+      if (maxStalenessMs <= 0) {
+        return null;
+      }
+      ShardState shardState = indexState.getShard(0);
+      if (shardState.isReplica() == false) {
+        return null;
+      }
+      long stalenessMs = shardState.nrtReplicaNode.getStalenessMs();
+      if (stalenessMs <= maxStalenessMs) {
+        return null;
+      }
+      return String.format(
+          "replica of index %s is %d ms behind its primary (%d versions), over maxStalenessMs %d",
+          indexState.name,
+          stalenessMs,
+          shardState.nrtReplicaNode.getVersionLag(),
+          maxStalenessMs);
+    }
+
     @Override
     public void delete(
         AddDocumentRequest addDocumentRequest,
@@ -895,6 +1063,8 @@ public class LuceneServer {
     public void stopIndex(
         StopIndexRequest stopIndexRequest, StreamObserver<DummyResponse> responseObserver) {
       try {
+        // also keeps a lazy index from being started just to stop it
+        globalState.getIndexStartupManager().removeStartRequest(stopIndexRequest.getIndexName());
         IndexState indexState = globalState.getIndex(stopIndexRequest.getIndexName());
         DummyResponse reply = new StopIndexHandler().handle(indexState, stopIndexRequest);
         logger.info("StopIndexHandler returned " + reply.toString());
@@ -915,8 +1085,15 @@ public class LuceneServer {
     public void status(
         HealthCheckRequest request, StreamObserver<HealthCheckResponse> responseObserver) {
       try {
+        IndexStartupManager indexStartupManager = globalState.getIndexStartupManager();
         HealthCheckResponse reply =
-            HealthCheckResponse.newBuilder().setHealth(TransferStatusCode.Done).build();
+            HealthCheckResponse.newBuilder()
+                .setHealth(
+                    indexStartupManager.isStarting()
+                        ? TransferStatusCode.Ongoing
+                        : TransferStatusCode.Done)
+                .putAllIndexStartStates(indexStartupManager.getStartStates())
+                .build();
         logger.debug("HealthCheckResponse returned " + reply.toString());
         responseObserver.onNext(reply);
         responseObserver.onCompleted();
@@ -1078,12 +1255,16 @@ public class LuceneServer {
         StreamObserver<GetAllSnapshotGenResponse> responseObserver) {
       try {
         Set<Long> snapshotGens =
-            globalState.getIndex(request.getIndexName()).getShard(0).snapshotGenToVersion.keySet();
+            globalState
+                .getIndex(request.getIndexName())
+                .getSingleShard("snapshots")
+                .snapshotGenToVersion
+                .keySet();
         GetAllSnapshotGenResponse response =
             GetAllSnapshotGenResponse.newBuilder().addAllIndexGens(snapshotGens).build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
-      } catch (IOException e) {
+      } catch (IOException | IllegalStateException e) {
         logger.error(
             "Error getting all snapshotted index gens for index: {}", request.getIndexName(), e);
         responseObserver.onError(e);
@@ -1192,9 +1373,15 @@ public class LuceneServer {
 
       try {
         IndexState indexState = globalState.getIndex(forceMergeRequest.getIndexName());
-        ShardState shardState = indexState.shards.get(0);
-        shardState.writer.forceMerge(
-            forceMergeRequest.getMaxNumSegments(), forceMergeRequest.getDoWait());
+        // start merging all shards before waiting on any of them
+        for (ShardState shardState : indexState.shards.values()) {
+          shardState.writer.forceMerge(forceMergeRequest.getMaxNumSegments(), false);
+        }
+        if (forceMergeRequest.getDoWait()) {
+          for (ShardState shardState : indexState.shards.values()) {
+            shardState.writer.forceMerge(forceMergeRequest.getMaxNumSegments(), true);
+          }
+        }
       } catch (IOException e) {
         responseObserver.onError(e);
         return;
@@ -1208,6 +1395,37 @@ public class LuceneServer {
       responseObserver.onNext(response);
       responseObserver.onCompleted();
     }
+
+    @Override
+    public void bulkIndex(
+        BulkIndexRequest bulkIndexRequest, StreamObserver<BulkIndexResponse> responseObserver) {
+      try {
+        IndexState indexState = globalState.getIndex(bulkIndexRequest.getIndexName());
+        BulkIndexResponse reply = new BulkIndexHandler().handle(indexState, bulkIndexRequest);
+        logger.info("BulkIndexHandler returned " + reply.toString());
+        responseObserver.onNext(reply);
+        responseObserver.onCompleted();
+      } catch (IllegalArgumentException e) {
+        logger.warn("invalid bulk index request for index: " + bulkIndexRequest.getIndexName(), e);
+        responseObserver.onError(
+            Status.INVALID_ARGUMENT
+                .withDescription(
+                    "invalid bulk index request for index: " + bulkIndexRequest.getIndexName())
+                .augmentDescription(e.getMessage())
+                .asRuntimeException());
+      } catch (Exception e) {
+        logger.warn(
+            "error while trying to bulk index into index: " + bulkIndexRequest.getIndexName(), e);
+        responseObserver.onError(
+            Status.INTERNAL
+                .withDescription(
+                    "error while trying to bulk index into index: "
+                        + bulkIndexRequest.getIndexName())
+                .augmentDescription(e.getMessage())
+                .withCause(e)
+                .asRuntimeException());
+      }
+    }
   }
 
   static class ReplicationServerImpl extends ReplicationServerGrpc.ReplicationServerImplBase {
@@ -1325,29 +1543,22 @@ public class LuceneServer {
         FileInfo fileInfoRequest, StreamObserver<RawFileChunk> rawFileChunkStreamObserver) {
       try {
         IndexState indexState = globalState.getIndex(fileInfoRequest.getIndexName());
-        ShardState shardState = indexState.getShard(0);
-        IndexInput luceneFile =
-            shardState.indexDir.openInput(fileInfoRequest.getFileName(), IOContext.DEFAULT);
-        long len = luceneFile.length();
-        long pos = fileInfoRequest.getFpStart();
-        luceneFile.seek(pos);
-        byte[] buffer = new byte[1024 * 64];
-        long totalRead;
-        totalRead = pos;
-        Random random = new Random();
-        while (totalRead < len) {
-          int chunkSize = (int) Math.min(buffer.length, (len - totalRead));
-          luceneFile.readBytes(buffer, 0, chunkSize);
-          RawFileChunk rawFileChunk =
-              RawFileChunk.newBuilder()
-                  .setContent(ByteString.copyFrom(buffer, 0, chunkSize))
-                  .build();
-          rawFileChunkStreamObserver.onNext(rawFileChunk);
-          totalRead += chunkSize;
-          randomDelay(random);
-        }
-        // EOF
-        rawFileChunkStreamObserver.onCompleted();
+        ShardState shardState = indexState.getSingleShard("replication");
+        ReplicationConfiguration replicationConfiguration =
+            globalState.getReplicationConfiguration();
+        FileChunkReader fileChunkReader =
+            FileChunkReader.open(shardState.indexDir, fileInfoRequest.getFileName());
+        RawFileSender rawFileSender =
+            new RawFileSender(
+                indexState.name,
+                fileInfoRequest.getFileName(),
+                fileChunkReader,
+                fileInfoRequest.getFpStart(),
+                replicationConfiguration.getFileChunkSizeBytes(),
+                fileInfoRequest.getAcceptCompression()
+                    && replicationConfiguration.shouldCompress(fileInfoRequest.getFileName()),
+                (ServerCallStreamObserver<RawFileChunk>) rawFileChunkStreamObserver);
+        rawFileSender.start();
       } catch (Exception e) {
         logger.warn("error on recvRawFile " + fileInfoRequest.getFileName(), e);
         rawFileChunkStreamObserver.onError(
@@ -1359,24 +1570,107 @@ public class LuceneServer {
     }
 
     /**
-     * induces random delay between 1ms to 10ms (both inclusive). Without this excessive buffering
-     * happens in server/primary if its to fast compared to receiver/replica. This only happens when
-     * we backfill an entire index i.e. very high indexing throughput.
-     * https://github.com/grpc/grpc-java/issues/6426. Note that flow control only works with client
-     * streaming, whereas we are using unary calls. For unary calls, you can
-     *
-     * <p>use NettyServerBuilder.maxConcurrentCallsPerConnection to limit concurrent calls
-     *
-     * <p>slow down to respond so that each request takes a little longer to get response.
+     * Streams a file to a replica only as fast as the replica reads it. Chunks are sent while the
+     * call is ready, and sending resumes from the grpc on ready handler, so the primary does not
+     * buffer the file in memory when the replica is slower, see
+     * https://github.com/grpc/grpc-java/issues/6426.
      *
-     * <p>For client streaming, you can in addition do manual flow control.
-     *
-     * @param random
-     * @throws InterruptedException
+     * <p>If the replica accepts compression and the file type is not already compressed, chunks
+     * are lz4 compressed, see {@link RawFileChunkCompression}.
      */
-    private void randomDelay(Random random) throws InterruptedException {
-      int val = random.nextInt(10);
-      Thread.sleep(val + 1);
+    static class RawFileSender implements Runnable {
+      // the checksum in the last 8 bytes of the file must come in the last chunk
+      private static final int MIN_LAST_CHUNK_BYTES = 9;
+
+      private final String indexName;
+      private final String fileName;
+      private final FileChunkReader fileChunkReader;
+      private final ServerCallStreamObserver<RawFileChunk> responseObserver;
+      private final int chunkSize;
+      private final boolean compress;
+      private final long len;
+      private long pos;
+      private long fileBytes;
+      private long sentBytes;
+      private boolean closed;
+
+      RawFileSender(
+          String indexName,
+          String fileName,
+          FileChunkReader fileChunkReader,
+          long fpStart,
+          int chunkSize,
+          boolean compress,
+          ServerCallStreamObserver<RawFileChunk> responseObserver) {
+        this.indexName = indexName;
+        this.fileName = fileName;
+        this.fileChunkReader = fileChunkReader;
+        this.responseObserver = responseObserver;
+        this.chunkSize = chunkSize;
+        this.compress = compress;
+        this.len = fileChunkReader.length();
+        this.pos = fpStart;
+      }
+
+      void start() {
+        responseObserver.setOnCancelHandler(this::close);
+        responseObserver.setOnReadyHandler(this);
+        // send what the call can take now, the rest is sent when it is ready again
+        run();
+      }
+
+      @Override
+      public synchronized void run() {
+        if (closed) {
+          return;
+        }
+        try {
+          while (pos < len && responseObserver.isReady()) {
+            long remaining = len - pos;
+            int size = (int) Math.min(chunkSize, remaining);
+            if (remaining - size < MIN_LAST_CHUNK_BYTES) {
+              size = (int) remaining;
+            }
+            // uncompressed chunks are not copied until grpc serializes them
+            ByteString content = fileChunkReader.read(pos, size);
+            RawFileChunk rawFileChunk =
+                compress
+                    ? RawFileChunkCompression.compress(content)
+                    : RawFileChunk.newBuilder().setContent(content).build();
+            responseObserver.onNext(rawFileChunk);
+            pos += size;
+            fileBytes += size;
+            sentBytes += rawFileChunk.getContent().size();
+          }
+          if (pos >= len) {
+            close();
+            ReplicationMetrics.fileBytesCount.labels(indexName).inc(fileBytes);
+            ReplicationMetrics.sentBytesCount.labels(indexName).inc(sentBytes);
+            if (compress && sentBytes > 0) {
+              ReplicationMetrics.fileCompressionRatio
+                  .labels(indexName)
+                  .observe((double) fileBytes / sentBytes);
+            }
+            // EOF
+            responseObserver.onCompleted();
+          }
+        } catch (Exception e) {
+          close();
+          logger.warn("error on recvRawFile " + fileName, e);
+          responseObserver.onError(
+              Status.INTERNAL
+                  .withDescription("error on recvRawFile: " + fileName)
+                  .augmentDescription(e.getMessage())
+                  .asRuntimeException());
+        }
+      }
+
+      synchronized void close() {
+        if (closed == false) {
+          closed = true;
+          IOUtils.closeWhileHandlingException(fileChunkReader);
+        }
+      }
     }
 
     @Override
@@ -1414,7 +1708,7 @@ public class LuceneServer {
         CopyFilesHandler copyFilesHandler = new CopyFilesHandler();
         // we need to send multiple responses to client from this method
         copyFilesHandler.handle(indexState, request, responseObserver);
-        logger.info("CopyFilesHandler returned successfully");
+        logger.info("CopyFilesHandler launched copy job");
       } catch (Exception e) {
         logger.warn(
             String.format(
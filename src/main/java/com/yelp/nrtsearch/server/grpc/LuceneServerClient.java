@@ -307,6 +307,30 @@ public class LuceneServerClient {
             .build());
   }
 
+  public void bulkIndex(
+      String indexName, String filePath, String fileType, int numWriters, int maxNumSegments) {
+    logger.info(
+        String.format(
+            "Will try to bulk index file: %s of type: %s into index: %s",
+            filePath, fileType, indexName));
+    BulkIndexResponse response;
+    try {
+      response =
+          blockingStub.bulkIndex(
+              BulkIndexRequest.newBuilder()
+                  .setIndexName(indexName)
+                  .setFilePath(filePath)
+                  .setFileType(fileType)
+                  .setNumWriters(numWriters)
+                  .setMaxNumSegments(maxNumSegments)
+                  .build());
+    } catch (StatusRuntimeException e) {
+      logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
+      return;
+    }
+    logger.info("Server returned : " + response.toString());
+  }
+
   public void status() throws InterruptedException {
     try {
       HealthCheckResponse status =
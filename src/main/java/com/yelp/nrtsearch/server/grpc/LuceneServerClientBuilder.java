@@ -19,6 +19,7 @@ import com.google.gson.Gson;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.util.JsonFormat;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -126,7 +127,7 @@ public interface LuceneServerClientBuilder<T> {
   }
 
   class AddJsonDocumentsClientBuilder
-      implements LuceneServerClientBuilder<Stream<AddDocumentRequest>> {
+      implements LuceneServerClientBuilder<Stream<AddDocumentRequest>>, Closeable {
     private static final Logger logger =
         Logger.getLogger(AddJsonDocumentsClientBuilder.class.getName());
     private final String indexName;
@@ -202,6 +203,11 @@ public interface LuceneServerClientBuilder<T> {
     public boolean isFinished() {
       return finished;
     }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
   }
 
   class SearchClientBuilder implements LuceneServerClientBuilder<SearchRequest> {
@@ -16,8 +16,10 @@
 package com.yelp.nrtsearch.server.grpc;
 
 import com.google.protobuf.GeneratedMessageV3;
+import com.yelp.nrtsearch.server.utils.HostPort;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
 import java.io.Closeable;
 import java.util.Iterator;
 import java.util.Map;
@@ -122,11 +124,21 @@ public class ReplicationServerClient implements Closeable {
   }
 
   public Iterator<RawFileChunk> recvRawFile(String fileName, long fpOffset, String indexName) {
+    return recvRawFile(fileName, fpOffset, indexName, false);
+  }
+
+  /**
+   * Stream a file from the primary. If acceptCompression is set, the primary may send lz4
+   * compressed chunks, see {@link RawFileChunk#getUncompressedLength()}.
+   */
+  public Iterator<RawFileChunk> recvRawFile(
+      String fileName, long fpOffset, String indexName, boolean acceptCompression) {
     FileInfo fileInfo =
         FileInfo.newBuilder()
             .setFileName(fileName)
             .setFpStart(fpOffset)
             .setIndexName(indexName)
+            .setAcceptCompression(acceptCompression)
             .build();
     return this.blockingStub.recvRawFile(fileInfo);
   }
@@ -167,6 +179,33 @@ public class ReplicationServerClient implements Closeable {
     return this.blockingStub.newNRTPoint(request);
   }
 
+  /**
+   * Notify the replica of a new NRT point without blocking, the response or error is given to the
+   * observer. If peer is not null, the replica copies the files from that replica instead of the
+   * primary.
+   */
+  public void newNRTPointAsync(
+      String indexName,
+      long primaryGen,
+      long version,
+      HostPort peer,
+      long timeoutMs,
+      StreamObserver<TransferStatus> responseObserver) {
+    NewNRTPoint.Builder builder =
+        NewNRTPoint.newBuilder()
+            .setMagicNumber(BINARY_MAGIC)
+            .setIndexName(indexName)
+            .setPrimaryGen(primaryGen)
+            .setVersion(version);
+    if (peer != null) {
+      builder.setPeerHostName(peer.getHostName()).setPeerPort(peer.getPort());
+    }
+    NewNRTPoint request = builder.build();
+    this.asyncStub
+        .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)
+        .newNRTPoint(request, responseObserver);
+  }
+
   public SearcherVersion writeNRTPoint(String indexName) {
     return blockingStub.writeNRTPoint(
         IndexName.newBuilder().setMagicNumber(BINARY_MAGIC).setIndexName(indexName).build());
@@ -177,6 +216,14 @@ public class ReplicationServerClient implements Closeable {
         IndexName.newBuilder().setMagicNumber(BINARY_MAGIC).setIndexName(indexName).build());
   }
 
+  /** Get the current searcher version of a replica, failing if it does not answer in time. */
+  public SearcherVersion getCurrentSearcherVersion(String indexName, long timeoutMs) {
+    return blockingStub
+        .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)
+        .getCurrentSearcherVersion(
+            IndexName.newBuilder().setMagicNumber(BINARY_MAGIC).setIndexName(indexName).build());
+  }
+
   public GetNodesResponse getConnectedNodes(String indexName) {
     return blockingStub.getConnectedNodes(
         GetNodesRequest.newBuilder().setIndexName(indexName).build());
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.yelp.nrtsearch.server.monitoring.RefreshMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Replacement for {@link ControlledRealTimeReopenThread} that adapts the delay between refreshes
+ * to the current load, instead of always using the fixed minRefreshSec and maxRefreshSec.
+ *
+ * <ul>
+ *   <li>Without anyone waiting on a generation, refresh every maxRefreshSec.
+ *   <li>When a search is waiting on a generation, refresh after minRefreshSec, stretched towards
+ *       maxRefreshSec as the search thread pool gets busy.
+ *   <li>Explicit refresh requests wake the thread and refresh immediately, and all requests that
+ *       arrive before a refresh starts are served by that one refresh.
+ *   <li>When a search is waiting, back off to maxRefreshSec while all merge threads are busy, and
+ *       never refresh more often than a multiple of the recent refresh cost, so that expensive
+ *       flushes are not repeated back to back.
+ * </ul>
+ *
+ * The chosen delays and the reason for each refresh are exported in {@link RefreshMetrics}.
+ */
+public class AdaptiveRefreshThread<T> extends Thread implements Closeable {
+  /** Max factor the waiting delay is multiplied by when the search pool is saturated. */
+  static final double SEARCH_LOAD_BACKOFF = 4.0;
+  /** Min delay between refreshes, as a multiple of the average refresh time. */
+  static final double REFRESH_COST_MULTIPLIER = 4.0;
+  /** Weight of the latest refresh time in the moving average. */
+  private static final double COST_ALPHA = 0.2;
+
+  private final ReferenceManager<T> manager;
+  private final IndexWriter writer;
+  private final String indexName;
+  private final DoubleSupplier searchLoad;
+  private final long targetMaxStaleNS;
+  private final long targetMinStaleNS;
+
+  private final HandleRefresh refreshListener = new HandleRefresh();
+  private final ReentrantLock reopenLock = new ReentrantLock();
+  private final Condition reopenCond = reopenLock.newCondition();
+
+  private volatile boolean finish;
+  private volatile long waitingGen;
+  private volatile long searchingGen;
+  private volatile boolean refreshRequested;
+  private volatile long refreshStartGen;
+  private volatile boolean lastDidRefresh;
+  private double avgRefreshNS;
+  private String backoffCause;
+
+  /**
+   * Constructor.
+   *
+   * @param writer writer whose sequence numbers are used as generations
+   * @param manager manager to refresh
+   * @param indexName index name for metrics
+   * @param targetMaxStaleSec max delay before refreshing when nobody is waiting
+   * @param targetMinStaleSec min delay before refreshing when a search is waiting
+   * @param searchLoad current search load, from 0 (idle) to 1 (saturated)
+   */
+  public AdaptiveRefreshThread(
+      IndexWriter writer,
+      ReferenceManager<T> manager,
+      String indexName,
+      double targetMaxStaleSec,
+      double targetMinStaleSec,
+      DoubleSupplier searchLoad) {
+    if (targetMaxStaleSec < targetMinStaleSec) {
+      throw new IllegalArgumentException(
+          "targetMaxScaleSec (= "
+              + targetMaxStaleSec
+              + ") < targetMinStaleSec (="
+              + targetMinStaleSec
+              + ")");
+    }
+    this.writer = writer;
+    this.manager = manager;
+    this.indexName = indexName;
+    this.searchLoad = searchLoad;
+    this.targetMaxStaleNS = (long) (1000000000 * targetMaxStaleSec);
+    this.targetMinStaleNS = (long) (1000000000 * targetMinStaleSec);
+    manager.addListener(refreshListener);
+  }
+
+  private class HandleRefresh implements ReferenceManager.RefreshListener {
+    @Override
+    public void beforeRefresh() {
+      // Save the gen as of when we started the reopen; refreshDone copies this to searchingGen
+      // once the reopen completes. This also covers refreshes not started by this thread.
+      refreshStartGen = writer.getMaxCompletedSequenceNumber();
+    }
+
+    @Override
+    public void afterRefresh(boolean didRefresh) {
+      lastDidRefresh = didRefresh;
+      refreshDone();
+    }
+  }
+
+  private synchronized void refreshDone() {
+    searchingGen = refreshStartGen;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void close() {
+    manager.removeListener(refreshListener);
+    finish = true;
+    wakeUp();
+    try {
+      join();
+    } catch (InterruptedException ie) {
+      throw new ThreadInterruptedException(ie);
+    }
+    // Max it out so any waiting search threads will return:
+    searchingGen = Long.MAX_VALUE;
+    notifyAll();
+  }
+
+  /** Wait until the searcher includes the given generation. */
+  public void waitForGeneration(long targetGen) throws InterruptedException {
+    waitForGeneration(targetGen, -1);
+  }
+
+  /**
+   * Wait until the searcher includes the given generation, or the timeout elapses.
+   *
+   * @param targetGen generation to wait for
+   * @param maxMS max time to wait, or -1 to wait forever
+   * @return true if the generation is searchable
+   */
+  public synchronized boolean waitForGeneration(long targetGen, int maxMS)
+      throws InterruptedException {
+    if (targetGen > searchingGen) {
+      waitingGen = Math.max(waitingGen, targetGen);
+      wakeUp();
+      long startMS = System.nanoTime() / 1000000;
+      while (targetGen > searchingGen) {
+        if (maxMS < 0) {
+          wait();
+        } else {
+          long msLeft = (startMS + maxMS) - System.nanoTime() / 1000000;
+          if (msLeft <= 0) {
+            return false;
+          }
+          wait(msLeft);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Refresh as soon as possible and wait until everything indexed before this call is searchable.
+   * Concurrent callers share a refresh.
+   */
+  public void refreshNow() throws InterruptedException {
+    RefreshMetrics.refreshRequestCount.labels(indexName).inc();
+    long targetGen = writer.getMaxCompletedSequenceNumber();
+    synchronized (this) {
+      if (targetGen > searchingGen) {
+        refreshRequested = true;
+      }
+    }
+    waitForGeneration(targetGen);
+  }
+
+  private void wakeUp() {
+    reopenLock.lock();
+    try {
+      reopenCond.signal();
+    } finally {
+      reopenLock.unlock();
+    }
+  }
+
+  @Override
+  public void run() {
+    long lastReopenStartNS = System.nanoTime();
+    while (!finish) {
+      // Loop until we've waited long enough before the next reopen, the delay is recomputed
+      // whenever the thread is woken up since a waiter or request may have arrived
+      String reason = null;
+      while (!finish) {
+        reopenLock.lock();
+        try {
+          boolean hasWaiting = waitingGen > searchingGen;
+          if (refreshRequested) {
+            reason = "requested";
+          } else if (hasWaiting) {
+            reason = "waiting";
+          } else {
+            reason = "periodic";
+          }
+          long delayNS = nextDelayNS(reason);
+          long sleepNS = lastReopenStartNS + delayNS - System.nanoTime();
+          if (sleepNS > 0) {
+            reopenCond.awaitNanos(sleepNS);
+          } else {
+            RefreshMetrics.refreshIntervalSeconds
+                .labels(indexName)
+                .set(delayNS / (double) TimeUnit.SECONDS.toNanos(1));
+            if (backoffCause != null) {
+              RefreshMetrics.backoffCount.labels(indexName, backoffCause).inc();
+            }
+            break;
+          }
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        } finally {
+          reopenLock.unlock();
+        }
+      }
+
+      if (finish) {
+        break;
+      }
+
+      lastReopenStartNS = System.nanoTime();
+      // requests made from here on may need changes indexed after this refresh starts
+      refreshRequested = false;
+      try {
+        manager.maybeRefreshBlocking();
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+      long refreshNS = System.nanoTime() - lastReopenStartNS;
+      if (!lastDidRefresh) {
+        // nothing changed since the last refresh, so this says nothing about refresh cost
+        RefreshMetrics.skippedRefreshCount.labels(indexName).inc();
+        continue;
+      }
+      avgRefreshNS =
+          avgRefreshNS == 0 ? refreshNS : COST_ALPHA * refreshNS + (1 - COST_ALPHA) * avgRefreshNS;
+      RefreshMetrics.refreshCount.labels(indexName, reason).inc();
+      RefreshMetrics.refreshLatencySeconds
+          .labels(indexName)
+          .observe(refreshNS / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  /**
+   * Compute the delay from the start of the last refresh to the next one, and set {@link
+   * #backoffCause} if the delay was increased.
+   */
+  private long nextDelayNS(String reason) {
+    backoffCause = null;
+    if (reason.equals("requested")) {
+      // the refresh RPC and realtime gets block on this, so it is never backed off
+      return 0;
+    }
+    if (reason.equals("periodic")) {
+      return targetMaxStaleNS;
+    }
+    if (mergesSaturated()) {
+      backoffCause = "merges";
+      return targetMaxStaleNS;
+    }
+    double load = Math.min(1.0, Math.max(0.0, searchLoad.getAsDouble()));
+    double delayNS = targetMinStaleNS * (1 + SEARCH_LOAD_BACKOFF * load);
+    if (load > 0) {
+      backoffCause = "search_load";
+    }
+    double costDelayNS = avgRefreshNS * REFRESH_COST_MULTIPLIER;
+    if (costDelayNS > delayNS) {
+      backoffCause = "refresh_cost";
+      delayNS = costDelayNS;
+    }
+    return (long) Math.min(delayNS, targetMaxStaleNS);
+  }
+
+  private boolean mergesSaturated() {
+    MergeScheduler mergeScheduler = writer.getConfig().getMergeScheduler();
+    if (mergeScheduler instanceof ConcurrentMergeScheduler) {
+      ConcurrentMergeScheduler cms = (ConcurrentMergeScheduler) mergeScheduler;
+      int maxThreadCount = cms.getMaxThreadCount();
+      return maxThreadCount > 0 && cms.mergeThreadCount() >= maxThreadCount;
+    }
+    return false;
+  }
+}
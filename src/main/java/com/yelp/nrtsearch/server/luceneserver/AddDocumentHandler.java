@@ -23,7 +23,10 @@ import com.yelp.nrtsearch.server.luceneserver.field.FieldDef;
 import com.yelp.nrtsearch.server.luceneserver.field.IdFieldDef;
 import com.yelp.nrtsearch.server.luceneserver.field.IndexableFieldDef;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -122,9 +125,12 @@ public class AddDocumentHandler implements Handler<AddDocumentRequest, Any> {
           String.format(
               "running indexing job on threadId: %s",
               Thread.currentThread().getName() + Thread.currentThread().getId()));
-      Queue<Document> documents = new LinkedBlockingDeque<>();
+      long t0 = System.nanoTime();
+      long chunkBytes = 0;
+      List<Document> documents = new ArrayList<>(addDocumentRequestList.size());
       IndexState indexState = null;
       for (AddDocumentRequest addDocumentRequest : addDocumentRequestList) {
+        chunkBytes += addDocumentRequest.getSerializedSize();
         try {
           indexState = globalState.getIndex(addDocumentRequest.getIndexName());
           Document document =
@@ -135,13 +141,62 @@ public class AddDocumentHandler implements Handler<AddDocumentRequest, Any> {
           throw new Exception(e); // parent thread should catch and send error back to client
         }
       }
-      ShardState shardState = indexState.getShard(0);
       IdFieldDef idFieldDef = indexState.getIdFieldDef();
+
+      // route documents by id, or send the whole chunk to one shard
+      Map<ShardState, List<Integer>> shardDocs = new LinkedHashMap<>();
+      if (idFieldDef != null && indexState.getNumShards() > 1) {
+        for (int i = 0; i < documents.size(); ++i) {
+          ShardState shardState =
+              indexState.getShardForId(idFieldDef.getTerm(documents.get(i)).bytes());
+          shardDocs.computeIfAbsent(shardState, k -> new ArrayList<>()).add(i);
+        }
+      } else {
+        List<Integer> allDocs = new ArrayList<>(documents.size());
+        for (int i = 0; i < documents.size(); ++i) {
+          allDocs.add(i);
+        }
+        shardDocs.put(indexState.getShardForNextChunk(), allDocs);
+      }
+
+      long maxSeqNo = -1;
+      for (Map.Entry<ShardState, List<Integer>> entry : shardDocs.entrySet()) {
+        maxSeqNo =
+            Math.max(maxSeqNo, indexShard(entry.getKey(), idFieldDef, documents, entry.getValue()));
+      }
+      indexState
+          .getChunkSizer()
+          .recordChunk(addDocumentRequestList.size(), chunkBytes, System.nanoTime() - t0);
+      logger.debug(
+          String.format(
+              "indexing job on threadId: %s done with SequenceId: %s",
+              Thread.currentThread().getName() + Thread.currentThread().getId(), maxSeqNo));
+      return maxSeqNo;
+    }
+
+    /**
+     * Index the given subset of the chunk into one shard.
+     *
+     * @return max completed sequence number of the shard writer
+     */
+    private long indexShard(
+        ShardState shardState,
+        IdFieldDef idFieldDef,
+        List<Document> documents,
+        List<Integer> docIndices)
+        throws IOException {
+      Queue<Document> shardDocuments = new LinkedBlockingDeque<>();
+      for (int docIndex : docIndices) {
+        shardDocuments.add(documents.get(docIndex));
+      }
+      long[] seqNos;
       try {
         if (idFieldDef != null) {
-          updateDocuments(documents, idFieldDef, shardState);
+          seqNos = updateDocuments(shardDocuments, idFieldDef, shardState);
         } else {
-          addDocuments(documents, shardState);
+          long seqNo = addDocuments(shardDocuments, shardState);
+          seqNos = new long[docIndices.size()];
+          Arrays.fill(seqNos, seqNo);
         }
       } catch (IOException e) { // This exception should be caught in parent to and set
         // responseObserver.onError(e) so client knows the job failed
@@ -151,25 +206,35 @@ public class AddDocumentHandler implements Handler<AddDocumentRequest, Any> {
                 Thread.currentThread().getName() + Thread.currentThread().getId()));
         throw new IOException(e);
       }
-      logger.debug(
-          String.format(
-              "indexing job on threadId: %s done with SequenceId: %s",
-              Thread.currentThread().getName() + Thread.currentThread().getId(),
-              shardState.writer.getMaxCompletedSequenceNumber()));
+      if (shardState.translog != null) {
+        // documents are not acknowledged until they are durable in the translog
+        List<Translog.Operation> operations = new ArrayList<>(docIndices.size());
+        for (int i = 0; i < docIndices.size(); ++i) {
+          operations.add(
+              new Translog.Operation(seqNos[i], addDocumentRequestList.get(docIndices.get(i))));
+        }
+        shardState.logOperations(operations);
+      }
       return shardState.writer.getMaxCompletedSequenceNumber();
     }
 
-    private void updateDocuments(
+    /** Update documents by id, returning the sequence number of each update. */
+    private long[] updateDocuments(
         Queue<Document> documents, IdFieldDef idFieldDef, ShardState shardState)
         throws IOException {
+      long[] seqNos = new long[documents.size()];
+      int i = 0;
       for (Document nextDoc : documents) {
         nextDoc = handleFacets(shardState, nextDoc);
-        shardState.writer.updateDocument(idFieldDef.getTerm(nextDoc), nextDoc);
+        seqNos[i++] = shardState.writer.updateDocument(idFieldDef.getTerm(nextDoc), nextDoc);
       }
+      return seqNos;
     }
 
-    private void addDocuments(Queue<Document> documents, ShardState shardState) throws IOException {
-      shardState.writer.addDocuments(
+    /** Add documents as one block, returning the sequence number of the block. */
+    private long addDocuments(Queue<Document> documents, ShardState shardState)
+        throws IOException {
+      return shardState.writer.addDocuments(
           (Iterable<Document>)
               () ->
                   new Iterator<>() {
@@ -23,7 +23,7 @@ import java.io.IOException;
 public class AddReplicaHandler implements Handler<AddReplicaRequest, AddReplicaResponse> {
   @Override
   public AddReplicaResponse handle(IndexState indexState, AddReplicaRequest addReplicaRequest) {
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("replication");
     if (shardState.isPrimary() == false) {
       throw new IllegalArgumentException(
           "index \"" + indexState.name + "\" was not started or is not a primary");
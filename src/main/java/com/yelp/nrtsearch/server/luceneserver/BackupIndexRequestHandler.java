@@ -20,14 +20,33 @@ import com.yelp.nrtsearch.server.grpc.BackupIndexResponse;
 import com.yelp.nrtsearch.server.grpc.CreateSnapshotRequest;
 import com.yelp.nrtsearch.server.grpc.CreateSnapshotResponse;
 import com.yelp.nrtsearch.server.grpc.ReleaseSnapshotRequest;
-import com.yelp.nrtsearch.server.grpc.ReleaseSnapshotResponse;
+import com.yelp.nrtsearch.server.luceneserver.field.FieldDef;
+import com.yelp.nrtsearch.server.luceneserver.field.IndexableFieldDef;
 import com.yelp.nrtsearch.server.utils.Archiver;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.StandardDirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class BackupIndexRequestHandler implements Handler<BackupIndexRequest, BackupIndexResponse> {
   Logger logger = LoggerFactory.getLogger(BackupIndexRequestHandler.class);
+  private static final String SUGGEST_PREFIX = "suggest.";
+  private static final Map<String, Object> backupLocks = new ConcurrentHashMap<>();
   private final Archiver archiver;
 
   public BackupIndexRequestHandler(Archiver archiver) {
@@ -39,50 +58,73 @@ public class BackupIndexRequestHandler implements Handler<BackupIndexRequest, Ba
       throws HandlerException {
     BackupIndexResponse.Builder backupIndexResponseBuilder = BackupIndexResponse.newBuilder();
     String indexName = backupIndexRequest.getIndexName();
-    try {
-      // only upload metadata in case we are replica
-      if (indexState.getShard(0).isReplica()) {
-        uploadMetadata(
-            backupIndexRequest.getServiceName(),
-            backupIndexRequest.getResourceName(),
-            indexState,
-            backupIndexResponseBuilder);
-      } else {
-        indexState.commit();
-
-        CreateSnapshotRequest createSnapshotRequest =
-            CreateSnapshotRequest.newBuilder().setIndexName(indexName).build();
-
-        CreateSnapshotResponse createSnapshotResponse =
-            new CreateSnapshotHandler().createSnapshot(indexState, createSnapshotRequest);
-
-        uploadArtifacts(
-            backupIndexRequest.getServiceName(),
-            backupIndexRequest.getResourceName(),
-            indexState,
-            backupIndexResponseBuilder);
-
-        ReleaseSnapshotRequest releaseSnapshotRequest =
-            ReleaseSnapshotRequest.newBuilder()
-                .setIndexName(indexName)
-                .setSnapshotId(createSnapshotResponse.getSnapshotId())
-                .build();
-        ReleaseSnapshotResponse releaseSnapshotResponse =
+    // data is staged from one shard, fail before committing or uploading anything
+    ShardState shardState = indexState.getSingleShard("backups");
+    // cleanup of old incremental versions deletes files that no kept version references, which
+    // could include files a concurrent backup of the index is reusing, so backups run one at a time
+    synchronized (getBackupLock(indexName)) {
+      try {
+        // replicas back up their current searcher, so the upload load is kept off the primary
+        if (shardState.isReplica()) {
+          uploadReplicaArtifacts(
+              backupIndexRequest.getServiceName(),
+              backupIndexRequest.getResourceName(),
+              indexState,
+              backupIndexResponseBuilder,
+              backupIndexRequest.getIncremental());
+        } else {
+          indexState.commit();
+
+          CreateSnapshotRequest createSnapshotRequest =
+              CreateSnapshotRequest.newBuilder().setIndexName(indexName).build();
+
+          CreateSnapshotResponse createSnapshotResponse =
+              new CreateSnapshotHandler().createSnapshot(indexState, createSnapshotRequest);
+
+          try {
+            uploadArtifacts(
+                backupIndexRequest.getServiceName(),
+                backupIndexRequest.getResourceName(),
+                indexState,
+                createSnapshotResponse,
+                backupIndexResponseBuilder,
+                backupIndexRequest.getIncremental());
+          } finally {
+            ReleaseSnapshotRequest releaseSnapshotRequest =
+                ReleaseSnapshotRequest.newBuilder()
+                    .setIndexName(indexName)
+                    .setSnapshotId(createSnapshotResponse.getSnapshotId())
+                    .build();
             new ReleaseSnapshotHandler().handle(indexState, releaseSnapshotRequest);
-      }
+          }
+        }
+
+        if (backupIndexRequest.getIncremental() && backupIndexRequest.getKeepVersions() > 0) {
+          archiver.cleanupIncremental(
+              backupIndexRequest.getServiceName(),
+              getResourceData(backupIndexRequest.getResourceName()),
+              backupIndexRequest.getKeepVersions());
+        }
 
-    } catch (IOException e) {
-      logger.error(
-          String.format(
-              "Error while trying to backup index %s with serviceName %s, resourceName %s",
-              indexName, backupIndexRequest.getServiceName(), backupIndexRequest.getResourceName()),
-          e);
-      return backupIndexResponseBuilder.build();
+      } catch (IOException e) {
+        logger.error(
+            String.format(
+                "Error while trying to backup index %s with serviceName %s, resourceName %s",
+                indexName,
+                backupIndexRequest.getServiceName(),
+                backupIndexRequest.getResourceName()),
+            e);
+        return backupIndexResponseBuilder.build();
+      }
     }
 
     return backupIndexResponseBuilder.build();
   }
 
+  private static Object getBackupLock(String indexName) {
+    return backupLocks.computeIfAbsent(indexName, k -> new Object());
+  }
+
   public static String getResourceMetadata(String resourceName) {
     return String.format("%s_metadata", resourceName);
   }
@@ -91,18 +133,223 @@ public class BackupIndexRequestHandler implements Handler<BackupIndexRequest, Ba
     return String.format("%s_data", resourceName);
   }
 
+  /**
+   * Upload index data and metadata from a snapshot. The data is staged from the files of the
+   * snapshot, see {@link #stageSnapshotData}, so files in the index root dir that are not part of
+   * the commit, like the translog, are not backed up. With incremental, index files already
+   * uploaded by a previous backup are not uploaded again.
+   */
   public void uploadArtifacts(
       String serviceName,
       String resourceName,
       IndexState indexState,
-      BackupIndexResponse.Builder backupIndexResponseBuilder)
+      CreateSnapshotResponse snapshot,
+      BackupIndexResponse.Builder backupIndexResponseBuilder,
+      boolean incremental)
+      throws IOException {
+    Path stagingDir = createStagingDir(indexState);
+    try {
+      Path stagedRootDir = stageSnapshotData(indexState, snapshot, stagingDir);
+      uploadData(serviceName, resourceName, stagedRootDir, backupIndexResponseBuilder, incremental);
+    } finally {
+      FileUtils.deleteDirectory(stagingDir.toFile());
+    }
+
+    uploadMetadata(serviceName, resourceName, indexState, backupIndexResponseBuilder);
+  }
+
+  /**
+   * Upload index data and metadata from a replica. The data is staged from the replica's current
+   * searcher, see {@link #stageReplicaData}, so it is a complete commit point even though replicas
+   * do not commit.
+   */
+  public void uploadReplicaArtifacts(
+      String serviceName,
+      String resourceName,
+      IndexState indexState,
+      BackupIndexResponse.Builder backupIndexResponseBuilder,
+      boolean incremental)
+      throws IOException {
+    Path stagingDir = createStagingDir(indexState);
+    try {
+      Path stagedRootDir = stageReplicaData(indexState, stagingDir);
+      uploadData(serviceName, resourceName, stagedRootDir, backupIndexResponseBuilder, incremental);
+    } finally {
+      FileUtils.deleteDirectory(stagingDir.toFile());
+    }
+
+    uploadMetadata(serviceName, resourceName, indexState, backupIndexResponseBuilder);
+  }
+
+  private void uploadData(
+      String serviceName,
+      String resourceName,
+      Path stagedRootDir,
+      BackupIndexResponse.Builder backupIndexResponseBuilder,
+      boolean incremental)
       throws IOException {
     String resourceData = getResourceData(resourceName);
-    String versionHash = archiver.upload(serviceName, resourceData, indexState.rootDir);
+    String versionHash =
+        incremental
+            ? archiver.uploadIncremental(serviceName, resourceData, stagedRootDir)
+            : archiver.upload(serviceName, resourceData, stagedRootDir);
     archiver.blessVersion(serviceName, resourceData, versionHash);
     backupIndexResponseBuilder.setDataVersionHash(versionHash);
+  }
 
-    uploadMetadata(serviceName, resourceName, indexState, backupIndexResponseBuilder);
+  /**
+   * Create a staging dir in the tmp dir of the global state, which is cleared on startup, so the
+   * dir of a backup interrupted by a crash does not leak.
+   */
+  private static Path createStagingDir(IndexState indexState) throws IOException {
+    return Files.createTempDirectory(
+        indexState.globalState.getTmpDir(), indexState.name + ".backup");
+  }
+
+  /**
+   * Stage the files of a snapshot in the same layout as the index root dir: the index and
+   * taxonomy files of the snapshot commit, the index state, and built suggesters. The snapshot
+   * keeps its files from being deleted while they are hard linked into the staging dir. Other
+   * files in the root dir, like the translog or uncommitted segments, are left out.
+   *
+   * @return staged index root dir
+   */
+  Path stageSnapshotData(IndexState indexState, CreateSnapshotResponse snapshot, Path stagingDir)
+      throws IOException {
+    ShardState shardState = indexState.getSingleShard("backups");
+    Path stagedRootDir = stagingDir.resolve(indexState.rootDir.getFileName());
+    Path stagedShardDir = stagedRootDir.resolve(indexState.rootDir.relativize(shardState.rootDir));
+
+    Path stagedIndexDir = stagedShardDir.resolve("index");
+    Files.createDirectories(stagedIndexDir);
+    List<String> indexFiles = new ArrayList<>(snapshot.getIndexFilesList());
+    for (String fileName : shardState.origIndexDir.listAll()) {
+      // suggesters are written to the index dir, outside of any commit
+      if (fileName.startsWith(SUGGEST_PREFIX)) {
+        indexFiles.add(fileName);
+      }
+    }
+    try (Directory stagedDirectory = FSDirectory.open(stagedIndexDir)) {
+      stageFiles(
+          shardState.origIndexDir,
+          shardState.rootDir.resolve("index"),
+          stagedDirectory,
+          stagedIndexDir,
+          indexFiles);
+    }
+
+    if (snapshot.getTaxonomyFilesCount() > 0) {
+      Path stagedTaxonomyDir = stagedShardDir.resolve("taxonomy");
+      Files.createDirectories(stagedTaxonomyDir);
+      try (Directory stagedDirectory = FSDirectory.open(stagedTaxonomyDir)) {
+        stageFiles(
+            shardState.taxoDir,
+            shardState.rootDir.resolve("taxonomy"),
+            stagedDirectory,
+            stagedTaxonomyDir,
+            snapshot.getTaxonomyFilesList());
+      }
+    }
+
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(indexState.rootDir, SUGGEST_PREFIX + "*")) {
+      for (Path suggestDir : stream) {
+        FileUtils.copyDirectory(
+            suggestDir.toFile(), stagedRootDir.resolve(suggestDir.getFileName()).toFile());
+      }
+    }
+    stageState(indexState, stagedRootDir);
+    logger.info(
+        "Staged backup of index {} at generation {}, {} index files",
+        indexState.name,
+        snapshot.getSnapshotId().getIndexGen(),
+        indexFiles.size());
+    return stagedRootDir;
+  }
+
+  /**
+   * Hard link files into the staging dir. Files that can't be linked, because they are only in
+   * the NRT caching dir or on another file system, are copied.
+   */
+  private static void stageFiles(
+      Directory sourceDirectory,
+      Path sourceDir,
+      Directory stagedDirectory,
+      Path stagedDir,
+      Collection<String> fileNames)
+      throws IOException {
+    for (String fileName : fileNames) {
+      try {
+        Files.createLink(stagedDir.resolve(fileName), sourceDir.resolve(fileName));
+      } catch (IOException | UnsupportedOperationException e) {
+        stagedDirectory.copyFrom(sourceDirectory, fileName, fileName, IOContext.READONCE);
+      }
+    }
+  }
+
+  private static void stageState(IndexState indexState, Path stagedRootDir) throws IOException {
+    Path stateDir = indexState.rootDir.resolve("state");
+    if (Files.exists(stateDir)) {
+      FileUtils.copyDirectory(stateDir.toFile(), stagedRootDir.resolve("state").toFile());
+    }
+  }
+
+  /**
+   * Stage the files of the replica's current searcher in the same layout as the index root dir,
+   * with a segments file written for the searcher's infos. The acquired searcher keeps its files
+   * from being deleted while they are hard linked into the staging dir, and the links keep them
+   * for the upload.
+   *
+   * <p>Replicas do not open the taxonomy index, so indices with taxonomy facet fields cannot be
+   * backed up from a replica.
+   *
+   * @return staged index root dir
+   * @throws IllegalStateException if the index has taxonomy facet fields
+   */
+  Path stageReplicaData(IndexState indexState, Path stagingDir) throws IOException {
+    ShardState shardState = indexState.getSingleShard("backups");
+    for (FieldDef fieldDef : indexState.getAllFields().values()) {
+      IndexableFieldDef.FacetValueType facetValueType = fieldDef.getFacetValueType();
+      if (facetValueType == IndexableFieldDef.FacetValueType.FLAT
+          || facetValueType == IndexableFieldDef.FacetValueType.HIERARCHY) {
+        throw new IllegalStateException(
+            String.format(
+                "index: %s has taxonomy facet field: %s, back up from the primary instead",
+                indexState.name, fieldDef.getName()));
+      }
+    }
+    Path stagedRootDir = stagingDir.resolve(indexState.rootDir.getFileName());
+    Path stagedIndexDir =
+        stagedRootDir.resolve(indexState.rootDir.relativize(shardState.rootDir)).resolve("index");
+    Files.createDirectories(stagedIndexDir);
+    Path sourceIndexDir = shardState.rootDir.resolve("index");
+
+    SearcherTaxonomyManager.SearcherAndTaxonomy s = shardState.acquire();
+    try (Directory stagedDirectory = FSDirectory.open(stagedIndexDir)) {
+      IndexReader reader = s.searcher.getIndexReader();
+      if (!(reader instanceof StandardDirectoryReader)) {
+        throw new IllegalStateException("Unexpected replica reader: " + reader.getClass());
+      }
+      // cloned, since committing updates the generation of the infos
+      SegmentInfos infos = ((StandardDirectoryReader) reader).getSegmentInfos().clone();
+      stageFiles(
+          shardState.indexDir,
+          sourceIndexDir,
+          stagedDirectory,
+          stagedIndexDir,
+          infos.files(false));
+      infos.commit(stagedDirectory);
+      logger.info(
+          "Staged replica backup of index {} at version {}, {} files",
+          indexState.name,
+          infos.getVersion(),
+          infos.files(true).size());
+    } finally {
+      shardState.release(s);
+    }
+
+    stageState(indexState, stagedRootDir);
+    return stagedRootDir;
   }
 
   public void uploadMetadata(
@@ -65,7 +65,7 @@ public class BuildSuggestHandler implements Handler<BuildSuggestRequest, BuildSu
 
   /** Load all previously built suggesters. */
   public void load(IndexState indexState, JsonObject saveState) throws IOException {
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("suggesters");
     for (Map.Entry<String, JsonElement> ent : saveState.entrySet()) {
       String suggestName = ent.getKey();
       JsonObject buildSuggestRequestAsJsonObject = ent.getValue().getAsJsonObject();
@@ -94,7 +94,7 @@ public class BuildSuggestHandler implements Handler<BuildSuggestRequest, BuildSu
       throws IOException {
     String suggestName = buildSuggestRequest.getSuggestName();
 
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("suggesters");
 
     Lookup oldSuggester = indexState.suggesters.get(suggestName);
     if (oldSuggester != null && oldSuggester instanceof Closeable) {
@@ -381,7 +381,7 @@ public class BuildSuggestHandler implements Handler<BuildSuggestRequest, BuildSu
   public BuildSuggestResponse handle(IndexState indexState, BuildSuggestRequest buildSuggestRequest)
       throws HandlerException {
 
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("suggesters");
     final JsonObject buildSuggestRequestAsJsonObject;
     try {
       // convert Proto object to Json String
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.google.gson.Gson;
+import com.yelp.nrtsearch.server.grpc.AddDocumentRequest;
+import com.yelp.nrtsearch.server.grpc.BulkIndexRequest;
+import com.yelp.nrtsearch.server.grpc.BulkIndexResponse;
+import com.yelp.nrtsearch.server.grpc.LuceneServerClientBuilder;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a document file from the bulk index dir of the server without going through the live {@link
+ * IndexWriter} one document at a time. The file is parsed the same way as the addDocuments client,
+ * and the documents are indexed in parallel into private writers on temporary directories. The
+ * resulting segments are then attached to the live index with {@link
+ * IndexWriter#addIndexes(Directory...)} followed by a single force merge.
+ */
+public class BulkIndexHandler implements Handler<BulkIndexRequest, BulkIndexResponse> {
+  private static final Logger logger = LoggerFactory.getLogger(BulkIndexHandler.class);
+  private static final int DOCS_PER_BATCH = 1000;
+  private static final String BULK_INDEX_DIR = "bulk_index";
+  private static final List<AddDocumentRequest> END_OF_INPUT = Collections.emptyList();
+
+  @Override
+  public BulkIndexResponse handle(IndexState indexState, BulkIndexRequest bulkIndexRequest)
+      throws BulkIndexHandlerException {
+    ShardState shardState = indexState.getShard(0);
+    if (!shardState.isStarted() || shardState.isReplica()) {
+      throw new BulkIndexHandlerException(
+          String.format(
+              "index: %s must be started in primary or standalone mode to bulk index",
+              indexState.name));
+    }
+    if (indexState.getIdFieldDef() != null && indexState.getNumShards() > 1) {
+      // batches are not routed by id, so a document could land in the wrong shard
+      throw new BulkIndexHandlerException(
+          String.format(
+              "index: %s has an _ID field and multiple shards, bulk index is not supported",
+              indexState.name));
+    }
+    // addIndexes does not apply updates, so duplicate ids could be introduced
+    if (indexState.getIdFieldDef() != null && shardState.writer.getDocStats().numDocs > 0) {
+      throw new BulkIndexHandlerException(
+          String.format(
+              "index: %s has an _ID field and is not empty, bulk index can only load an empty index",
+              indexState.name));
+    }
+    Path filePath =
+        resolveFilePath(indexState.globalState.getBulkIndexDir(), bulkIndexRequest.getFilePath());
+    int numWriters =
+        bulkIndexRequest.getNumWriters() > 0
+            ? bulkIndexRequest.getNumWriters()
+            : Runtime.getRuntime().availableProcessors();
+    int maxNumSegments =
+        bulkIndexRequest.getMaxNumSegments() > 0 ? bulkIndexRequest.getMaxNumSegments() : 1;
+
+    // unique per call, so concurrent loads don't share writer dirs
+    Path bulkDir;
+    try {
+      bulkDir =
+          Files.createTempDirectory(
+              indexState.globalState.getTmpDir(), indexState.name + "." + BULK_INDEX_DIR);
+    } catch (IOException e) {
+      throw new BulkIndexHandlerException("unable to create bulk index directory", e);
+    }
+    List<Directory> directories = new ArrayList<>();
+    // writers are spread over the shards, each shard later adds the segments of its writers
+    Map<ShardState, List<Directory>> shardDirectories = new LinkedHashMap<>();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(numWriters, new NamedThreadFactory("BulkIndexWriter"));
+    try {
+      BlockingQueue<List<AddDocumentRequest>> queue = new ArrayBlockingQueue<>(numWriters * 2);
+      List<Future<Long>> futures = new ArrayList<>();
+      for (int i = 0; i < numWriters; ++i) {
+        Directory directory = FSDirectory.open(bulkDir.resolve("writer_" + i));
+        directories.add(directory);
+        ShardState writerShard = indexState.getShard(i % indexState.getNumShards());
+        shardDirectories.computeIfAbsent(writerShard, k -> new ArrayList<>()).add(directory);
+        futures.add(executor.submit(() -> runWriter(indexState, writerShard, directory, queue)));
+      }
+
+      long t0 = System.nanoTime();
+      try (Stream<AddDocumentRequest> requests =
+          readDocuments(indexState, filePath, bulkIndexRequest)) {
+        Iterator<AddDocumentRequest> iterator = requests.iterator();
+        List<AddDocumentRequest> batch = new ArrayList<>(DOCS_PER_BATCH);
+        while (iterator.hasNext()) {
+          batch.add(iterator.next());
+          if (batch.size() == DOCS_PER_BATCH) {
+            enqueue(queue, batch, futures);
+            batch = new ArrayList<>(DOCS_PER_BATCH);
+          }
+        }
+        if (!batch.isEmpty()) {
+          enqueue(queue, batch, futures);
+        }
+        for (int i = 0; i < numWriters; ++i) {
+          enqueue(queue, END_OF_INPUT, futures);
+        }
+      }
+      long numDocs = 0;
+      for (Future<Long> future : futures) {
+        numDocs += future.get();
+      }
+      long t1 = System.nanoTime();
+
+      long genId = -1;
+      for (Map.Entry<ShardState, List<Directory>> entry : shardDirectories.entrySet()) {
+        IndexWriter writer = entry.getKey().writer;
+        writer.addIndexes(entry.getValue().toArray(new Directory[0]));
+        writer.forceMerge(maxNumSegments);
+        genId = Math.max(genId, writer.getMaxCompletedSequenceNumber());
+        if (entry.getKey().translog != null) {
+          // the added segments can't be replayed from the translog, since the bulk directories
+          // are removed below, so they are only durable once committed
+          entry.getKey().commit();
+        }
+      }
+      long t2 = System.nanoTime();
+      logger.info(
+          String.format(
+              "bulk indexed %s docs into index: %s with %s writers, indexing took %s ms, "
+                  + "addIndexes and forceMerge took %s ms",
+              numDocs, indexState.name, numWriters, (t1 - t0) / 1000000, (t2 - t1) / 1000000));
+      return BulkIndexResponse.newBuilder()
+          .setNumDocs(numDocs)
+          .setGenId(String.valueOf(genId))
+          .setBulkIndexTimeMS((t1 - t0) / 1000000.0)
+          .setAddIndexesTimeMS((t2 - t1) / 1000000.0)
+          .build();
+    } catch (ExecutionException e) {
+      throw new BulkIndexHandlerException("error while trying to bulk index", e.getCause());
+    } catch (IOException e) {
+      throw new BulkIndexHandlerException("error while trying to bulk index", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BulkIndexHandlerException("interrupted while trying to bulk index", e);
+    } finally {
+      executor.shutdownNow();
+      IOUtils.closeWhileHandlingException(directories);
+      try {
+        FileUtils.deleteDirectory(bulkDir.toFile());
+      } catch (IOException e) {
+        logger.warn("Unable to remove bulk index directory: " + bulkDir, e);
+      }
+    }
+  }
+
+  /** Index batches from the queue into a private writer, returning the number of documents. */
+  private static long runWriter(
+      IndexState indexState,
+      ShardState shardState,
+      Directory directory,
+      BlockingQueue<List<AddDocumentRequest>> queue)
+      throws Exception {
+    long numDocs = 0;
+    try (IndexWriter writer = new IndexWriter(directory, indexState.getBulkIndexWriterConfig())) {
+      while (true) {
+        List<AddDocumentRequest> batch = queue.take();
+        if (batch == END_OF_INPUT) {
+          break;
+        }
+        for (AddDocumentRequest addDocumentRequest : batch) {
+          Document document =
+              AddDocumentHandler.LuceneDocumentBuilder.getDocument(addDocumentRequest, indexState);
+          if (indexState.hasFacets()) {
+            // ordinals come from the live taxonomy, so they stay valid after addIndexes
+            document = indexState.facetsConfig.build(shardState.taxoWriter, document);
+          }
+          writer.addDocument(document);
+        }
+        numDocs += batch.size();
+      }
+      writer.commit();
+    }
+    return numDocs;
+  }
+
+  /** Put a batch on the queue, failing fast if any writer has already failed. */
+  private static void enqueue(
+      BlockingQueue<List<AddDocumentRequest>> queue,
+      List<AddDocumentRequest> batch,
+      List<Future<Long>> futures)
+      throws InterruptedException, ExecutionException {
+    while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+      for (Future<Long> future : futures) {
+        if (future.isDone()) {
+          // throws if the writer failed
+          future.get();
+        }
+      }
+    }
+  }
+
+  /**
+   * Resolve the requested file path against the bulk index dir, so that callers can only load the
+   * files put there for bulk indexing, not any file the server can read.
+   *
+   * @throws IllegalArgumentException if the path is absolute, or is outside of the bulk index dir
+   *     once normalized or once symbolic links are followed
+   */
+  static Path resolveFilePath(Path bulkIndexDir, String filePath) {
+    Path relativePath = Paths.get(filePath);
+    if (relativePath.isAbsolute()) {
+      throw new IllegalArgumentException(
+          String.format("filePath: %s must be relative to the bulk index dir", filePath));
+    }
+    Path rootDir = bulkIndexDir.toAbsolutePath().normalize();
+    Path resolved = rootDir.resolve(relativePath).normalize();
+    if (!resolved.startsWith(rootDir) || resolved.equals(rootDir)) {
+      throw new IllegalArgumentException(
+          String.format("filePath: %s is not a file in the bulk index dir", filePath));
+    }
+    try {
+      if (!resolved.toRealPath().startsWith(rootDir.toRealPath())) {
+        throw new IllegalArgumentException(
+            String.format("filePath: %s is not a file in the bulk index dir", filePath));
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException(
+          String.format("filePath: %s cannot be read from the bulk index dir", filePath), e);
+    }
+    return resolved;
+  }
+
+  private static Stream<AddDocumentRequest> readDocuments(
+      IndexState indexState, Path filePath, BulkIndexRequest bulkIndexRequest) throws IOException {
+    String fileType = bulkIndexRequest.getFileType();
+    if (fileType.equalsIgnoreCase("csv")) {
+      Reader reader = Files.newBufferedReader(filePath);
+      CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT.withFirstRecordAsHeader());
+      return new LuceneServerClientBuilder.AddDocumentsClientBuilder(indexState.name, csvParser)
+          .buildRequest(filePath)
+          .onClose(() -> IOUtils.closeWhileHandlingException(csvParser));
+    } else if (fileType.equalsIgnoreCase("json")) {
+      LuceneServerClientBuilder.AddJsonDocumentsClientBuilder jsonBuilder =
+          new LuceneServerClientBuilder.AddJsonDocumentsClientBuilder(
+              indexState.name, new Gson(), filePath, DOCS_PER_BATCH);
+      // read the file lazily, one buffer of lines at a time
+      Iterator<Stream<AddDocumentRequest>> buffers =
+          new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+              return !jsonBuilder.isFinished();
+            }
+
+            @Override
+            public Stream<AddDocumentRequest> next() {
+              try {
+                return jsonBuilder.buildRequest();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+          };
+      return StreamSupport.stream(
+              Spliterators.spliteratorUnknownSize(buffers, Spliterator.ORDERED), false)
+          .flatMap(buffer -> buffer)
+          .onClose(() -> IOUtils.closeWhileHandlingException(jsonBuilder));
+    }
+    throw new IllegalArgumentException(String.format("%s is not a valid fileType", fileType));
+  }
+
+  public static class BulkIndexHandlerException extends Handler.HandlerException {
+    public BulkIndexHandlerException(String errorMessage) {
+      super(errorMessage);
+    }
+
+    public BulkIndexHandlerException(String errorMessage, Throwable err) {
+      super(errorMessage, err);
+    }
+  }
+}
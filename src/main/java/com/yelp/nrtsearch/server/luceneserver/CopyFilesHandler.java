@@ -18,14 +18,22 @@ package com.yelp.nrtsearch.server.luceneserver;
 import com.yelp.nrtsearch.server.grpc.CopyFiles;
 import com.yelp.nrtsearch.server.grpc.TransferStatus;
 import com.yelp.nrtsearch.server.grpc.TransferStatusCode;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import org.apache.lucene.replicator.nrt.CopyJob;
+import java.util.function.LongSupplier;
 import org.apache.lucene.replicator.nrt.FileMetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class CopyFilesHandler implements Handler<CopyFiles, TransferStatus> {
+  private static final Logger logger = LoggerFactory.getLogger(CopyFilesHandler.class);
+  // minimum time between progress messages sent to the primary
+  private static final long PROGRESS_INTERVAL_MS = 1000;
+
   @Override
   public void handle(
       IndexState indexState,
@@ -33,7 +41,7 @@ public class CopyFilesHandler implements Handler<CopyFiles, TransferStatus> {
       StreamObserver<TransferStatus> responseObserver)
       throws Exception {
     String indexName = copyFilesRequest.getIndexName();
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("replication");
 
     if (shardState.isReplica() == false) {
       throw new IllegalArgumentException(
@@ -50,8 +58,10 @@ public class CopyFilesHandler implements Handler<CopyFiles, TransferStatus> {
         NRTReplicaNode.readFilesMetaData(copyFilesRequest.getFilesMetadata());
 
     AtomicBoolean finished = new AtomicBoolean();
+    SimpleCopyJob job;
     try {
-      CopyJob job = shardState.nrtReplicaNode.launchPreCopyFiles(finished, primaryGen, files);
+      job =
+          (SimpleCopyJob) shardState.nrtReplicaNode.launchPreCopyFiles(finished, primaryGen, files);
     } catch (IOException e) {
       responseObserver.onNext(
           TransferStatus.newBuilder()
@@ -63,33 +73,101 @@ public class CopyFilesHandler implements Handler<CopyFiles, TransferStatus> {
     }
 
     // we hold open this request, only finishing/closing once our copy has finished, so primary
-    // knows when we finished
-    while (true) {
-      // nocommit don't poll!  use a condition...
-      if (finished.get()) {
-        responseObserver.onNext(
-            TransferStatus.newBuilder()
-                .setMessage("replica is done copying files.." + files.keySet())
-                .setCode(TransferStatusCode.Done)
-                .build());
-        responseObserver.onCompleted();
-        break;
+    // knows when we finished. The request thread is not held, progress and completion are sent
+    // from the copy job.
+    CopyProgressReporter reporter =
+        new CopyProgressReporter(responseObserver, files.keySet().toString());
+    if (responseObserver instanceof ServerCallStreamObserver) {
+      // the primary cancels the call once it stops waiting for this replica
+      ((ServerCallStreamObserver<TransferStatus>) responseObserver)
+          .setOnCancelHandler(reporter::onCancel);
+    }
+    job.setProgressListener(reporter::onProgress);
+    job.getCompletionFuture().thenAccept(reporter::onDone);
+  }
+
+  /**
+   * Sends the progress of a merge pre-copy to the primary, at most once per {@link
+   * #PROGRESS_INTERVAL_MS}, and the final status once the copy is done. Nothing more is sent once
+   * the primary cancelled the call.
+   */
+  static class CopyProgressReporter {
+    private final StreamObserver<TransferStatus> responseObserver;
+    private final String fileNames;
+    private final LongSupplier nanoClock;
+    private long lastProgressNS;
+    private boolean closed;
+
+    CopyProgressReporter(StreamObserver<TransferStatus> responseObserver, String fileNames) {
+      this(responseObserver, fileNames, System::nanoTime);
+    }
+
+    CopyProgressReporter(
+        StreamObserver<TransferStatus> responseObserver, String fileNames, LongSupplier nanoClock) {
+      this.responseObserver = responseObserver;
+      this.fileNames = fileNames;
+      this.nanoClock = nanoClock;
+      this.lastProgressNS = nanoClock.getAsLong();
+    }
+
+    synchronized void onProgress(long bytesCopied, long totalBytes) {
+      long now = nanoClock.getAsLong();
+      if (closed || now - lastProgressNS < TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MS)) {
+        return;
       }
-      try {
-        Thread.sleep(10);
-        responseObserver.onNext(
+      lastProgressNS = now;
+      send(
+          TransferStatus.newBuilder()
+              .setMessage(
+                  "replica is copying files... "
+                      + bytesCopied
+                      + " of "
+                      + totalBytes
+                      + " bytes "
+                      + fileNames)
+              .setCode(TransferStatusCode.Ongoing)
+              .build());
+    }
+
+    synchronized void onDone(SimpleCopyJob job) {
+      if (closed) {
+        return;
+      }
+      if (job.getFailed()) {
+        send(
             TransferStatus.newBuilder()
-                .setMessage("replica is copying files..." + files.keySet())
-                .setCode(TransferStatusCode.Ongoing)
+                .setMessage("replica failed to copy files..." + fileNames)
+                .setCode(TransferStatusCode.Failed)
                 .build());
-      } catch (InterruptedException e) {
-        responseObserver.onNext(
+      } else {
+        send(
             TransferStatus.newBuilder()
-                .setMessage(String.format("replica failed to copy files..." + files.keySet()))
-                .setCode(TransferStatusCode.Failed)
+                .setMessage("replica is done copying files.." + fileNames)
+                .setCode(TransferStatusCode.Done)
                 .build());
-        // caller must set; //responseObserver.onError(e);
-        throw new RuntimeException(e);
+      }
+      if (closed == false) {
+        closed = true;
+        try {
+          responseObserver.onCompleted();
+        } catch (RuntimeException e) {
+          logger.warn("error completing copyFiles for files " + fileNames, e);
+        }
+      }
+    }
+
+    /** The primary cancelled the call, the copy itself goes on. */
+    synchronized void onCancel() {
+      closed = true;
+    }
+
+    private void send(TransferStatus transferStatus) {
+      try {
+        responseObserver.onNext(transferStatus);
+      } catch (RuntimeException e) {
+        // the primary went away or cancelled, the copy itself is not affected
+        logger.warn("error sending copyFiles status for files " + fileNames, e);
+        closed = true;
       }
     }
   }
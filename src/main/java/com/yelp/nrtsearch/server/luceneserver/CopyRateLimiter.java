@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Limits the rate of bytes a replica copies from the primary. Copies pay for the bytes of a chunk
+ * after receiving it, by waiting until they are back within the budget, which delays reading the
+ * next chunk. Unlike {@link org.apache.lucene.store.RateLimiter.SimpleRateLimiter} this is thread
+ * safe, so one limiter can be shared by all copies of an index or of the whole node.
+ */
+public class CopyRateLimiter {
+  private final double nsPerByte;
+  private long lastNS = System.nanoTime();
+
+  /** Limiter for the given rate, or one that never waits if the rate is not positive. */
+  public CopyRateLimiter(double mbPerSec) {
+    this.nsPerByte = mbPerSec > 0 ? 1000000000.0 / (mbPerSec * 1024 * 1024) : 0;
+  }
+
+  public boolean isLimited() {
+    return nsPerByte > 0;
+  }
+
+  /** Wait as long as needed for the copied bytes to fit in the budget. */
+  public void pause(long bytes) {
+    if (nsPerByte == 0 || bytes <= 0) {
+      return;
+    }
+    long targetNS;
+    synchronized (this) {
+      targetNS = lastNS + (long) (bytes * nsPerByte);
+      // unused budget is not saved up while idle
+      lastNS = Math.max(targetNS, System.nanoTime());
+    }
+    long sleepNS = targetNS - System.nanoTime();
+    if (sleepNS > 0) {
+      try {
+        Thread.sleep(sleepNS / 1000000, (int) (sleepNS % 1000000));
+      } catch (InterruptedException e) {
+        throw new ThreadInterruptedException(e);
+      }
+    }
+  }
+}
@@ -42,8 +42,7 @@ public class CreateSnapshotHandler
   public CreateSnapshotResponse createSnapshot(
       IndexState indexState, CreateSnapshotRequest createSnapshotRequest) throws IOException {
     indexState.verifyStarted();
-
-    final ShardState shardState = indexState.getShard(0);
+    final ShardState shardState = indexState.getSingleShard("snapshots");
 
     if (!indexState.hasCommit()) {
       throw new RuntimeException("this index has no commits; please call commit first");
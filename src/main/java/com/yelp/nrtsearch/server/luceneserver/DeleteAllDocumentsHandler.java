@@ -17,6 +17,7 @@ package com.yelp.nrtsearch.server.luceneserver;
 
 import com.yelp.nrtsearch.server.grpc.*;
 import java.io.IOException;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,11 +29,17 @@ public class DeleteAllDocumentsHandler
   public DeleteAllDocumentsResponse handle(
       IndexState indexState, DeleteAllDocumentsRequest deleteAllDocumentsRequest)
       throws DeleteAllDocumentsHandlerException {
-    final ShardState shardState = indexState.getShard(0);
     indexState.verifyStarted();
-    long gen;
+    long gen = -1;
     try {
-      gen = shardState.writer.deleteAll();
+      for (ShardState shardState : indexState.shards.values()) {
+        long seqNo = shardState.writer.deleteAll();
+        shardState.logOperations(
+            List.of(
+                new Translog.Operation(
+                    seqNo, Translog.OpType.DELETE_ALL, deleteAllDocumentsRequest)));
+        gen = Math.max(gen, seqNo);
+      }
     } catch (IOException e) {
       logger.log(
           Level.WARNING,
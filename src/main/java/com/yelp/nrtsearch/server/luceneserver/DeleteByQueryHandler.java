@@ -26,31 +26,43 @@ import org.slf4j.LoggerFactory;
 
 public class DeleteByQueryHandler implements Handler<DeleteByQueryRequest, AddDocumentResponse> {
   private static final Logger logger = LoggerFactory.getLogger(DeleteByQueryHandler.class);
-  private final QueryNodeMapper queryNodeMapper = new QueryNodeMapper();
+  private static final QueryNodeMapper queryNodeMapper = new QueryNodeMapper();
 
   @Override
   public AddDocumentResponse handle(
       IndexState indexState, DeleteByQueryRequest deleteByQueryRequest)
       throws DeleteByQueryHandlerException {
-    final ShardState shardState = indexState.getShard(0);
     indexState.verifyStarted();
 
-    List<Query> queryList =
-        deleteByQueryRequest.getQueryList().stream()
-            .map(query -> queryNodeMapper.getQuery(query, indexState))
-            .collect(Collectors.toList());
+    Query[] queries = getQueries(deleteByQueryRequest, indexState);
+    long genId = -1;
     try {
-      shardState.writer.deleteDocuments(queryList.toArray(new Query[] {}));
+      for (ShardState shardState : indexState.shards.values()) {
+        long seqNo = shardState.writer.deleteDocuments(queries);
+        shardState.logOperations(
+            List.of(
+                new Translog.Operation(
+                    seqNo, Translog.OpType.DELETE_BY_QUERY, deleteByQueryRequest)));
+        genId = Math.max(genId, shardState.writer.getMaxCompletedSequenceNumber());
+      }
     } catch (IOException e) {
       logger.warn(
           "ThreadId: {}, writer.deleteDocuments failed",
           Thread.currentThread().getName() + Thread.currentThread().getId());
       throw new DeleteByQueryHandlerException(e);
     }
-    long genId = shardState.writer.getMaxCompletedSequenceNumber();
     return AddDocumentResponse.newBuilder().setGenId(String.valueOf(genId)).build();
   }
 
+  /** Get the lucene queries to delete by. */
+  static Query[] getQueries(DeleteByQueryRequest deleteByQueryRequest, IndexState indexState) {
+    List<Query> queryList =
+        deleteByQueryRequest.getQueryList().stream()
+            .map(query -> queryNodeMapper.getQuery(query, indexState))
+            .collect(Collectors.toList());
+    return queryList.toArray(new Query[] {});
+  }
+
   public static class DeleteByQueryHandlerException extends Handler.HandlerException {
 
     public DeleteByQueryHandlerException(Throwable err) {
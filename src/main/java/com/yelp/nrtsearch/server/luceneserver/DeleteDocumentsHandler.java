@@ -32,9 +32,33 @@ public class DeleteDocumentsHandler implements Handler<AddDocumentRequest, AddDo
   @Override
   public AddDocumentResponse handle(IndexState indexState, AddDocumentRequest addDocumentRequest)
       throws DeleteDocumentsHandlerException {
-    final ShardState shardState = indexState.getShard(0);
     indexState.verifyStarted();
 
+    Term[] terms = getTerms(addDocumentRequest);
+    long genId = -1;
+    try {
+      // a document may live in any shard
+      for (ShardState shardState : indexState.shards.values()) {
+        long seqNo = shardState.writer.deleteDocuments(terms);
+        shardState.logOperations(
+            List.of(
+                new Translog.Operation(
+                    seqNo, Translog.OpType.DELETE_DOCUMENTS, addDocumentRequest)));
+        genId = Math.max(genId, shardState.writer.getMaxCompletedSequenceNumber());
+      }
+    } catch (IOException e) {
+      logger.log(
+          Level.WARNING,
+          String.format(
+              "ThreadId: %s, writer.deleteDocuments failed",
+              Thread.currentThread().getName() + Thread.currentThread().getId()));
+      throw new DeleteDocumentsHandlerException(e);
+    }
+    return AddDocumentResponse.newBuilder().setGenId(String.valueOf(genId)).build();
+  }
+
+  /** Get the terms to delete by, from the field values of the request. */
+  static Term[] getTerms(AddDocumentRequest addDocumentRequest) {
     Map<String, AddDocumentRequest.MultiValuedField> fields = addDocumentRequest.getFieldsMap();
     List<Term> terms = new ArrayList<>();
     for (Map.Entry<String, AddDocumentRequest.MultiValuedField> entry : fields.entrySet()) {
@@ -47,18 +71,7 @@ public class DeleteDocumentsHandler implements Handler<AddDocumentRequest, AddDo
         terms.add(new Term(fieldName, fieldValue));
       }
     }
-    try {
-      shardState.writer.deleteDocuments(terms.stream().toArray(Term[]::new));
-    } catch (IOException e) {
-      logger.log(
-          Level.WARNING,
-          String.format(
-              "ThreadId: %s, writer.deleteDocuments failed",
-              Thread.currentThread().getName() + Thread.currentThread().getId()));
-      throw new DeleteDocumentsHandlerException(e);
-    }
-    long genId = shardState.writer.getMaxCompletedSequenceNumber();
-    return AddDocumentResponse.newBuilder().setGenId(String.valueOf(genId)).build();
+    return terms.toArray(new Term[0]);
   }
 
   public static class DeleteDocumentsHandlerException extends Handler.HandlerException {
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.NRTCachingDirectory;
+
+/**
+ * Reads chunks of an index file that the primary sends to replicas. Files on disk are memory
+ * mapped, and each chunk wraps a slice of the mapping without copying it, so the data is only
+ * copied when grpc writes it to the network. Files that are not on disk, like the ones still held
+ * by a {@link NRTCachingDirectory}, are read through an {@link IndexInput} with a single copy per
+ * chunk.
+ *
+ * <p>Chunks may reference the file data after this reader is closed, which is safe because the
+ * mappings are only released once they are garbage collected.
+ */
+public abstract class FileChunkReader implements Closeable {
+
+  /** Open a reader for a file of the given index directory. */
+  public static FileChunkReader open(Directory directory, String fileName) throws IOException {
+    Directory unwrapped = FilterDirectory.unwrap(directory);
+    if (unwrapped instanceof FSDirectory && isCached(directory, fileName) == false) {
+      return new MappedFileChunkReader(((FSDirectory) unwrapped).getDirectory().resolve(fileName));
+    }
+    return new IndexInputChunkReader(directory.openInput(fileName, IOContext.DEFAULT));
+  }
+
+  private static boolean isCached(Directory directory, String fileName) {
+    while (directory instanceof FilterDirectory) {
+      if (directory instanceof NRTCachingDirectory
+          && Arrays.asList(((NRTCachingDirectory) directory).listCachedFiles())
+              .contains(fileName)) {
+        return true;
+      }
+      directory = ((FilterDirectory) directory).getDelegate();
+    }
+    return false;
+  }
+
+  /** Length of the file in bytes. */
+  public abstract long length();
+
+  /** Read size bytes starting at the given position, which must be within the file. */
+  public abstract ByteString read(long position, int size) throws IOException;
+
+  static class MappedFileChunkReader extends FileChunkReader {
+    // mappings are limited to 2GB, larger files are mapped a window at a time
+    private static final long MAX_MAP_BYTES = 1L << 30;
+
+    private final FileChannel channel;
+    private final long length;
+    private MappedByteBuffer mapped;
+    private long mappedStart;
+
+    MappedFileChunkReader(Path path) throws IOException {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+      length = channel.size();
+    }
+
+    @Override
+    public long length() {
+      return length;
+    }
+
+    @Override
+    public ByteString read(long position, int size) throws IOException {
+      if (mapped == null
+          || position < mappedStart
+          || position + size > mappedStart + mapped.capacity()) {
+        long mapBytes = Math.min(Math.max(MAX_MAP_BYTES, size), length - position);
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, mapBytes);
+        mappedStart = position;
+      }
+      ByteBuffer chunk = mapped.duplicate();
+      int offset = (int) (position - mappedStart);
+      chunk.position(offset);
+      chunk.limit(offset + size);
+      return UnsafeByteOperations.unsafeWrap(chunk.slice());
+    }
+
+    @Override
+    public void close() throws IOException {
+      // existing mappings stay valid after the channel is closed
+      channel.close();
+    }
+  }
+
+  static class IndexInputChunkReader extends FileChunkReader {
+    private final IndexInput input;
+
+    IndexInputChunkReader(IndexInput input) {
+      this.input = input;
+    }
+
+    @Override
+    public long length() {
+      return input.length();
+    }
+
+    @Override
+    public ByteString read(long position, int size) throws IOException {
+      byte[] bytes = new byte[size];
+      input.seek(position);
+      input.readBytes(bytes, 0, size);
+      // the array is not used again, so it can back the chunk directly
+      return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+}
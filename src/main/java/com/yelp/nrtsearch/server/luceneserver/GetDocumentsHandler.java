@@ -0,0 +1,357 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.yelp.nrtsearch.server.grpc.GetDocumentsRequest;
+import com.yelp.nrtsearch.server.grpc.GetDocumentsResponse;
+import com.yelp.nrtsearch.server.grpc.SearchResponse;
+import com.yelp.nrtsearch.server.grpc.SearchResponse.Hit.CompositeFieldValue;
+import com.yelp.nrtsearch.server.grpc.SearchResponse.Hit.FieldValue;
+import com.yelp.nrtsearch.server.luceneserver.doc.LoadedDocValues;
+import com.yelp.nrtsearch.server.luceneserver.field.FieldDef;
+import com.yelp.nrtsearch.server.luceneserver.field.IdFieldDef;
+import com.yelp.nrtsearch.server.luceneserver.field.IndexableFieldDef;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gets documents by the value of the index _ID field, without the query parsing, scoring and
+ * collection done by a search. Ids are sorted so that the per segment {@link TermsEnum} seeks move
+ * forward through the terms dictionary, and one enum is reused for all ids in a segment.
+ */
+public class GetDocumentsHandler implements Handler<GetDocumentsRequest, GetDocumentsResponse> {
+  private static final Logger logger = LoggerFactory.getLogger(GetDocumentsHandler.class);
+
+  @Override
+  public GetDocumentsResponse handle(IndexState indexState, GetDocumentsRequest request)
+      throws GetDocumentsHandlerException {
+    if (request.getLuceneDocIdsCount() > 0) {
+      return getByDocIds(indexState, request);
+    }
+    IdFieldDef idFieldDef = indexState.getIdFieldDef();
+    if (idFieldDef == null) {
+      throw new GetDocumentsHandlerException(
+          String.format("index: %s has no _ID field to get documents by", indexState.name));
+    }
+    Map<String, IndexableFieldDef> retrieveFields = getRetrieveFields(indexState, request);
+
+    // ids are looked up only in the shard they are routed to
+    Map<ShardState, List<String>> shardIds = new LinkedHashMap<>();
+    shardIds.put(indexState.getShard(0), new ArrayList<>());
+    for (String id : request.getIdsList()) {
+      shardIds
+          .computeIfAbsent(indexState.getShardForId(new BytesRef(id)), k -> new ArrayList<>())
+          .add(id);
+    }
+
+    Map<String, SearchResponse.Hit> hits = new HashMap<>();
+    long searcherVersion = 0;
+    for (Map.Entry<ShardState, List<String>> entry : shardIds.entrySet()) {
+      long version =
+          getShardDocuments(
+              indexState,
+              entry.getKey(),
+              idFieldDef,
+              retrieveFields,
+              entry.getValue(),
+              request.getRealTime(),
+              hits);
+      if (entry.getKey().shardOrd == 0) {
+        searcherVersion = version;
+      }
+    }
+
+    GetDocumentsResponse.Builder builder = GetDocumentsResponse.newBuilder();
+    for (String id : request.getIdsList()) {
+      SearchResponse.Hit hit = hits.get(id);
+      if (hit == null) {
+        builder.addMissingIds(id);
+      } else {
+        builder.addDocuments(hit);
+      }
+    }
+    builder.setSearcherVersion(searcherVersion);
+    return builder.build();
+  }
+
+  /**
+   * Get the documents for ids that belong to one shard, adding a hit for each found id.
+   *
+   * @return version of the shard searcher used
+   */
+  private static long getShardDocuments(
+      IndexState indexState,
+      ShardState shardState,
+      IdFieldDef idFieldDef,
+      Map<String, IndexableFieldDef> retrieveFields,
+      List<String> ids,
+      boolean realTime,
+      Map<String, SearchResponse.Hit> hits)
+      throws GetDocumentsHandlerException {
+    SearcherTaxonomyManager.SearcherAndTaxonomy s = null;
+    try {
+      s = shardState.acquire();
+      if (realTime && !shardState.isReplica() && !isCurrent(s.searcher)) {
+        // documents were indexed after the last refresh, make them visible
+        shardState.release(s);
+        s = null;
+        shardState.maybeRefreshBlocking();
+        s = shardState.acquire();
+      }
+
+      Map<String, Integer> docIds = lookupIds(s.searcher, idFieldDef, ids);
+      Map<Integer, Map<String, CompositeFieldValue>> docFields =
+          getFields(s.searcher, retrieveFields, docIds.values());
+      for (Map.Entry<String, Integer> entry : docIds.entrySet()) {
+        hits.put(
+            entry.getKey(),
+            SearchResponse.Hit.newBuilder()
+                .setLuceneDocId(entry.getValue())
+                .putAllFields(docFields.get(entry.getValue()))
+                .build());
+      }
+      return ((DirectoryReader) s.searcher.getIndexReader()).getVersion();
+    } catch (IOException e) {
+      logger.warn("error while trying to get documents for index: " + indexState.name, e);
+      throw new GetDocumentsHandlerException(e);
+    } finally {
+      if (s != null) {
+        try {
+          shardState.release(s);
+        } catch (IOException e) {
+          logger.warn("Failed to release searcher reference previously acquired by acquire()", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get documents by lucene doc id from the searcher version that a search returned them from, so
+   * that the ids still refer to the same documents.
+   */
+  private static GetDocumentsResponse getByDocIds(
+      IndexState indexState, GetDocumentsRequest request) throws GetDocumentsHandlerException {
+    if (request.getIdsCount() > 0) {
+      throw new GetDocumentsHandlerException("only one of ids and luceneDocIds may be given");
+    }
+    if (indexState.getNumShards() > 1) {
+      // doc ids of different shards overlap
+      throw new GetDocumentsHandlerException(
+          String.format(
+              "index: %s has multiple shards, getting documents by lucene doc id is not supported",
+              indexState.name));
+    }
+    Map<String, IndexableFieldDef> retrieveFields = getRetrieveFields(indexState, request);
+
+    ShardState shardState = indexState.getShard(0);
+    IndexSearcher searcher = shardState.slm.acquire(request.getSearcherVersion());
+    if (searcher == null) {
+      throw new SearcherExpiredException(
+          String.format(
+              "searcher version: %s of index: %s has expired",
+              request.getSearcherVersion(), indexState.name));
+    }
+    try {
+      int maxDoc = searcher.getIndexReader().maxDoc();
+      for (int docId : request.getLuceneDocIdsList()) {
+        if (docId < 0 || docId >= maxDoc) {
+          throw new GetDocumentsHandlerException(
+              String.format("lucene doc id: %s is out of bounds, maxDoc: %s", docId, maxDoc));
+        }
+      }
+      Map<Integer, Map<String, CompositeFieldValue>> docFields =
+          getFields(searcher, retrieveFields, new HashSet<>(request.getLuceneDocIdsList()));
+      GetDocumentsResponse.Builder builder = GetDocumentsResponse.newBuilder();
+      for (int docId : request.getLuceneDocIdsList()) {
+        builder.addDocuments(
+            SearchResponse.Hit.newBuilder()
+                .setLuceneDocId(docId)
+                .putAllFields(docFields.get(docId))
+                .build());
+      }
+      builder.setSearcherVersion(request.getSearcherVersion());
+      return builder.build();
+    } catch (IOException e) {
+      logger.warn("error while trying to get documents for index: " + indexState.name, e);
+      throw new GetDocumentsHandlerException(e);
+    } finally {
+      try {
+        shardState.slm.release(searcher);
+      } catch (IOException e) {
+        logger.warn("Failed to release searcher reference previously acquired by acquire()", e);
+      }
+    }
+  }
+
+  private static boolean isCurrent(IndexSearcher searcher) throws IOException {
+    return !(searcher.getIndexReader() instanceof DirectoryReader)
+        || ((DirectoryReader) searcher.getIndexReader()).isCurrent();
+  }
+
+  private static Map<String, IndexableFieldDef> getRetrieveFields(
+      IndexState indexState, GetDocumentsRequest request) throws GetDocumentsHandlerException {
+    Map<String, IndexableFieldDef> retrieveFields = new HashMap<>();
+    for (String name : request.getRetrieveFieldsList()) {
+      FieldDef fd;
+      try {
+        fd = indexState.getField(name);
+      } catch (IllegalArgumentException e) {
+        throw new GetDocumentsHandlerException(e);
+      }
+      if (!(fd instanceof IndexableFieldDef)
+          || !(((IndexableFieldDef) fd).hasDocValues() || ((IndexableFieldDef) fd).isStored())) {
+        throw new GetDocumentsHandlerException(
+            String.format("field: %s must have doc values or be stored to be retrieved", name));
+      }
+      retrieveFields.put(name, (IndexableFieldDef) fd);
+    }
+    return retrieveFields;
+  }
+
+  /**
+   * Resolve ids to the global doc id of the live document containing them.
+   *
+   * @return map of found id to doc id
+   */
+  private static Map<String, Integer> lookupIds(
+      IndexSearcher searcher, IdFieldDef idFieldDef, List<String> ids) throws IOException {
+    List<BytesRef> sortedIds = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      sortedIds.add(new BytesRef(id));
+    }
+    // terms are ordered by their utf8 bytes, which is not always String order
+    sortedIds.sort(Comparator.naturalOrder());
+
+    Map<String, Integer> docIds = new HashMap<>();
+    PostingsEnum postingsEnum = null;
+    for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+      Terms terms = leaf.reader().terms(idFieldDef.getName());
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator();
+      Bits liveDocs = leaf.reader().getLiveDocs();
+      BytesRef previous = null;
+      for (BytesRef id : sortedIds) {
+        if (id.equals(previous)) {
+          continue;
+        }
+        previous = id;
+        String idString = id.utf8ToString();
+        if (docIds.containsKey(idString) || !termsEnum.seekExact(id)) {
+          continue;
+        }
+        postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+        int doc;
+        while ((doc = postingsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          if (liveDocs == null || liveDocs.get(doc)) {
+            docIds.put(idString, leaf.docBase + doc);
+            break;
+          }
+        }
+      }
+    }
+    return docIds;
+  }
+
+  /** Load the retrieve fields for the given global doc ids, one pass per segment. */
+  private static Map<Integer, Map<String, CompositeFieldValue>> getFields(
+      IndexSearcher searcher,
+      Map<String, IndexableFieldDef> retrieveFields,
+      Iterable<Integer> docIds)
+      throws IOException {
+    List<Integer> sortedDocIds = new ArrayList<>();
+    docIds.forEach(sortedDocIds::add);
+    // doc values can only be advanced forward
+    sortedDocIds.sort(Comparator.naturalOrder());
+
+    Map<Integer, Map<String, CompositeFieldValue>> docFields = new HashMap<>();
+    List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    LeafReaderContext leaf = null;
+    Map<String, LoadedDocValues<?>> leafDocValues = new HashMap<>();
+    for (int docId : sortedDocIds) {
+      if (leaf == null || docId >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        leafDocValues.clear();
+      }
+      int segmentDocId = docId - leaf.docBase;
+      Document storedDoc = null;
+      Map<String, CompositeFieldValue> fields = new HashMap<>();
+      for (Map.Entry<String, IndexableFieldDef> entry : retrieveFields.entrySet()) {
+        IndexableFieldDef fd = entry.getValue();
+        CompositeFieldValue.Builder compositeFieldValue = CompositeFieldValue.newBuilder();
+        if (fd.hasDocValues()) {
+          LoadedDocValues<?> docValues = leafDocValues.get(entry.getKey());
+          if (docValues == null) {
+            docValues = fd.getDocValues(leaf);
+            leafDocValues.put(entry.getKey(), docValues);
+          }
+          docValues.setDocId(segmentDocId);
+          for (int i = 0; i < docValues.size(); ++i) {
+            compositeFieldValue.addFieldValue(docValues.toFieldValue(i));
+          }
+        } else {
+          if (storedDoc == null) {
+            storedDoc = searcher.doc(docId);
+          }
+          for (String value : fd.getStored(storedDoc)) {
+            compositeFieldValue.addFieldValue(FieldValue.newBuilder().setTextValue(value));
+          }
+        }
+        fields.put(entry.getKey(), compositeFieldValue.build());
+      }
+      docFields.put(docId, fields);
+    }
+    return docFields;
+  }
+
+  public static class GetDocumentsHandlerException extends Handler.HandlerException {
+    public GetDocumentsHandlerException(String errorMessage) {
+      super(errorMessage);
+    }
+
+    public GetDocumentsHandlerException(Throwable err) {
+      super(err);
+    }
+  }
+
+  /** The searcher version to get documents by lucene doc id from was pruned. */
+  public static class SearcherExpiredException extends GetDocumentsHandlerException {
+    public SearcherExpiredException(String errorMessage) {
+      super(errorMessage);
+    }
+  }
+}
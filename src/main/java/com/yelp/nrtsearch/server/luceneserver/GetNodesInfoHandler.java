@@ -30,7 +30,7 @@ public class GetNodesInfoHandler implements Handler<GetNodesRequest, GetNodesRes
   public GetNodesResponse handle(IndexState indexState, GetNodesRequest getNodesRequest)
       throws HandlerException {
     GetNodesResponse.Builder builder = GetNodesResponse.newBuilder();
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("replication");
     if (!shardState.isPrimary() || !shardState.isStarted()) {
       logger.warn("index \"" + indexState.name + "\" is not a primary or was not started yet");
     } else { // shard is a primary and started
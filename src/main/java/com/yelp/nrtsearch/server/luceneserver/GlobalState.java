@@ -21,6 +21,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.config.ReplicationConfiguration;
 import com.yelp.nrtsearch.server.config.ThreadPoolConfiguration;
 import com.yelp.nrtsearch.server.utils.ThreadPoolExecutorFactory;
 import java.io.Closeable;
@@ -42,19 +43,25 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.search.TimeLimitingCollector;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class GlobalState implements Closeable, Restorable {
   public static final String NULL = "NULL";
+  // not a valid index name, so it can't clash with an index root dir
+  static final String TMP_DIR = ".tmp";
   private final String hostName;
   private final int port;
   private final int replicationPort;
   private final ThreadPoolConfiguration threadPoolConfiguration;
+  private final ReplicationConfiguration replicationConfiguration;
   private int replicaReplicationPortPingInterval;
 
   Logger logger = LoggerFactory.getLogger(GlobalState.class);
@@ -74,26 +81,49 @@ public class GlobalState implements Closeable, Restorable {
 
   final Path stateDir;
   final Path indexDirBase;
+  // temporary files of running operations, anything found here on startup is left over
+  private final Path tmpDir;
+  private final Path bulkIndexDir;
 
   /** This is persisted so on restart we know about all previously created indices. */
   private final JsonObject indexNames = new JsonObject();
 
   private final ExecutorService indexService;
   private final ThreadPoolExecutor searchThreadPoolExecutor;
+  // searches of the shards of a multi-shard index, kept apart from the search pool that the
+  // per shard searches use for segment slices
+  private final ThreadPoolExecutor shardSearchExecutor;
+  // file copies from the primary, run by the copy jobs of all replica indices
+  private final ExecutorService replicationCopyExecutor =
+      Executors.newCachedThreadPool(new NamedThreadFactory("LuceneReplicationCopy"));
+  // limits the bytes copied from primaries by all replica indices
+  private final CopyRateLimiter replicationCopyRateLimiter;
+  // starts the indices that were started before the server went down
+  private final IndexStartupManager indexStartupManager;
 
   public GlobalState(LuceneServerConfiguration luceneServerConfiguration) throws IOException {
     this.nodeName = luceneServerConfiguration.getNodeName();
     this.stateDir = Paths.get(luceneServerConfiguration.getStateDir());
     this.indexDirBase = Paths.get(luceneServerConfiguration.getIndexDir());
+    this.tmpDir = indexDirBase.resolve(TMP_DIR);
+    this.bulkIndexDir = Paths.get(luceneServerConfiguration.getBulkIndexDir());
     this.hostName = luceneServerConfiguration.getHostName();
     this.port = luceneServerConfiguration.getPort();
     this.replicationPort = luceneServerConfiguration.getReplicationPort();
     this.replicaReplicationPortPingInterval =
         luceneServerConfiguration.getReplicaReplicationPortPingInterval();
     this.threadPoolConfiguration = luceneServerConfiguration.getThreadPoolConfiguration();
+    this.replicationConfiguration = luceneServerConfiguration.getReplicationConfiguration();
+    this.replicationCopyRateLimiter =
+        new CopyRateLimiter(replicationConfiguration.getMaxCopyMBPerSec());
     if (Files.exists(stateDir) == false) {
       Files.createDirectories(stateDir);
     }
+    if (Files.exists(tmpDir)) {
+      logger.info("Removing temporary files left over in: " + tmpDir);
+      FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+    Files.createDirectories(tmpDir);
     this.indexService =
         ThreadPoolExecutorFactory.getThreadPoolExecutor(
             ThreadPoolExecutorFactory.ExecutorType.INDEX,
@@ -102,7 +132,14 @@ public class GlobalState implements Closeable, Restorable {
         ThreadPoolExecutorFactory.getThreadPoolExecutor(
             ThreadPoolExecutorFactory.ExecutorType.SEARCH,
             luceneServerConfiguration.getThreadPoolConfiguration());
+    this.shardSearchExecutor =
+        ThreadPoolExecutorFactory.getThreadPoolExecutor(
+            ThreadPoolExecutorFactory.ExecutorType.SHARD_SEARCH,
+            luceneServerConfiguration.getThreadPoolConfiguration());
     loadIndexNames();
+    this.indexStartupManager =
+        new IndexStartupManager(this, luceneServerConfiguration.getStartupConfiguration());
+    indexStartupManager.loadStartRequests();
   }
 
   public String getHostName() {
@@ -125,6 +162,19 @@ public class GlobalState implements Closeable, Restorable {
     return stateDir;
   }
 
+  /**
+   * Dir for the temporary files of operations like bulk indexing. It is outside of every index
+   * root dir, so the files are not part of backups, and it is emptied on startup.
+   */
+  public Path getTmpDir() {
+    return tmpDir;
+  }
+
+  /** Dir of the document files that can be bulk indexed, no file outside of it is read. */
+  public Path getBulkIndexDir() {
+    return bulkIndexDir;
+  }
+
   public synchronized void setStateDir(Path source) throws IOException {
     restoreDir(source, stateDir);
     loadIndexNames();
@@ -195,6 +245,8 @@ public class GlobalState implements Closeable, Restorable {
     IOUtils.close(remoteNodes);
     IOUtils.close(indices.values());
     indexService.shutdown();
+    shardSearchExecutor.shutdown();
+    replicationCopyExecutor.shutdown();
     TimeLimitingCollector.getGlobalTimerThread().stopTimer();
     try {
       TimeLimitingCollector.getGlobalTimerThread().join();
@@ -203,7 +255,7 @@ public class GlobalState implements Closeable, Restorable {
     }
   }
 
-  private Path getIndexDir(String indexName) {
+  Path getIndexDir(String indexName) {
     return Paths.get(indexDirBase.toString(), indexName);
   }
 
@@ -260,8 +312,12 @@ public class GlobalState implements Closeable, Restorable {
     }
   }
 
-  /** Get the {@link IndexState} by index name. */
+  /**
+   * Get the {@link IndexState} by index name, after it is started if it is lazy or being started
+   * with the server.
+   */
   public IndexState getIndex(String name) throws IllegalArgumentException, IOException {
+    indexStartupManager.awaitStart(name);
     return getIndex(name, false);
   }
 
@@ -274,6 +330,7 @@ public class GlobalState implements Closeable, Restorable {
     synchronized (indices) {
       indexNames.remove(name);
     }
+    indexStartupManager.removeStartRequest(name);
   }
 
   public int getReplicationPort() {
@@ -288,7 +345,27 @@ public class GlobalState implements Closeable, Restorable {
     return threadPoolConfiguration;
   }
 
+  public ReplicationConfiguration getReplicationConfiguration() {
+    return replicationConfiguration;
+  }
+
   public ThreadPoolExecutor getSearchThreadPoolExecutor() {
     return searchThreadPoolExecutor;
   }
+
+  public ExecutorService getShardSearchExecutor() {
+    return shardSearchExecutor;
+  }
+
+  public ExecutorService getReplicationCopyExecutor() {
+    return replicationCopyExecutor;
+  }
+
+  public CopyRateLimiter getReplicationCopyRateLimiter() {
+    return replicationCopyRateLimiter;
+  }
+
+  public IndexStartupManager getIndexStartupManager() {
+    return indexStartupManager;
+  }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.protobuf.util.JsonFormat;
+import com.yelp.nrtsearch.server.config.StartupConfiguration;
+import com.yelp.nrtsearch.server.grpc.IndexStartState;
+import com.yelp.nrtsearch.server.grpc.Mode;
+import com.yelp.nrtsearch.server.grpc.StartIndexRequest;
+import com.yelp.nrtsearch.server.utils.Archiver;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts again the indices that were started on this node before it went down. The last
+ * successful {@link StartIndexRequest} of each index is saved in the index dir, and replayed when
+ * the server comes up. Indices are started concurrently on a bounded pool, except for the ones
+ * configured as lazy, which are started by the first request that uses them. The {@link
+ * IndexStartState} of each of these indices is reported by the status rpc.
+ *
+ * <p>The requests are specific to this node, so they are not kept in the state dir, which is
+ * backed up and may be restored on other nodes. Primaries are never started again this way, a new
+ * primary has to be started explicitly with a greater primaryGen than the previous one.
+ */
+public class IndexStartupManager {
+  public static final String START_REQUESTS_FILE = "start_requests.json";
+
+  private static final Logger logger = LoggerFactory.getLogger(IndexStartupManager.class);
+
+  private final GlobalState globalState;
+  private final StartupConfiguration startupConfiguration;
+  private final JsonParser jsonParser = new JsonParser();
+  // last successful start request of each index, as saved in the index dir
+  private final Map<String, StartIndexRequest> startRequests = new HashMap<>();
+  private final Map<String, IndexStartState> startStates = new ConcurrentHashMap<>();
+  // done once an index is started or failed to, so its first requests can wait for it
+  private final Map<String, CompletableFuture<Void>> startFutures = new ConcurrentHashMap<>();
+  // requests of the lazy indices that were not used yet
+  private final Map<String, StartIndexRequest> lazyRequests = new ConcurrentHashMap<>();
+  // indices started with the server that are not done yet, lazy starts are not included
+  private final Set<String> serverStarts = ConcurrentHashMap.newKeySet();
+  private volatile Archiver archiver;
+
+  public IndexStartupManager(GlobalState globalState, StartupConfiguration startupConfiguration) {
+    this.globalState = globalState;
+    this.startupConfiguration = startupConfiguration;
+  }
+
+  /** Load the start requests saved by this node. */
+  synchronized void loadStartRequests() throws IOException {
+    startRequests.clear();
+    Path file = globalState.indexDirBase.resolve(START_REQUESTS_FILE);
+    if (Files.exists(file) == false) {
+      return;
+    }
+    JsonObject requests =
+        jsonParser
+            .parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8))
+            .getAsJsonObject();
+    for (Map.Entry<String, JsonElement> entry : requests.entrySet()) {
+      StartIndexRequest.Builder builder = StartIndexRequest.newBuilder();
+      JsonFormat.parser().merge(entry.getValue().toString(), builder);
+      startRequests.put(entry.getKey(), builder.build());
+    }
+  }
+
+  private void saveStartRequests() throws IOException {
+    JsonObject requests = new JsonObject();
+    for (Map.Entry<String, StartIndexRequest> entry : startRequests.entrySet()) {
+      requests.add(entry.getKey(), jsonParser.parse(JsonFormat.printer().print(entry.getValue())));
+    }
+    Path indexDirBase = globalState.indexDirBase;
+    Files.createDirectories(indexDirBase);
+    Path tmpFile = Files.createTempFile(indexDirBase, START_REQUESTS_FILE, ".tmp");
+    Files.write(tmpFile, requests.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(
+        tmpFile,
+        indexDirBase.resolve(START_REQUESTS_FILE),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Remember the request an index was started with, so that it is started the same way when the
+   * server comes up. Failing to save it does not fail the start, which already happened.
+   */
+  public synchronized void addStartRequest(StartIndexRequest request) {
+    String indexName = request.getIndexName();
+    // an explicit start takes over from a pending lazy start
+    if (lazyRequests.remove(indexName) != null || startStates.containsKey(indexName)) {
+      startStates.put(indexName, IndexStartState.STARTED);
+      serverStarts.remove(indexName);
+      completeStart(indexName);
+    }
+    startRequests.put(indexName, request);
+    try {
+      saveStartRequests();
+    } catch (IOException e) {
+      logger.warn("Unable to save start request for index " + indexName, e);
+    }
+  }
+
+  /** Forget the start request of an index that was stopped or deleted. */
+  public synchronized void removeStartRequest(String indexName) {
+    lazyRequests.remove(indexName);
+    startStates.remove(indexName);
+    serverStarts.remove(indexName);
+    completeStart(indexName);
+    startFutures.remove(indexName);
+    if (startRequests.remove(indexName) != null) {
+      try {
+        saveStartRequests();
+      } catch (IOException e) {
+        logger.warn("Unable to remove start request for index " + indexName, e);
+      }
+    }
+  }
+
+  /**
+   * Start the indices that have a saved start request, returns once the starts are submitted.
+   * Lazy indices are only registered to be started by their first request.
+   *
+   * @param archiver archiver to download the data of indices that have to be restored
+   */
+  public synchronized void startIndices(Archiver archiver) {
+    this.archiver = archiver;
+    Map<String, StartIndexRequest> toStart = new HashMap<>();
+    for (Map.Entry<String, StartIndexRequest> entry : startRequests.entrySet()) {
+      String indexName = entry.getKey();
+      if (globalState.getIndexNames().contains(indexName) == false) {
+        logger.warn("Not starting unknown index " + indexName);
+      } else if (entry.getValue().getMode() == Mode.PRIMARY) {
+        logger.info("Not starting primary index " + indexName + ", it needs a new primaryGen");
+      } else if (startupConfiguration.getLazyIndices().contains(indexName)) {
+        startStates.put(indexName, IndexStartState.LAZY);
+        startFutures.put(indexName, new CompletableFuture<>());
+        lazyRequests.put(indexName, entry.getValue());
+      } else {
+        startStates.put(indexName, IndexStartState.STARTING);
+        startFutures.put(indexName, new CompletableFuture<>());
+        serverStarts.add(indexName);
+        toStart.put(indexName, entry.getValue());
+      }
+    }
+    if (toStart.isEmpty()) {
+      return;
+    }
+    logger.info(
+        "Starting "
+            + toStart.size()
+            + " indices, "
+            + startupConfiguration.getParallelism()
+            + " at a time: "
+            + toStart.keySet());
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            Math.min(startupConfiguration.getParallelism(), toStart.size()),
+            new NamedThreadFactory("IndexStartup"));
+    for (Map.Entry<String, StartIndexRequest> entry : toStart.entrySet()) {
+      executor.execute(
+          () -> {
+            try {
+              startIndex(entry.getKey(), entry.getValue());
+            } finally {
+              serverStarts.remove(entry.getKey());
+              completeStart(entry.getKey());
+            }
+          });
+    }
+    // threads exit once the submitted starts are done
+    executor.shutdown();
+  }
+
+  /**
+   * Start the index if it is lazy and not used yet, or wait for it to be started if it is being
+   * started with the server. Concurrent first requests of a lazy index wait for the start done by
+   * one of them.
+   */
+  public void awaitStart(String indexName) {
+    CompletableFuture<Void> started = startFutures.get(indexName);
+    if (started == null || started.isDone()) {
+      return;
+    }
+    StartIndexRequest request = lazyRequests.remove(indexName);
+    if (request != null) {
+      startStates.put(indexName, IndexStartState.STARTING);
+      logger.info("Starting lazy index " + indexName + " for its first request");
+      try {
+        startIndex(indexName, request);
+      } finally {
+        completeStart(indexName);
+      }
+    } else {
+      started.join();
+    }
+  }
+
+  private void completeStart(String indexName) {
+    CompletableFuture<Void> started = startFutures.get(indexName);
+    if (started != null) {
+      started.complete(null);
+    }
+  }
+
+  // only looks up the index with getIndex(name, hasRestore), which does not wait for the start
+  private void startIndex(String indexName, StartIndexRequest request) {
+    long t0 = System.nanoTime();
+    try {
+      StartIndexRequest startRequest = request;
+      // the index data was already restored, and a restore cannot replace it
+      if (request.hasRestore()
+          && Files.exists(globalState.getIndexDir(indexName).resolve("shard0").resolve("index"))) {
+        startRequest = request.toBuilder().clearRestore().build();
+      }
+      IndexState indexState = globalState.getIndex(indexName, startRequest.hasRestore());
+      if (indexState.isStarted() == false) {
+        new StartIndexHandler(archiver).handle(indexState, startRequest);
+      }
+      startStates.computeIfPresent(indexName, (k, v) -> IndexStartState.STARTED);
+      logger.info(
+          String.format(
+              "Started index %s in %d ms",
+              indexName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0)));
+    } catch (Exception e) {
+      logger.error("Unable to start index " + indexName, e);
+      startStates.computeIfPresent(indexName, (k, v) -> IndexStartState.FAILED);
+    }
+  }
+
+  /** Start state of the indices started with the server, or lazily after it. */
+  public Map<String, IndexStartState> getStartStates() {
+    return Collections.unmodifiableMap(new HashMap<>(startStates));
+  }
+
+  /**
+   * If any index is still being started with the server. Lazy indices being started by their first
+   * request do not count, they are only reported in the {@link #getStartStates()}.
+   */
+  public boolean isStarting() {
+    return serverStarts.isEmpty() == false;
+  }
+}
@@ -33,6 +33,8 @@ import com.yelp.nrtsearch.server.luceneserver.field.FieldDefBindings;
 import com.yelp.nrtsearch.server.luceneserver.field.IdFieldDef;
 import com.yelp.nrtsearch.server.luceneserver.field.IndexableFieldDef;
 import com.yelp.nrtsearch.server.luceneserver.field.TextBaseFieldDef;
+import com.yelp.nrtsearch.server.luceneserver.merge.MergePolicyCreator;
+import com.yelp.nrtsearch.server.luceneserver.merge.MergePolicySettings;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -54,6 +56,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.AnalyzerWrapper;
@@ -77,8 +80,10 @@ import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.PrintStreamInfoStream;
+import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.packed.PackedInts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -176,6 +181,37 @@ public class IndexState implements Closeable, Restorable {
     return writableShard;
   }
 
+  /** Number of shards of this index on this node. */
+  public int getNumShards() {
+    return shards.size();
+  }
+
+  /** Number of shards to create when the index is started. */
+  public int getNumShardsSetting() {
+    return getIntSetting("numShards", 1);
+  }
+
+  /** Shard that documents with the given _ID field value are indexed to. */
+  public ShardState getShardForId(BytesRef id) {
+    int numShards = shards.size();
+    if (numShards == 1) {
+      return getShard(0);
+    }
+    return getShard(Math.floorMod(StringHelper.murmurhash3_x86_32(id, 0), numShards));
+  }
+
+  /**
+   * Shard to index the next chunk of documents to, when documents are not routed by id. Rotates
+   * through the shards so that they grow at the same rate.
+   */
+  public ShardState getShardForNextChunk() {
+    int numShards = shards.size();
+    if (numShards == 1) {
+      return getShard(0);
+    }
+    return getShard(Math.floorMod(nextChunkShard.getAndIncrement(), numShards));
+  }
+
   public void deleteIndex() throws IOException {
     for (ShardState shardState : shards.values()) {
       shardState.deleteShard();
@@ -409,6 +445,15 @@ public class IndexState implements Closeable, Restorable {
   /** Max number of documents to be added at a time. */
   int addDocumentsMaxBufferLen = 100;
 
+  /** Target time to index one chunk of documents, adaptive chunk sizing is off if &lt;= 0. */
+  volatile int addDocumentsTargetChunkMs = 0;
+
+  /** Max size of one chunk of documents when using adaptive chunk sizing. */
+  volatile double addDocumentsMaxChunkMB = 16;
+
+  /** Sizes the document chunks submitted for indexing. */
+  private final IndexingChunkSizer chunkSizer;
+
   /** True if this is a new index. */
   private final boolean doCreate;
 
@@ -435,6 +480,7 @@ public class IndexState implements Closeable, Restorable {
     }
 
     this.doCreate = doCreate;
+    this.chunkSizer = new IndexingChunkSizer(name);
 
     if (doCreate == false && !hasRestore) {
       initSaveLoadState();
@@ -538,6 +584,8 @@ public class IndexState implements Closeable, Restorable {
 
   private ShardState writableShard;
 
+  private final AtomicInteger nextChunkShard = new AtomicInteger();
+
   /** Built suggest implementations */
   public final Map<String, Lookup> suggesters = new ConcurrentHashMap<>();
 
@@ -742,6 +790,7 @@ public class IndexState implements Closeable, Restorable {
   public synchronized void setAddDocumentsMaxBufferLen(int i) {
     addDocumentsMaxBufferLen = i;
     liveSettingsSaveState.addProperty("addDocumentsMaxBufferLen", i);
+    chunkSizer.setDefaultChunkDocs(i);
   }
 
   /** Live setting: max number of documents to add at a time. */
@@ -749,6 +798,28 @@ public class IndexState implements Closeable, Restorable {
     return addDocumentsMaxBufferLen;
   }
 
+  /**
+   * Live setting: target time (ms) to index one chunk of documents. A positive value makes the
+   * chunk size adapt to document size and indexing latency, a value &lt;= 0 goes back to the fixed
+   * addDocumentsMaxBufferLen.
+   */
+  public synchronized void setAddDocumentsTargetChunkMs(int ms) {
+    addDocumentsTargetChunkMs = ms;
+    liveSettingsSaveState.addProperty("addDocumentsTargetChunkMs", ms);
+    chunkSizer.setTargetChunkMs(ms);
+  }
+
+  /** Live setting: max size (MB) of one chunk of documents when using adaptive chunk sizing. */
+  public synchronized void setAddDocumentsMaxChunkMB(double mb) {
+    addDocumentsMaxChunkMB = mb;
+    liveSettingsSaveState.addProperty("addDocumentsMaxChunkMB", mb);
+    chunkSizer.setMaxChunkBytes((long) (mb * 1024 * 1024));
+  }
+
+  public IndexingChunkSizer getChunkSizer() {
+    return chunkSizer;
+  }
+
   /** Returns JSON representation of all live settings. */
   public synchronized String getLiveSettingsJSON() {
     return liveSettingsSaveState.toString();
@@ -862,6 +933,44 @@ public class IndexState implements Closeable, Restorable {
     settingsSaveState.addProperty("indexVerbose", settingsRequest.getIndexVerbose());
     settingsSaveState.addProperty(
         "indexMergeSchedulerAutoThrottle", settingsRequest.getIndexMergeSchedulerAutoThrottle());
+    settingsSaveState.addProperty("enableTranslog", settingsRequest.getEnableTranslog());
+    if (settingsRequest.getNumShards() != 0) {
+      settingsSaveState.addProperty("numShards", settingsRequest.getNumShards());
+    }
+    if (!settingsRequest.getMergePolicy().isEmpty()) {
+      settingsSaveState.addProperty("mergePolicy", settingsRequest.getMergePolicy());
+    }
+    if (settingsRequest.getMaxMergedSegmentMB() != 0) {
+      settingsSaveState.addProperty("maxMergedSegmentMB", settingsRequest.getMaxMergedSegmentMB());
+    }
+    if (settingsRequest.getSegmentsPerTier() != 0) {
+      settingsSaveState.addProperty("segmentsPerTier", settingsRequest.getSegmentsPerTier());
+    }
+    if (settingsRequest.getDeletesPctAllowed() != 0) {
+      settingsSaveState.addProperty("deletesPctAllowed", settingsRequest.getDeletesPctAllowed());
+    }
+    if (settingsRequest.getMaxPendingMergeMB() != 0) {
+      settingsSaveState.addProperty("maxPendingMergeMB", settingsRequest.getMaxPendingMergeMB());
+    }
+  }
+
+  /** Name of the merge policy registered with {@link MergePolicyCreator}. */
+  public String getMergePolicyName() {
+    return getStringSetting("mergePolicy", MergePolicyCreator.DEFAULT_MERGE_POLICY);
+  }
+
+  /** Merge settings passed to the merge policy. */
+  public MergePolicySettings getMergePolicySettings() {
+    return new MergePolicySettings(
+        getDoubleSetting("maxMergedSegmentMB", 0),
+        getDoubleSetting("segmentsPerTier", 0),
+        getDoubleSetting("deletesPctAllowed", 0),
+        getDoubleSetting("maxPendingMergeMB", 0));
+  }
+
+  /** True if added documents are written to a {@link Translog} before being acknowledged. */
+  public boolean isTranslogEnabled() {
+    return getBooleanSetting("enableTranslog", false);
   }
 
   public synchronized void start(Path dataPath) throws Exception {
@@ -875,6 +984,12 @@ public class IndexState implements Closeable, Restorable {
       }
     }
 
+    for (int shardOrd = 0; shardOrd < getNumShardsSetting(); ++shardOrd) {
+      if (!shards.containsKey(shardOrd)) {
+        addShard(shardOrd, doCreate);
+      }
+    }
+
     // start all local shards
     for (ShardState shard : shards.values()) {
       shard.start();
@@ -920,6 +1035,9 @@ public class IndexState implements Closeable, Restorable {
           }
         };
     iwc.setMergeScheduler(cms);
+    iwc.setMergePolicy(
+        MergePolicyCreator.getInstance()
+            .createMergePolicy(getMergePolicyName(), getMergePolicySettings()));
 
     if (getBooleanSetting("indexMergeSchedulerAutoThrottle", false)) {
       cms.enableAutoIOThrottle();
@@ -945,10 +1063,30 @@ public class IndexState implements Closeable, Restorable {
     return iwc;
   }
 
+  /**
+   * Config for a private writer used by {@link BulkIndexHandler}. Segments written with it must be
+   * compatible with the live index, so it shares the analyzer, similarity, index sort and codec.
+   */
+  IndexWriterConfig getBulkIndexWriterConfig() {
+    IndexWriterConfig iwc = new IndexWriterConfig(indexAnalyzer);
+    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    if (indexSort != null) {
+      iwc.setIndexSort(indexSort);
+    }
+    iwc.setSimilarity(sim);
+    iwc.setRAMBufferSizeMB(indexRamBufferSizeMB);
+    iwc.setCodec(new ServerCodec(this));
+    return iwc;
+  }
+
   synchronized boolean getBooleanSetting(String name, boolean val) {
     return settingsSaveState.get(name) == null ? val : settingsSaveState.get(name).getAsBoolean();
   }
 
+  synchronized String getStringSetting(String name, String val) {
+    return settingsSaveState.get(name) == null ? val : settingsSaveState.get(name).getAsString();
+  }
+
   synchronized double getDoubleSetting(String name, double val) {
     return settingsSaveState.get(name) == null ? val : settingsSaveState.get(name).getAsDouble();
   }
@@ -957,10 +1095,28 @@ public class IndexState implements Closeable, Restorable {
     return settingsSaveState.get(name).getAsInt();
   }
 
+  synchronized int getIntSetting(String name, int val) {
+    return settingsSaveState.get(name) == null ? val : settingsSaveState.get(name).getAsInt();
+  }
+
   synchronized boolean hasSetting(String name) {
     return settingsSaveState.get(name) != null;
   }
 
+  /**
+   * Get the only shard of this index, for operations that do not support multiple shards.
+   *
+   * @param operation name of the operation, for the error message
+   * @throws IllegalStateException if the index has multiple shards
+   */
+  public ShardState getSingleShard(String operation) {
+    if (shards.size() > 1) {
+      throw new IllegalStateException(
+          String.format("index: %s has multiple shards, %s are not supported", name, operation));
+    }
+    return getShard(0);
+  }
+
   public ShardState getShard(int shardOrd) {
     ShardState shardState = shards.get(shardOrd);
     if (shardState == null) {
@@ -1059,6 +1215,9 @@ public class IndexState implements Closeable, Restorable {
     if (liveSettingsRequestBuilder.getAddDocumentsMaxBufferLen() == 0) {
       liveSettingsRequestBuilder.setAddDocumentsMaxBufferLen(100);
     }
+    if (liveSettingsRequestBuilder.getAddDocumentsMaxChunkMB() == 0) {
+      liveSettingsRequestBuilder.setAddDocumentsMaxChunkMB(16.0);
+    }
 
     // set indexName which is not present in the jsonStr from state
     liveSettingsRequestBuilder.setIndexName(this.name);
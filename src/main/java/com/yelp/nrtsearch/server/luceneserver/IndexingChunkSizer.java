@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.yelp.nrtsearch.server.monitoring.IndexingMetrics;
+
+/**
+ * Decides how many documents go into one {@link AddDocumentHandler.DocumentIndexer} chunk. Unless a
+ * target chunk time is set, this is just the static addDocumentsMaxBufferLen live setting. With a
+ * target chunk time, the size is derived from moving averages of document size and per document
+ * indexing time, so that a chunk takes about the target time and stays under the max chunk bytes.
+ */
+public class IndexingChunkSizer {
+  static final int MIN_CHUNK_DOCS = 1;
+  static final int MAX_CHUNK_DOCS = 100_000;
+  /** Weight of the newest sample in the moving averages. */
+  static final double EWMA_ALPHA = 0.2;
+  /** Max factor the chunk size can grow or shrink by after a single sample. */
+  static final double MAX_STEP_FACTOR = 2.0;
+
+  // null for a sizer that records no metrics
+  private final String indexName;
+
+  private volatile int defaultChunkDocs = 100;
+  private volatile int targetChunkMs = 0;
+  private volatile long maxChunkBytes = 16L * 1024 * 1024;
+
+  private double avgNanosPerDoc = -1;
+  private double avgBytesPerDoc = -1;
+  private volatile int adaptiveChunkDocs = -1;
+
+  public IndexingChunkSizer(String indexName) {
+    this.indexName = indexName;
+    updateChunkSizeMetric();
+  }
+
+  /**
+   * Sizer with the default settings that records no metrics, for documents of an index that does
+   * not exist. Metrics are only labeled with the names of existing indices.
+   */
+  public static IndexingChunkSizer withoutMetrics() {
+    return new IndexingChunkSizer(null);
+  }
+
+  /** Chunk size used when adaptive sizing is disabled, and before the first sample. */
+  public void setDefaultChunkDocs(int defaultChunkDocs) {
+    this.defaultChunkDocs = defaultChunkDocs;
+    updateChunkSizeMetric();
+  }
+
+  /** Target time to index one chunk, a value &lt;= 0 disables adaptive sizing. */
+  public synchronized void setTargetChunkMs(int targetChunkMs) {
+    this.targetChunkMs = targetChunkMs;
+    recompute();
+  }
+
+  public synchronized void setMaxChunkBytes(long maxChunkBytes) {
+    this.maxChunkBytes = maxChunkBytes;
+    recompute();
+  }
+
+  public boolean isAdaptive() {
+    return targetChunkMs > 0;
+  }
+
+  /** Number of buffered documents at which a chunk should be sent for indexing. */
+  public int getChunkDocs() {
+    int chunkDocs = adaptiveChunkDocs;
+    if (isAdaptive() && chunkDocs > 0) {
+      return chunkDocs;
+    }
+    return defaultChunkDocs;
+  }
+
+  /** Total buffered document bytes at which a chunk should be sent for indexing. */
+  public long getMaxChunkBytes() {
+    return isAdaptive() ? maxChunkBytes : Long.MAX_VALUE;
+  }
+
+  /**
+   * Record the outcome of indexing one chunk. Averages are tracked even when adaptive sizing is
+   * disabled, so that enabling it starts from a warm estimate.
+   */
+  public synchronized void recordChunk(int numDocs, long numBytes, long elapsedNanos) {
+    if (numDocs <= 0) {
+      return;
+    }
+    if (indexName != null) {
+      IndexingMetrics.chunkLatencySeconds.labels(indexName).observe(elapsedNanos / 1e9);
+    }
+    double nanosPerDoc = (double) elapsedNanos / numDocs;
+    double bytesPerDoc = (double) numBytes / numDocs;
+    if (avgNanosPerDoc < 0) {
+      avgNanosPerDoc = nanosPerDoc;
+      avgBytesPerDoc = bytesPerDoc;
+    } else {
+      avgNanosPerDoc = EWMA_ALPHA * nanosPerDoc + (1 - EWMA_ALPHA) * avgNanosPerDoc;
+      avgBytesPerDoc = EWMA_ALPHA * bytesPerDoc + (1 - EWMA_ALPHA) * avgBytesPerDoc;
+    }
+    if (indexName != null) {
+      IndexingMetrics.avgDocSizeBytes.labels(indexName).set(avgBytesPerDoc);
+    }
+    recompute();
+  }
+
+  private void recompute() {
+    if (!isAdaptive() || avgNanosPerDoc < 0) {
+      adaptiveChunkDocs = -1;
+    } else {
+      double byLatency = targetChunkMs * 1_000_000.0 / Math.max(avgNanosPerDoc, 1.0);
+      double byBytes = maxChunkBytes / Math.max(avgBytesPerDoc, 1.0);
+      double target = Math.min(byLatency, byBytes);
+
+      // limit how fast the size moves, a single slow chunk (e.g. a flush) should not collapse it
+      int current = adaptiveChunkDocs > 0 ? adaptiveChunkDocs : defaultChunkDocs;
+      target = Math.min(target, current * MAX_STEP_FACTOR);
+      target = Math.max(target, current / MAX_STEP_FACTOR);
+      adaptiveChunkDocs = (int) Math.max(MIN_CHUNK_DOCS, Math.min(MAX_CHUNK_DOCS, target));
+    }
+    updateChunkSizeMetric();
+  }
+
+  private void updateChunkSizeMetric() {
+    if (indexName != null) {
+      IndexingMetrics.chunkSizeDocs.labels(indexName).set(getChunkDocs());
+    }
+  }
+}
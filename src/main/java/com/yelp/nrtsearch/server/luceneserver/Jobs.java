@@ -15,26 +15,59 @@
  */
 package com.yelp.nrtsearch.server.luceneserver;
 
+import com.yelp.nrtsearch.server.monitoring.ReplicationMetrics;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-import java.util.PriorityQueue;
+import java.util.Set;
 import org.apache.lucene.replicator.nrt.CopyJob;
 import org.apache.lucene.replicator.nrt.Node;
 import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 /**
  * Runs CopyJob(s) in background thread; each ReplicaNode has an instance of this running. At a
  * given there could be one NRT copy job running, and multiple pre-warm merged segments jobs.
+ *
+ * <p>High priority jobs, which copy new NRT points, have strict priority over merge pre-copies:
+ * low priority jobs are not visited while a high priority job is queued, and their concurrent
+ * file copies wait between chunks. Jobs of the same priority are visited in turn, so that their
+ * chunks interleave. The bytes copied by low priority jobs are limited by a per index and a per
+ * node rate limiter. Their files are always copied on the copy executor, so waiting for the
+ * limiters never holds up the jobs thread, and high priority jobs are not limited at all.
  */
 class Jobs extends Thread implements Closeable {
+  // how long a paused low priority file copy waits before checking if it was aborted
+  private static final long PRIORITY_WAIT_MS = 100;
 
-  private final PriorityQueue<CopyJob> queue = new PriorityQueue<>();
+  private final ArrayDeque<SimpleCopyJob> highPriorityQueue = new ArrayDeque<>();
+  private final ArrayDeque<SimpleCopyJob> lowPriorityQueue = new ArrayDeque<>();
+  // jobs waiting for a check of their peer's version, queued again by wakeUp
+  private final Set<SimpleCopyJob> waitingJobs = new HashSet<>();
 
   private final Node node;
+  private final String indexName;
+  private final CopyRateLimiter nodeRateLimiter;
+  private final CopyRateLimiter indexRateLimiter;
+
+  // launched high priority jobs that are not done, guarded by priorityLock
+  private final Object priorityLock = new Object();
+  private int pendingHighPriorityJobs;
 
-  public Jobs(Node node) {
+  public Jobs(
+      Node node,
+      String indexName,
+      CopyRateLimiter nodeRateLimiter,
+      CopyRateLimiter indexRateLimiter) {
     this.node = node;
+    this.indexName = indexName;
+    this.nodeRateLimiter = nodeRateLimiter;
+    this.indexRateLimiter = indexRateLimiter;
   }
 
   private boolean finish;
@@ -47,21 +80,22 @@ class Jobs extends Thread implements Closeable {
     while (true) {
       if (finish) {
         return null;
-      } else if (queue.isEmpty()) {
+      } else if (highPriorityQueue.isEmpty() == false) {
+        return highPriorityQueue.poll();
+      } else if (lowPriorityQueue.isEmpty() == false) {
+        return lowPriorityQueue.poll();
+      } else {
         try {
           wait();
         } catch (InterruptedException ie) {
           throw new RuntimeException(ie);
         }
-      } else {
-        return (SimpleCopyJob) queue.poll();
       }
     }
   }
 
   @Override
   public void run() {
-    // nocommit: prioritize jobs better here, the way an OS assigns CPU to processes:
     while (true) {
       SimpleCopyJob topJob = getNextJob();
       if (topJob == null) {
@@ -97,13 +131,19 @@ class Jobs extends Thread implements Closeable {
           node.message("ignore exception calling OnceDone: " + t2);
           t2.printStackTrace(System.out);
         }
+        jobDone(topJob);
         continue;
       }
 
       if (result == false) {
-        // Job isn't done yet; put it back:
+        // Job isn't done yet; put it back, behind other jobs of the same priority, unless it has
+        // nothing to do until the check of its peer is done:
         synchronized (this) {
-          queue.offer(topJob);
+          if (topJob.isWaitingForPeer()) {
+            waitingJobs.add(topJob);
+          } else {
+            queueFor(topJob).offer(topJob);
+          }
         }
       } else {
         // Job finished, now notify caller:
@@ -121,15 +161,22 @@ class Jobs extends Thread implements Closeable {
           node.message("ignore exception calling OnceDone: " + t);
           t.printStackTrace(System.out);
         }
+        jobDone(topJob);
       }
+      updateMetrics();
     }
 
     node.message("top: jobs now exit run thread");
 
     synchronized (this) {
       // Gracefully cancel any jobs we didn't finish:
-      while (queue.isEmpty() == false) {
-        SimpleCopyJob job = (SimpleCopyJob) queue.poll();
+      for (SimpleCopyJob job : waitingJobs) {
+        queueFor(job).offer(job);
+      }
+      waitingJobs.clear();
+      while (highPriorityQueue.isEmpty() == false || lowPriorityQueue.isEmpty() == false) {
+        SimpleCopyJob job =
+            highPriorityQueue.isEmpty() ? lowPriorityQueue.poll() : highPriorityQueue.poll();
         node.message("top: Jobs: now cancel job=" + job);
         try {
           job.cancel("jobs closing", null);
@@ -143,21 +190,48 @@ class Jobs extends Thread implements Closeable {
           node.message("ignore exception calling OnceDone");
           t.printStackTrace(System.out);
         }
+        jobDone(job);
       }
+      updateMetrics();
     }
   }
 
   public synchronized void launch(CopyJob job) {
     if (finish == false) {
-      queue.offer(job);
+      SimpleCopyJob copyJob = (SimpleCopyJob) job;
+      if (copyJob.isHighPriority()) {
+        synchronized (priorityLock) {
+          pendingHighPriorityJobs++;
+        }
+      }
+      queueFor(copyJob).offer(copyJob);
       notify();
     } else {
       throw new AlreadyClosedException("closed");
     }
   }
 
+  /** Queue a job again once the check of its peer's version is done. */
+  synchronized void wakeUp(SimpleCopyJob job) {
+    if (waitingJobs.remove(job)) {
+      queueFor(job).offer(job);
+      notify();
+    }
+  }
+
+  private ArrayDeque<SimpleCopyJob> queueFor(SimpleCopyJob job) {
+    return job.isHighPriority() ? highPriorityQueue : lowPriorityQueue;
+  }
+
   /** Cancels any existing jobs that are copying the same file names as this one */
   public synchronized void cancelConflictingJobs(CopyJob newJob) throws IOException {
+    cancelConflictingJobs(highPriorityQueue, newJob);
+    cancelConflictingJobs(lowPriorityQueue, newJob);
+    cancelConflictingJobs(waitingJobs, newJob);
+  }
+
+  private void cancelConflictingJobs(Collection<SimpleCopyJob> queue, CopyJob newJob)
+      throws IOException {
     for (CopyJob job : queue) {
       if (job.conflicts(newJob)) {
         node.message(
@@ -167,6 +241,85 @@ class Jobs extends Thread implements Closeable {
     }
   }
 
+  private void jobDone(SimpleCopyJob job) {
+    ReplicationMetrics.copyJobDurationSeconds
+        .labels(indexName, priorityLabel(job))
+        .observe(job.getAgeNS() / 1e9);
+    if (job.isHighPriority()) {
+      synchronized (priorityLock) {
+        pendingHighPriorityJobs--;
+        priorityLock.notifyAll();
+      }
+    }
+    job.notifyDone();
+  }
+
+  /**
+   * Called by the concurrent file copies of a job before copying the next chunk. Waits while a
+   * high priority job is pending if the given job is low priority, but for no longer than a short
+   * time, so the copy can check if it was aborted.
+   *
+   * @return if the job may copy its next chunk
+   */
+  boolean awaitTurn(SimpleCopyJob job) {
+    if (job.isHighPriority()) {
+      return true;
+    }
+    synchronized (priorityLock) {
+      if (pendingHighPriorityJobs > 0) {
+        try {
+          priorityLock.wait(PRIORITY_WAIT_MS);
+        } catch (InterruptedException ie) {
+          throw new ThreadInterruptedException(ie);
+        }
+      }
+      return pendingHighPriorityJobs == 0;
+    }
+  }
+
+  /**
+   * Called by the concurrent file copies of a job after copying bytes, waits to keep low priority
+   * jobs within the rate limits. Must not be called on the jobs thread.
+   */
+  void onBytesCopied(SimpleCopyJob job, long bytes) {
+    assert Thread.currentThread() != this : "rate limit pause on the jobs thread";
+    if (job.isHighPriority()) {
+      // new NRT points are never throttled, nor use up the budget of merge pre-copies
+      return;
+    }
+    indexRateLimiter.pause(bytes);
+    nodeRateLimiter.pause(bytes);
+  }
+
+  private synchronized void updateMetrics() {
+    // only new NRT points, which are high priority, are copied from peers
+    List<SimpleCopyJob> highPriorityJobs = new ArrayList<>(highPriorityQueue);
+    highPriorityJobs.addAll(waitingJobs);
+    updateMetrics(highPriorityJobs, "high");
+    updateMetrics(lowPriorityQueue, "low");
+    long bytesPending = 0;
+    for (SimpleCopyJob job : highPriorityJobs) {
+      bytesPending += job.getBytesRemaining();
+    }
+    for (SimpleCopyJob job : lowPriorityQueue) {
+      bytesPending += job.getBytesRemaining();
+    }
+    ReplicationMetrics.copyBytesPending.labels(indexName).set(bytesPending);
+  }
+
+  private void updateMetrics(Collection<SimpleCopyJob> queue, String priority) {
+    long oldestAgeNS = 0;
+    for (SimpleCopyJob job : queue) {
+      oldestAgeNS = Math.max(oldestAgeNS, job.getAgeNS());
+    }
+    ReplicationMetrics.copyJobsQueued.labels(indexName, priority).set(queue.size());
+    ReplicationMetrics.copyOldestJobAgeSeconds.labels(indexName, priority).set(oldestAgeNS / 1e9);
+  }
+
+  private static String priorityLabel(SimpleCopyJob job) {
+    return job.isHighPriority() ? "high" : "low";
+  }
+
   @Override
   public synchronized void close() {
     finish = true;
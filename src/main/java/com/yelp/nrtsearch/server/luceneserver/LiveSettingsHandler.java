@@ -54,6 +54,19 @@ public class LiveSettingsHandler implements Handler<LiveSettingsRequest, LiveSet
               "set addDocumentsMaxBufferLen: %s",
               liveSettingsRequest.getAddDocumentsMaxBufferLen()));
     }
+    if (liveSettingsRequest.getAddDocumentsTargetChunkMs() != 0) {
+      indexState.setAddDocumentsTargetChunkMs(liveSettingsRequest.getAddDocumentsTargetChunkMs());
+      logger.info(
+          String.format(
+              "set addDocumentsTargetChunkMs: %s",
+              liveSettingsRequest.getAddDocumentsTargetChunkMs()));
+    }
+    if (liveSettingsRequest.getAddDocumentsMaxChunkMB() != 0) {
+      indexState.setAddDocumentsMaxChunkMB(liveSettingsRequest.getAddDocumentsMaxChunkMB());
+      logger.info(
+          String.format(
+              "set addDocumentsMaxChunkMB: %s", liveSettingsRequest.getAddDocumentsMaxChunkMB()));
+    }
     String response = indexState.getLiveSettingsJSON();
     LiveSettingsResponse reply = LiveSettingsResponse.newBuilder().setResponse(response).build();
     return reply;
@@ -18,9 +18,10 @@ package com.yelp.nrtsearch.server.luceneserver;
 import com.yelp.nrtsearch.server.grpc.FilesMetadata;
 import com.yelp.nrtsearch.server.grpc.ReplicationServerClient;
 import com.yelp.nrtsearch.server.grpc.TransferStatus;
+import com.yelp.nrtsearch.server.monitoring.ReplicationMetrics;
 import com.yelp.nrtsearch.server.utils.HostPort;
 import io.grpc.Status;
-import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
@@ -49,6 +50,9 @@ import org.slf4j.LoggerFactory;
 public class NRTPrimaryNode extends PrimaryNode {
   private final HostPort hostPort;
   private final String indexName;
+  private final long newNRTPointTimeoutMs;
+  // replicas that copy new NRT points directly from this primary, 0 for all
+  private final int fanout;
   Logger logger = LoggerFactory.getLogger(NRTPrimaryNode.class);
   final List<MergePreCopy> warmingSegments = Collections.synchronizedList(new ArrayList<>());
   final Queue<ReplicaDetails> replicasInfos = new ConcurrentLinkedQueue();
@@ -61,11 +65,15 @@ public class NRTPrimaryNode extends PrimaryNode {
       long primaryGen,
       long forcePrimaryVersion,
       SearcherFactory searcherFactory,
-      PrintStream printStream)
+      PrintStream printStream,
+      long newNRTPointTimeoutMs,
+      int fanout)
       throws IOException {
     super(writer, id, primaryGen, forcePrimaryVersion, searcherFactory, printStream);
     this.hostPort = hostPort;
     this.indexName = indexName;
+    this.newNRTPointTimeoutMs = newNRTPointTimeoutMs;
+    this.fanout = fanout;
   }
 
   public static class ReplicaDetails {
@@ -157,40 +165,91 @@ public class NRTPrimaryNode extends PrimaryNode {
     message(msg);
     logger.info(msg);
 
-    // Notify current replicas:
-    Iterator<ReplicaDetails> it = replicasInfos.iterator();
-    while (it.hasNext()) {
-      ReplicaDetails replicaDetails = it.next();
-      int replicaID = replicaDetails.replicaId;
-      ReplicationServerClient currentReplicaServerClient = replicaDetails.replicationServerClient;
+    // Notify current replicas concurrently without waiting for them, so a slow replica does not
+    // delay the others or the refresh of the primary. The outcome of each call is handled by its
+    // observer, every call has a deadline so the observer always completes.
+    List<ReplicaDetails> replicas = new ArrayList<>(replicasInfos);
+    for (int i = 0; i < replicas.size(); ++i) {
+      ReplicaDetails replicaDetails = replicas.get(i);
+      int peerIndex = getPeerIndex(i, fanout);
+      HostPort peer = peerIndex < 0 ? null : replicas.get(peerIndex).hostPort;
+      NewNRTPointObserver observer = new NewNRTPointObserver(replicaDetails, version);
       try {
-        currentReplicaServerClient.newNRTPoint(indexName, primaryGen, version);
-      } catch (StatusRuntimeException e) {
-        Status status = e.getStatus();
-        if (status.getCode().equals(Status.UNAVAILABLE.getCode())) {
-          logger.warn(
-              "NRTPRimaryNode: sendNRTPoint, lost connection to replicaId: "
-                  + replicaDetails.replicaId
-                  + " host: "
-                  + replicaDetails.replicationServerClient.getHost()
-                  + " port: "
-                  + replicaDetails.replicationServerClient.getPort());
-          currentReplicaServerClient.close();
-          it.remove();
-        }
+        replicaDetails.replicationServerClient.newNRTPointAsync(
+            indexName, primaryGen, version, peer, newNRTPointTimeoutMs, observer);
       } catch (Exception e) {
-        message(
-            "top: failed to connect R"
-                + replicaID
-                + " for newNRTPoint; skipping: "
-                + e.getMessage());
+        observer.onError(e);
+      }
+    }
+  }
+
+  /**
+   * Index of the replica that the replica at the given index copies new NRT points from, or -1 to
+   * copy from the primary. The first fanout replicas copy from the primary, and every replica
+   * feeds the next fanout replicas, so with fanout 2 replicas 2 and 3 copy from replica 0, 4 and 5
+   * from replica 1, and so on.
+   */
+  static int getPeerIndex(int replicaIndex, int fanout) {
+    if (fanout <= 0 || replicaIndex < fanout) {
+      return -1;
+    }
+    return replicaIndex / fanout - 1;
+  }
+
+  /**
+   * Records the outcome of notifying one replica of a new NRT point. A replica that cannot be
+   * reached is dropped, it registers again with addReplica once it is back.
+   */
+  private class NewNRTPointObserver implements StreamObserver<TransferStatus> {
+    private final ReplicaDetails replicaDetails;
+    private final long version;
+    private final long startNanos = System.nanoTime();
+
+    NewNRTPointObserver(ReplicaDetails replicaDetails, long version) {
+      this.replicaDetails = replicaDetails;
+      this.version = version;
+    }
+
+    @Override
+    public void onNext(TransferStatus value) {}
+
+    @Override
+    public void onError(Throwable t) {
+      Status status = Status.fromThrowable(t);
+      ReplicationMetrics.newNRTPointFailureCount
+          .labels(indexName, status.getCode().name())
+          .inc();
+      if (status.getCode().equals(Status.UNAVAILABLE.getCode())) {
         logger.warn(
+            "NRTPRimaryNode: sendNRTPoint, lost connection to replicaId: "
+                + replicaDetails.replicaId
+                + " host: "
+                + replicaDetails.replicationServerClient.getHost()
+                + " port: "
+                + replicaDetails.replicationServerClient.getPort());
+        // only remove this registration, the replica may have registered again since the call
+        if (replicasInfos.removeIf(replica -> replica == replicaDetails)) {
+          replicaDetails.replicationServerClient.close();
+        }
+      } else {
+        String msg =
             "top: failed to connect R"
-                + replicaID
-                + " for newNRTPoint; skipping: "
-                + e.getMessage());
+                + replicaDetails.replicaId
+                + " for newNRTPoint version="
+                + version
+                + "; skipping: "
+                + t.getMessage();
+        message(msg);
+        logger.warn(msg);
       }
     }
+
+    @Override
+    public void onCompleted() {
+      ReplicationMetrics.newNRTPointLatencySeconds
+          .labels(indexName)
+          .observe((System.nanoTime() - startNanos) / 1e9);
+    }
   }
 
   // TODO: awkward we are forced to do this here ... this should really live in replicator code,
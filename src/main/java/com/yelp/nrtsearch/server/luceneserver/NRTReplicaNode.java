@@ -15,19 +15,27 @@
  */
 package com.yelp.nrtsearch.server.luceneserver;
 
+import com.yelp.nrtsearch.server.config.ReplicationConfiguration;
 import com.yelp.nrtsearch.server.grpc.FileMetadata;
 import com.yelp.nrtsearch.server.grpc.FilesMetadata;
 import com.yelp.nrtsearch.server.grpc.GetNodesResponse;
 import com.yelp.nrtsearch.server.grpc.NodeInfo;
 import com.yelp.nrtsearch.server.grpc.ReplicationServerClient;
+import com.yelp.nrtsearch.server.monitoring.ReplicationMetrics;
 import com.yelp.nrtsearch.server.utils.HostPort;
+import io.prometheus.client.Gauge;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.lucene.replicator.nrt.CopyJob;
 import org.apache.lucene.replicator.nrt.CopyState;
@@ -42,8 +50,27 @@ import org.slf4j.LoggerFactory;
 public class NRTReplicaNode extends ReplicaNode {
   private final ReplicationServerClient primaryAddress;
   private final String indexName;
+  private final ExecutorService copyExecutor;
+  private final ReplicationConfiguration replicationConfiguration;
   final Jobs jobs;
 
+  // versions announced by the primary that are not searchable yet, with the time they arrived
+  private final ConcurrentNavigableMap<Long, Long> pendingVersions = new ConcurrentSkipListMap<>();
+  private volatile long primaryVersion = -1;
+  private long announcedPrimaryGen = -1;
+  // last new NRT point or keepalive from the primary, and how often keepalives are expected
+  private volatile long lastPrimaryContactNS = System.nanoTime();
+  private final long keepAliveIntervalMs;
+
+  // clients for the peer replicas this replica copies files from, by replication address
+  private final Map<HostPort, PeerClient> peerClients = new HashMap<>();
+  // peer of the latest new NRT point, its client is kept for the next one, guarded by peerClients
+  private HostPort currentPeer;
+  // peer for the new NRT point being processed, guarded by this
+  private HostPort nrtPointPeer;
+  // if the new NRT point being processed catches up a restored backup, guarded by this
+  private boolean syncingFromPrimary;
+
   /* Just a wrapper class to hold our <hostName, port> pair so that we can send them to the Primary
    * on sendReplicas and it can build its channel over this pair */
   private final HostPort hostPort;
@@ -57,18 +84,211 @@ public class NRTReplicaNode extends ReplicaNode {
       Directory indexDir,
       SearcherFactory searcherFactory,
       PrintStream printStream,
-      long primaryGen)
+      long primaryGen,
+      ExecutorService copyExecutor,
+      ReplicationConfiguration replicationConfiguration,
+      CopyRateLimiter nodeCopyRateLimiter,
+      long keepAliveIntervalMs)
       throws IOException {
     super(replicaId, indexDir, searcherFactory, printStream);
+    this.keepAliveIntervalMs = keepAliveIntervalMs;
     this.primaryAddress = primaryAddress;
     this.indexName = indexName;
     this.hostPort = hostPort;
+    this.copyExecutor = copyExecutor;
+    this.replicationConfiguration = replicationConfiguration;
     // Handles fetching files from primary, on a new thread which receives files from primary
-    jobs = new Jobs(this);
+    jobs =
+        new Jobs(
+            this,
+            indexName,
+            nodeCopyRateLimiter,
+            new CopyRateLimiter(replicationConfiguration.getMaxIndexCopyMBPerSec()));
     jobs.setName("R" + id + ".copyJobs");
     jobs.setDaemon(true);
     jobs.start();
     start(primaryGen);
+
+    ReplicationMetrics.replicaLagVersions.setChild(
+        new Gauge.Child() {
+          @Override
+          public double get() {
+            try {
+              return getVersionLag();
+            } catch (IOException e) {
+              return Double.NaN;
+            }
+          }
+        },
+        indexName);
+    ReplicationMetrics.replicaLagSeconds.setChild(
+        new Gauge.Child() {
+          @Override
+          public double get() {
+            try {
+              return getStalenessMs() / 1000.0;
+            } catch (IOException e) {
+              return Double.NaN;
+            }
+          }
+        },
+        indexName);
+  }
+
+  @Override
+  public synchronized void newNRTPoint(long newPrimaryGen, long version) throws IOException {
+    if (newPrimaryGen != announcedPrimaryGen) {
+      // versions of the previous primary do not apply anymore
+      pendingVersions.clear();
+      announcedPrimaryGen = newPrimaryGen;
+    }
+    long now = System.nanoTime();
+    pendingVersions.putIfAbsent(version, now);
+    lastPrimaryContactNS = now;
+    primaryVersion = version;
+    super.newNRTPoint(newPrimaryGen, version);
+  }
+
+  /**
+   * Start copying the current NRT point of the primary in the background, as if the primary had
+   * just sent it. Only the files that are missing locally, or differ from the primary's in header,
+   * footer or checksum, are copied, so a replica restored from a backup copies just the changes
+   * made since the backup.
+   */
+  public void syncFromPrimary() throws IOException {
+    com.yelp.nrtsearch.server.grpc.CopyState copyState =
+        primaryAddress.recvCopyState(indexName, id);
+    message(
+        "top: sync from primary: primaryGen="
+            + copyState.getPrimaryGen()
+            + " version="
+            + copyState.getVersion());
+    synchronized (this) {
+      syncingFromPrimary = true;
+      try {
+        newNRTPoint(copyState.getPrimaryGen(), copyState.getVersion());
+      } finally {
+        syncingFromPrimary = false;
+      }
+    }
+  }
+
+  /**
+   * Like {@link #newNRTPoint(long, long)}, but copies the files from the given peer replica once it
+   * has reached the version, instead of from the primary.
+   *
+   * @param peer replication address of the peer, or null to copy from the primary
+   */
+  public synchronized void newNRTPoint(long newPrimaryGen, long version, HostPort peer)
+      throws IOException {
+    nrtPointPeer = hostPort.equals(peer) ? null : peer;
+    setCurrentPeer(nrtPointPeer);
+    try {
+      newNRTPoint(newPrimaryGen, version);
+    } finally {
+      nrtPointPeer = null;
+    }
+  }
+
+  /** Client of a peer replica, with the number of copy jobs that use it. */
+  private static class PeerClient {
+    private final ReplicationServerClient client;
+    private int jobs;
+
+    PeerClient(ReplicationServerClient client) {
+      this.client = client;
+    }
+  }
+
+  /** Get the client for a peer for a new copy job, which must release it once it is done. */
+  private ReplicationServerClient acquirePeerClient(HostPort peer) {
+    synchronized (peerClients) {
+      PeerClient peerClient =
+          peerClients.computeIfAbsent(
+              peer,
+              key -> new PeerClient(new ReplicationServerClient(key.getHostName(), key.getPort())));
+      peerClient.jobs++;
+      return peerClient.client;
+    }
+  }
+
+  /** Release the client of a done copy job, closing it if it is not used anymore. */
+  private void releasePeerClient(HostPort peer) {
+    synchronized (peerClients) {
+      PeerClient peerClient = peerClients.get(peer);
+      if (peerClient == null) {
+        // closed with the node
+        return;
+      }
+      peerClient.jobs--;
+      if (peerClient.jobs == 0 && peer.equals(currentPeer) == false) {
+        peerClients.remove(peer);
+        peerClient.client.close();
+      }
+    }
+  }
+
+  /**
+   * Set the peer of the latest new NRT point, and close the clients of the previous peers that no
+   * copy job uses, as the primary assigns peers again when replicas come and go.
+   */
+  private void setCurrentPeer(HostPort peer) {
+    synchronized (peerClients) {
+      currentPeer = peer;
+      Iterator<Map.Entry<HostPort, PeerClient>> it = peerClients.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<HostPort, PeerClient> entry = it.next();
+        if (entry.getValue().jobs == 0 && entry.getKey().equals(peer) == false) {
+          it.remove();
+          entry.getValue().client.close();
+        }
+      }
+    }
+  }
+
+  /** Replication addresses of the peers that this replica has open clients for. */
+  Set<HostPort> getPeerClientAddresses() {
+    synchronized (peerClients) {
+      return new HashSet<>(peerClients.keySet());
+    }
+  }
+
+  /** Latest version announced by the primary, or -1 if there was no new NRT point yet. */
+  public long getPrimaryVersion() {
+    return primaryVersion;
+  }
+
+  /** How many versions the current searcher is behind the latest version of the primary. */
+  public long getVersionLag() throws IOException {
+    long version = primaryVersion;
+    return version < 0 ? 0 : Math.max(0, version - getCurrentSearchingVersion());
+  }
+
+  /** Record that the primary answered a keepalive, so no new NRT point was missed until now. */
+  public void onPrimaryKeepAlive() {
+    lastPrimaryContactNS = System.nanoTime();
+  }
+
+  /**
+   * How long the oldest version announced by the primary that is newer than the current searcher
+   * has been waiting, which is 0 when this replica is up to date. Measured with the clock of this
+   * replica, from when the primary's new NRT point arrived.
+   *
+   * <p>A replica that stops hearing from its primary cannot know about the versions it missed, so
+   * the staleness is at least the time since the last new NRT point or keepalive from the primary,
+   * beyond the keepalive interval.
+   */
+  public long getStalenessMs() throws IOException {
+    long now = System.nanoTime();
+    long stalenessMs =
+        Math.max(
+            0, TimeUnit.NANOSECONDS.toMillis(now - lastPrimaryContactNS) - keepAliveIntervalMs);
+    pendingVersions.headMap(getCurrentSearchingVersion(), true).clear();
+    Map.Entry<Long, Long> oldest = pendingVersions.firstEntry();
+    if (oldest != null) {
+      stalenessMs = Math.max(stalenessMs, TimeUnit.NANOSECONDS.toMillis(now - oldest.getValue()));
+    }
+    return stalenessMs;
   }
 
   @Override
@@ -95,8 +315,36 @@ public class NRTReplicaNode extends ReplicaNode {
     } else {
       copyState = null;
     }
-    return new SimpleCopyJob(
-        reason, primaryAddress, copyState, this, files, highPriority, onceDone, indexName);
+    // only NRT points are copied from peers, merged segments are pre-copied by the primary
+    HostPort peerAddress = copyState != null && highPriority ? nrtPointPeer : null;
+    ReplicationServerClient peer = peerAddress != null ? acquirePeerClient(peerAddress) : null;
+    SimpleCopyJob job;
+    try {
+      job =
+          new SimpleCopyJob(
+              reason,
+              primaryAddress,
+              copyState,
+              this,
+              files,
+              highPriority,
+              onceDone,
+              indexName,
+              copyExecutor,
+              replicationConfiguration,
+              jobs,
+              peer);
+    } catch (Throwable t) {
+      if (peerAddress != null) {
+        releasePeerClient(peerAddress);
+      }
+      throw t;
+    }
+    if (peerAddress != null) {
+      job.getCompletionFuture().whenComplete((j, t) -> releasePeerClient(peerAddress));
+    }
+    job.setCatchUpAfterRestore(syncingFromPrimary && highPriority);
+    return job;
   }
 
   private CopyState getCopyStateFromPrimary() throws IOException {
@@ -171,6 +419,8 @@ public class NRTReplicaNode extends ReplicaNode {
 
   @Override
   public void close() throws IOException {
+    ReplicationMetrics.replicaLagVersions.remove(indexName);
+    ReplicationMetrics.replicaLagSeconds.remove(indexName);
     jobs.close();
     logger.info("CLOSE NRT REPLICA");
     message("top: jobs closed");
@@ -181,6 +431,12 @@ public class NRTReplicaNode extends ReplicaNode {
       }
     }
     primaryAddress.close();
+    synchronized (peerClients) {
+      for (PeerClient peerClient : peerClients.values()) {
+        peerClient.client.close();
+      }
+      peerClients.clear();
+    }
     super.close();
   }
 
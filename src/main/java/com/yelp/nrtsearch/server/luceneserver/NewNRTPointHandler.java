@@ -18,6 +18,7 @@ package com.yelp.nrtsearch.server.luceneserver;
 import com.yelp.nrtsearch.server.grpc.NewNRTPoint;
 import com.yelp.nrtsearch.server.grpc.TransferStatus;
 import com.yelp.nrtsearch.server.grpc.TransferStatusCode;
+import com.yelp.nrtsearch.server.utils.HostPort;
 import java.io.IOException;
 
 public class NewNRTPointHandler implements Handler<NewNRTPoint, TransferStatus> {
@@ -25,7 +26,7 @@ public class NewNRTPointHandler implements Handler<NewNRTPoint, TransferStatus>
   @Override
   public TransferStatus handle(IndexState indexState, NewNRTPoint newNRTPointRequest)
       throws HandlerException {
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("replication");
     if (shardState.isReplica() == false) {
       throw new IllegalArgumentException(
           "index \""
@@ -35,8 +36,12 @@ public class NewNRTPointHandler implements Handler<NewNRTPoint, TransferStatus>
 
     long version = newNRTPointRequest.getVersion();
     long newPrimaryGen = newNRTPointRequest.getPrimaryGen();
+    HostPort peer =
+        newNRTPointRequest.getPeerHostName().isEmpty()
+            ? null
+            : new HostPort(newNRTPointRequest.getPeerHostName(), newNRTPointRequest.getPeerPort());
     try {
-      shardState.nrtReplicaNode.newNRTPoint(newPrimaryGen, version);
+      shardState.nrtReplicaNode.newNRTPoint(newPrimaryGen, version, peer);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
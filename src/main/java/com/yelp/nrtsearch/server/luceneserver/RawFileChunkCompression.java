@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.yelp.nrtsearch.server.grpc.RawFileChunk;
+import java.nio.ByteBuffer;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * LZ4 compression of the file chunks the primary sends to replicas. Each chunk is compressed on its
+ * own as an lz4 block, so a copy can still resume at any chunk boundary. Chunks that do not get
+ * smaller are sent uncompressed.
+ */
+public class RawFileChunkCompression {
+  private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+
+  private RawFileChunkCompression() {}
+
+  /** Build a chunk with the given file content, compressed if that makes it smaller. */
+  public static RawFileChunk compress(ByteString content) {
+    int length = content.size();
+    LZ4Compressor compressor = LZ4_FACTORY.fastCompressor();
+    byte[] compressed = new byte[compressor.maxCompressedLength(length)];
+    ByteBuffer src = content.asReadOnlyByteBuffer();
+    int compressedLength =
+        compressor.compress(
+            src, src.position(), length, ByteBuffer.wrap(compressed), 0, compressed.length);
+    if (compressedLength >= length) {
+      return RawFileChunk.newBuilder().setContent(content).build();
+    }
+    return RawFileChunk.newBuilder()
+        .setContent(UnsafeByteOperations.unsafeWrap(compressed, 0, compressedLength))
+        .setUncompressedLength(length)
+        .build();
+  }
+
+  /** Get the file content of a chunk, decompressing it if needed. */
+  public static byte[] getContent(RawFileChunk rawFileChunk) {
+    if (rawFileChunk.getUncompressedLength() == 0) {
+      return rawFileChunk.getContent().toByteArray();
+    }
+    byte[] content = new byte[rawFileChunk.getUncompressedLength()];
+    ByteBuffer src = rawFileChunk.getContent().asReadOnlyByteBuffer();
+    LZ4_FACTORY
+        .fastDecompressor()
+        .decompress(src, src.position(), ByteBuffer.wrap(content), 0, content.length);
+    return content;
+  }
+}
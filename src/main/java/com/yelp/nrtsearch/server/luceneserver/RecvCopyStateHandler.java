@@ -27,7 +27,7 @@ import org.apache.lucene.replicator.nrt.FileMetaData;
 public class RecvCopyStateHandler implements Handler<CopyStateRequest, CopyState> {
   @Override
   public CopyState handle(IndexState indexState, CopyStateRequest copyStateRequest) {
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("replication");
     if (shardState.isPrimary() == false) {
       throw new IllegalArgumentException(
           "index \"" + indexState.name + "\" was not started or is not a primary");
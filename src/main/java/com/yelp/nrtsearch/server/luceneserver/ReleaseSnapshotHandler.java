@@ -29,7 +29,7 @@ public class ReleaseSnapshotHandler
   public ReleaseSnapshotResponse handle(
       IndexState indexState, ReleaseSnapshotRequest releaseSnapshotRequest)
       throws HandlerException {
-    final ShardState shardState = indexState.getShard(0);
+    final ShardState shardState = indexState.getSingleShard("snapshots");
     final IndexState.Gens gens =
         new IndexState.Gens(
             CreateSnapshotHandler.getSnapshotIdAsString(releaseSnapshotRequest.getSnapshotId()),
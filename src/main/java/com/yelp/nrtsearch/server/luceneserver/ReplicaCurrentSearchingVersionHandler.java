@@ -24,7 +24,7 @@ public class ReplicaCurrentSearchingVersionHandler implements Handler<IndexName,
   @Override
   public SearcherVersion handle(IndexState indexState, IndexName indexNameRequest)
       throws HandlerException {
-    ShardState shardState = indexState.getShard(0);
+    ShardState shardState = indexState.getSingleShard("replication");
     if (shardState.isReplica() == false) {
       throw new IllegalArgumentException(
           "index \""
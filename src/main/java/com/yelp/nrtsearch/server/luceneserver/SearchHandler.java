@@ -17,6 +17,7 @@ package com.yelp.nrtsearch.server.luceneserver;
 
 import com.google.common.collect.Maps;
 import com.yelp.nrtsearch.server.grpc.FacetResult;
+import com.yelp.nrtsearch.server.grpc.LabelAndValue;
 import com.yelp.nrtsearch.server.grpc.QuerySortField;
 import com.yelp.nrtsearch.server.grpc.SearchRequest;
 import com.yelp.nrtsearch.server.grpc.SearchResponse;
@@ -43,12 +44,19 @@ import java.text.BreakIterator;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -68,7 +76,6 @@ import org.apache.lucene.search.CollectorManager;
 import org.apache.lucene.search.DoubleValues;
 import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.LargeNumHitsTopDocsCollector;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ReferenceManager;
@@ -78,6 +85,7 @@ import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TimeLimitingCollector;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.grouping.AllGroupsCollector;
 import org.apache.lucene.search.grouping.FirstPassGroupingCollector;
@@ -90,6 +98,7 @@ import org.slf4j.LoggerFactory;
 public class SearchHandler implements Handler<SearchRequest, SearchResponse> {
 
   private final ThreadPoolExecutor threadPoolExecutor;
+  private final ExecutorService shardSearchExecutor;
   Logger logger = LoggerFactory.getLogger(RegisterFieldsHandler.class);
   /**
    * By default we count hits accurately up to 1000. This makes sure that we don't spend most time
@@ -99,8 +108,19 @@ public class SearchHandler implements Handler<SearchRequest, SearchResponse> {
 
   private static final QueryNodeMapper QUERY_NODE_MAPPER = new QueryNodeMapper();
 
-  public SearchHandler(ThreadPoolExecutor threadPoolExecutor) {
+  private static final org.apache.lucene.search.TotalHits EMPTY_TOTAL_HITS =
+      new org.apache.lucene.search.TotalHits(
+          0, org.apache.lucene.search.TotalHits.Relation.EQUAL_TO);
+
+  /**
+   * @param threadPoolExecutor executor for searching segment slices of a shard
+   * @param shardSearchExecutor executor for searching the shards of a multi-shard index in
+   *     parallel, it must not be the segment slice executor, since shard searches wait for the
+   *     slice tasks they submit
+   */
+  public SearchHandler(ThreadPoolExecutor threadPoolExecutor, ExecutorService shardSearchExecutor) {
     this.threadPoolExecutor = threadPoolExecutor;
+    this.shardSearchExecutor = shardSearchExecutor;
   }
 
   @Override
@@ -227,145 +247,127 @@ public class SearchHandler implements Handler<SearchRequest, SearchResponse> {
     String resultString;
     SearchResponse.Builder searchResponse = SearchResponse.newBuilder();
 
-    SearcherTaxonomyManager.SearcherAndTaxonomy s = null;
-    // matching finally clause releases this searcher:
-    try {
-      // Pull the searcher we will use
-      s = getSearcherAndTaxonomy(searchRequest, shardState, diagnostics, threadPoolExecutor);
-      // nocommit can we ... not do this?  it's awkward that
-      // we have to ... but, the 2-pass (query time
-      // join/grouping) is slower for MTQs if we don't
-      // ... and the whole out-of-order collector or not
-      // ...
-
-      q = s.searcher.rewrite(q);
-      logger.debug(String.format("after rewrite, query: %s", q.toString()));
-      diagnostics.setRewrittenQuery(q.toString());
-
-      // nocommit add test with drill down on OR of fields:
-
-      // TODO: re-enable this?  else we never get
-      // in-order collectors
-      // Weight w = s.createNormalizedWeight(q2);
-
-      DrillDownQuery ddq = addDrillDowns(timestampSec, indexState, searchRequest, q);
-
-      diagnostics.setDrillDownQuery(ddq.toString());
-
-      Collector collector;
-      // FIXME? not sure if these two groupCollectors are correct?
-      FirstPassGroupingCollector groupCollector = null;
-      AllGroupsCollector allGroupsCollector = null;
-
-      FieldDef groupField = null;
-      Sort groupSort = null;
-      Sort sort;
-      QuerySortField sortRequest;
-      List<String> sortFieldNames;
-      if (!searchRequest.getQuerySort().getFields().getSortedFieldsList().isEmpty()) {
-        sortRequest = searchRequest.getQuerySort();
-        sortFieldNames = new ArrayList<String>();
-        sort =
-            parseSort(
-                timestampSec,
-                indexState,
-                searchRequest.getQuerySort().getFields().getSortedFieldsList(),
-                sortFieldNames,
-                queryFields);
-      } else {
-        sortRequest = null;
-        sort = null;
-        sortFieldNames = null;
+    // FIXME? not sure if these two groupCollectors are correct?
+    FirstPassGroupingCollector groupCollector = null;
+    AllGroupsCollector allGroupsCollector = null;
+
+    FieldDef groupField = null;
+    Sort groupSort = null;
+    Sort sort;
+    QuerySortField sortRequest;
+    List<String> sortFieldNames;
+    if (!searchRequest.getQuerySort().getFields().getSortedFieldsList().isEmpty()) {
+      sortRequest = searchRequest.getQuerySort();
+      sortFieldNames = new ArrayList<String>();
+      sort =
+          parseSort(
+              timestampSec,
+              indexState,
+              searchRequest.getQuerySort().getFields().getSortedFieldsList(),
+              sortFieldNames,
+              queryFields);
+      // If any of the sort fields require score, than
+      // ask for FieldDoc.score in the returned hits:
+      for (SortField sortField : sort.getSort()) {
+        forceDocScores |= sortField.needsScores();
       }
+    } else {
+      sortRequest = null;
+      sort = null;
+      sortFieldNames = null;
+    }
 
-      int topHits = searchRequest.getTopHits();
-      int totalHitsThreshold = TOTAL_HITS_THRESHOLD;
-      if (searchRequest.getTotalHitsThreshold() != 0) {
-        totalHitsThreshold = searchRequest.getTotalHitsThreshold();
-      }
+    /* TODO: fixme; we dont use timeOut as of now
+        would need new CollectorManager impl that returns TimeLimitingCollector on newCollector() call
+        e.g. new impls similar to TopFieldCollector.createSharedManager and TopScoreDocCollector.createSharedManager
+    */
+    if (searchRequest.getTimeoutSec() != 0.0
+        && (long) (searchRequest.getTimeoutSec() * 1000) <= 0) {
+      throw new SearchHandlerException("timeoutSec must be > 0 msec");
+    }
 
-      CollectorManager<? extends Collector, ? extends TopDocs> collectorManager = null;
+    List<ShardResult> shardResults = new ArrayList<>();
+    for (ShardState shard : indexState.shards.values()) {
+      shardResults.add(new ShardResult(shard));
+    }
+    shardResults.sort(Comparator.comparingInt(shardResult -> shardResult.shardState.shardOrd));
+    if (shardResults.size() > 1
+        && searchRequest.getSearcherCase() == SearchRequest.SearcherCase.VERSION) {
+      // versions of the shard searchers are unrelated to each other
+      throw new SearchHandlerException(
+          String.format(
+              "index: %s has multiple shards, searching by searcher version is not supported",
+              indexState.name));
+    }
 
-      // TODO: support "grouping" and "useBlockJoinCollector"
-      if (sort == null) {
-        // TODO: support "searchAfter" when supplied by user
-        FieldDoc searchAfter = null;
-        collector = TopScoreDocCollector.create(topHits, searchAfter, totalHitsThreshold);
-        collectorManager =
-            TopScoreDocCollector.createSharedManager(topHits, searchAfter, totalHitsThreshold);
-      } else if (q instanceof MatchAllDocsQuery) {
-        collector = new LargeNumHitsTopDocsCollector(topHits);
-        collectorManager = LargeNumHitsTopDocsCollectorManagerCreator.createSharedManager(topHits);
+    // matching finally clause releases the searchers:
+    try {
+      long searchStartTime = System.nanoTime();
+      final Query query = q;
+      if (shardResults.size() == 1) {
+        searchShard(
+            shardResults.get(0),
+            indexState,
+            searchRequest,
+            query,
+            timestampSec,
+            sort,
+            queryFields,
+            diagnostics);
       } else {
-
-        // If any of the sort fields require score, than
-        // ask for FieldDoc.score in the returned hits:
-        for (SortField sortField : sort.getSort()) {
-          forceDocScores |= sortField.needsScores();
-        }
-
-        // Sort by fields:
-        // TODO: support "searchAfter" when supplied by user
-        FieldDoc searchAfter;
-        searchAfter = null;
-        collector = TopFieldCollector.create(sort, topHits, searchAfter, totalHitsThreshold);
-        collectorManager =
-            TopFieldCollector.createSharedManager(sort, topHits, searchAfter, totalHitsThreshold);
-      }
-
-      long timeoutMS;
-      /* TODO: fixme; we dont use timeOut as of now
-          would need new CollectorManager impl that returns TimeLimitingCollector on newCollector() call
-          e.g. new impls similar to TopFieldCollector.createSharedManager and TopScoreDocCollector.createSharedManager
-      */
-      Collector c2;
-      if (searchRequest.getTimeoutSec() != 0.0) {
-        timeoutMS = (long) (searchRequest.getTimeoutSec() * 1000);
-        if (timeoutMS <= 0) {
-          throw new SearchHandlerException("timeoutSec must be > 0 msec");
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+          for (ShardResult shardResult : shardResults) {
+            // the diagnostics builder is not thread safe, only the first shard fills it in
+            SearchResponse.Diagnostics.Builder shardDiagnostics =
+                shardResult.shardState.shardOrd == 0 ? diagnostics : null;
+            futures.add(
+                shardSearchExecutor.submit(
+                    () -> {
+                      searchShard(
+                          shardResult,
+                          indexState,
+                          searchRequest,
+                          query,
+                          timestampSec,
+                          sort,
+                          queryFields,
+                          shardDiagnostics);
+                      return null;
+                    }));
+          }
+        } catch (RejectedExecutionException e) {
+          // the submitted shards still use the searchers, which are released below
+          for (Future<?> future : futures) {
+            future.cancel(false);
+          }
+          waitForShardsQuietly(futures);
+          throw new SearchHandlerException(
+              "too many concurrent shard searches, increase maxShardSearchBufferedItems", e);
         }
-        c2 =
-            new TimeLimitingCollector(
-                collector, TimeLimitingCollector.getGlobalCounter(), timeoutMS);
-      } else {
-        c2 = collector;
-        timeoutMS = -1;
+        waitForShards(futures);
       }
 
-      // nocommit can we do better?  sometimes downgrade
-      // to DDQ not DS?
-
-      long searchStartTime = System.nanoTime();
+      diagnostics.setFirstPassSearchTimeMs(((System.nanoTime() - searchStartTime) / 1000000.0));
 
-      // TODO: If "facets" create DrillSideways(ds) and do ds.search(ddq, c2)
-      TopDocs topDocs = null;
-      if (!searchRequest.getFacetsList().isEmpty()) {
-        List<FacetResult> grpcFacetResults = new ArrayList<>();
-        DrillSideways drillS =
-            new DrillSidewaysImpl(
-                s.searcher,
-                indexState.facetsConfig,
-                s.taxonomyReader,
-                searchRequest.getFacetsList(),
-                s,
-                shardState,
-                queryFields,
-                grpcFacetResults,
-                threadPoolExecutor);
-        DrillSideways.ConcurrentDrillSidewaysResult<? extends TopDocs>
-            concurrentDrillSidewaysResult = drillS.search(ddq, collectorManager);
-        topDocs = concurrentDrillSidewaysResult.collectorResult;
-        searchResponse.addAllFacetResult(grpcFacetResults);
+      TopDocs topDocs;
+      if (shardResults.size() == 1) {
+        topDocs = shardResults.get(0).topDocs;
+        searchResponse.addAllFacetResult(shardResults.get(0).facetResults);
       } else {
-        try {
-          topDocs = s.searcher.search(ddq, collectorManager);
-        } catch (TimeLimitingCollector.TimeExceededException tee) {
+        topDocs = mergeTopDocs(shardResults, sort, searchRequest.getTopHits());
+        List<List<FacetResult>> shardFacetResults = new ArrayList<>();
+        for (ShardResult shardResult : shardResults) {
+          shardFacetResults.add(shardResult.facetResults);
+        }
+        searchResponse.addAllFacetResult(mergeFacetResults(shardFacetResults));
+      }
+      for (ShardResult shardResult : shardResults) {
+        if (shardResult.hitTimeout) {
           searchResponse.setHitTimeout(true);
         }
       }
 
-      diagnostics.setFirstPassSearchTimeMs(((System.nanoTime() - searchStartTime) / 1000000.0));
-
       int startHit = searchRequest.getStartHit();
 
       // TODO: support "grouping" and "useBlockJoinCollector" (we need a new collector for grouping
@@ -424,9 +426,11 @@ public class SearchHandler implements Handler<SearchRequest, SearchResponse> {
           }
 
           if (fields != null || highlightFields != null) {
+            // shardIndex is only set when shard hits were merged
+            IndexSearcher searcher = shardResults.get(Math.max(0, hit.shardIndex)).s.searcher;
             var fieldValueMap =
                 fillFields(
-                    indexState, null, s.searcher, hit, fields, highlights, hitIndex, queryFields);
+                    indexState, null, searcher, hit, fields, highlights, hitIndex, queryFields);
             var sortedFields = getSortedFieldsForHit(hit, sort, sortFieldNames);
             hitResponse.putAllFields(fieldValueMap);
             hitResponse.putAllSortedFields(sortedFields);
@@ -438,8 +442,9 @@ public class SearchHandler implements Handler<SearchRequest, SearchResponse> {
       SearchState.Builder searchState = SearchState.newBuilder();
       searchState.setTimestamp(timestampSec);
 
-      // Record searcher version that handled this request:
-      searchState.setSearcherVersion(((DirectoryReader) s.searcher.getIndexReader()).getVersion());
+      // Record searcher version that handled this request, the first shard for multiple shards:
+      searchState.setSearcherVersion(
+          ((DirectoryReader) shardResults.get(0).s.searcher.getIndexReader()).getVersion());
 
       // Fill in lastDoc for searchAfter:
       if (hits != null && hits.scoreDocs.length != 0) {
@@ -471,19 +476,250 @@ public class SearchHandler implements Handler<SearchRequest, SearchResponse> {
       // but under-the-hood all these methods just call
       // s.getIndexReader().decRef(), which is what release
       // does:
-      try {
-        if (s != null) {
-          shardState.release(s);
+      for (ShardResult shardResult : shardResults) {
+        try {
+          if (shardResult.s != null) {
+            shardResult.shardState.release(shardResult.s);
+          }
+        } catch (IOException e) {
+          logger.warn("Failed to release searcher reference previously acquired by acquire()", e);
+          throw new SearchHandlerException(e);
         }
-      } catch (IOException e) {
-        logger.warn("Failed to release searcher reference previously acquired by acquire()", e);
-        throw new SearchHandlerException(e);
       }
     }
 
     return searchResponse.build();
   }
 
+  /** Result of searching one shard, holding the reference to the searcher that was used. */
+  private static class ShardResult {
+    final ShardState shardState;
+    final List<FacetResult> facetResults = new ArrayList<>();
+    SearcherTaxonomyManager.SearcherAndTaxonomy s;
+    TopDocs topDocs;
+    boolean hitTimeout;
+
+    ShardResult(ShardState shardState) {
+      this.shardState = shardState;
+    }
+  }
+
+  /**
+   * Search a single shard, filling in the shard result. The searcher is set in the result before
+   * searching, so the caller can release it whether or not the search succeeds.
+   *
+   * @param diagnostics diagnostics to fill in, or null
+   */
+  private void searchShard(
+      ShardResult shardResult,
+      IndexState indexState,
+      SearchRequest searchRequest,
+      Query query,
+      long timestampSec,
+      Sort sort,
+      Map<String, FieldDef> queryFields,
+      SearchResponse.Diagnostics.Builder diagnostics)
+      throws IOException, InterruptedException {
+    ShardState shardState = shardResult.shardState;
+    // Pull the searcher we will use
+    shardResult.s =
+        getSearcherAndTaxonomy(searchRequest, shardState, diagnostics, threadPoolExecutor);
+    SearcherTaxonomyManager.SearcherAndTaxonomy s = shardResult.s;
+    // nocommit can we ... not do this?  it's awkward that
+    // we have to ... but, the 2-pass (query time
+    // join/grouping) is slower for MTQs if we don't
+    // ... and the whole out-of-order collector or not
+    // ...
+
+    Query q = s.searcher.rewrite(query);
+    logger.debug(String.format("after rewrite, query: %s", q.toString()));
+
+    // nocommit add test with drill down on OR of fields:
+
+    // TODO: re-enable this?  else we never get
+    // in-order collectors
+    // Weight w = s.createNormalizedWeight(q2);
+
+    DrillDownQuery ddq = addDrillDowns(timestampSec, indexState, searchRequest, q);
+
+    if (diagnostics != null) {
+      diagnostics.setRewrittenQuery(q.toString());
+      diagnostics.setDrillDownQuery(ddq.toString());
+    }
+
+    int topHits = searchRequest.getTopHits();
+    int totalHitsThreshold = TOTAL_HITS_THRESHOLD;
+    if (searchRequest.getTotalHitsThreshold() != 0) {
+      totalHitsThreshold = searchRequest.getTotalHitsThreshold();
+    }
+
+    CollectorManager<? extends Collector, ? extends TopDocs> collectorManager;
+
+    // TODO: support "grouping" and "useBlockJoinCollector"
+    if (sort == null) {
+      // TODO: support "searchAfter" when supplied by user
+      FieldDoc searchAfter = null;
+      collectorManager =
+          TopScoreDocCollector.createSharedManager(topHits, searchAfter, totalHitsThreshold);
+    } else if (q instanceof MatchAllDocsQuery) {
+      collectorManager = LargeNumHitsTopDocsCollectorManagerCreator.createSharedManager(topHits);
+    } else {
+      // Sort by fields:
+      // TODO: support "searchAfter" when supplied by user
+      FieldDoc searchAfter;
+      searchAfter = null;
+      collectorManager =
+          TopFieldCollector.createSharedManager(sort, topHits, searchAfter, totalHitsThreshold);
+    }
+
+    // nocommit can we do better?  sometimes downgrade
+    // to DDQ not DS?
+
+    // TODO: If "facets" create DrillSideways(ds) and do ds.search(ddq, c2)
+    if (!searchRequest.getFacetsList().isEmpty()) {
+      DrillSideways drillS =
+          new DrillSidewaysImpl(
+              s.searcher,
+              indexState.facetsConfig,
+              s.taxonomyReader,
+              searchRequest.getFacetsList(),
+              s,
+              shardState,
+              queryFields,
+              shardResult.facetResults,
+              threadPoolExecutor);
+      DrillSideways.ConcurrentDrillSidewaysResult<? extends TopDocs>
+          concurrentDrillSidewaysResult = drillS.search(ddq, collectorManager);
+      shardResult.topDocs = concurrentDrillSidewaysResult.collectorResult;
+    } else {
+      try {
+        shardResult.topDocs = s.searcher.search(ddq, collectorManager);
+      } catch (TimeLimitingCollector.TimeExceededException tee) {
+        shardResult.hitTimeout = true;
+      }
+    }
+  }
+
+  /**
+   * Wait for all shard searches to finish, so that no search still uses a searcher when they are
+   * released, then throw the first failure.
+   */
+  private static void waitForShards(List<Future<?>> futures)
+      throws SearchHandlerException, InterruptedException {
+    Throwable failure = null;
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      }
+    }
+    if (failure instanceof SearchHandlerException) {
+      throw (SearchHandlerException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure != null) {
+      throw new SearchHandlerException(failure);
+    }
+  }
+
+  /** Wait for the shard searches that were started, ignoring their results. */
+  private static void waitForShardsQuietly(List<Future<?>> futures) throws InterruptedException {
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (CancellationException | ExecutionException e) {
+        // the search fails anyway
+      }
+    }
+  }
+
+  /** Merge the top hits of all shards, setting the shard index of each hit. */
+  private static TopDocs mergeTopDocs(List<ShardResult> shardResults, Sort sort, int topHits) {
+    TopDocs[] shardHits = new TopDocs[shardResults.size()];
+    boolean fieldDocs = sort != null;
+    for (int i = 0; i < shardHits.length; ++i) {
+      TopDocs topDocs = shardResults.get(i).topDocs;
+      if (topDocs == null) {
+        // search timed out on this shard
+        topDocs =
+            sort != null
+                ? new TopFieldDocs(EMPTY_TOTAL_HITS, new ScoreDoc[0], sort.getSort())
+                : new TopDocs(EMPTY_TOTAL_HITS, new ScoreDoc[0]);
+      }
+      // match all queries collect in doc order even when sorted
+      fieldDocs &= topDocs instanceof TopFieldDocs;
+      shardHits[i] = topDocs;
+    }
+    if (fieldDocs) {
+      TopFieldDocs[] shardFieldHits = new TopFieldDocs[shardHits.length];
+      for (int i = 0; i < shardHits.length; ++i) {
+        shardFieldHits[i] = (TopFieldDocs) shardHits[i];
+      }
+      return TopDocs.merge(sort, topHits, shardFieldHits);
+    }
+    return TopDocs.merge(topHits, shardHits);
+  }
+
+  /**
+   * Merge the facet results of all shards by dimension and path, summing the value of each label.
+   * Each shard only returns its own top labels, so a label that is not in the top labels of every
+   * shard can be given a lower value than with a single shard, and child counts are an upper bound.
+   */
+  public static List<FacetResult> mergeFacetResults(List<List<FacetResult>> shardFacetResults) {
+    Map<List<String>, FacetResult.Builder> merged = new LinkedHashMap<>();
+    Map<List<String>, Map<String, Double>> labelValues = new HashMap<>();
+    Map<List<String>, Integer> topN = new HashMap<>();
+    for (List<FacetResult> facetResults : shardFacetResults) {
+      for (FacetResult facetResult : facetResults) {
+        List<String> key = new ArrayList<>();
+        key.add(facetResult.getDim());
+        key.addAll(facetResult.getPathList());
+        FacetResult.Builder builder =
+            merged.computeIfAbsent(
+                key,
+                k ->
+                    FacetResult.newBuilder()
+                        .setDim(facetResult.getDim())
+                        .addAllPath(facetResult.getPathList()));
+        if (builder.getValue() < 0 || facetResult.getValue() < 0) {
+          // value is not known for some facet types
+          builder.setValue(-1);
+        } else {
+          builder.setValue(builder.getValue() + facetResult.getValue());
+        }
+        builder.setChildCount(builder.getChildCount() + facetResult.getChildCount());
+        topN.merge(key, facetResult.getLabelValuesCount(), Math::max);
+        Map<String, Double> values = labelValues.computeIfAbsent(key, k -> new HashMap<>());
+        for (LabelAndValue labelAndValue : facetResult.getLabelValuesList()) {
+          values.merge(labelAndValue.getLabel(), labelAndValue.getValue(), Double::sum);
+        }
+      }
+    }
+
+    List<FacetResult> facetResults = new ArrayList<>(merged.size());
+    for (Map.Entry<List<String>, FacetResult.Builder> entry : merged.entrySet()) {
+      List<Map.Entry<String, Double>> labels =
+          new ArrayList<>(labelValues.get(entry.getKey()).entrySet());
+      labels.sort(
+          Map.Entry.<String, Double>comparingByValue()
+              .reversed()
+              .thenComparing(Map.Entry.comparingByKey()));
+      int count = Math.min(topN.get(entry.getKey()), labels.size());
+      FacetResult.Builder builder = entry.getValue();
+      for (int i = 0; i < count; ++i) {
+        builder.addLabelValues(
+            LabelAndValue.newBuilder()
+                .setLabel(labels.get(i).getKey())
+                .setValue(labels.get(i).getValue()));
+      }
+      facetResults.add(builder.build());
+    }
+    return facetResults;
+  }
+
   /** Parses any virtualFields, which define dynamic (expression) fields for this one request. */
   private static Map<String, VirtualFieldDef> getVirtualFields(
       ShardState shardState, SearchRequest searchRequest) {
@@ -699,15 +935,21 @@ public class SearchHandler implements Handler<SearchRequest, SearchResponse> {
       // to ensure a specific indexing change is visible:
       long t0 = System.nanoTime();
       long gen = searchRequest.getIndexGen();
-      if (gen > state.writer.getMaxCompletedSequenceNumber()) {
-        throw new RuntimeException(
-            "indexGen: requested indexGen ("
-                + gen
-                + ") is beyond the current maximum generation ("
-                + state.writer.getMaxCompletedSequenceNumber()
-                + ")");
-      }
-      state.waitForGeneration(gen);
+      if (state.indexState.getNumShards() > 1) {
+        // generations are per shard writer and the one returned by indexing is the max over
+        // shards, so make everything indexed so far visible instead
+        state.maybeRefreshBlocking();
+      } else {
+        if (gen > state.writer.getMaxCompletedSequenceNumber()) {
+          throw new RuntimeException(
+              "indexGen: requested indexGen ("
+                  + gen
+                  + ") is beyond the current maximum generation ("
+                  + state.writer.getMaxCompletedSequenceNumber()
+                  + ")");
+        }
+        state.waitForGeneration(gen);
+      }
       if (diagnostics != null) {
         diagnostics.setNrtWaitTimeMs((System.nanoTime() - t0) / 1000000);
       }
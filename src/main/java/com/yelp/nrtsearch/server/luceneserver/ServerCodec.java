@@ -20,6 +20,7 @@ import com.yelp.nrtsearch.server.luceneserver.field.IndexableFieldDef;
 import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.codecs.DocValuesFormat;
 import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.bloom.BloomFilteringPostingsFormat;
 import org.apache.lucene.codecs.lucene84.Lucene84Codec;
 
 /** Implements per-index {@link Codec}. */
@@ -27,6 +28,15 @@ public class ServerCodec extends Lucene84Codec {
 
   public static final String DEFAULT_POSTINGS_FORMAT = "Lucene84";
   public static final String DEFAULT_DOC_VALUES_FORMAT = "Lucene80";
+  /**
+   * Postings format name for the default postings wrapped with a bloom filter. Used by default for
+   * _ID fields, so that id lookups during updates can skip segments that do not contain the id.
+   */
+  public static final String BLOOM_POSTINGS_FORMAT = BloomFilteringPostingsFormat.BLOOM_CODEC_NAME;
+
+  // the SPI instance for this name can only read, writing needs the delegate format
+  private static final PostingsFormat BLOOM_POSTINGS =
+      new BloomFilteringPostingsFormat(PostingsFormat.forName(DEFAULT_POSTINGS_FORMAT));
 
   private final IndexState state;
   // nocommit expose compression control
@@ -55,7 +65,20 @@ public class ServerCodec extends Lucene84Codec {
         throw iae;
       }
     }
-    return PostingsFormat.forName(pf);
+    return getPostingsFormat(pf);
+  }
+
+  /**
+   * Get the postings format to write with the given name.
+   *
+   * @param name postings format name
+   * @return postings format
+   */
+  static PostingsFormat getPostingsFormat(String name) {
+    if (BLOOM_POSTINGS_FORMAT.equals(name)) {
+      return BLOOM_POSTINGS;
+    }
+    return PostingsFormat.forName(name);
   }
 
   @Override
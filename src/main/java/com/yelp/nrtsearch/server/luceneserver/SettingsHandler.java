@@ -24,6 +24,9 @@ import com.yelp.nrtsearch.server.grpc.SortFields;
 import com.yelp.nrtsearch.server.grpc.SortType;
 import com.yelp.nrtsearch.server.luceneserver.field.FieldDef;
 import com.yelp.nrtsearch.server.luceneserver.field.properties.Sortable;
+import com.yelp.nrtsearch.server.luceneserver.merge.MergePolicyCreator;
+import com.yelp.nrtsearch.server.luceneserver.merge.MergePolicySettings;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -66,6 +69,42 @@ public class SettingsHandler implements Handler<SettingsRequest, SettingsRespons
           "concurrentMergeScheduler.maxThreadCount must also specify concurrentMergeScheduler.maxThreadCount");
     }
 
+    if (!settingsRequest.getMergePolicy().isEmpty()
+        || settingsRequest.getMaxMergedSegmentMB() != 0
+        || settingsRequest.getSegmentsPerTier() != 0
+        || settingsRequest.getDeletesPctAllowed() != 0
+        || settingsRequest.getMaxPendingMergeMB() != 0) {
+      // make sure the writer will be able to create the merge policy
+      String mergePolicy =
+          settingsRequest.getMergePolicy().isEmpty()
+              ? indexState.getMergePolicyName()
+              : settingsRequest.getMergePolicy();
+      try {
+        MergePolicyCreator.getInstance()
+            .createMergePolicy(
+                mergePolicy,
+                new MergePolicySettings(
+                    settingsRequest.getMaxMergedSegmentMB(),
+                    settingsRequest.getSegmentsPerTier(),
+                    settingsRequest.getDeletesPctAllowed(),
+                    settingsRequest.getMaxPendingMergeMB()));
+      } catch (IllegalArgumentException e) {
+        throw new SettingsHandlerException("invalid merge policy settings: " + e.getMessage(), e);
+      }
+    }
+
+    if (settingsRequest.getNumShards() < 0) {
+      throw new SettingsHandlerException("numShards must be greater than 0");
+    }
+    if (settingsRequest.getNumShards() != 0
+        && settingsRequest.getNumShards() != indexState.getNumShardsSetting()
+        && indexState.rootDir != null
+        && Files.exists(indexState.rootDir.resolve("shard0"))) {
+      // documents are already routed to the existing shards
+      throw new SettingsHandlerException(
+          "numShards cannot be changed once the index has been started");
+    }
+
     // TODO pass in this parameter as a part of normsFormat field instead??
     float acceptableOverheadRatio = PackedInts.FASTEST;
     indexState.setNormsFormat(settingsRequest.getNormsFormat(), acceptableOverheadRatio);
@@ -16,8 +16,12 @@
 package com.yelp.nrtsearch.server.luceneserver;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.yelp.nrtsearch.server.grpc.AddDocumentRequest;
+import com.yelp.nrtsearch.server.grpc.DeleteByQueryRequest;
 import com.yelp.nrtsearch.server.grpc.ReplicationServerClient;
+import com.yelp.nrtsearch.server.grpc.UpdateDocValuesRequest;
 import com.yelp.nrtsearch.server.luceneserver.field.FieldDef;
+import com.yelp.nrtsearch.server.luceneserver.field.IdFieldDef;
 import com.yelp.nrtsearch.server.utils.HostPort;
 import io.grpc.StatusRuntimeException;
 import java.io.Closeable;
@@ -65,7 +69,6 @@ import org.apache.lucene.index.PersistentSnapshotDeletionPolicy;
 import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.ControlledRealTimeReopenThread;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.SearcherFactory;
@@ -74,6 +77,7 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NRTCachingDirectory;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -114,6 +118,9 @@ public class ShardState implements Closeable {
   /** Taxonomy writer */
   public DirectoryTaxonomyWriter taxoWriter;
 
+  /** Write ahead log of added documents, only non-null if enabled for a writable index */
+  public Translog translog;
+
   /**
    * Internal IndexWriter used by DirectoryTaxonomyWriter; we pull this out so we can
    * .deleteUnusedFiles after a snapshot is removed.
@@ -142,10 +149,10 @@ public class ShardState implements Closeable {
   private ReferenceManager<IndexSearcher> searcherManager;
 
   /** Thread to periodically reopen the index. */
-  public ControlledRealTimeReopenThread<SearcherTaxonomyManager.SearcherAndTaxonomy> reopenThread;
+  public AdaptiveRefreshThread<SearcherTaxonomyManager.SearcherAndTaxonomy> reopenThread;
 
   /** Used with NRT replication */
-  public ControlledRealTimeReopenThread<IndexSearcher> reopenThreadPrimary;
+  public AdaptiveRefreshThread<IndexSearcher> reopenThreadPrimary;
 
   /** Periodically wakes up and prunes old searchers from slm. */
   Thread searcherPruningThread;
@@ -183,8 +190,13 @@ public class ShardState implements Closeable {
       assert nrtReplicaNode == null;
       // nocommit how to get taxonomy back?
       reopenThreadPrimary =
-          new ControlledRealTimeReopenThread<IndexSearcher>(
-              writer, searcherManager, indexState.maxRefreshSec, indexState.minRefreshSec);
+          new AdaptiveRefreshThread<IndexSearcher>(
+              writer,
+              searcherManager,
+              indexState.name,
+              indexState.maxRefreshSec,
+              indexState.minRefreshSec,
+              this::getSearchLoad);
       reopenThreadPrimary.setName("LuceneNRTPrimaryReopen-" + name);
       reopenThreadPrimary.start();
     } else if (manager != null) {
@@ -192,13 +204,29 @@ public class ShardState implements Closeable {
         reopenThread.close();
       }
       reopenThread =
-          new ControlledRealTimeReopenThread<SearcherTaxonomyManager.SearcherAndTaxonomy>(
-              writer, manager, indexState.maxRefreshSec, indexState.minRefreshSec);
+          new AdaptiveRefreshThread<SearcherTaxonomyManager.SearcherAndTaxonomy>(
+              writer,
+              manager,
+              indexState.name,
+              indexState.maxRefreshSec,
+              indexState.minRefreshSec,
+              this::getSearchLoad);
       reopenThread.setName("LuceneNRTReopen-" + name);
       reopenThread.start();
     }
   }
 
+  /** Fraction of the search thread pool that is busy or queued, capped at 1. */
+  private double getSearchLoad() {
+    if (searchExecutor == null) {
+      return 0;
+    }
+    return Math.min(
+        1.0,
+        (searchExecutor.getActiveCount() + searchExecutor.getQueue().size())
+            / (double) searchExecutor.getMaximumPoolSize());
+  }
+
   /** True if this index is started. */
   public boolean isStarted() {
     return writer != null || nrtReplicaNode != null || nrtPrimaryNode != null;
@@ -318,10 +346,96 @@ public class ShardState implements Closeable {
       closeables.add(taxoDir);
       writer = null;
     }
+    if (translog != null) {
+      closeables.add(translog);
+      translog = null;
+    }
 
     IOUtils.close(closeables);
   }
 
+  /**
+   * Open the translog if it is enabled for the index, and replay operations that were acknowledged
+   * but not committed before the last shutdown. Must be called after the writer is created.
+   */
+  private void openTranslog() throws IOException {
+    if (!indexState.isTranslogEnabled() || rootDir == null) {
+      return;
+    }
+    translog = Translog.open(rootDir.resolve("translog"));
+    List<Translog.Operation> operations = translog.readUncommitted();
+    for (Translog.Operation operation : operations) {
+      try {
+        replayOperation(operation);
+      } catch (Handler.HandlerException e) {
+        throw new IOException("Unable to replay translog operation: " + operation.type, e);
+      }
+    }
+    logger.info(
+        String.format(
+            "index: %s shard: %s replayed %s operations from translog",
+            name, shardOrd, operations.size()));
+    // sequence numbers are only valid within one IndexWriter, so always commit to record a
+    // checkpoint for this writer, even with nothing to replay
+    commit();
+  }
+
+  private void replayOperation(Translog.Operation operation)
+      throws IOException, Handler.HandlerException {
+    IdFieldDef idFieldDef = indexState.getIdFieldDef();
+    switch (operation.type) {
+      case ADD_DOCUMENT:
+        Document doc =
+            AddDocumentHandler.LuceneDocumentBuilder.getDocument(
+                (AddDocumentRequest) operation.request, indexState);
+        if (indexState.hasFacets() && taxoWriter != null) {
+          doc = indexState.facetsConfig.build(taxoWriter, doc);
+        }
+        if (idFieldDef != null) {
+          writer.updateDocument(idFieldDef.getTerm(doc), doc);
+        } else {
+          writer.addDocument(doc);
+        }
+        break;
+      case DELETE_DOCUMENTS:
+        writer.deleteDocuments(
+            DeleteDocumentsHandler.getTerms((AddDocumentRequest) operation.request));
+        break;
+      case DELETE_BY_QUERY:
+        writer.deleteDocuments(
+            DeleteByQueryHandler.getQueries((DeleteByQueryRequest) operation.request, indexState));
+        break;
+      case DELETE_ALL:
+        writer.deleteAll();
+        break;
+      case UPDATE_DOC_VALUES:
+        if (idFieldDef == null) {
+          throw new IllegalStateException(
+              "index: " + indexState.name + " has no _ID field to replay doc values updates");
+        }
+        for (UpdateDocValuesRequest.DocValuesUpdate update :
+            ((UpdateDocValuesRequest) operation.request).getUpdatesList()) {
+          writer.updateDocValues(
+              new Term(idFieldDef.getName(), update.getId()),
+              UpdateDocValuesHandler.getUpdateFields(indexState, update));
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown translog operation type: " + operation.type);
+    }
+  }
+
+  /**
+   * Write operations that were applied to the writer to the translog, if it is enabled, and wait
+   * until they are durable. Must be called before the operations are acknowledged.
+   */
+  public void logOperations(List<Translog.Operation> operations) throws IOException {
+    Translog translog = this.translog;
+    if (translog != null && !operations.isEmpty()) {
+      translog.sync(translog.add(operations));
+    }
+  }
+
   /** Commit all state. */
   public synchronized long commit() throws IOException {
 
@@ -330,10 +444,15 @@ public class ShardState implements Closeable {
     // nocommit this does nothing on replica?  make a failing test!
     if (writer != null) {
       // nocommit: two phase commit?
+      // everything in the older translog generations will be part of this commit
+      long translogGen = translog != null ? translog.rollGeneration() : -1;
       if (taxoWriter != null) {
         taxoWriter.commit();
       }
       gen = writer.commit();
+      if (translog != null) {
+        translog.trim(translogGen, gen);
+      }
     } else {
       gen = -1;
     }
@@ -521,6 +640,8 @@ public class ShardState implements Closeable {
         snapshotGenToVersion.put(c.getGeneration(), sis.getVersion());
       }
 
+      openTranslog();
+
       // nocommit must also pull snapshots for taxoReader?
 
       manager =
@@ -636,6 +757,8 @@ public class ShardState implements Closeable {
         snapshotGenToVersion.put(c.getGeneration(), sis.getVersion());
       }
 
+      openTranslog();
+
       HostPort hostPort =
           new HostPort(
               indexState.globalState.getHostName(), indexState.globalState.getReplicationPort());
@@ -656,7 +779,9 @@ public class ShardState implements Closeable {
                   return searcher;
                 }
               },
-              verbose ? System.out : new PrintStream(OutputStream.nullOutputStream()));
+              verbose ? System.out : new PrintStream(OutputStream.nullOutputStream()),
+              indexState.globalState.getReplicationConfiguration().getNewNRTPointTimeoutMs(),
+              indexState.globalState.getReplicationConfiguration().getFanout());
 
       // nocommit this isn't used?
       searcherManager =
@@ -793,8 +918,10 @@ public class ShardState implements Closeable {
     }
     // we have backups and are not creating a new index
     // use that to load indexes and other state (registeredFields, settings)
+    boolean restoredFromBackup = false;
     if (!doCreate && dataPath != null) {
       if (indexState.rootDir != null) {
+        restoredFromBackup = true;
         synchronized (this) {
           // copy downloaded data into rootDir
           indexState.restoreDir(dataPath, indexState.rootDir);
@@ -856,7 +983,11 @@ public class ShardState implements Closeable {
                 }
               },
               verbose ? System.out : new PrintStream(OutputStream.nullOutputStream()),
-              primaryGen);
+              primaryGen,
+              indexState.globalState.getReplicationCopyExecutor(),
+              indexState.globalState.getReplicationConfiguration(),
+              indexState.globalState.getReplicationCopyRateLimiter(),
+              indexState.globalState.getReplicaReplicationPortPingInterval());
 
       startSearcherPruningThread(indexState.globalState.shutdownNow);
 
@@ -879,6 +1010,10 @@ public class ShardState implements Closeable {
           });
       keepAlive = new KeepAlive(this);
       new Thread(keepAlive, "KeepAlive").start();
+      if (restoredFromBackup) {
+        // the backup is older than the primary, catch up now rather than on the next NRT point
+        syncReplicaFromPrimary();
+      }
       success = true;
     } finally {
       if (!success) {
@@ -889,6 +1024,21 @@ public class ShardState implements Closeable {
     }
   }
 
+  /**
+   * Start copying the current NRT point of the primary to this replica in the background, logging
+   * instead of failing if the primary cannot be reached.
+   */
+  private void syncReplicaFromPrimary() {
+    try {
+      nrtReplicaNode.syncFromPrimary();
+    } catch (Exception e) {
+      logger.warn(
+          "index {} could not sync from primary after restore, waiting for next NRT point",
+          indexState.name,
+          e);
+    }
+  }
+
   public void addRefreshListener(ReferenceManager.RefreshListener listener) {
     if (nrtPrimaryNode != null) {
       nrtPrimaryNode.getSearcherManager().addListener(listener);
@@ -910,7 +1060,17 @@ public class ShardState implements Closeable {
   }
 
   public void maybeRefreshBlocking() throws IOException {
-    if (nrtPrimaryNode != null) {
+    AdaptiveRefreshThread<?> refreshThread =
+        nrtPrimaryNode != null ? reopenThreadPrimary : reopenThread;
+    if (refreshThread != null && refreshThread.isAlive()) {
+      // let the refresh thread serve concurrent requests with one refresh
+      try {
+        refreshThread.refreshNow();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ThreadInterruptedException(e);
+      }
+    } else if (nrtPrimaryNode != null) {
       /* invokes: SearcherManager.refreshIfNeeded which creates a new Searcher
        * over a new IndexReader if new docs have been written */
       nrtPrimaryNode.getSearcherManager().maybeRefreshBlocking();
@@ -1024,17 +1184,18 @@ public class ShardState implements Closeable {
         NRTReplicaNode nrtReplicaNode = shardState.nrtReplicaNode;
         try {
           TimeUnit.MILLISECONDS.sleep(pingIntervalMs);
-          if (shardState.isReplica()
-              && shardState.isStarted()
-              && !shardState.nrtReplicaNode.isKnownToPrimary()
-              && !exit) {
-            nrtReplicaNode
-                .getPrimaryAddress()
-                .addReplicas(
-                    shardState.indexState.name,
-                    REPLICA_ID,
-                    nrtReplicaNode.getHostPort().getHostName(),
-                    nrtReplicaNode.getHostPort().getPort());
+          if (shardState.isReplica() && shardState.isStarted() && !exit) {
+            if (!nrtReplicaNode.isKnownToPrimary()) {
+              nrtReplicaNode
+                  .getPrimaryAddress()
+                  .addReplicas(
+                      shardState.indexState.name,
+                      REPLICA_ID,
+                      nrtReplicaNode.getHostPort().getHostName(),
+                      nrtReplicaNode.getHostPort().getPort());
+            }
+            // the primary knows this replica, so it sends every new NRT point from now on
+            nrtReplicaNode.onPrimaryKeepAlive();
           }
         } catch (InterruptedException e) {
           Thread.currentThread().interrupt();
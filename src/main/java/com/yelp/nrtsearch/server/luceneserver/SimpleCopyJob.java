@@ -15,14 +15,25 @@
  */
 package com.yelp.nrtsearch.server.luceneserver;
 
+import com.yelp.nrtsearch.server.config.ReplicationConfiguration;
 import com.yelp.nrtsearch.server.grpc.RawFileChunk;
 import com.yelp.nrtsearch.server.grpc.ReplicationServerClient;
+import com.yelp.nrtsearch.server.monitoring.ReplicationMetrics;
+import io.grpc.Context;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import org.apache.lucene.replicator.nrt.CopyJob;
 import org.apache.lucene.replicator.nrt.CopyOneFile;
 import org.apache.lucene.replicator.nrt.CopyState;
@@ -30,14 +41,62 @@ import org.apache.lucene.replicator.nrt.FileMetaData;
 import org.apache.lucene.replicator.nrt.Node;
 import org.apache.lucene.replicator.nrt.NodeCommunicationException;
 import org.apache.lucene.replicator.nrt.ReplicaNode;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.ThreadInterruptedException;
 
+/**
+ * Copies files from the primary to a replica. When the copy concurrency is more than 1, up to that
+ * many files are copied at the same time on the copy executor, and {@link #visit()} collects the
+ * finished copies. Low priority jobs always copy on the copy executor, so that their rate limit
+ * waits do not block the {@link Jobs} thread.
+ *
+ * <p>A job for a new NRT point may be given a peer replica to copy the files from instead. The job
+ * waits until the peer searches the version of the copy state, or copies from the primary if that
+ * takes longer than the peer wait time. The peer's version is checked on the copy executor, and
+ * {@link Jobs} does not visit the job while a check is running, so waiting for a peer does not hold
+ * up the other jobs. A file that cannot be copied from the peer, for example because the peer has
+ * already merged it away, is copied from the primary.
+ */
 public class SimpleCopyJob extends CopyJob {
+  // how long a visit waits for a concurrent file copy to finish before yielding to other jobs
+  private static final long COPY_POLL_MS = 10;
+  // time between the end of a check of the peer's version and the start of the next one
+  private static final long PEER_POLL_MS = 20;
+  private static final long PEER_VERSION_TIMEOUT_MS = 1000;
+
   final byte[] copyBuffer = new byte[65536];
   private final CopyState copyState;
   private final ReplicationServerClient primaryAddres;
   private final String indexName;
+  private final ExecutorService copyExecutor;
+  private final int copyConcurrency;
+  private final boolean compressFiles;
+  private final Jobs jobs;
+  private final ReplicationServerClient peer;
+  private final long peerWaitNS;
+  // where files are copied from, null until the peer reaches the version or the wait times out
+  private ReplicationServerClient source;
+  private boolean currentFromPeer;
+  // last check of the peer's version, null before the first check
+  private volatile CompletableFuture<Long> peerCheck;
   private Iterator<Map.Entry<String, FileMetaData>> iter;
 
+  private final Set<FileCopy> inFlightCopies = new HashSet<>();
+  // also guards aborting, so a copy cannot finish after the job discarded the finished copies
+  private final BlockingQueue<FileCopy> finishedCopies = new LinkedBlockingQueue<>();
+  private volatile boolean aborted;
+
+  private final CompletableFuture<SimpleCopyJob> completionFuture = new CompletableFuture<>();
+  private volatile ProgressListener progressListener;
+  // if this job catches up a replica restored from a backup, which reports the reused bytes
+  private boolean catchUpAfterRestore;
+
+  /** Receives the progress of a copy job, after each file is copied. */
+  @FunctionalInterface
+  public interface ProgressListener {
+    void onProgress(long bytesCopied, long totalBytes);
+  }
+
   public SimpleCopyJob(
       String reason,
       ReplicationServerClient primaryAddress,
@@ -46,19 +105,31 @@ public class SimpleCopyJob extends CopyJob {
       Map<String, FileMetaData> files,
       boolean highPriority,
       OnceDone onceDone,
-      String indexName)
+      String indexName,
+      ExecutorService copyExecutor,
+      ReplicationConfiguration replicationConfiguration,
+      Jobs jobs,
+      ReplicationServerClient peer)
       throws IOException {
     super(reason, files, dest, highPriority, onceDone);
     this.copyState = copyState;
     this.primaryAddres = primaryAddress;
     this.indexName = indexName;
+    this.copyExecutor = copyExecutor;
+    this.copyConcurrency = replicationConfiguration.getCopyConcurrency();
+    this.compressFiles = replicationConfiguration.getCompressFiles();
+    this.jobs = jobs;
+    this.peer = peer;
+    this.peerWaitNS = TimeUnit.MILLISECONDS.toNanos(replicationConfiguration.getPeerWaitMs());
+    this.source = peer == null ? primaryAddress : null;
   }
 
   @Override
   protected CopyOneFile newCopyOneFile(CopyOneFile prev) {
     Iterator<RawFileChunk> rawFileChunkIterator;
     try {
-      rawFileChunkIterator = primaryAddres.recvRawFile(prev.name, prev.getBytesCopied(), indexName);
+      rawFileChunkIterator =
+          primaryAddres.recvRawFile(prev.name, prev.getBytesCopied(), indexName, compressFiles);
     } catch (Throwable t) {
       try {
         cancel("exc during start", t);
@@ -83,6 +154,15 @@ public class SimpleCopyJob extends CopyJob {
         FileMetaData metaData = ent.getValue();
         totBytes += metaData.length;
       }
+      // files of the copy state that the replica already has with the same checksum
+      long reusedBytes = -totBytes;
+      for (FileMetaData metaData : files.values()) {
+        reusedBytes += metaData.length;
+      }
+      reusedBytes = Math.max(0, reusedBytes);
+      if (catchUpAfterRestore) {
+        ReplicationMetrics.copyReusedBytesCount.labels(indexName).inc(reusedBytes);
+      }
 
       // Send all file names / offsets up front to avoid ping-ping latency:
       try {
@@ -90,7 +170,9 @@ public class SimpleCopyJob extends CopyJob {
             "SimpleCopyJob.init: done start files count="
                 + toCopy.size()
                 + " totBytes="
-                + totBytes);
+                + totBytes
+                + " reusedBytes="
+                + reusedBytes);
       } catch (Throwable t) {
         cancel("exc during start", t);
         throw new NodeCommunicationException("exc during start", t);
@@ -102,7 +184,9 @@ public class SimpleCopyJob extends CopyJob {
 
   @Override
   public void runBlocking() throws Exception {
-    while (visit() == false) ;
+    while (visit() == false) {
+      awaitPeerCheck();
+    }
     if (getFailed()) {
       throw new RuntimeException("copy failed: " + cancelReason, exc);
     }
@@ -192,6 +276,20 @@ public class SimpleCopyJob extends CopyJob {
     return totBytesCopied;
   }
 
+  public boolean isHighPriority() {
+    return highPriority;
+  }
+
+  /** Bytes of this job that have not been copied by finished file copies. */
+  public synchronized long getBytesRemaining() {
+    return totBytes - totBytesCopied;
+  }
+
+  /** Time since this job was created. */
+  public long getAgeNS() {
+    return System.nanoTime() - startNS;
+  }
+
   /** Higher priority and then "first come first serve" order. */
   @Override
   public int compareTo(CopyJob _other) {
@@ -215,6 +313,12 @@ public class SimpleCopyJob extends CopyJob {
       // We were externally cancelled:
       return true;
     }
+    if (source == null && chooseSource() == false) {
+      return false;
+    }
+    if (current == null && (copyConcurrency > 1 || highPriority == false)) {
+      return visitConcurrent();
+    }
     if (current == null) {
       if (iter.hasNext() == false) {
         return true;
@@ -224,25 +328,312 @@ public class SimpleCopyJob extends CopyJob {
       String fileName = next.getKey();
       Iterator<RawFileChunk> rawFileChunkIterator;
       try {
-        rawFileChunkIterator = primaryAddres.recvRawFile(fileName, 0, indexName);
+        rawFileChunkIterator = source.recvRawFile(fileName, 0, indexName, compressFiles);
       } catch (Throwable t) {
         cancel("exc during start", t);
         throw new NodeCommunicationException("exc during start", t);
       }
       current = new CopyOneFile(rawFileChunkIterator, dest, fileName, metaData, copyBuffer);
+      currentFromPeer = source == peer;
     }
-    if (current.visit()) {
+    boolean fileDone;
+    try {
+      fileDone = current.visit();
+    } catch (Exception e) {
+      if (currentFromPeer == false) {
+        throw e;
+      }
+      discardPeerCopy(current, e);
+      current =
+          new CopyOneFile(
+              primaryAddres.recvRawFile(current.name, 0, indexName, compressFiles),
+              dest,
+              current.name,
+              current.metaData,
+              copyBuffer);
+      currentFromPeer = false;
+      return false;
+    }
+    // not rate limited, this runs on the jobs thread and only for high priority jobs, or for the
+    // file resumed from a cancelled new NRT point
+    if (fileDone) {
       // This file is done copying
       copiedFiles.put(current.name, current.tmpName);
       totBytesCopied += current.getBytesCopied();
       assert totBytesCopied <= totBytes
           : "totBytesCopied=" + totBytesCopied + " totBytes=" + totBytes;
       current = null;
+      notifyProgress();
       return false;
     }
     return false;
   }
 
+  /**
+   * Decide where to copy the files from: the peer once it searches the version of the copy state,
+   * else the primary when the peer wait time is over or the peer cannot be reached. Does not block,
+   * the peer's version is checked on the copy executor.
+   *
+   * @return if the source is chosen, else the job should be visited again once {@link
+   *     #isWaitingForPeer()} is false
+   */
+  private boolean chooseSource() {
+    CompletableFuture<Long> check = peerCheck;
+    if (check == null) {
+      startPeerCheck(copyExecutor);
+      return false;
+    }
+    if (check.isDone() == false) {
+      return false;
+    }
+    try {
+      long peerVersion = check.join();
+      if (peerVersion >= copyState.version) {
+        dest.message("top: copy version=" + copyState.version + " from peer " + peer.getHost());
+        ReplicationMetrics.copyJobSourceCount.labels(indexName, "peer").inc();
+        source = peer;
+        return true;
+      }
+      if (System.nanoTime() - startNS < peerWaitNS) {
+        startPeerCheck(
+            CompletableFuture.delayedExecutor(PEER_POLL_MS, TimeUnit.MILLISECONDS, copyExecutor));
+        return false;
+      }
+      dest.message("top: peer " + peer.getHost() + " is still at version=" + peerVersion);
+    } catch (CompletionException e) {
+      dest.message("top: cannot get version of peer " + peer.getHost() + ": " + e.getCause());
+    }
+    dest.message("top: copy version=" + copyState.version + " from primary");
+    ReplicationMetrics.copyJobSourceCount.labels(indexName, "primary").inc();
+    source = primaryAddres;
+    return true;
+  }
+
+  /**
+   * Check the peer's version on the given executor, and requeue this job once that is done. The
+   * requeue runs on the executor, never within a visit that holds the lock of this job.
+   */
+  private void startPeerCheck(Executor executor) {
+    CompletableFuture<Long> check = new CompletableFuture<>();
+    check.whenComplete((version, t) -> jobs.wakeUp(this));
+    peerCheck = check;
+    executor.execute(
+        () -> {
+          try {
+            check.complete(
+                peer.getCurrentSearcherVersion(indexName, PEER_VERSION_TIMEOUT_MS).getVersion());
+          } catch (Throwable t) {
+            check.completeExceptionally(t);
+          }
+        });
+  }
+
+  /** If a check of the peer's version is running, until then the job has nothing to do. */
+  boolean isWaitingForPeer() {
+    CompletableFuture<Long> check = peerCheck;
+    return check != null && check.isDone() == false;
+  }
+
+  private void awaitPeerCheck() throws InterruptedException {
+    CompletableFuture<Long> check = peerCheck;
+    if (check != null) {
+      try {
+        check.get();
+      } catch (ExecutionException e) {
+        // handled by the next visit
+      }
+    }
+  }
+
+  /** Remove a partial copy of a file from the peer, which will be copied from the primary. */
+  private void discardPeerCopy(CopyOneFile copyOneFile, Throwable t) {
+    dest.message(
+        "file " + copyOneFile.name + ": copy from peer failed, copy from primary instead: " + t);
+    ReplicationMetrics.peerCopyFallbackCount.labels(indexName).inc();
+    IOUtils.closeWhileHandlingException(copyOneFile);
+    IOUtils.deleteFilesIgnoringExceptions(dest.getDirectory(), copyOneFile.tmpName);
+  }
+
+  /**
+   * Start file copies up to the copy concurrency, then wait a short time for one of them to finish.
+   * A file resumed from a previous job is copied in {@link #current} first.
+   */
+  private boolean visitConcurrent() throws IOException {
+    while (inFlightCopies.size() < copyConcurrency && iter.hasNext()) {
+      Map.Entry<String, FileMetaData> next = iter.next();
+      FileCopy fileCopy = new FileCopy(next.getKey(), next.getValue(), source);
+      inFlightCopies.add(fileCopy);
+      try {
+        copyExecutor.execute(fileCopy);
+      } catch (Throwable t) {
+        inFlightCopies.remove(fileCopy);
+        throw new NodeCommunicationException("exc during start", t);
+      }
+    }
+    if (inFlightCopies.isEmpty()) {
+      return true;
+    }
+
+    FileCopy finished;
+    try {
+      finished = finishedCopies.poll(COPY_POLL_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    }
+    if (finished != null) {
+      inFlightCopies.remove(finished);
+      if (finished.error != null) {
+        // the caller cancels this job, which stops the other copies
+        throw IOUtils.rethrowAlways(finished.error);
+      }
+      copiedFiles.put(finished.copyOneFile.name, finished.copyOneFile.tmpName);
+      totBytesCopied += finished.copyOneFile.getBytesCopied();
+      assert totBytesCopied <= totBytes
+          : "totBytesCopied=" + totBytesCopied + " totBytes=" + totBytes;
+      notifyProgress();
+    }
+    return false;
+  }
+
+  /**
+   * Mark this job as the first copy of a replica restored from a backup, so the bytes it does not
+   * copy are counted as reused from the backup. Must be called before {@link #start()}.
+   */
+  void setCatchUpAfterRestore(boolean catchUpAfterRestore) {
+    this.catchUpAfterRestore = catchUpAfterRestore;
+  }
+
+  /** Set the listener for the progress of this job, replacing any previous one. */
+  public void setProgressListener(ProgressListener progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  private void notifyProgress() {
+    ProgressListener listener = progressListener;
+    if (listener != null) {
+      listener.onProgress(totBytesCopied, totBytes);
+    }
+  }
+
+  /**
+   * Future completed with this job once it is done and its {@link CopyJob.OnceDone} has run,
+   * whether the copy succeeded, failed or was cancelled.
+   */
+  public CompletableFuture<SimpleCopyJob> getCompletionFuture() {
+    return completionFuture;
+  }
+
+  /** Called by {@link Jobs} after running the {@link CopyJob.OnceDone} of this job. */
+  void notifyDone() {
+    completionFuture.complete(this);
+  }
+
+  @Override
+  public synchronized void cancel(String reason, Throwable exc) throws IOException {
+    super.cancel(reason, exc);
+    abortInFlightCopies();
+  }
+
+  @Override
+  public synchronized void transferAndCancel(CopyJob prevJob) throws IOException {
+    super.transferAndCancel(prevJob);
+    // only the file in current is carried over, concurrent copies start again in this job
+    ((SimpleCopyJob) prevJob).abortInFlightCopies();
+  }
+
+  /** Stop all concurrent file copies, and remove the temp files of the ones not collected yet. */
+  private void abortInFlightCopies() {
+    synchronized (finishedCopies) {
+      aborted = true;
+      for (FileCopy fileCopy : finishedCopies) {
+        fileCopy.discard();
+      }
+      finishedCopies.clear();
+    }
+  }
+
+  private void onCopyFinished(FileCopy fileCopy) {
+    synchronized (finishedCopies) {
+      if (aborted) {
+        fileCopy.discard();
+      } else {
+        finishedCopies.add(fileCopy);
+      }
+    }
+  }
+
+  /** Copies one file to a temp file, on the copy executor. */
+  private class FileCopy implements Runnable {
+    private final String fileName;
+    private final FileMetaData metaData;
+    private final byte[] buffer = new byte[copyBuffer.length];
+    private ReplicationServerClient from;
+    private CopyOneFile copyOneFile;
+    private boolean done;
+    private Throwable error;
+
+    FileCopy(String fileName, FileMetaData metaData, ReplicationServerClient from) {
+      this.fileName = fileName;
+      this.metaData = metaData;
+      this.from = from;
+    }
+
+    @Override
+    public void run() {
+      // cancelling the context cancels the call on the primary or peer if the copy stops early
+      Context.CancellableContext context = Context.current().withCancellation();
+      try {
+        copyOneFile = open(context);
+        while (aborted == false) {
+          if (jobs.awaitTurn(SimpleCopyJob.this) == false) {
+            continue;
+          }
+          long bytesCopied = copyOneFile.getBytesCopied();
+          boolean fileDone;
+          try {
+            fileDone = copyOneFile.visit();
+          } catch (Exception e) {
+            if (from != peer) {
+              throw e;
+            }
+            discardPeerCopy(copyOneFile, e);
+            copyOneFile = null;
+            from = primaryAddres;
+            copyOneFile = open(context);
+            continue;
+          }
+          jobs.onBytesCopied(SimpleCopyJob.this, copyOneFile.getBytesCopied() - bytesCopied);
+          if (fileDone) {
+            done = true;
+            break;
+          }
+        }
+      } catch (Throwable t) {
+        error = t;
+      } finally {
+        context.cancel(null);
+      }
+      if (done == false && copyOneFile != null) {
+        IOUtils.closeWhileHandlingException(copyOneFile);
+        IOUtils.deleteFilesIgnoringExceptions(dest.getDirectory(), copyOneFile.tmpName);
+      }
+      onCopyFinished(this);
+    }
+
+    private CopyOneFile open(Context.CancellableContext context) throws Exception {
+      Iterator<RawFileChunk> rawFileChunkIterator =
+          context.call(() -> from.recvRawFile(fileName, 0, indexName, compressFiles));
+      return new CopyOneFile(rawFileChunkIterator, dest, fileName, metaData, buffer);
+    }
+
+    /** Remove the temp file of a finished copy that will not be used. */
+    void discard() {
+      if (done) {
+        IOUtils.deleteFilesIgnoringExceptions(dest.getDirectory(), copyOneFile.tmpName);
+      }
+    }
+  }
+
   @Override
   public String toString() {
     return "SimpleCopyJob(ord="
@@ -72,6 +72,13 @@ public class StartIndexHandler implements Handler<StartIndexRequest, StartIndexR
         }
       }
     }
+    if (!mode.equals(Mode.STANDALONE) && indexState.getNumShardsSetting() > 1) {
+      throw new StartIndexHandlerException(
+          new IllegalArgumentException(
+              String.format(
+                  "index: %s has %s shards, multiple shards are only supported in STANDALONE mode",
+                  indexState.name, indexState.getNumShardsSetting())));
+    }
     if (mode.equals(Mode.PRIMARY)) {
       primaryGen = startIndexRequest.getPrimaryGen();
       primaryAddress = null;
@@ -113,9 +120,25 @@ public class StartIndexHandler implements Handler<StartIndexRequest, StartIndexR
     }
     try {
       IndexReader r = s.searcher.getIndexReader();
-      startIndexResponseBuilder.setMaxDoc(r.maxDoc());
-      startIndexResponseBuilder.setNumDocs(r.numDocs());
+      int maxDoc = r.maxDoc();
+      int numDocs = r.numDocs();
+      for (ShardState otherShard : indexState.shards.values()) {
+        if (otherShard != shardState) {
+          SearcherTaxonomyManager.SearcherAndTaxonomy other = otherShard.acquire();
+          try {
+            maxDoc += other.searcher.getIndexReader().maxDoc();
+            numDocs += other.searcher.getIndexReader().numDocs();
+          } finally {
+            otherShard.release(other);
+          }
+        }
+      }
+      startIndexResponseBuilder.setMaxDoc(maxDoc);
+      startIndexResponseBuilder.setNumDocs(numDocs);
       startIndexResponseBuilder.setSegments(r.toString());
+    } catch (IOException e) {
+      logger.error("Acquire shard state failed", e);
+      throw new StartIndexHandlerException(e);
     } finally {
       try {
         shardState.release(s);
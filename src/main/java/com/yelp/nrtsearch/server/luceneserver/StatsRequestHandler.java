@@ -50,22 +50,35 @@ public class StatsRequestHandler implements Handler<StatsRequest, StatsResponse>
     }
   }
 
+  /**
+   * Build the stats of the index. Counts and sizes are summed over the shards, the searchers of
+   * every shard are listed, and the state is the one of the first shard.
+   */
   private StatsResponse process(IndexState indexState) throws IOException {
     StatsResponse.Builder statsResponseBuilder = StatsResponse.newBuilder();
+    int maxDoc = 0;
+    int numDocs = 0;
+    long dirSize = 0;
+    Taxonomy.Builder taxonomy = Taxonomy.newBuilder();
+    Searcher.Builder currentSearcher = Searcher.newBuilder();
+    List<String> currentSegments = new ArrayList<>();
+    boolean first = true;
     for (Map.Entry<Integer, ShardState> entry : indexState.shards.entrySet()) {
       ShardState shardState = entry.getValue();
-      statsResponseBuilder.setOrd(entry.getKey());
+      if (first) {
+        statsResponseBuilder.setOrd(entry.getKey());
+        statsResponseBuilder.setState(shardState.getState());
+        first = false;
+      }
       if (shardState.writer != null) { // primary and standalone mode
         IndexWriter.DocStats docStats = shardState.writer.getDocStats();
-        statsResponseBuilder.setMaxDoc(docStats.maxDoc);
-        statsResponseBuilder.setNumDocs(docStats.numDocs);
+        maxDoc += docStats.maxDoc;
+        numDocs += docStats.numDocs;
       }
       String[] fNames = shardState.indexDir.listAll();
-      long dirSize = 0;
       for (int i = 0; i < fNames.length; i++) {
         dirSize += shardState.indexDir.fileLength(fNames[i]);
       }
-      statsResponseBuilder.setDirSize(dirSize);
       // TODO: snapshots
 
       // TODO: go per segment and print more details, and
@@ -88,32 +101,36 @@ public class StatsRequestHandler implements Handler<StatsRequest, StatsResponse>
             }
           });
       statsResponseBuilder.addAllSearchers(tmpSearchers);
-      statsResponseBuilder.setState(shardState.getState());
 
       SearcherTaxonomyManager.SearcherAndTaxonomy s = shardState.acquire();
       try {
-        Taxonomy.Builder taxonomy = Taxonomy.newBuilder();
         if (s.taxonomyReader != null) { // taxo reader is null for primary and replica
-          taxonomy.setNumOrds(s.taxonomyReader.getSize());
-          taxonomy.setSegments(s.taxonomyReader.toString());
+          taxonomy.setNumOrds(taxonomy.getNumOrds() + s.taxonomyReader.getSize());
+          taxonomy.setSegments(taxonomy.getSegments() + s.taxonomyReader.toString());
         }
-        statsResponseBuilder.setTaxonomy(taxonomy.build());
-        Searcher.Builder searcher = Searcher.newBuilder();
         if (s.searcher != null) {
-          searcher.setSegments(s.searcher.toString());
+          currentSegments.add(s.searcher.toString());
           IndexReader indexReader = s.searcher.getIndexReader();
-          searcher.setNumDocs(indexReader.numDocs());
+          currentSearcher.setNumDocs(currentSearcher.getNumDocs() + indexReader.numDocs());
           if (indexReader instanceof StandardDirectoryReader) {
             StandardDirectoryReader standardDirectoryReader = (StandardDirectoryReader) indexReader;
-            searcher.setNumSegments(standardDirectoryReader.getSegmentInfos().asList().size());
+            currentSearcher.setNumSegments(
+                currentSearcher.getNumSegments()
+                    + standardDirectoryReader.getSegmentInfos().asList().size());
           }
         }
-        statsResponseBuilder.setCurrentSearcher(searcher.build());
       } finally {
         shardState.release(s);
       }
     }
-    return statsResponseBuilder.build();
+    currentSearcher.setSegments(String.join(" ", currentSegments));
+    return statsResponseBuilder
+        .setMaxDoc(maxDoc)
+        .setNumDocs(numDocs)
+        .setDirSize(dirSize)
+        .setTaxonomy(taxonomy.build())
+        .setCurrentSearcher(currentSearcher.build())
+        .build();
   }
 
   public static IndicesResponse getIndicesResponse(GlobalState globalState)
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.google.protobuf.Message;
+import com.yelp.nrtsearch.server.grpc.AddDocumentRequest;
+import com.yelp.nrtsearch.server.grpc.DeleteAllDocumentsRequest;
+import com.yelp.nrtsearch.server.grpc.DeleteByQueryRequest;
+import com.yelp.nrtsearch.server.grpc.UpdateDocValuesRequest;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only write ahead log of the operations applied to the IndexWriter of one shard, so that
+ * changes acknowledged to clients survive a crash without committing the index. Each batch is
+ * written as one record with a length and CRC32 checksum, and a torn or corrupt record ends replay
+ * of its file.
+ *
+ * <p>The log is split into generation files. A commit rolls to a new generation before committing
+ * the index, then deletes the older generations and records the committed sequence number in a
+ * checkpoint. On startup, operations with a sequence number above the checkpoint are replayed.
+ *
+ * <p>Callers sync to the {@link Location} returned by {@link #add(List)} before acknowledging.
+ * Concurrent callers share fsyncs, since one sync covers everything written before it.
+ */
+public class Translog implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(Translog.class);
+  static final String FILE_PREFIX = "translog-";
+  static final String FILE_SUFFIX = ".tlog";
+  static final String CHECKPOINT_FILE = "translog.ckp";
+  private static final int RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+
+  private final Path dir;
+  private final Object syncLock = new Object();
+
+  // guarded by this
+  private FileChannel channel;
+  private long generation;
+  private long writtenOffset;
+
+  // guarded by syncLock
+  private long syncedGeneration;
+  private long syncedOffset;
+
+  /** Kind of writer operation, which determines the request type stored with it. */
+  public enum OpType {
+    /** Add or update of a document, with an {@link AddDocumentRequest}. */
+    ADD_DOCUMENT,
+    /** Delete by term, with the terms as the fields of an {@link AddDocumentRequest}. */
+    DELETE_DOCUMENTS,
+    /** Delete by query, with a {@link DeleteByQueryRequest}. */
+    DELETE_BY_QUERY,
+    /** Delete of all documents, with a {@link DeleteAllDocumentsRequest}. */
+    DELETE_ALL,
+    /** Doc values update of a single document, with an {@link UpdateDocValuesRequest}. */
+    UPDATE_DOC_VALUES
+  }
+
+  /** Writer operation in the log, with the IndexWriter sequence number it was applied with. */
+  public static class Operation {
+    public final long seqNo;
+    public final OpType type;
+    public final Message request;
+
+    public Operation(long seqNo, AddDocumentRequest request) {
+      this(seqNo, OpType.ADD_DOCUMENT, request);
+    }
+
+    public Operation(long seqNo, OpType type, Message request) {
+      this.seqNo = seqNo;
+      this.type = type;
+      this.request = request;
+    }
+  }
+
+  /** Position in the log after a written record. */
+  public static class Location {
+    final long generation;
+    final long offset;
+
+    Location(long generation, long offset) {
+      this.generation = generation;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * Open the log in the given directory, creating it if needed. Existing generations are kept for
+   * {@link #readUncommitted()}, and new records always go to a new generation file.
+   */
+  public static Translog open(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    long maxGeneration = 0;
+    for (long gen : listGenerations(dir).keySet()) {
+      maxGeneration = Math.max(maxGeneration, gen);
+    }
+    return new Translog(dir, maxGeneration + 1);
+  }
+
+  private Translog(Path dir, long generation) throws IOException {
+    this.dir = dir;
+    this.generation = generation;
+    this.channel = openGeneration(generation);
+    this.syncedGeneration = generation;
+  }
+
+  private FileChannel openGeneration(long gen) throws IOException {
+    FileChannel fileChannel =
+        FileChannel.open(
+            dir.resolve(FILE_PREFIX + gen + FILE_SUFFIX),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+    try {
+      // make the new file itself durable, syncing its data does not cover the directory entry
+      IOUtils.fsync(dir, true);
+    } catch (IOException e) {
+      IOUtils.closeWhileHandlingException(fileChannel);
+      throw e;
+    }
+    return fileChannel;
+  }
+
+  /** Append a batch of operations as a single record. */
+  public Location add(List<Operation> operations) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(operations.size());
+    for (Operation operation : operations) {
+      byte[] request = operation.request.toByteArray();
+      out.writeLong(operation.seqNo);
+      out.writeByte(operation.type.ordinal());
+      out.writeInt(request.length);
+      out.write(request);
+    }
+    out.flush();
+    byte[] payload = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+    buffer.putInt(payload.length);
+    buffer.putLong(crc.getValue());
+    buffer.put(payload);
+    buffer.flip();
+    synchronized (this) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      writtenOffset += RECORD_HEADER_BYTES + payload.length;
+      return new Location(generation, writtenOffset);
+    }
+  }
+
+  /** Make sure everything up to the given location is durable. */
+  public void sync(Location location) throws IOException {
+    synchronized (syncLock) {
+      if (location.generation < syncedGeneration
+          || (location.generation == syncedGeneration && location.offset <= syncedOffset)) {
+        // synced by a concurrent caller, or by a roll
+        return;
+      }
+      FileChannel toSync;
+      long toSyncGeneration;
+      long toSyncOffset;
+      synchronized (this) {
+        toSync = channel;
+        toSyncGeneration = generation;
+        toSyncOffset = writtenOffset;
+      }
+      toSync.force(false);
+      syncedGeneration = toSyncGeneration;
+      syncedOffset = toSyncOffset;
+    }
+  }
+
+  /**
+   * Start a new generation. Must be called before committing the index, so that every operation in
+   * the older generations is part of the commit.
+   *
+   * @return the new generation
+   */
+  public long rollGeneration() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        channel.force(false);
+        channel.close();
+        generation++;
+        writtenOffset = 0;
+        channel = openGeneration(generation);
+        syncedGeneration = generation;
+        syncedOffset = 0;
+        return generation;
+      }
+    }
+  }
+
+  /**
+   * Record a successful index commit. Generations before the given one are deleted, and operations
+   * with a sequence number up to the committed one are skipped by later replays.
+   *
+   * @param minGeneration generation returned by {@link #rollGeneration()} before the commit
+   * @param committedSeqNo sequence number returned by the commit
+   */
+  public synchronized void trim(long minGeneration, long committedSeqNo) throws IOException {
+    Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+    try (FileChannel out =
+        FileChannel.open(
+            tmp,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+      buffer.putLong(committedSeqNo);
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      out.force(false);
+    }
+    Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE);
+    IOUtils.fsync(dir, true);
+
+    for (var entry : listGenerations(dir).entrySet()) {
+      if (entry.getKey() < minGeneration) {
+        Files.deleteIfExists(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Read all operations that are not part of the last recorded commit, in sequence number order.
+   * Records from concurrent callers may be written in a different order than they were applied to
+   * the writer, so the sequence number is the order to replay them in.
+   */
+  public synchronized List<Operation> readUncommitted() throws IOException {
+    long committedSeqNo = -1;
+    Path checkpoint = dir.resolve(CHECKPOINT_FILE);
+    if (Files.exists(checkpoint)) {
+      try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpoint))) {
+        committedSeqNo = in.readLong();
+      }
+    }
+
+    List<Operation> operations = new ArrayList<>();
+    for (var entry : listGenerations(dir).entrySet()) {
+      if (entry.getKey() >= generation) {
+        continue;
+      }
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(entry.getValue()))) {
+        readFile(entry.getValue(), new DataInputStream(in), committedSeqNo, operations);
+      }
+    }
+    operations.sort(Comparator.comparingLong(operation -> operation.seqNo));
+    return operations;
+  }
+
+  private static void readFile(
+      Path file, DataInputStream in, long committedSeqNo, List<Operation> operations)
+      throws IOException {
+    long remaining = Files.size(file);
+    while (remaining >= RECORD_HEADER_BYTES) {
+      int length = in.readInt();
+      long checksum = in.readLong();
+      remaining -= RECORD_HEADER_BYTES;
+      if (length < 0 || length > remaining) {
+        logger.warn(String.format("Ignoring torn record at the end of translog file: %s", file));
+        return;
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      remaining -= length;
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (crc.getValue() != checksum) {
+        logger.warn(
+            String.format("Checksum mismatch in translog file: %s, ignoring rest of file", file));
+        return;
+      }
+
+      DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+      try {
+        int count = record.readInt();
+        for (int i = 0; i < count; ++i) {
+          long seqNo = record.readLong();
+          int type = record.readByte();
+          if (type < 0 || type >= OpType.values().length) {
+            throw new IOException("Unknown translog operation type: " + type + " in: " + file);
+          }
+          OpType opType = OpType.values()[type];
+          byte[] request = new byte[record.readInt()];
+          record.readFully(request);
+          if (seqNo > committedSeqNo) {
+            operations.add(new Operation(seqNo, opType, parseRequest(opType, request)));
+          }
+        }
+      } catch (EOFException e) {
+        throw new IOException("Translog record passed checksum but is malformed: " + file, e);
+      }
+    }
+  }
+
+  private static Message parseRequest(OpType type, byte[] request) throws IOException {
+    switch (type) {
+      case ADD_DOCUMENT:
+      case DELETE_DOCUMENTS:
+        return AddDocumentRequest.parseFrom(request);
+      case DELETE_BY_QUERY:
+        return DeleteByQueryRequest.parseFrom(request);
+      case DELETE_ALL:
+        return DeleteAllDocumentsRequest.parseFrom(request);
+      case UPDATE_DOC_VALUES:
+        return UpdateDocValuesRequest.parseFrom(request);
+      default:
+        throw new IllegalArgumentException("Unknown translog operation type: " + type);
+    }
+  }
+
+  private static TreeMap<Long, Path> listGenerations(Path dir) throws IOException {
+    TreeMap<Long, Path> generations = new TreeMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX + "*")) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(FILE_SUFFIX)) {
+          generations.put(
+              Long.parseLong(
+                  name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length())),
+              path);
+        }
+      }
+    }
+    return generations;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        channel.force(false);
+        channel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import com.yelp.nrtsearch.server.grpc.UpdateDocValuesRequest;
+import com.yelp.nrtsearch.server.luceneserver.field.FieldDef;
+import com.yelp.nrtsearch.server.luceneserver.field.IdFieldDef;
+import com.yelp.nrtsearch.server.luceneserver.field.NumberFieldDef;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies in place numeric doc value updates to documents identified by the index _ID field. This
+ * avoids reindexing the whole document when only a doc values field, such as a ranking signal,
+ * changes.
+ */
+public class UpdateDocValuesHandler {
+  private static final Logger logger = LoggerFactory.getLogger(UpdateDocValuesHandler.class);
+
+  /**
+   * Convert a single document update into lucene doc value fields.
+   *
+   * @param indexState index state
+   * @param update document update from request
+   * @return doc value fields to apply to the document
+   * @throws UpdateDocValuesHandlerException if a field does not exist or cannot be updated in place
+   */
+  public static Field[] getUpdateFields(
+      IndexState indexState, UpdateDocValuesRequest.DocValuesUpdate update)
+      throws UpdateDocValuesHandlerException {
+    if (update.getFieldsCount() == 0) {
+      throw new UpdateDocValuesHandlerException(
+          String.format("update for id: %s does not contain any fields", update.getId()));
+    }
+    Field[] fields = new Field[update.getFieldsCount()];
+    int i = 0;
+    for (Map.Entry<String, String> entry : update.getFieldsMap().entrySet()) {
+      FieldDef fieldDef;
+      try {
+        fieldDef = indexState.getField(entry.getKey());
+      } catch (IllegalArgumentException e) {
+        throw new UpdateDocValuesHandlerException(e);
+      }
+      if (!(fieldDef instanceof NumberFieldDef)) {
+        throw new UpdateDocValuesHandlerException(
+            String.format(
+                "field: %s is not a numeric field, only numeric doc values can be updated",
+                entry.getKey()));
+      }
+      try {
+        fields[i++] = ((NumberFieldDef) fieldDef).getDocValueUpdateField(entry.getValue());
+      } catch (IllegalArgumentException e) {
+        throw new UpdateDocValuesHandlerException(e);
+      }
+    }
+    return fields;
+  }
+
+  /** Applies one batch of doc value updates, returning the max completed sequence number. */
+  public static class DocValuesUpdater implements Callable<Long> {
+    private final GlobalState globalState;
+    private final UpdateDocValuesRequest updateDocValuesRequest;
+
+    public DocValuesUpdater(
+        GlobalState globalState, UpdateDocValuesRequest updateDocValuesRequest) {
+      this.globalState = globalState;
+      this.updateDocValuesRequest = updateDocValuesRequest;
+    }
+
+    public long runUpdateJob() throws Exception {
+      IndexState indexState = globalState.getIndex(updateDocValuesRequest.getIndexName());
+      IdFieldDef idFieldDef = indexState.getIdFieldDef();
+      if (idFieldDef == null) {
+        throw new UpdateDocValuesHandlerException(
+            String.format(
+                "index: %s has no _ID field, doc values updates require one",
+                updateDocValuesRequest.getIndexName()));
+      }
+      // validate the whole batch before applying any of it
+      Term[] terms = new Term[updateDocValuesRequest.getUpdatesCount()];
+      Field[][] updateFields = new Field[updateDocValuesRequest.getUpdatesCount()][];
+      for (int i = 0; i < updateDocValuesRequest.getUpdatesCount(); ++i) {
+        UpdateDocValuesRequest.DocValuesUpdate update = updateDocValuesRequest.getUpdates(i);
+        terms[i] = new Term(idFieldDef.getName(), update.getId());
+        updateFields[i] = getUpdateFields(indexState, update);
+      }
+
+      // updates applied to each shard, to log to its translog
+      Map<ShardState, List<Translog.Operation>> shardOperations = new HashMap<>();
+      for (int i = 0; i < terms.length; ++i) {
+        ShardState shardState = indexState.getShardForId(terms[i].bytes());
+        long seqNo = shardState.writer.updateDocValues(terms[i], updateFields[i]);
+        List<Translog.Operation> operations =
+            shardOperations.computeIfAbsent(shardState, k -> new ArrayList<>());
+        if (shardState.translog != null) {
+          operations.add(
+              new Translog.Operation(
+                  seqNo,
+                  Translog.OpType.UPDATE_DOC_VALUES,
+                  UpdateDocValuesRequest.newBuilder()
+                      .setIndexName(updateDocValuesRequest.getIndexName())
+                      .addUpdates(updateDocValuesRequest.getUpdates(i))
+                      .build()));
+        }
+      }
+      long maxSeqNo = -1;
+      for (Map.Entry<ShardState, List<Translog.Operation>> entry : shardOperations.entrySet()) {
+        entry.getKey().logOperations(entry.getValue());
+        maxSeqNo = Math.max(maxSeqNo, entry.getKey().writer.getMaxCompletedSequenceNumber());
+      }
+      logger.debug(
+          String.format(
+              "doc values update job on threadId: %s applied %s updates, SequenceId: %s",
+              Thread.currentThread().getName() + Thread.currentThread().getId(),
+              terms.length,
+              maxSeqNo));
+      return maxSeqNo;
+    }
+
+    @Override
+    public Long call() throws Exception {
+      return runUpdateJob();
+    }
+  }
+
+  public static class UpdateDocValuesHandlerException extends Handler.HandlerException {
+    public UpdateDocValuesHandlerException(String errorMessage) {
+      super(errorMessage);
+    }
+
+    public UpdateDocValuesHandlerException(Throwable err) {
+      super(err);
+    }
+  }
+}
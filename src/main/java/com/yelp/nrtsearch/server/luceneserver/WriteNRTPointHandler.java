@@ -16,13 +16,8 @@
 package com.yelp.nrtsearch.server.luceneserver;
 
 import com.yelp.nrtsearch.server.grpc.IndexName;
-import com.yelp.nrtsearch.server.grpc.ReplicationServerClient;
 import com.yelp.nrtsearch.server.grpc.SearcherVersion;
-import io.grpc.Status;
-import io.grpc.StatusRuntimeException;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.Queue;
 import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
 import org.apache.lucene.index.DirectoryReader;
 import org.slf4j.Logger;
@@ -34,7 +29,7 @@ public class WriteNRTPointHandler implements Handler<IndexName, SearcherVersion>
   @Override
   public SearcherVersion handle(IndexState indexState, IndexName protoRequest)
       throws HandlerException {
-    final ShardState shardState = indexState.getShard(0);
+    final ShardState shardState = indexState.getSingleShard("replication");
 
     if (shardState.isPrimary() == false) {
       throw new IllegalArgumentException(
@@ -50,49 +45,8 @@ public class WriteNRTPointHandler implements Handler<IndexName, SearcherVersion>
         // before notifying all replicas, at which point we have a newer version index than client
         // knew about?
         long version = shardState.nrtPrimaryNode.getCopyStateVersion();
-        Queue<NRTPrimaryNode.ReplicaDetails> replicasInfos =
-            shardState.nrtPrimaryNode.replicasInfos;
-        shardState.nrtPrimaryNode.message(
-            "send flushed version=" + version + " replica count " + replicasInfos.size());
-
-        // Notify current replicas:
-        Iterator<NRTPrimaryNode.ReplicaDetails> it = replicasInfos.iterator();
-        while (it.hasNext()) {
-          NRTPrimaryNode.ReplicaDetails replicaDetails = it.next();
-          int replicaID = replicaDetails.getReplicaId();
-          ReplicationServerClient currentReplicaServerClient =
-              replicaDetails.getReplicationServerClient();
-          try {
-            // TODO: we should use multicast to broadcast files out to replicas
-            // TODO: ... replicas could copy from one another instead of just primary
-            // TODO: we could also prioritize one replica at a time?
-            currentReplicaServerClient.newNRTPoint(
-                indexState.name, shardState.nrtPrimaryNode.getPrimaryGen(), version);
-          } catch (StatusRuntimeException e) {
-            Status status = e.getStatus();
-            if (status.getCode().equals(Status.UNAVAILABLE.getCode())) {
-              logger.info(
-                  "NRTPRimaryNode: sendNRTPoint, lost connection to replicaId: "
-                      + replicaDetails.getReplicaId()
-                      + " host: "
-                      + replicaDetails.getHostPort().getHostName()
-                      + " port: "
-                      + replicaDetails.getHostPort().getPort());
-              it.remove();
-            }
-          } catch (Exception e) {
-            shardState.nrtPrimaryNode.message(
-                "top: failed to connect R"
-                    + replicaID
-                    + " for newNRTPoint; skipping: "
-                    + e.getMessage());
-            logger.info(
-                "top: failed to connect R"
-                    + replicaID
-                    + " for newNRTPoint; skipping: "
-                    + e.getMessage());
-          }
-        }
+        // Notify current replicas, concurrently and with a deadline for each replica
+        shardState.nrtPrimaryNode.sendNewNRTPointToReplicas();
         return searchverVersionBuilder.setVersion(version).setDidRefresh(true).build();
       } else {
         SearcherTaxonomyManager.SearcherAndTaxonomy s = shardState.acquire();
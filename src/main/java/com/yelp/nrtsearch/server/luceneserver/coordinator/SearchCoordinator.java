@@ -0,0 +1,521 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver.coordinator;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.yelp.nrtsearch.server.config.CoordinatorConfiguration;
+import com.yelp.nrtsearch.server.grpc.FacetResult;
+import com.yelp.nrtsearch.server.grpc.FieldType;
+import com.yelp.nrtsearch.server.grpc.GetDocumentsRequest;
+import com.yelp.nrtsearch.server.grpc.GetDocumentsResponse;
+import com.yelp.nrtsearch.server.grpc.LuceneServerClient;
+import com.yelp.nrtsearch.server.grpc.SearchRequest;
+import com.yelp.nrtsearch.server.grpc.SearchResponse;
+import com.yelp.nrtsearch.server.grpc.SortType;
+import com.yelp.nrtsearch.server.grpc.StateRequest;
+import com.yelp.nrtsearch.server.grpc.StateResponse;
+import com.yelp.nrtsearch.server.grpc.TotalHits;
+import com.yelp.nrtsearch.server.grpc.VirtualField;
+import com.yelp.nrtsearch.server.luceneserver.GetStateHandler;
+import com.yelp.nrtsearch.server.luceneserver.SearchHandler;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Searches an index that is split across several nrtsearch servers, each holding one shard of the
+ * documents, and merges their results.
+ *
+ * <p>A search runs in two rounds. The query round sends the search to every shard without the
+ * retrieve fields, and merges the hits by score or sort values, the total hits and the facet
+ * results. The fetch round then gets the retrieve fields for the winning hits only, by lucene doc
+ * id from the searcher version each shard used for the query round. Virtual fields depend on the
+ * query score, so they are still retrieved in the query round.
+ *
+ * <p>Every request to a shard has a deadline. Shards that fail or time out are reported in the
+ * response shard failures, and the search returns the results of the other shards, unless partial
+ * results are not allowed or all shards failed.
+ *
+ * <p>Hits are merged by the sort values that shards return as text. They are compared by the type
+ * of their field, which the coordinator gets from the index state of a shard and caches.
+ */
+public class SearchCoordinator implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(SearchCoordinator.class);
+
+  private final List<String> shards;
+  private final List<LuceneServerClient> clients;
+  private final int shardTimeoutMs;
+  private final boolean allowPartialResults;
+  // field types of each index, from the index state of a shard
+  private final Map<String, Map<String, FieldType>> indexFieldTypes = new ConcurrentHashMap<>();
+
+  public SearchCoordinator(CoordinatorConfiguration configuration) {
+    this(
+        configuration.getShards(),
+        createClients(configuration.getShards()),
+        configuration.getShardTimeoutMs(),
+        configuration.getAllowPartialResults());
+  }
+
+  SearchCoordinator(
+      List<String> shards,
+      List<LuceneServerClient> clients,
+      int shardTimeoutMs,
+      boolean allowPartialResults) {
+    this.shards = shards;
+    this.clients = clients;
+    this.shardTimeoutMs = shardTimeoutMs;
+    this.allowPartialResults = allowPartialResults;
+  }
+
+  private static List<LuceneServerClient> createClients(List<String> shards) {
+    List<LuceneServerClient> clients = new ArrayList<>(shards.size());
+    for (String shard : shards) {
+      clients.add(
+          new LuceneServerClient(
+              CoordinatorConfiguration.parseHost(shard),
+              CoordinatorConfiguration.parsePort(shard)));
+    }
+    return clients;
+  }
+
+  /** A hit from the query round, with the shard it came from. */
+  static class ShardHit {
+    final int shardIndex;
+    final int hitIndex;
+    final SearchResponse.Hit hit;
+
+    ShardHit(int shardIndex, int hitIndex, SearchResponse.Hit hit) {
+      this.shardIndex = shardIndex;
+      this.hitIndex = hitIndex;
+      this.hit = hit;
+    }
+  }
+
+  /** Adapts an async stub response to a future. */
+  private static class FutureObserver<T> extends CompletableFuture<T>
+      implements StreamObserver<T> {
+    @Override
+    public void onNext(T value) {
+      complete(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      completeExceptionally(t);
+    }
+
+    @Override
+    public void onCompleted() {}
+  }
+
+  public SearchResponse search(SearchRequest searchRequest) throws InterruptedException {
+    if (searchRequest.getSearcherCase() != SearchRequest.SearcherCase.SEARCHER_NOT_SET) {
+      // searcher versions and index generations are different for every shard
+      throw new IllegalArgumentException(
+          "searching a specific searcher is not supported by a coordinator");
+    }
+    SearchResponse.Builder searchResponse = SearchResponse.newBuilder();
+    SearchResponse.Diagnostics.Builder diagnostics = SearchResponse.Diagnostics.newBuilder();
+
+    Set<String> virtualFields = new HashSet<>();
+    for (VirtualField virtualField : searchRequest.getVirtualFieldsList()) {
+      virtualFields.add(virtualField.getName());
+    }
+    List<String> queryFields = new ArrayList<>();
+    List<String> fetchFieldNames = new ArrayList<>();
+    for (String field : searchRequest.getRetrieveFieldsList()) {
+      if (virtualFields.contains(field)) {
+        queryFields.add(field);
+      } else {
+        fetchFieldNames.add(field);
+      }
+    }
+
+    Comparator<ShardHit> hitComparator =
+        getHitComparator(searchRequest, getSortFieldTypes(searchRequest, virtualFields));
+
+    // query round, every shard returns enough hits to fill the requested page
+    long t0 = System.nanoTime();
+    SearchRequest queryRequest =
+        searchRequest.toBuilder()
+            .setStartHit(0)
+            .setTopHits(searchRequest.getStartHit() + searchRequest.getTopHits())
+            .clearRetrieveFields()
+            .addAllRetrieveFields(queryFields)
+            .build();
+    List<FutureObserver<SearchResponse>> queryFutures = new ArrayList<>(clients.size());
+    for (LuceneServerClient client : clients) {
+      FutureObserver<SearchResponse> future = new FutureObserver<>();
+      client
+          .getAsyncStub()
+          .withDeadlineAfter(shardTimeoutMs, TimeUnit.MILLISECONDS)
+          .search(queryRequest, future);
+      queryFutures.add(future);
+    }
+    List<SearchResponse> shardResponses = new ArrayList<>(clients.size());
+    for (int i = 0; i < queryFutures.size(); ++i) {
+      try {
+        shardResponses.add(queryFutures.get(i).get());
+      } catch (ExecutionException e) {
+        shardResponses.add(null);
+        addShardFailure(searchResponse, i, e.getCause());
+      }
+    }
+    checkShardFailures(searchResponse);
+    diagnostics.setFirstPassSearchTimeMs((System.nanoTime() - t0) / 1000000.0);
+
+    List<List<FacetResult>> shardFacetResults = new ArrayList<>();
+    List<ShardHit> shardHits = new ArrayList<>();
+    long totalHits = 0;
+    TotalHits.Relation relation = TotalHits.Relation.EQUAL_TO;
+    for (int i = 0; i < shardResponses.size(); ++i) {
+      SearchResponse shardResponse = shardResponses.get(i);
+      if (shardResponse == null) {
+        continue;
+      }
+      for (int hitIndex = 0; hitIndex < shardResponse.getHitsCount(); ++hitIndex) {
+        shardHits.add(new ShardHit(i, hitIndex, shardResponse.getHits(hitIndex)));
+      }
+      totalHits += shardResponse.getTotalHits().getValue();
+      if (shardResponse.getTotalHits().getRelation()
+          == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO) {
+        relation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+      }
+      if (shardResponse.getHitTimeout()) {
+        searchResponse.setHitTimeout(true);
+      }
+      if (!searchResponse.hasSearchState()) {
+        searchResponse.setSearchState(
+            SearchResponse.SearchState.newBuilder()
+                .setTimestamp(shardResponse.getSearchState().getTimestamp()));
+      }
+      shardFacetResults.add(shardResponse.getFacetResultList());
+    }
+    searchResponse.setTotalHits(
+        TotalHits.newBuilder().setValue(totalHits).setRelation(relation).build());
+    searchResponse.addAllFacetResult(SearchHandler.mergeFacetResults(shardFacetResults));
+    List<ShardHit> hits =
+        mergeHits(
+            shardHits, hitComparator, searchRequest.getStartHit(), searchRequest.getTopHits());
+
+    // fetch round, only for the hits being returned
+    t0 = System.nanoTime();
+    Map<ShardHit, Map<String, SearchResponse.Hit.CompositeFieldValue>> hitFields =
+        fetchFields(
+            searchRequest.getIndexName(), fetchFieldNames, hits, shardResponses, searchResponse);
+    checkShardFailures(searchResponse);
+    diagnostics.setGetFieldsTimeMs((System.nanoTime() - t0) / 1000000.0);
+
+    for (ShardHit shardHit : hits) {
+      SearchResponse.Hit.Builder hit =
+          shardHit.hit.toBuilder().setShard(shards.get(shardHit.shardIndex));
+      Map<String, SearchResponse.Hit.CompositeFieldValue> fields = hitFields.get(shardHit);
+      if (fields != null) {
+        hit.putAllFields(fields);
+      }
+      searchResponse.addHits(hit);
+    }
+    searchResponse.setDiagnostics(diagnostics);
+    return searchResponse.build();
+  }
+
+  /** Get the fields of the given hits from their shards, grouping the hits of each shard. */
+  private Map<ShardHit, Map<String, SearchResponse.Hit.CompositeFieldValue>> fetchFields(
+      String indexName,
+      List<String> fetchFieldNames,
+      List<ShardHit> hits,
+      List<SearchResponse> shardResponses,
+      SearchResponse.Builder searchResponse)
+      throws InterruptedException {
+    Map<ShardHit, Map<String, SearchResponse.Hit.CompositeFieldValue>> hitFields =
+        new LinkedHashMap<>();
+    if (fetchFieldNames.isEmpty() || hits.isEmpty()) {
+      return hitFields;
+    }
+    Map<Integer, List<ShardHit>> shardHits = new LinkedHashMap<>();
+    for (ShardHit hit : hits) {
+      shardHits.computeIfAbsent(hit.shardIndex, k -> new ArrayList<>()).add(hit);
+    }
+    Map<Integer, FutureObserver<GetDocumentsResponse>> fetchFutures = new LinkedHashMap<>();
+    for (Map.Entry<Integer, List<ShardHit>> entry : shardHits.entrySet()) {
+      GetDocumentsRequest.Builder request =
+          GetDocumentsRequest.newBuilder()
+              .setIndexName(indexName)
+              .addAllRetrieveFields(fetchFieldNames)
+              .setSearcherVersion(
+                  shardResponses.get(entry.getKey()).getSearchState().getSearcherVersion());
+      for (ShardHit hit : entry.getValue()) {
+        request.addLuceneDocIds(hit.hit.getLuceneDocId());
+      }
+      FutureObserver<GetDocumentsResponse> future = new FutureObserver<>();
+      clients
+          .get(entry.getKey())
+          .getAsyncStub()
+          .withDeadlineAfter(shardTimeoutMs, TimeUnit.MILLISECONDS)
+          .getDocuments(request.build(), future);
+      fetchFutures.put(entry.getKey(), future);
+    }
+    for (Map.Entry<Integer, FutureObserver<GetDocumentsResponse>> entry :
+        fetchFutures.entrySet()) {
+      // the hits of a failed shard are returned without their fields
+      GetDocumentsResponse response;
+      try {
+        response = entry.getValue().get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (Status.fromThrowable(cause).getCode() == Status.Code.NOT_FOUND) {
+          // the shard pruned the query round searcher, it is older than maxSearcherAgeSec
+          cause =
+              new IllegalStateException(
+                  String.format(
+                      "searcher version: %s of the query round was pruned before the fetch "
+                          + "round: %s",
+                      shardResponses.get(entry.getKey()).getSearchState().getSearcherVersion(),
+                      cause.getMessage()),
+                  cause);
+        }
+        addShardFailure(searchResponse, entry.getKey(), cause);
+        continue;
+      }
+      List<ShardHit> fetchedHits = shardHits.get(entry.getKey());
+      if (response.getDocumentsCount() != fetchedHits.size()) {
+        addShardFailure(
+            searchResponse,
+            entry.getKey(),
+            new IllegalStateException(
+                String.format(
+                    "fetch round returned %s documents for %s hits",
+                    response.getDocumentsCount(), fetchedHits.size())));
+        continue;
+      }
+      // documents are returned in request order
+      for (int i = 0; i < fetchedHits.size(); ++i) {
+        hitFields.put(fetchedHits.get(i), response.getDocuments(i).getFieldsMap());
+      }
+    }
+    return hitFields;
+  }
+
+  private void addShardFailure(SearchResponse.Builder searchResponse, int shardIndex, Throwable t) {
+    logger.warn("search failed on coordinator shard: " + shards.get(shardIndex), t);
+    searchResponse.addShardFailures(
+        SearchResponse.ShardFailure.newBuilder()
+            .setShard(shards.get(shardIndex))
+            .setError(String.valueOf(t.getMessage())));
+  }
+
+  private void checkShardFailures(SearchResponse.Builder searchResponse) {
+    int numFailed = searchResponse.getShardFailuresCount();
+    if (numFailed == 0) {
+      return;
+    }
+    if (!allowPartialResults || numFailed >= shards.size()) {
+      throw new IllegalStateException(
+          String.format(
+              "search failed on %s of %s shards: %s",
+              numFailed, shards.size(), searchResponse.getShardFailuresList()));
+    }
+  }
+
+  /** Sort the hits of all shards and return the requested page. */
+  static List<ShardHit> mergeHits(
+      List<ShardHit> shardHits, Comparator<ShardHit> comparator, int startHit, int topHits) {
+    List<ShardHit> sorted = new ArrayList<>(shardHits);
+    sorted.sort(comparator);
+    int from = Math.min(startHit, sorted.size());
+    int to = Math.min(startHit + topHits, sorted.size());
+    return new ArrayList<>(sorted.subList(from, to));
+  }
+
+  /**
+   * Get the type of each sort field of the request: score and docid, virtual fields, or index
+   * fields, whose types are fetched from a shard if they are not cached.
+   *
+   * @throws IllegalArgumentException if a sort field is not registered
+   */
+  private Map<String, FieldType> getSortFieldTypes(
+      SearchRequest searchRequest, Set<String> virtualFields) {
+    Map<String, FieldType> sortFieldTypes = new HashMap<>();
+    for (SortType sortType : searchRequest.getQuerySort().getFields().getSortedFieldsList()) {
+      String fieldName = sortType.getFieldName();
+      FieldType fieldType;
+      if (fieldName.equals("score")) {
+        fieldType = FieldType.FLOAT;
+      } else if (fieldName.equals("docid")) {
+        fieldType = FieldType.INT;
+      } else if (virtualFields.contains(fieldName)) {
+        fieldType = FieldType.VIRTUAL;
+      } else {
+        String indexName = searchRequest.getIndexName();
+        Map<String, FieldType> fieldTypes = indexFieldTypes.get(indexName);
+        if (fieldTypes == null || !fieldTypes.containsKey(fieldName)) {
+          // not cached yet, or the field was registered after the field types were cached
+          fieldTypes = fetchFieldTypes(indexName);
+          indexFieldTypes.put(indexName, fieldTypes);
+        }
+        fieldType = fieldTypes.get(fieldName);
+        if (fieldType == null) {
+          throw new IllegalArgumentException(
+              String.format(
+                  "field: %s was not registered and was not specified as a virtualField",
+                  fieldName));
+        }
+      }
+      sortFieldTypes.put(fieldName, fieldType);
+    }
+    return sortFieldTypes;
+  }
+
+  /** Get the field types of an index from the state of the first shard that answers. */
+  private Map<String, FieldType> fetchFieldTypes(String indexName) {
+    StatusRuntimeException lastError = null;
+    for (LuceneServerClient client : clients) {
+      StateResponse stateResponse;
+      try {
+        stateResponse =
+            client
+                .getBlockingStub()
+                .withDeadlineAfter(shardTimeoutMs, TimeUnit.MILLISECONDS)
+                .state(StateRequest.newBuilder().setIndexName(indexName).build());
+      } catch (StatusRuntimeException e) {
+        lastError = e;
+        continue;
+      }
+      return parseFieldTypes(stateResponse.getResponse());
+    }
+    throw new IllegalStateException(
+        "cannot get the field types of index: " + indexName + " from any shard", lastError);
+  }
+
+  /** Parse the field types from the json state of an index, see {@link GetStateHandler}. */
+  static Map<String, FieldType> parseFieldTypes(String stateJson) {
+    JsonObject fields =
+        new JsonParser()
+            .parse(stateJson)
+            .getAsJsonObject()
+            .getAsJsonObject("state")
+            .getAsJsonObject("fields");
+    Map<String, FieldType> fieldTypes = new HashMap<>();
+    for (Map.Entry<String, JsonElement> entry : fields.entrySet()) {
+      // fields are saved as json of the registered Field, which leaves out the default type
+      JsonElement type = entry.getValue().getAsJsonObject().get("type");
+      fieldTypes.put(
+          entry.getKey(), type == null ? FieldType.ATOM : FieldType.valueOf(type.getAsString()));
+    }
+    return fieldTypes;
+  }
+
+  /**
+   * Comparator for hits from different shards, in the order of the request sort, or by descending
+   * score if there is none. Ties are broken by shard, then by the order within the shard, like
+   * {@link org.apache.lucene.search.TopDocs#merge}.
+   *
+   * @param sortFieldTypes type of each sort field of the request
+   */
+  static Comparator<ShardHit> getHitComparator(
+      SearchRequest searchRequest, Map<String, FieldType> sortFieldTypes) {
+    List<SortType> sortFields = searchRequest.getQuerySort().getFields().getSortedFieldsList();
+    Comparator<ShardHit> comparator;
+    if (sortFields.isEmpty()) {
+      comparator = Comparator.comparingDouble((ShardHit hit) -> hit.hit.getScore()).reversed();
+    } else {
+      comparator = null;
+      for (SortType sortType : sortFields) {
+        String fieldName = sortType.getFieldName();
+        Comparator<String> valueComparator =
+            getSortValueComparator(sortFieldTypes.get(fieldName));
+        Comparator<ShardHit> fieldComparator =
+            (a, b) ->
+                valueComparator.compare(getSortValue(a, fieldName), getSortValue(b, fieldName));
+        // relevance sorts by descending score unless reversed
+        if (sortType.getReverse() != fieldName.equals("score")) {
+          fieldComparator = fieldComparator.reversed();
+        }
+        comparator =
+            comparator == null ? fieldComparator : comparator.thenComparing(fieldComparator);
+      }
+    }
+    return comparator
+        .thenComparingInt((ShardHit hit) -> hit.shardIndex)
+        .thenComparingInt(hit -> hit.hitIndex);
+  }
+
+  private static String getSortValue(ShardHit hit, String fieldName) {
+    SearchResponse.Hit.CompositeFieldValue value = hit.hit.getSortedFieldsMap().get(fieldName);
+    if (value == null || value.getFieldValueCount() == 0) {
+      return null;
+    }
+    return value.getFieldValue(0).getTextValue();
+  }
+
+  /**
+   * Comparator for the sort values of a field type, which shards return as text. Integral types
+   * and dates, which sort by their epoch millis, are compared as longs, floating point types and
+   * distances as doubles, and anything else by its utf8 bytes like lucene sorts strings. Hits
+   * without a value sort first.
+   */
+  static Comparator<String> getSortValueComparator(FieldType fieldType) {
+    Comparator<String> comparator;
+    switch (fieldType) {
+      case INT:
+      case LONG:
+      case BOOLEAN:
+      case DATE_TIME:
+        comparator = Comparator.comparingLong(Long::parseLong);
+        break;
+      case FLOAT:
+      case DOUBLE:
+      case LAT_LON:
+      case VIRTUAL:
+        comparator = Comparator.comparingDouble(Double::parseDouble);
+        break;
+      default:
+        comparator = Comparator.comparing(BytesRef::new);
+    }
+    return Comparator.nullsFirst(comparator);
+  }
+
+  @Override
+  public void close() {
+    for (LuceneServerClient client : clients) {
+      try {
+        client.shutdown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.yelp.nrtsearch.server.luceneserver.field;
 import com.yelp.nrtsearch.server.grpc.Field;
 import com.yelp.nrtsearch.server.grpc.TermInSetQuery;
 import com.yelp.nrtsearch.server.grpc.TermQuery;
+import com.yelp.nrtsearch.server.luceneserver.ServerCodec;
 import com.yelp.nrtsearch.server.luceneserver.doc.LoadedDocValues;
 import com.yelp.nrtsearch.server.luceneserver.field.properties.TermQueryable;
 import java.io.IOException;
@@ -76,6 +77,17 @@ public class IdFieldDef extends IndexableFieldDef implements TermQueryable {
     fieldType.setTokenized(false);
   }
 
+  /**
+   * Every update resolves the id term in each segment, and most of these lookups miss. A bloom
+   * filter lets those segments be skipped without seeking the terms dictionary.
+   *
+   * @return bloom filtered postings format
+   */
+  @Override
+  protected String getDefaultPostingsFormat() {
+    return ServerCodec.BLOOM_POSTINGS_FORMAT;
+  }
+
   /**
    * Store the docvalues if it's requested and store the string value in the document
    *
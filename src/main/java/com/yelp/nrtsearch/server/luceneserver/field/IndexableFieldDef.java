@@ -78,7 +78,7 @@ public abstract class IndexableFieldDef extends FieldDef {
 
     postingsFormat =
         requestField.getPostingsFormat().isEmpty()
-            ? ServerCodec.DEFAULT_POSTINGS_FORMAT
+            ? getDefaultPostingsFormat()
             : requestField.getPostingsFormat();
     docValuesFormat =
         requestField.getDocValuesFormat().isEmpty()
@@ -146,6 +146,16 @@ public abstract class IndexableFieldDef extends FieldDef {
     return FacetValueType.NO_FACETS;
   }
 
+  /**
+   * Method called by {@link #IndexableFieldDef(String, Field)} to get the postings format to use
+   * when the request does not specify one.
+   *
+   * @return default postings format name
+   */
+  protected String getDefaultPostingsFormat() {
+    return ServerCodec.DEFAULT_POSTINGS_FORMAT;
+  }
+
   /**
    * Method called by {@link #IndexableFieldDef(String, Field)} to set the search properties on the
    * given {@link FieldType}. The {@link FieldType#setStored(boolean)} has already been set to the
@@ -193,6 +193,31 @@ public abstract class NumberFieldDef extends IndexableFieldDef
     }
   }
 
+  /**
+   * Get the doc value {@link org.apache.lucene.document.Field} to apply to an existing document with
+   * {@link org.apache.lucene.index.IndexWriter#updateDocValues}. Only the doc value is rewritten, so
+   * the field must have single valued doc values and must not be searchable, stored or faceted, as
+   * those would no longer match the new value.
+   *
+   * @param fieldStr string encoded field value
+   * @return lucene doc value field containing the update
+   * @throws IllegalArgumentException if the field cannot be updated in place
+   */
+  public org.apache.lucene.document.Field getDocValueUpdateField(String fieldStr) {
+    if (docValuesType != DocValuesType.NUMERIC) {
+      throw new IllegalArgumentException(
+          String.format(
+              "field: %s must be single valued with storeDocValues=true to update doc values",
+              getName()));
+    }
+    if (isSearchable() || isStored() || facetValueType != FacetValueType.NO_FACETS) {
+      throw new IllegalArgumentException(
+          String.format(
+              "field: %s cannot be searchable, stored or faceted to update doc values", getName()));
+    }
+    return getDocValueField(fieldParser.apply(fieldStr));
+  }
+
   private void addFacet(Document document, Number value) {
     if (facetValueType == FacetValueType.HIERARCHY || facetValueType == FacetValueType.FLAT) {
       String facetValue = value.toString();
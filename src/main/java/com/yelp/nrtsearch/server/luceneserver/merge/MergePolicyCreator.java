@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver.merge;
+
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.plugins.MergePolicyPlugin;
+import com.yelp.nrtsearch.server.plugins.Plugin;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/** Creates the {@link MergePolicy} for an index writer from the merge policy name in settings. */
+public class MergePolicyCreator {
+  public static final String TIERED = "tiered";
+  public static final String REPLICATION_AWARE = "replication_aware";
+  public static final String DEFAULT_MERGE_POLICY = TIERED;
+
+  // only the built in merge policies, used if the creator was not initialized with the plugins
+  private static final MergePolicyCreator BUILT_IN = new MergePolicyCreator(null);
+  private static volatile MergePolicyCreator instance;
+
+  private final Map<String, MergePolicyProvider<? extends MergePolicy>> mergePolicyMap =
+      new HashMap<>();
+
+  public MergePolicyCreator(LuceneServerConfiguration configuration) {
+    register(
+        TIERED,
+        settings -> {
+          TieredMergePolicy mergePolicy = new TieredMergePolicy();
+          settings.applyTo(mergePolicy);
+          return mergePolicy;
+        });
+    register(REPLICATION_AWARE, ReplicationAwareMergePolicy::new);
+  }
+
+  /**
+   * Create a new merge policy.
+   *
+   * @param name registered merge policy name
+   * @param settings index merge settings
+   * @throws IllegalArgumentException if the name is not registered, or the settings are invalid
+   */
+  public MergePolicy createMergePolicy(String name, MergePolicySettings settings) {
+    MergePolicyProvider<? extends MergePolicy> provider = mergePolicyMap.get(name);
+    if (provider == null) {
+      throw new IllegalArgumentException("Unknown merge policy: " + name);
+    }
+    return provider.get(settings);
+  }
+
+  private void register(Map<String, MergePolicyProvider<? extends MergePolicy>> mergePolicies) {
+    mergePolicies.forEach(this::register);
+  }
+
+  private void register(String name, MergePolicyProvider<? extends MergePolicy> provider) {
+    if (mergePolicyMap.containsKey(name)) {
+      throw new IllegalArgumentException("Merge policy " + name + " already exists");
+    }
+    mergePolicyMap.put(name, provider);
+  }
+
+  public static void initialize(LuceneServerConfiguration configuration, Iterable<Plugin> plugins) {
+    instance = new MergePolicyCreator(configuration);
+    for (Plugin plugin : plugins) {
+      if (plugin instanceof MergePolicyPlugin) {
+        MergePolicyPlugin mergePolicyPlugin = (MergePolicyPlugin) plugin;
+        instance.register(mergePolicyPlugin.getMergePolicies());
+      }
+    }
+  }
+
+  /**
+   * Get the creator initialized with the plugins, or one with only the built in merge policies,
+   * including the {@link #DEFAULT_MERGE_POLICY}, if {@link #initialize} was not called, such as
+   * when an index is opened without starting a server.
+   */
+  public static MergePolicyCreator getInstance() {
+    MergePolicyCreator creator = instance;
+    return creator == null ? BUILT_IN : creator;
+  }
+}
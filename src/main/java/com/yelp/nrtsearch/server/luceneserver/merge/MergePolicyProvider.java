@@ -0,0 +1,27 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver.merge;
+
+/**
+ * Interface for creating a merge policy from the index merge settings. A new policy is created for
+ * each IndexWriter. This is used by plugins when defining custom merge policy registrations.
+ *
+ * @param <T>
+ */
+@FunctionalInterface
+public interface MergePolicyProvider<T> {
+  T get(MergePolicySettings settings);
+}
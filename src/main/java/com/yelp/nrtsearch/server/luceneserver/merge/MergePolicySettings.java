@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver.merge;
+
+import org.apache.lucene.index.TieredMergePolicy;
+
+/** Merge settings of an index. A value of 0 means the setting was not given. */
+public class MergePolicySettings {
+  public static final MergePolicySettings DEFAULT = new MergePolicySettings(0, 0, 0, 0);
+
+  private final double maxMergedSegmentMB;
+  private final double segmentsPerTier;
+  private final double deletesPctAllowed;
+  private final double maxPendingMergeMB;
+
+  public MergePolicySettings(
+      double maxMergedSegmentMB,
+      double segmentsPerTier,
+      double deletesPctAllowed,
+      double maxPendingMergeMB) {
+    this.maxMergedSegmentMB = maxMergedSegmentMB;
+    this.segmentsPerTier = segmentsPerTier;
+    this.deletesPctAllowed = deletesPctAllowed;
+    this.maxPendingMergeMB = maxPendingMergeMB;
+  }
+
+  public double getMaxMergedSegmentMB() {
+    return maxMergedSegmentMB;
+  }
+
+  public double getSegmentsPerTier() {
+    return segmentsPerTier;
+  }
+
+  public double getDeletesPctAllowed() {
+    return deletesPctAllowed;
+  }
+
+  public double getMaxPendingMergeMB() {
+    return maxPendingMergeMB;
+  }
+
+  /** Apply the settings that were given to a {@link TieredMergePolicy}. */
+  public void applyTo(TieredMergePolicy mergePolicy) {
+    if (maxMergedSegmentMB != 0) {
+      mergePolicy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+    }
+    if (segmentsPerTier != 0) {
+      mergePolicy.setSegmentsPerTier(segmentsPerTier);
+    }
+    if (deletesPctAllowed != 0) {
+      mergePolicy.setDeletesPctAllowed(deletesPctAllowed);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver.merge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * {@link TieredMergePolicy} for indices replicated with NRT replication. The primary pre-copies
+ * every merged segment to all replicas before the merge completes (see {@link
+ * com.yelp.nrtsearch.server.luceneserver.NRTPrimaryNode#preCopyMergedSegmentFiles}), so a segment
+ * being merged costs replication bandwidth that is shared with the copies of new NRT points.
+ *
+ * <p>To keep that cost bounded, this policy uses a smaller max merged segment size, and limits the
+ * total size of segments being merged at once, which includes merges that are still pre-copying.
+ * When natural merges have to wait for that budget, merges that reclaim the largest fraction of
+ * deleted documents are admitted first, and deletes are allowed to build up less than the default.
+ * Forced merges are not limited.
+ */
+public class ReplicationAwareMergePolicy extends TieredMergePolicy {
+  public static final double DEFAULT_MAX_MERGED_SEGMENT_MB = 1024;
+  public static final double DEFAULT_DELETES_PCT_ALLOWED = 20;
+  public static final double DEFAULT_MAX_PENDING_MERGE_MB = 2048;
+
+  private final long maxPendingMergeBytes;
+
+  public ReplicationAwareMergePolicy(MergePolicySettings settings) {
+    setMaxMergedSegmentMB(DEFAULT_MAX_MERGED_SEGMENT_MB);
+    setDeletesPctAllowed(DEFAULT_DELETES_PCT_ALLOWED);
+    settings.applyTo(this);
+    double maxPendingMergeMB =
+        settings.getMaxPendingMergeMB() != 0
+            ? settings.getMaxPendingMergeMB()
+            : DEFAULT_MAX_PENDING_MERGE_MB;
+    if (maxPendingMergeMB <= 0) {
+      throw new IllegalArgumentException(
+          "maxPendingMergeMB must be greater than 0, got: " + maxPendingMergeMB);
+    }
+    this.maxPendingMergeBytes = (long) (maxPendingMergeMB * 1024 * 1024);
+  }
+
+  public long getMaxPendingMergeBytes() {
+    return maxPendingMergeBytes;
+  }
+
+  @Override
+  public MergeSpecification findMerges(
+      MergeTrigger mergeTrigger, SegmentInfos infos, MergeContext mergeContext)
+      throws IOException {
+    return limitPendingMerges(super.findMerges(mergeTrigger, infos, mergeContext), mergeContext);
+  }
+
+  /**
+   * Keep only the merges that fit in the pending merge budget, taking the ones that reclaim the
+   * most deletes first. A merge is always allowed when nothing else is merging, so that a single
+   * merge larger than the budget cannot block merging forever.
+   */
+  MergeSpecification limitPendingMerges(MergeSpecification spec, MergeContext mergeContext)
+      throws IOException {
+    if (spec == null) {
+      return null;
+    }
+    long pendingBytes = 0;
+    for (SegmentCommitInfo info : mergeContext.getMergingSegments()) {
+      pendingBytes += info.sizeInBytes();
+    }
+
+    Map<OneMerge, Double> deletesRatios = new HashMap<>();
+    for (OneMerge merge : spec.merges) {
+      deletesRatios.put(merge, getDeletesRatio(merge, mergeContext));
+    }
+    List<OneMerge> merges = new ArrayList<>(spec.merges);
+    merges.sort(Comparator.comparing(deletesRatios::get, Comparator.reverseOrder()));
+
+    MergeSpecification limited = new MergeSpecification();
+    for (OneMerge merge : merges) {
+      long mergeBytes = 0;
+      for (SegmentCommitInfo info : merge.segments) {
+        mergeBytes += info.sizeInBytes();
+      }
+      if (pendingBytes > 0 && pendingBytes + mergeBytes > maxPendingMergeBytes) {
+        continue;
+      }
+      limited.add(merge);
+      pendingBytes += mergeBytes;
+    }
+    if (limited.merges.isEmpty()) {
+      if (verbose(mergeContext)) {
+        message(
+            "skip "
+                + spec.merges.size()
+                + " merges, pending merge bytes over budget: "
+                + maxPendingMergeBytes,
+            mergeContext);
+      }
+      return null;
+    }
+    return limited;
+  }
+
+  private static double getDeletesRatio(OneMerge merge, MergeContext mergeContext)
+      throws IOException {
+    long maxDoc = 0;
+    long deletes = 0;
+    for (SegmentCommitInfo info : merge.segments) {
+      maxDoc += info.info.maxDoc();
+      deletes += mergeContext.numDeletesToMerge(info);
+    }
+    return maxDoc == 0 ? 0 : (double) deletes / maxDoc;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.monitoring;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+
+/**
+ * Metrics for backups. Restores are labeled by resource and pipeline stage: download, decompress
+ * or extract, and stage throughput is the rate of bytes over the rate of seconds. Transfers to and
+ * from s3 are labeled by resource and operation: upload or download.
+ */
+public class BackupMetrics {
+  public static final Counter transferBytes =
+      Counter.build()
+          .name("nrt_backup_transfer_bytes_total")
+          .help("Bytes transferred to or from s3 for backups.")
+          .labelNames("resource", "operation")
+          .create();
+
+  public static final Counter restoreStageBytes =
+      Counter.build()
+          .name("nrt_restore_stage_bytes_total")
+          .help("Bytes processed by each stage of restoring a backup.")
+          .labelNames("resource", "stage")
+          .create();
+
+  public static final Counter restoreStageSeconds =
+      Counter.build()
+          .name("nrt_restore_stage_seconds_total")
+          .help("Time spent in each stage of restoring a backup, summed over parallel downloads.")
+          .labelNames("resource", "stage")
+          .create();
+
+  /** Add all backup metrics to the given registry. */
+  public static void register(CollectorRegistry registry) {
+    registry.register(transferBytes);
+    registry.register(restoreStageBytes);
+    registry.register(restoreStageSeconds);
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.monitoring;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/** Metrics for document indexing, labeled by index name. */
+public class IndexingMetrics {
+  public static final Gauge chunkSizeDocs =
+      Gauge.build()
+          .name("nrt_indexing_chunk_size_docs")
+          .help("Number of documents currently indexed per addDocuments chunk.")
+          .labelNames("index")
+          .create();
+
+  public static final Gauge avgDocSizeBytes =
+      Gauge.build()
+          .name("nrt_indexing_avg_doc_size_bytes")
+          .help("Moving average of serialized document size in bytes.")
+          .labelNames("index")
+          .create();
+
+  public static final Histogram chunkLatencySeconds =
+      Histogram.build()
+          .name("nrt_indexing_chunk_latency_seconds")
+          .help("Time taken to index one addDocuments chunk.")
+          .labelNames("index")
+          .create();
+
+  /** Add all indexing metrics to the given registry. */
+  public static void register(CollectorRegistry registry) {
+    registry.register(chunkSizeDocs);
+    registry.register(avgDocSizeBytes);
+    registry.register(chunkLatencySeconds);
+  }
+}
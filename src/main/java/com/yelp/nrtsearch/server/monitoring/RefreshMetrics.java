@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.monitoring;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/** Metrics for the decisions of the searcher refresh scheduler, labeled by index name. */
+public class RefreshMetrics {
+  public static final Gauge refreshIntervalSeconds =
+      Gauge.build()
+          .name("nrt_refresh_interval_seconds")
+          .help("Delay chosen between the start of the last refresh and the next one.")
+          .labelNames("index")
+          .create();
+
+  public static final Counter refreshCount =
+      Counter.build()
+          .name("nrt_refresh_total")
+          .help("Number of searcher refreshes, by the reason for the refresh.")
+          .labelNames("index", "reason")
+          .create();
+
+  public static final Counter skippedRefreshCount =
+      Counter.build()
+          .name("nrt_refresh_skipped_total")
+          .help("Number of refreshes that found no index changes.")
+          .labelNames("index")
+          .create();
+
+  public static final Counter refreshRequestCount =
+      Counter.build()
+          .name("nrt_refresh_requests_total")
+          .help("Number of explicit refresh requests, several requests may share one refresh.")
+          .labelNames("index")
+          .create();
+
+  public static final Counter backoffCount =
+      Counter.build()
+          .name("nrt_refresh_backoff_total")
+          .help("Number of refresh delays that were increased, by the cause of the increase.")
+          .labelNames("index", "cause")
+          .create();
+
+  public static final Histogram refreshLatencySeconds =
+      Histogram.build()
+          .name("nrt_refresh_latency_seconds")
+          .help("Time taken to refresh the searcher.")
+          .labelNames("index")
+          .create();
+
+  /** Add all refresh metrics to the given registry. */
+  public static void register(CollectorRegistry registry) {
+    registry.register(refreshIntervalSeconds);
+    registry.register(refreshCount);
+    registry.register(skippedRefreshCount);
+    registry.register(refreshRequestCount);
+    registry.register(backoffCount);
+    registry.register(refreshLatencySeconds);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.monitoring;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/** Metrics for NRT replication from a primary to its replicas, labeled by index name. */
+public class ReplicationMetrics {
+  public static final Histogram newNRTPointLatencySeconds =
+      Histogram.build()
+          .name("nrt_new_nrt_point_latency_seconds")
+          .help("Time for a replica to acknowledge a new NRT point sent by the primary.")
+          .labelNames("index")
+          .create();
+
+  public static final Counter newNRTPointFailureCount =
+      Counter.build()
+          .name("nrt_new_nrt_point_failures_total")
+          .help("Number of new NRT point notifications that failed, by grpc status code.")
+          .labelNames("index", "code")
+          .create();
+
+  public static final Counter fileBytesCount =
+      Counter.build()
+          .name("nrt_replication_file_bytes_total")
+          .help("Bytes of index files sent to replicas, before compression.")
+          .labelNames("index")
+          .create();
+
+  public static final Counter sentBytesCount =
+      Counter.build()
+          .name("nrt_replication_sent_bytes_total")
+          .help("Bytes of index file chunks sent to replicas, after compression.")
+          .labelNames("index")
+          .create();
+
+  public static final Histogram fileCompressionRatio =
+      Histogram.build()
+          .name("nrt_replication_file_compression_ratio")
+          .help("Ratio of file bytes to sent bytes, for files compressed for replicas.")
+          .labelNames("index")
+          .buckets(1, 1.25, 1.5, 2, 3, 4, 6, 8)
+          .create();
+
+  public static final Gauge copyJobsQueued =
+      Gauge.build()
+          .name("nrt_copy_jobs_queued")
+          .help("Number of copy jobs queued on a replica, by priority.")
+          .labelNames("index", "priority")
+          .create();
+
+  public static final Gauge copyBytesPending =
+      Gauge.build()
+          .name("nrt_copy_bytes_pending")
+          .help("Bytes left to copy by the queued copy jobs of a replica.")
+          .labelNames("index")
+          .create();
+
+  public static final Gauge copyOldestJobAgeSeconds =
+      Gauge.build()
+          .name("nrt_copy_oldest_job_age_seconds")
+          .help("Age of the oldest queued copy job of a replica, by priority.")
+          .labelNames("index", "priority")
+          .create();
+
+  public static final Histogram copyJobDurationSeconds =
+      Histogram.build()
+          .name("nrt_copy_job_duration_seconds")
+          .help("Time from creating a copy job on a replica until it is done, by priority.")
+          .labelNames("index", "priority")
+          .create();
+
+  public static final Counter copyReusedBytesCount =
+      Counter.build()
+          .name("nrt_copy_reused_bytes_total")
+          .help(
+              "Bytes of index files a replica restored from a backup did not copy when catching "
+                  + "up with its primary, because the backup already had them.")
+          .labelNames("index")
+          .create();
+
+  public static final Counter copyJobSourceCount =
+      Counter.build()
+          .name("nrt_copy_job_source_total")
+          .help("Copy jobs given a peer replica, by whether they copied from the peer or primary.")
+          .labelNames("index", "source")
+          .create();
+
+  public static final Counter peerCopyFallbackCount =
+      Counter.build()
+          .name("nrt_peer_copy_fallback_total")
+          .help("Files a replica could not copy from its peer and copied from the primary instead.")
+          .labelNames("index")
+          .create();
+
+  public static final Gauge replicaLagVersions =
+      Gauge.build()
+          .name("nrt_replica_lag_versions")
+          .help("Versions the searcher of a replica is behind the latest version of its primary.")
+          .labelNames("index")
+          .create();
+
+  public static final Gauge replicaLagSeconds =
+      Gauge.build()
+          .name("nrt_replica_lag_seconds")
+          .help(
+              "Time the oldest new NRT point not yet searchable on a replica has been waiting, "
+                  + "or the time without contact to the primary beyond the keepalive interval.")
+          .labelNames("index")
+          .create();
+
+  /** Add all replication metrics to the given registry. */
+  public static void register(CollectorRegistry registry) {
+    registry.register(newNRTPointLatencySeconds);
+    registry.register(newNRTPointFailureCount);
+    registry.register(fileBytesCount);
+    registry.register(sentBytesCount);
+    registry.register(fileCompressionRatio);
+    registry.register(copyJobsQueued);
+    registry.register(copyBytesPending);
+    registry.register(copyOldestJobAgeSeconds);
+    registry.register(copyJobDurationSeconds);
+    registry.register(copyReusedBytesCount);
+    registry.register(copyJobSourceCount);
+    registry.register(peerCopyFallbackCount);
+    registry.register(replicaLagVersions);
+    registry.register(replicaLagSeconds);
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.plugins;
+
+import com.yelp.nrtsearch.server.luceneserver.merge.MergePolicyProvider;
+import java.util.Collections;
+import java.util.Map;
+import org.apache.lucene.index.MergePolicy;
+
+/**
+ * Plugin interface for providing custom {@link MergePolicy} implementations. The policy name can
+ * be used as the mergePolicy in the index settings.
+ */
+public interface MergePolicyPlugin {
+
+  /**
+   * Provides a set of custom {@link MergePolicy} to register with the {@link
+   * com.yelp.nrtsearch.server.luceneserver.merge.MergePolicyCreator}.
+   *
+   * @return registration Map for merge policy name to {@link MergePolicyProvider}
+   */
+  default Map<String, MergePolicyProvider<? extends MergePolicy>> getMergePolicies() {
+    return Collections.emptyMap();
+  }
+}
@@ -24,6 +24,22 @@ public interface Archiver {
 
   String upload(final String serviceName, final String resource, Path path) throws IOException;
 
+  /**
+   * Upload the files in a directory individually, skipping files already uploaded for this
+   * resource with the same name and checksum, and write a manifest referencing them. The returned
+   * version can be blessed and downloaded the same way as one from {@link #upload}.
+   */
+  String uploadIncremental(final String serviceName, final String resource, Path path)
+      throws IOException;
+
+  /**
+   * Delete incremental versions of a resource older than the latest {@code versionsToKeep}
+   * blessed ones, and the uploaded files no remaining manifest references. Must not run
+   * concurrently with {@link #uploadIncremental} for the same resource.
+   */
+  void cleanupIncremental(final String serviceName, final String resource, int versionsToKeep)
+      throws IOException;
+
   boolean blessVersion(final String serviceName, final String resource, String versionHash)
       throws IOException;
 
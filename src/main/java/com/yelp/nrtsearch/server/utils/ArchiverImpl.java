@@ -19,38 +19,59 @@ import com.amazonaws.event.ProgressEvent;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.PersistableTransfer;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.amazonaws.services.s3.transfer.Upload;
 import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.google.gson.Gson;
 import com.google.inject.Inject;
-import java.io.FileInputStream;
+import com.yelp.nrtsearch.server.monitoring.BackupMetrics;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import net.jpountz.lz4.LZ4FrameInputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,6 +81,17 @@ public class ArchiverImpl implements Archiver {
   private static Logger logger = LoggerFactory.getLogger(ArchiverImpl.class);
   private static final String CURRENT_VERSION_NAME = "current";
   private static final String TMP_SUFFIX = ".tmp";
+  // versions uploaded with uploadIncremental are manifests rather than tars
+  static final String MANIFEST_SUFFIX = ".manifest";
+  private static final String FILES_DIR = "_files";
+  private static final Gson GSON = new Gson();
+  static final int DEFAULT_DOWNLOAD_CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final int DOWNLOAD_CHUNKS_IN_FLIGHT = NUM_S3_THREADS;
+  // minimum part size, larger sources get larger parts to stay under the s3 part limit
+  static final int DEFAULT_UPLOAD_PART_BYTES = 16 * 1024 * 1024;
+  // parts the source dir size is spread over, leaving room for tar headers and incompressible data
+  private static final int TARGET_UPLOAD_PARTS = MultipartUploadOutputStream.MAX_PARTS / 2;
+  private static final int UPLOAD_PARTS_IN_FLIGHT = 8;
 
   private final AmazonS3 s3;
   private final String bucketName;
@@ -67,10 +99,29 @@ public class ArchiverImpl implements Archiver {
   private final Tar tar;
   private final VersionManager versionManger;
   private final TransferManager transferManager;
+  private final ExecutorService transferExecutor;
+  private final int downloadChunkBytes;
+  private final int uploadPartBytes;
 
   @Inject
   public ArchiverImpl(
       final AmazonS3 s3, final String bucketName, final Path archiverDirectory, final Tar tar) {
+    this(
+        s3,
+        bucketName,
+        archiverDirectory,
+        tar,
+        DEFAULT_DOWNLOAD_CHUNK_BYTES,
+        DEFAULT_UPLOAD_PART_BYTES);
+  }
+
+  public ArchiverImpl(
+      final AmazonS3 s3,
+      final String bucketName,
+      final Path archiverDirectory,
+      final Tar tar,
+      final int downloadChunkBytes,
+      final int uploadPartBytes) {
     this.s3 = s3;
     this.transferManager =
         TransferManagerBuilder.standard()
@@ -81,6 +132,18 @@ public class ArchiverImpl implements Archiver {
     this.archiverDirectory = archiverDirectory;
     this.tar = tar;
     this.versionManger = new VersionManager(s3, bucketName);
+    this.downloadChunkBytes = downloadChunkBytes;
+    this.uploadPartBytes = uploadPartBytes;
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            NUM_S3_THREADS,
+            NUM_S3_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamedThreadFactory("ArchiverTransfer"));
+    executor.allowCoreThreadTimeOut(true);
+    this.transferExecutor = executor;
   }
 
   @Override
@@ -103,7 +166,11 @@ public class ArchiverImpl implements Archiver {
         serviceName,
         versionHash,
         versionDirectory);
-    getVersionContent(serviceName, resource, versionHash, versionDirectory);
+    if (isManifest(versionHash)) {
+      getManifestContent(serviceName, resource, versionHash, versionDirectory);
+    } else {
+      getVersionContent(serviceName, resource, versionHash, versionDirectory);
+    }
     try {
       logger.info("Point current version symlink to new resource {}", resource);
       Files.createSymbolicLink(tempCurrentLink, relativVersionDirectory);
@@ -146,35 +213,188 @@ public class ArchiverImpl implements Archiver {
               sourceDir, serviceName, resource));
     }
 
-    if (!Files.exists(archiverDirectory)) {
-      logger.info("Archiver directory doesn't exist: " + archiverDirectory + " creating new ");
-      Files.createDirectories(archiverDirectory);
-    }
-    Path destPath = archiverDirectory.resolve(getTmpName());
+    // the tar is compressed straight into the parts of a multipart upload, which are uploaded
+    // while the rest of the tar is built
+    final String versionHash = UUID.randomUUID().toString();
+    final String absoluteResourcePath =
+        String.format("%s/%s/%s", serviceName, resource, versionHash);
+    final MultipartUploadOutputStream uploadStream =
+        new MultipartUploadOutputStream(
+            s3,
+            bucketName,
+            absoluteResourcePath,
+            getUploadPartBytes(sourceDir),
+            UPLOAD_PARTS_IN_FLIGHT,
+            transferExecutor,
+            new S3ProgressListenerImpl(serviceName, resource, "upload"));
     try {
-      tar.buildTar(sourceDir, destPath);
-      String versionHash = UUID.randomUUID().toString();
-      uploadTarWithMetadata(serviceName, resource, versionHash, destPath);
-      return versionHash;
-    } finally {
-      Files.deleteIfExists(destPath);
+      final TarArchiveOutputStream tarArchiveOutputStream =
+          new TarArchiveOutputStream(tar.compress(uploadStream));
+      tar.buildTar(tarArchiveOutputStream, sourceDir);
+      // completes the upload
+      tarArchiveOutputStream.close();
+    } catch (IOException | RuntimeException e) {
+      uploadStream.abort();
+      throw e;
     }
+    logger.info("Upload completed ");
+    return versionHash;
   }
 
-  private void uploadTarWithMetadata(
-      String serviceName, String resource, String versionHash, Path path) throws IOException {
-    final String absoluteResourcePath =
-        String.format("%s/%s/%s", serviceName, resource, versionHash);
-    PutObjectRequest request =
-        new PutObjectRequest(bucketName, absoluteResourcePath, path.toFile());
-    request.setGeneralProgressListener(new S3ProgressListenerImpl(serviceName, resource, "upload"));
-    Upload upload = transferManager.upload(request);
+  /** Part size to upload a tar of the source dir in about {@link #TARGET_UPLOAD_PARTS} parts. */
+  int getUploadPartBytes(Path sourceDir) throws IOException {
+    long sourceBytes = 0;
+    try (Stream<Path> stream = Files.walk(sourceDir.toRealPath())) {
+      for (Path path : (Iterable<Path>) stream::iterator) {
+        if (Files.isRegularFile(path)) {
+          sourceBytes += Files.size(path);
+        }
+      }
+    }
+    long partBytes = (sourceBytes + TARGET_UPLOAD_PARTS - 1) / TARGET_UPLOAD_PARTS;
+    return (int)
+        Math.max(uploadPartBytes, Math.min(partBytes, MultipartUploadOutputStream.MAX_PART_BYTES));
+  }
+
+  @Override
+  public String uploadIncremental(final String serviceName, final String resource, Path sourceDir)
+      throws IOException {
+    if (!Files.exists(sourceDir)) {
+      throw new IOException(
+          String.format(
+              "Source directory %s, for service %s, and resource %s does not exist",
+              sourceDir, serviceName, resource));
+    }
+    final String filesPrefix = getFilesPrefix(serviceName, resource);
+    // the source dir may be a symlink to a restored version, walk the real dir
+    final Path realSourceDir = sourceDir.toRealPath();
+    // paths start with the source dir name, the same layout a tar of the source dir extracts to
+    final String rootName = sourceDir.getFileName().toString();
+    List<Path> paths;
+    try (Stream<Path> stream = Files.walk(realSourceDir)) {
+      paths = stream.collect(Collectors.toList());
+    }
+
+    Manifest manifest = new Manifest();
+    Set<String> uploadedFiles = new HashSet<>();
+    List<Upload> uploads = new ArrayList<>();
+    S3ProgressListenerImpl progressListener =
+        new S3ProgressListenerImpl(serviceName, resource, "upload");
+    long uploadedBytes = 0;
+    long reusedBytes = 0;
+    for (Path path : paths) {
+      String relativePath = getManifestPath(rootName, realSourceDir.relativize(path));
+      if (Files.isDirectory(path)) {
+        manifest.directories.add(relativePath);
+        continue;
+      }
+      String fileName;
+      long fileSize;
+      try {
+        fileName = path.getFileName() + "_" + Long.toHexString(getChecksum(path));
+        fileSize = Files.size(path);
+      } catch (NoSuchFileException e) {
+        // not part of the commit being backed up, e.g. merged away since listing
+        logger.info("Skipping file deleted during backup: {}", path);
+        continue;
+      }
+      manifest.files.put(relativePath, fileName);
+      if (!uploadedFiles.add(fileName)) {
+        continue;
+      }
+      if (s3.doesObjectExist(bucketName, filesPrefix + fileName)) {
+        reusedBytes += fileSize;
+        continue;
+      }
+      PutObjectRequest request =
+          new PutObjectRequest(bucketName, filesPrefix + fileName, path.toFile());
+      request.setGeneralProgressListener(progressListener);
+      uploads.add(transferManager.upload(request));
+      uploadedBytes += fileSize;
+    }
     try {
-      upload.waitForUploadResult();
-      logger.info("Upload completed ");
+      for (Upload upload : uploads) {
+        upload.waitForUploadResult();
+      }
     } catch (InterruptedException e) {
       throw new IOException("Error while uploading to s3. ", e);
     }
+    logger.info(
+        "Uploaded {} files, {} bytes for service {} resource {}, reused {} bytes",
+        uploads.size(),
+        uploadedBytes,
+        serviceName,
+        resource,
+        reusedBytes);
+
+    String versionHash = UUID.randomUUID().toString() + MANIFEST_SUFFIX;
+    s3.putObject(
+        bucketName,
+        String.format("%s/%s/%s", serviceName, resource, versionHash),
+        GSON.toJson(manifest));
+    return versionHash;
+  }
+
+  @Override
+  public void cleanupIncremental(
+      final String serviceName, final String resource, int versionsToKeep) throws IOException {
+    if (versionsToKeep <= 0) {
+      throw new IllegalArgumentException("versionsToKeep must be > 0, got: " + versionsToKeep);
+    }
+    final long latestVersion = versionManger.getLatestVersionNumber(serviceName, resource);
+    if (latestVersion < 0) {
+      return;
+    }
+    Set<String> keptVersions = new HashSet<>();
+    for (long version = Math.max(0, latestVersion - versionsToKeep + 1);
+        version <= latestVersion;
+        ++version) {
+      String versionKey = String.format("%s/_version/%s/%s", serviceName, resource, version);
+      if (s3.doesObjectExist(bucketName, versionKey)) {
+        keptVersions.add(getVersionString(serviceName, resource, String.valueOf(version)));
+      }
+    }
+
+    final String resourcePrefix = String.format("%s/%s/", serviceName, resource);
+    List<S3ObjectSummary> manifests =
+        listObjects(resourcePrefix, DELIMITER).stream()
+            .filter(summary -> isManifest(summary.getKey()))
+            .collect(Collectors.toList());
+    // manifests written after the latest blessed one may belong to backups not blessed yet
+    Date newestKept = null;
+    for (S3ObjectSummary summary : manifests) {
+      if (keptVersions.contains(summary.getKey().substring(resourcePrefix.length()))
+          && (newestKept == null || summary.getLastModified().after(newestKept))) {
+        newestKept = summary.getLastModified();
+      }
+    }
+    if (newestKept == null) {
+      logger.warn("No manifest found for kept versions of {} {}", serviceName, resource);
+      return;
+    }
+
+    Set<String> referencedFiles = new HashSet<>();
+    for (S3ObjectSummary summary : manifests) {
+      String versionHash = summary.getKey().substring(resourcePrefix.length());
+      if (keptVersions.contains(versionHash) || summary.getLastModified().after(newestKept)) {
+        referencedFiles.addAll(readManifest(serviceName, resource, versionHash).files.values());
+      } else {
+        logger.info("Deleting old backup version: {}", summary.getKey());
+        s3.deleteObject(bucketName, summary.getKey());
+      }
+    }
+
+    final String filesPrefix = getFilesPrefix(serviceName, resource);
+    for (S3ObjectSummary summary : listObjects(filesPrefix, null)) {
+      if (summary.getLastModified().after(newestKept)) {
+        // may be uploaded by a backup that has not written its manifest yet
+        continue;
+      }
+      if (!referencedFiles.contains(summary.getKey().substring(filesPrefix.length()))) {
+        logger.info("Deleting unreferenced backup file: {}", summary.getKey());
+        s3.deleteObject(bucketName, summary.getKey());
+      }
+    }
   }
 
   @Override
@@ -193,53 +413,191 @@ public class ArchiverImpl implements Archiver {
     }
   }
 
+  /**
+   * Download and extract a tar version. The tar is fetched with parallel ranged GETs and
+   * decompressed and extracted as it streams in, without a local copy of the archive.
+   */
   private void getVersionContent(
       final String serviceName, final String resource, final String hash, final Path destDirectory)
       throws IOException {
+    if (Files.exists(destDirectory)) {
+      logger.info("Directory {} already exists, not re-downloading from Archiver", destDirectory);
+      return;
+    }
     final String absoluteResourcePath = String.format("%s/%s/%s", serviceName, resource, hash);
-    final Path parentDirectory = destDirectory.getParent();
-    final Path tmpFile = parentDirectory.resolve(getTmpName());
-
-    Download download =
-        transferManager.download(
-            new GetObjectRequest(bucketName, absoluteResourcePath),
-            tmpFile.toFile(),
-            new S3ProgressListenerImpl(serviceName, resource, "download"));
+    final Path tmpDirectory = destDirectory.getParent().resolve(getTmpName());
+    final long startNanos = System.nanoTime();
+    try (final ParallelRangeInputStream s3InputStream =
+            new ParallelRangeInputStream(
+                s3,
+                bucketName,
+                absoluteResourcePath,
+                downloadChunkBytes,
+                DOWNLOAD_CHUNKS_IN_FLIGHT,
+                transferExecutor);
+        final TimedInputStream decompressedInputStream =
+            new TimedInputStream(tar.decompress(s3InputStream));
+        final TarArchiveInputStream tarArchiveInputStream =
+            new TarArchiveInputStream(decompressedInputStream)) {
+      tar.extractTar(tarArchiveInputStream, tmpDirectory);
+      Files.move(tmpDirectory, destDirectory);
+
+      // decompression runs in the reads of the tar stream, less any wait for downloads, and
+      // extraction is everything else
+      long totalNanos = System.nanoTime() - startNanos;
+      long decompressNanos = decompressedInputStream.readNanos - s3InputStream.getWaitNanos();
+      long extractNanos = totalNanos - decompressedInputStream.readNanos;
+      recordRestoreStage(
+          resource, "download", s3InputStream.getObjectSize(), s3InputStream.getFetchNanos());
+      recordRestoreStage(
+          resource, "decompress", decompressedInputStream.bytesRead, decompressNanos);
+      recordRestoreStage(resource, "extract", decompressedInputStream.bytesRead, extractNanos);
+      logger.info(
+          "S3 Download complete, {} bytes in {} ms",
+          s3InputStream.getObjectSize(),
+          TimeUnit.NANOSECONDS.toMillis(totalNanos));
+    } finally {
+      if (Files.exists(tmpDirectory)) {
+        FileUtils.deleteDirectory(tmpDirectory.toFile());
+      }
+    }
+  }
+
+  private static void recordRestoreStage(String resource, String stage, long bytes, long nanos) {
+    BackupMetrics.restoreStageBytes.labels(resource, stage).inc(bytes);
+    BackupMetrics.restoreStageSeconds.labels(resource, stage).inc(Math.max(0, nanos) / 1e9);
+  }
+
+  private void getManifestContent(
+      final String serviceName, final String resource, final String hash, final Path destDirectory)
+      throws IOException {
+    if (Files.exists(destDirectory)) {
+      logger.info("Directory {} already exists, not re-downloading from Archiver", destDirectory);
+      return;
+    }
+    final Manifest manifest = readManifest(serviceName, resource, hash);
+    final String filesPrefix = getFilesPrefix(serviceName, resource);
+    final Path tmpDirectory = destDirectory.getParent().resolve(getTmpName());
+    final S3ProgressListenerImpl progressListener =
+        new S3ProgressListenerImpl(serviceName, resource, "download");
+    final List<Download> downloads = new ArrayList<>();
     try {
-      download.waitForCompletion();
-      logger.info("S3 Download complete");
+      for (String directory : manifest.directories) {
+        Files.createDirectories(tmpDirectory.resolve(directory));
+      }
+      for (Map.Entry<String, String> entry : manifest.files.entrySet()) {
+        Path destFile = tmpDirectory.resolve(entry.getKey());
+        Files.createDirectories(destFile.getParent());
+        downloads.add(
+            transferManager.download(
+                new GetObjectRequest(bucketName, filesPrefix + entry.getValue()),
+                destFile.toFile(),
+                progressListener));
+      }
+      for (Download download : downloads) {
+        download.waitForCompletion();
+      }
+      logger.info("S3 Download complete, {} files", downloads.size());
+      Files.move(tmpDirectory, destDirectory);
     } catch (InterruptedException e) {
       throw new IOException("S3 Download failed", e);
+    } finally {
+      for (Download download : downloads) {
+        if (!download.isDone()) {
+          download.abort();
+        }
+      }
+      if (Files.exists(tmpDirectory)) {
+        FileUtils.deleteDirectory(tmpDirectory.toFile());
+      }
     }
+  }
 
-    final InputStream s3InputStreem = new FileInputStream(tmpFile.toFile());
-    final InputStream compressorInputStream;
-    if (tar.getCompressionMode().equals(Tar.CompressionMode.LZ4)) {
-      compressorInputStream = new LZ4FrameInputStream(s3InputStreem);
-    } else {
-      compressorInputStream = new GzipCompressorInputStream(s3InputStreem, true);
+  private Manifest readManifest(
+      final String serviceName, final String resource, final String versionHash)
+      throws IOException {
+    final String manifestKey = String.format("%s/%s/%s", serviceName, resource, versionHash);
+    try (final S3Object s3Object = s3.getObject(bucketName, manifestKey)) {
+      return GSON.fromJson(IOUtils.toString(s3Object.getObjectContent()), Manifest.class);
+    }
+  }
+
+  private List<S3ObjectSummary> listObjects(String prefix, String delimiter) {
+    ListObjectsRequest listObjectsRequest =
+        new ListObjectsRequest()
+            .withBucketName(bucketName)
+            .withPrefix(prefix)
+            .withDelimiter(delimiter);
+    ObjectListing listing = s3.listObjects(listObjectsRequest);
+    List<S3ObjectSummary> summaries = new ArrayList<>(listing.getObjectSummaries());
+    while (listing.isTruncated()) {
+      listing = s3.listNextBatchOfObjects(listing);
+      summaries.addAll(listing.getObjectSummaries());
     }
-    try (final TarArchiveInputStream tarArchiveInputStream =
-        new TarArchiveInputStream(compressorInputStream); ) {
-      if (Files.exists(destDirectory)) {
-        logger.info("Directory {} already exists, not re-downloading from Archiver", destDirectory);
-        return;
+    return summaries;
+  }
+
+  private static String getFilesPrefix(String serviceName, String resource) {
+    return String.format("%s/%s/%s/", serviceName, resource, FILES_DIR);
+  }
+
+  private static String getManifestPath(String rootName, Path relativePath) {
+    List<String> parts = new ArrayList<>();
+    parts.add(rootName);
+    if (!relativePath.toString().isEmpty()) {
+      for (Path part : relativePath) {
+        parts.add(part.toString());
       }
-      final Path tmpDirectory = parentDirectory.resolve(getTmpName());
-      try {
-        tar.extractTar(tarArchiveInputStream, tmpDirectory);
-        Files.move(tmpDirectory, destDirectory);
-      } finally {
-        if (Files.exists(tmpDirectory)) {
-          FileUtils.deleteDirectory(tmpDirectory.toFile());
+    }
+    return String.join(DELIMITER, parts);
+  }
+
+  static boolean isManifest(String versionHash) {
+    return versionHash.endsWith(MANIFEST_SUFFIX);
+  }
+
+  /**
+   * Checksum identifying the content of a file. For lucene files this is the checksum already in
+   * the codec footer, so only the last few bytes are read, other files are checksummed in full.
+   */
+  static long getChecksum(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size >= CodecUtil.footerLength()) {
+        ByteBuffer footer = ByteBuffer.allocate(CodecUtil.footerLength());
+        while (footer.hasRemaining()) {
+          if (channel.read(footer, size - footer.remaining()) < 0) {
+            break;
+          }
         }
-        if (Files.exists(tmpFile)) {
-          Files.delete(tmpFile);
+        footer.flip();
+        if (footer.remaining() == CodecUtil.footerLength()
+            && footer.getInt() == CodecUtil.FOOTER_MAGIC
+            && footer.getInt() == 0) {
+          long checksum = footer.getLong();
+          if ((checksum & 0xFFFFFFFF00000000L) == 0) {
+            return checksum;
+          }
         }
       }
+      CRC32 crc = new CRC32();
+      ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+      channel.position(0);
+      while (channel.read(buffer) > 0) {
+        buffer.flip();
+        crc.update(buffer);
+        buffer.clear();
+      }
+      return crc.getValue();
     }
   }
 
+  /** Contents of an incremental version, paths use '/' and are relative to the download dir. */
+  static class Manifest {
+    List<String> directories = new ArrayList<>();
+    Map<String, String> files = new TreeMap<>();
+  }
+
   private String getTmpName() {
     return UUID.randomUUID().toString() + TMP_SUFFIX;
   }
@@ -281,6 +639,38 @@ public class ArchiverImpl implements Archiver {
     }
   }
 
+  /** Counts the bytes read from a stream and the time spent reading them. */
+  private static class TimedInputStream extends FilterInputStream {
+    private long bytesRead = 0;
+    private long readNanos = 0;
+
+    TimedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = System.nanoTime();
+      int b = super.read();
+      readNanos += System.nanoTime() - start;
+      if (b >= 0) {
+        bytesRead++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      int read = super.read(b, off, len);
+      readNanos += System.nanoTime() - start;
+      if (read > 0) {
+        bytesRead += read;
+      }
+      return read;
+    }
+  }
+
   private static class S3ProgressListenerImpl implements S3ProgressListener {
     private static Logger logger = LoggerFactory.getLogger(S3ProgressListenerImpl.class);
 
@@ -308,6 +698,11 @@ public class ArchiverImpl implements Archiver {
     @Override
     public void progressChanged(ProgressEvent progressEvent) {
       long totalBytes = totalBytesTransferred.addAndGet(progressEvent.getBytesTransferred());
+      if (progressEvent.getBytesTransferred() > 0) {
+        BackupMetrics.transferBytes
+            .labels(resource, operation)
+            .inc(progressEvent.getBytesTransferred());
+      }
 
       boolean acquired = lock.tryAcquire();
 
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.utils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes to an S3 object with a multipart upload, uploading each part in parallel as soon as it
+ * is full. Part buffers come from a pool of {@code partsInFlight} buffers, so a writer faster
+ * than the uploads blocks instead of buffering the whole object. The upload is completed on
+ * {@link #close()}; on any error it is aborted instead, so a partial object is never written.
+ *
+ * <p>S3 allows at most {@link #MAX_PARTS} parts, so the part size doubles every {@link
+ * #PARTS_PER_SIZE_STEP} parts, up to {@link #MAX_PART_BYTES}. Writing more than fits in the last
+ * part fails before any part past the limit is started.
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+  private static final Logger logger = LoggerFactory.getLogger(MultipartUploadOutputStream.class);
+  static final int MAX_PART_ATTEMPTS = 3;
+  public static final int MAX_PARTS = 10000;
+  static final int PARTS_PER_SIZE_STEP = 2000;
+  public static final int MAX_PART_BYTES = 1024 * 1024 * 1024;
+  private static final long RETRY_BACKOFF_MS = 1000;
+
+  private final AmazonS3 s3;
+  private final String bucketName;
+  private final String key;
+  private final String uploadId;
+  private final int partBytes;
+  private final int partsInFlight;
+  private final ExecutorService executor;
+  private final ProgressListener progressListener;
+  private final BlockingQueue<byte[]> freeBuffers;
+  private final List<Future<PartETag>> parts = new ArrayList<>();
+
+  private int allocatedBuffers = 0;
+  private byte[] currentBuffer;
+  private int currentPosition;
+  private boolean closed = false;
+  private boolean aborted = false;
+  private volatile Throwable partFailure;
+
+  public MultipartUploadOutputStream(
+      AmazonS3 s3,
+      String bucketName,
+      String key,
+      int partBytes,
+      int partsInFlight,
+      ExecutorService executor) {
+    this(s3, bucketName, key, partBytes, partsInFlight, executor, ProgressListener.NOOP);
+  }
+
+  /**
+   * @param partBytes size of the first parts, later parts get larger
+   * @param progressListener notified of the bytes sent for each part
+   */
+  public MultipartUploadOutputStream(
+      AmazonS3 s3,
+      String bucketName,
+      String key,
+      int partBytes,
+      int partsInFlight,
+      ExecutorService executor,
+      ProgressListener progressListener) {
+    if (partBytes <= 0 || partsInFlight <= 0) {
+      throw new IllegalArgumentException(
+          String.format(
+              "partBytes and partsInFlight must be > 0, got: %d, %d", partBytes, partsInFlight));
+    }
+    this.s3 = s3;
+    this.bucketName = bucketName;
+    this.key = key;
+    this.partBytes = partBytes;
+    this.partsInFlight = partsInFlight;
+    this.executor = executor;
+    this.progressListener = progressListener;
+    this.freeBuffers = new ArrayBlockingQueue<>(partsInFlight);
+    this.uploadId =
+        s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key))
+            .getUploadId();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureBuffer();
+    currentBuffer[currentPosition++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      ensureBuffer();
+      int toCopy = Math.min(len, currentBuffer.length - currentPosition);
+      System.arraycopy(b, off, currentBuffer, currentPosition, toCopy);
+      currentPosition += toCopy;
+      off += toCopy;
+      len -= toCopy;
+    }
+  }
+
+  /** Upload the last part and complete the upload, or abort it if any part failed. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (aborted) {
+      throw new IOException("Upload aborted: " + key);
+    }
+    try {
+      // an empty object is still one (empty) part
+      if (currentBuffer != null || parts.isEmpty()) {
+        submitPart();
+      }
+      List<PartETag> partETags = new ArrayList<>();
+      for (Future<PartETag> part : parts) {
+        partETags.add(getPart(part));
+      }
+      partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+      s3.completeMultipartUpload(
+          new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+      logger.info("Uploaded {} in {} parts", key, partETags.size());
+    } catch (IOException | RuntimeException e) {
+      abort();
+      throw e;
+    }
+  }
+
+  /** Stop uploading and discard the parts uploaded so far. */
+  public void abort() {
+    if (aborted) {
+      return;
+    }
+    aborted = true;
+    closed = true;
+    for (Future<PartETag> part : parts) {
+      part.cancel(true);
+    }
+    try {
+      s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+    } catch (AmazonClientException e) {
+      logger.warn("Error aborting multipart upload of {}", key, e);
+    }
+  }
+
+  private void ensureBuffer() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed: " + key);
+    }
+    if (partFailure != null) {
+      throw new IOException("Error uploading " + key, partFailure);
+    }
+    if (currentBuffer != null && currentPosition == currentBuffer.length) {
+      submitPart();
+    }
+    if (currentBuffer == null) {
+      if (parts.size() >= MAX_PARTS) {
+        throw new IOException(
+            String.format(
+                "Object too large for a multipart upload of at most %d parts: %s",
+                MAX_PARTS, key));
+      }
+      currentBuffer = takeBuffer(getPartBytes(parts.size() + 1));
+      currentPosition = 0;
+    }
+  }
+
+  /** Size of the given part, 1 based. */
+  int getPartBytes(int partNumber) {
+    long bytes = (long) partBytes << Math.min((partNumber - 1) / PARTS_PER_SIZE_STEP, 30);
+    return (int) Math.min(bytes, Math.max(partBytes, MAX_PART_BYTES));
+  }
+
+  private byte[] takeBuffer(int bufferBytes) throws IOException {
+    byte[] buffer = freeBuffers.poll();
+    if (buffer == null && allocatedBuffers < partsInFlight) {
+      allocatedBuffers++;
+      return new byte[bufferBytes];
+    }
+    if (buffer == null) {
+      // wait for an upload to finish with its buffer
+      try {
+        buffer = freeBuffers.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while uploading " + key);
+      }
+    }
+    // buffers of a previous, smaller part size are replaced
+    return buffer.length == bufferBytes ? buffer : new byte[bufferBytes];
+  }
+
+  private void submitPart() {
+    final byte[] buffer = currentBuffer == null ? new byte[0] : currentBuffer;
+    final int length = currentBuffer == null ? 0 : currentPosition;
+    final int partNumber = parts.size() + 1;
+    parts.add(executor.submit(() -> uploadPart(partNumber, buffer, length)));
+    currentBuffer = null;
+    currentPosition = 0;
+  }
+
+  private PartETag uploadPart(int partNumber, byte[] buffer, int length)
+      throws InterruptedException {
+    try {
+      for (int attempt = 1; ; ++attempt) {
+        UploadPartRequest request =
+            new UploadPartRequest()
+                .withBucketName(bucketName)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                .withPartSize(length)
+                .withGeneralProgressListener(progressListener);
+        try {
+          return s3.uploadPart(request).getPartETag();
+        } catch (AmazonClientException e) {
+          if (attempt >= MAX_PART_ATTEMPTS) {
+            partFailure = e;
+            throw e;
+          }
+          logger.warn(
+              "Error uploading part {} of {}, attempt {}, retrying", partNumber, key, attempt, e);
+          Thread.sleep(RETRY_BACKOFF_MS * attempt);
+        }
+      }
+    } finally {
+      // not the empty buffer of an empty object
+      if (buffer.length > 0) {
+        freeBuffers.offer(buffer);
+      }
+    }
+  }
+
+  private PartETag getPart(Future<PartETag> part) throws IOException {
+    try {
+      return part.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while uploading " + key);
+    } catch (ExecutionException e) {
+      throw new IOException("Error uploading " + key, e.getCause());
+    }
+  }
+}
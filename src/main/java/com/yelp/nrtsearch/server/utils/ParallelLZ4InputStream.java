@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Reads a stream written by {@link ParallelLZ4OutputStream}. Compressed blocks are read ahead on
+ * the calling thread and decompressed in parallel, up to {@code blocksInFlight} at a time.
+ */
+public class ParallelLZ4InputStream extends InputStream {
+  // limit on the block size, to fail on a corrupt header instead of allocating a huge buffer
+  static final int MAX_BLOCK_BYTES = 64 * 1024 * 1024;
+
+  private static final LZ4SafeDecompressor decompressor =
+      LZ4Factory.fastestInstance().safeDecompressor();
+
+  private final DataInputStream in;
+  private final ExecutorService executor;
+  private final int blocksInFlight;
+  private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+  private byte[] currentBlock;
+  private int currentPosition;
+  private boolean endOfBlocks = false;
+
+  public ParallelLZ4InputStream(InputStream in, ExecutorService executor, int blocksInFlight)
+      throws IOException {
+    if (blocksInFlight <= 0) {
+      throw new IllegalArgumentException("blocksInFlight must be > 0, got: " + blocksInFlight);
+    }
+    this.in = new DataInputStream(in);
+    this.executor = executor;
+    this.blocksInFlight = blocksInFlight;
+    byte[] magic = new byte[ParallelLZ4OutputStream.MAGIC.length];
+    this.in.readFully(magic);
+    if (!hasMagic(magic)) {
+      throw new IOException("Not a parallel lz4 stream, invalid magic: " + Arrays.toString(magic));
+    }
+  }
+
+  /** If the given stream header is the start of a parallel lz4 stream. */
+  public static boolean hasMagic(byte[] header) {
+    return header.length >= ParallelLZ4OutputStream.MAGIC.length
+        && Arrays.equals(
+            ParallelLZ4OutputStream.MAGIC,
+            Arrays.copyOf(header, ParallelLZ4OutputStream.MAGIC.length));
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureBlock()) {
+      return -1;
+    }
+    return currentBlock[currentPosition++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureBlock()) {
+      return -1;
+    }
+    int toCopy = Math.min(len, currentBlock.length - currentPosition);
+    System.arraycopy(currentBlock, currentPosition, b, off, toCopy);
+    currentPosition += toCopy;
+    return toCopy;
+  }
+
+  @Override
+  public int available() {
+    return currentBlock == null ? 0 : currentBlock.length - currentPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Future<byte[]> block : pendingBlocks) {
+      block.cancel(true);
+    }
+    pendingBlocks.clear();
+    currentBlock = null;
+    in.close();
+  }
+
+  private boolean ensureBlock() throws IOException {
+    while (currentBlock == null || currentPosition == currentBlock.length) {
+      fillPipeline();
+      Future<byte[]> nextBlock = pendingBlocks.poll();
+      if (nextBlock == null) {
+        return false;
+      }
+      try {
+        currentBlock = nextBlock.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while decompressing");
+      } catch (ExecutionException e) {
+        throw new IOException("Error decompressing block", e.getCause());
+      }
+      currentPosition = 0;
+    }
+    return true;
+  }
+
+  private void fillPipeline() throws IOException {
+    while (!endOfBlocks && pendingBlocks.size() < blocksInFlight) {
+      final int rawLength = in.readInt();
+      final int compressedLength = in.readInt();
+      final int checksum = in.readInt();
+      if (rawLength == 0) {
+        endOfBlocks = true;
+        return;
+      }
+      if (rawLength < 0
+          || rawLength > MAX_BLOCK_BYTES
+          || compressedLength < 0
+          || compressedLength > MAX_BLOCK_BYTES * 2) {
+        throw new IOException(
+            String.format(
+                "Invalid block header, raw length: %d, compressed length: %d",
+                rawLength, compressedLength));
+      }
+      final byte[] compressed = new byte[compressedLength];
+      in.readFully(compressed);
+      pendingBlocks.add(executor.submit(() -> decompressBlock(compressed, rawLength, checksum)));
+    }
+  }
+
+  private static byte[] decompressBlock(byte[] compressed, int rawLength, int checksum)
+      throws IOException {
+    byte[] raw = new byte[rawLength];
+    int decompressedLength =
+        decompressor.decompress(compressed, 0, compressed.length, raw, 0, rawLength);
+    if (decompressedLength != rawLength
+        || XXHashFactory.fastestInstance()
+                .hash32()
+                .hash(raw, 0, rawLength, ParallelLZ4OutputStream.CHECKSUM_SEED)
+            != checksum) {
+      throw new IOException("Corrupt block, checksum or length mismatch");
+    }
+    return raw;
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Compresses a stream as independent LZ4 blocks, so blocks are compressed in parallel here and
+ * decompressed in parallel by {@link ParallelLZ4InputStream}. The format is {@link #MAGIC}, then
+ * for each block its raw length, compressed length and xxhash32 checksum of the raw data as big
+ * endian ints followed by the compressed bytes, and finally a block header with raw length 0.
+ */
+public class ParallelLZ4OutputStream extends OutputStream {
+  static final byte[] MAGIC = {'N', 'R', 'T', 'L', 'Z', '4', 'P', '1'};
+  static final int BLOCK_HEADER_BYTES = 3 * Integer.BYTES;
+  static final int CHECKSUM_SEED = 0x9747b28c;
+  public static final int DEFAULT_BLOCK_BYTES = 4 * 1024 * 1024;
+
+  private static final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+
+  private final DataOutputStream out;
+  private final ExecutorService executor;
+  private final int blockBytes;
+  private final int blocksInFlight;
+  private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+  private byte[] buffer;
+  private int position = 0;
+  private boolean closed = false;
+
+  public ParallelLZ4OutputStream(
+      OutputStream out, ExecutorService executor, int blockBytes, int blocksInFlight)
+      throws IOException {
+    if (blockBytes <= 0 || blocksInFlight <= 0) {
+      throw new IllegalArgumentException(
+          String.format(
+              "blockBytes and blocksInFlight must be > 0, got: %d, %d",
+              blockBytes, blocksInFlight));
+    }
+    this.out = new DataOutputStream(out);
+    this.executor = executor;
+    this.blockBytes = blockBytes;
+    this.blocksInFlight = blocksInFlight;
+    this.buffer = new byte[blockBytes];
+    this.out.write(MAGIC);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (position == blockBytes) {
+      submitBlock();
+    }
+    buffer[position++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (position == blockBytes) {
+        submitBlock();
+      }
+      int toCopy = Math.min(len, blockBytes - position);
+      System.arraycopy(b, off, buffer, position, toCopy);
+      position += toCopy;
+      off += toCopy;
+      len -= toCopy;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (position > 0) {
+        submitBlock();
+      }
+      while (!pendingBlocks.isEmpty()) {
+        writeBlock(pendingBlocks.poll());
+      }
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeInt(0);
+    } finally {
+      for (Future<byte[]> block : pendingBlocks) {
+        block.cancel(true);
+      }
+      out.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    final byte[] raw = buffer;
+    final int length = position;
+    pendingBlocks.add(executor.submit(() -> compressBlock(raw, length)));
+    buffer = new byte[blockBytes];
+    position = 0;
+    // write out finished blocks in order, bounding the memory used by blocks in flight
+    while (pendingBlocks.size() >= blocksInFlight
+        || (!pendingBlocks.isEmpty() && pendingBlocks.peek().isDone())) {
+      writeBlock(pendingBlocks.poll());
+    }
+  }
+
+  private void writeBlock(Future<byte[]> block) throws IOException {
+    try {
+      out.write(block.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      throw new IOException("Error compressing block", e.getCause());
+    }
+  }
+
+  private static byte[] compressBlock(byte[] raw, int length) {
+    int maxCompressedLength = compressor.maxCompressedLength(length);
+    byte[] block = new byte[BLOCK_HEADER_BYTES + maxCompressedLength];
+    int compressedLength =
+        compressor.compress(raw, 0, length, block, BLOCK_HEADER_BYTES, maxCompressedLength);
+    int checksum = XXHashFactory.fastestInstance().hash32().hash(raw, 0, length, CHECKSUM_SEED);
+    ByteBuffer.wrap(block).putInt(length).putInt(compressedLength).putInt(checksum);
+    return Arrays.copyOf(block, BLOCK_HEADER_BYTES + compressedLength);
+  }
+}
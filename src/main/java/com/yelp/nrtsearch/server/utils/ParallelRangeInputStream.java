@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.utils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads an S3 object with parallel ranged GETs and returns its bytes in order. Up to {@code
+ * chunksInFlight} chunks are fetched ahead of the reader, so memory use is bounded by {@code
+ * chunkBytes * chunksInFlight} regardless of the object size.
+ */
+public class ParallelRangeInputStream extends InputStream {
+  private final AmazonS3 s3;
+  private final String bucketName;
+  private final String key;
+  private final long objectSize;
+  private final int chunkBytes;
+  private final int chunksInFlight;
+  private final ExecutorService executor;
+  private final ArrayDeque<Future<byte[]>> chunks = new ArrayDeque<>();
+  private final AtomicLong fetchNanos = new AtomicLong();
+
+  private long nextChunkStart = 0;
+  private byte[] currentChunk;
+  private int currentPosition;
+  private long waitNanos = 0;
+
+  public ParallelRangeInputStream(
+      AmazonS3 s3,
+      String bucketName,
+      String key,
+      int chunkBytes,
+      int chunksInFlight,
+      ExecutorService executor) {
+    if (chunkBytes <= 0 || chunksInFlight <= 0) {
+      throw new IllegalArgumentException(
+          String.format(
+              "chunkBytes and chunksInFlight must be > 0, got: %d, %d",
+              chunkBytes, chunksInFlight));
+    }
+    this.s3 = s3;
+    this.bucketName = bucketName;
+    this.key = key;
+    this.chunkBytes = chunkBytes;
+    this.chunksInFlight = chunksInFlight;
+    this.executor = executor;
+    this.objectSize = s3.getObjectMetadata(bucketName, key).getContentLength();
+    fillPipeline();
+  }
+
+  /** Size of the object being read. */
+  public long getObjectSize() {
+    return objectSize;
+  }
+
+  /** Time spent fetching chunks, summed over all parallel fetches. */
+  public long getFetchNanos() {
+    return fetchNanos.get();
+  }
+
+  /** Time the reader spent waiting for a chunk to finish downloading. */
+  public long getWaitNanos() {
+    return waitNanos;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureChunk()) {
+      return -1;
+    }
+    return currentChunk[currentPosition++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureChunk()) {
+      return -1;
+    }
+    int toCopy = Math.min(len, currentChunk.length - currentPosition);
+    System.arraycopy(currentChunk, currentPosition, b, off, toCopy);
+    currentPosition += toCopy;
+    return toCopy;
+  }
+
+  @Override
+  public int available() {
+    return currentChunk == null ? 0 : currentChunk.length - currentPosition;
+  }
+
+  @Override
+  public void close() {
+    for (Future<byte[]> chunk : chunks) {
+      chunk.cancel(true);
+    }
+    chunks.clear();
+    currentChunk = null;
+  }
+
+  private boolean ensureChunk() throws IOException {
+    while (currentChunk == null || currentPosition == currentChunk.length) {
+      Future<byte[]> nextChunk = chunks.poll();
+      if (nextChunk == null) {
+        return false;
+      }
+      long waitStart = System.nanoTime();
+      try {
+        currentChunk = nextChunk.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while downloading " + key);
+      } catch (ExecutionException e) {
+        throw new IOException("Error downloading " + key, e.getCause());
+      } finally {
+        waitNanos += System.nanoTime() - waitStart;
+      }
+      currentPosition = 0;
+      fillPipeline();
+    }
+    return true;
+  }
+
+  private void fillPipeline() {
+    while (chunks.size() < chunksInFlight && nextChunkStart < objectSize) {
+      final long start = nextChunkStart;
+      final long end = Math.min(objectSize, start + chunkBytes) - 1;
+      chunks.add(executor.submit(() -> fetchChunk(start, end)));
+      nextChunkStart = end + 1;
+    }
+  }
+
+  private byte[] fetchChunk(long start, long end) throws IOException {
+    long fetchStart = System.nanoTime();
+    GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(start, end);
+    try (S3Object s3Object = s3.getObject(request)) {
+      byte[] chunk = IOUtils.toByteArray(s3Object.getObjectContent());
+      if (chunk.length != end - start + 1) {
+        throw new IOException(
+            String.format(
+                "Expected %d bytes for range %d-%d of %s, got %d",
+                end - start + 1, start, end, key, chunk.length));
+      }
+      return chunk;
+    } finally {
+      fetchNanos.addAndGet(System.nanoTime() - fetchStart);
+    }
+  }
+}
@@ -16,6 +16,8 @@
 package com.yelp.nrtsearch.server.utils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
@@ -32,8 +34,16 @@ public interface Tar {
 
   CompressionMode getCompressionMode();
 
+  /** Wrap a stream to compress a tar written to it with this compression mode. */
+  OutputStream compress(OutputStream outputStream) throws IOException;
+
+  /** Wrap a stream to decompress a tar, detecting the compression it was written with. */
+  InputStream decompress(InputStream inputStream) throws IOException;
+
   enum CompressionMode {
     GZIP,
-    LZ4
+    LZ4,
+    // independent lz4 blocks, compressed and decompressed on multiple threads
+    LZ4_PARALLEL
   }
 }
@@ -25,6 +25,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import net.jpountz.lz4.LZ4FrameInputStream;
 import net.jpountz.lz4.LZ4FrameOutputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
@@ -33,26 +38,82 @@ import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.util.NamedThreadFactory;
 
 public class TarImpl implements Tar {
+  private static final byte[] LZ4_FRAME_MAGIC = {0x04, 0x22, 0x4D, 0x18};
+  private static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+
   private final CompressionMode compressionMode;
+  private final int parallelism;
+  private final ExecutorService executor;
 
   @Inject
   public TarImpl(CompressionMode compressionMode) {
+    this(compressionMode, Runtime.getRuntime().availableProcessors());
+  }
+
+  public TarImpl(CompressionMode compressionMode, int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be > 0, got: " + parallelism);
+    }
     this.compressionMode = compressionMode;
+    this.parallelism = parallelism;
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            parallelism,
+            parallelism,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamedThreadFactory("TarCompression"));
+    executor.allowCoreThreadTimeOut(true);
+    this.executor = executor;
   }
 
   @Override
-  public void extractTar(Path sourceFile, Path destDir) throws IOException {
-    final FileInputStream fileInputStream = new FileInputStream(sourceFile.toFile());
-    final InputStream compressorInputStream;
-    if (compressionMode.equals(CompressionMode.LZ4)) {
-      compressorInputStream = new LZ4FrameInputStream(fileInputStream);
+  public OutputStream compress(OutputStream outputStream) throws IOException {
+    switch (compressionMode) {
+      case LZ4:
+        return new LZ4FrameOutputStream(outputStream);
+      case LZ4_PARALLEL:
+        return new ParallelLZ4OutputStream(
+            outputStream, executor, ParallelLZ4OutputStream.DEFAULT_BLOCK_BYTES, 2 * parallelism);
+      default:
+        return new GzipCompressorOutputStream(outputStream);
+    }
+  }
+
+  @Override
+  public InputStream decompress(InputStream inputStream) throws IOException {
+    // detect the format from the stream, so tars written with any mode can be restored
+    final BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+    bufferedInputStream.mark(ParallelLZ4OutputStream.MAGIC.length);
+    final byte[] header = bufferedInputStream.readNBytes(ParallelLZ4OutputStream.MAGIC.length);
+    bufferedInputStream.reset();
+    if (ParallelLZ4InputStream.hasMagic(header)) {
+      return new ParallelLZ4InputStream(bufferedInputStream, executor, 2 * parallelism);
+    } else if (startsWith(header, LZ4_FRAME_MAGIC)) {
+      return new LZ4FrameInputStream(bufferedInputStream);
+    } else if (startsWith(header, GZIP_MAGIC)) {
+      return new GzipCompressorInputStream(bufferedInputStream, true);
+    } else if (compressionMode.equals(CompressionMode.GZIP)) {
+      return new GzipCompressorInputStream(bufferedInputStream, true);
     } else {
-      compressorInputStream = new GzipCompressorInputStream(fileInputStream, true);
+      return new LZ4FrameInputStream(bufferedInputStream);
     }
+  }
+
+  private static boolean startsWith(byte[] header, byte[] magic) {
+    return header.length >= magic.length
+        && Arrays.equals(magic, Arrays.copyOf(header, magic.length));
+  }
+
+  @Override
+  public void extractTar(Path sourceFile, Path destDir) throws IOException {
+    final FileInputStream fileInputStream = new FileInputStream(sourceFile.toFile());
     try (final TarArchiveInputStream tarArchiveInputStream =
-        new TarArchiveInputStream(compressorInputStream); ) {
+        new TarArchiveInputStream(decompress(fileInputStream)); ) {
       extractTar(tarArchiveInputStream, destDir);
     }
   }
@@ -93,14 +154,8 @@ public class TarImpl implements Tar {
   @Override
   public void buildTar(Path sourceDir, Path destinationFile) throws IOException {
     final FileOutputStream fileOutputStream = new FileOutputStream(destinationFile.toFile());
-    final OutputStream compressorOutputStream;
-    if (compressionMode.equals(CompressionMode.LZ4)) {
-      compressorOutputStream = new LZ4FrameOutputStream(fileOutputStream);
-    } else {
-      compressorOutputStream = new GzipCompressorOutputStream(fileOutputStream);
-    }
     try (final TarArchiveOutputStream tarArchiveOutputStream =
-        new TarArchiveOutputStream(compressorOutputStream)) {
+        new TarArchiveOutputStream(compress(fileOutputStream))) {
       buildTar(tarArchiveOutputStream, sourceDir);
     }
   }
@@ -30,6 +30,7 @@ import org.slf4j.LoggerFactory;
 public class ThreadPoolExecutorFactory {
   public enum ExecutorType {
     SEARCH,
+    SHARD_SEARCH,
     INDEX,
     LUCENESERVER,
     REPLICATIONSERVER
@@ -61,6 +62,22 @@ public class ThreadPoolExecutorFactory {
           docsToIndex,
           new NamedThreadFactory("LuceneSearchExecutor"));
 
+    } else if (executorType.equals(ExecutorType.SHARD_SEARCH)) {
+      logger.info(
+          "Creating LuceneShardSearchExecutor of size "
+              + threadPoolConfiguration.getMaxShardSearchingThreads());
+      BlockingQueue<Runnable> docsToIndex =
+          new LinkedBlockingQueue<Runnable>(
+              threadPoolConfiguration.getMaxShardSearchBufferedItems());
+      // shard searches submit their segment slices to the SEARCH executor, never to this one, so
+      // a full pool cannot deadlock on its own tasks
+      return new ThreadPoolExecutor(
+          threadPoolConfiguration.getMaxShardSearchingThreads(),
+          threadPoolConfiguration.getMaxShardSearchingThreads(),
+          0,
+          TimeUnit.SECONDS,
+          docsToIndex,
+          new NamedThreadFactory("LuceneShardSearchExecutor"));
     } else if (executorType.equals(ExecutorType.INDEX)) {
       logger.info(
           "Creating LuceneIndexingExecutor of size "
@@ -15,8 +15,8 @@
  */
 package org.apache.lucene.replicator.nrt;
 
-import com.google.protobuf.ByteString;
 import com.yelp.nrtsearch.server.grpc.RawFileChunk;
+import com.yelp.nrtsearch.server.luceneserver.RawFileChunkCompression;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -108,16 +108,13 @@ public class CopyOneFile implements Closeable {
   public boolean visit() throws IOException {
     if (rawFileChunkIterator.hasNext()) {
       RawFileChunk rawFileChunk = rawFileChunkIterator.next();
-      ByteString byteString = rawFileChunk.getContent();
-      bytesCopied += byteString.size();
+      byte[] content = RawFileChunkCompression.getContent(rawFileChunk);
+      bytesCopied += content.length;
       if (bytesCopied < bytesToCopy) {
-        out.writeBytes(byteString.toByteArray(), 0, byteString.size());
+        out.writeBytes(content, 0, content.length);
       } else { // last chunk, last 8 bytes are crc32 checksum
-        out.writeBytes(byteString.toByteArray(), 0, byteString.size() - 8);
-        remoteFileChecksum =
-            ByteBuffer.wrap(
-                    byteString.substring(byteString.size() - 8, byteString.size()).toByteArray())
-                .getLong();
+        out.writeBytes(content, 0, content.length - 8);
+        remoteFileChecksum = ByteBuffer.wrap(content, content.length - 8, 8).getLong();
         bytesCopied -= 8;
       }
       return false;
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+
+public class ReplicationConfigurationTest {
+
+  private static ReplicationConfiguration getConfig(String config) {
+    return new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes()))
+        .getReplicationConfiguration();
+  }
+
+  @Test
+  public void testDefaults() {
+    ReplicationConfiguration replicationConfiguration =
+        getConfig("nodeName: \"lucene_server_foo\"");
+    assertEquals(10000, replicationConfiguration.getNewNRTPointTimeoutMs());
+    assertEquals(4, replicationConfiguration.getCopyConcurrency());
+    assertEquals(64 * 1024, replicationConfiguration.getFileChunkSizeBytes());
+    assertFalse(replicationConfiguration.getCompressFiles());
+    assertTrue(replicationConfiguration.shouldCompress("_0.doc"));
+    assertTrue(replicationConfiguration.shouldCompress("segments_1"));
+    assertFalse(replicationConfiguration.shouldCompress("_0.fdt"));
+    assertEquals(0, replicationConfiguration.getMaxCopyMBPerSec(), 0);
+    assertEquals(0, replicationConfiguration.getMaxIndexCopyMBPerSec(), 0);
+    assertEquals(0, replicationConfiguration.getFanout());
+    assertEquals(5000, replicationConfiguration.getPeerWaitMs());
+  }
+
+  @Test
+  public void testNewNRTPointTimeout() {
+    String config =
+        String.join(
+            "\n", "nodeName: \"lucene_server_foo\"", "replication:", "  newNRTPointTimeoutMs: 500");
+    assertEquals(500, getConfig(config).getNewNRTPointTimeoutMs());
+  }
+
+  @Test
+  public void testCopySettings() {
+    String config =
+        String.join(
+            "\n",
+            "nodeName: \"lucene_server_foo\"",
+            "replication:",
+            "  copyConcurrency: 8",
+            "  fileChunkSizeBytes: 1048576");
+    ReplicationConfiguration replicationConfiguration = getConfig(config);
+    assertEquals(8, replicationConfiguration.getCopyConcurrency());
+    assertEquals(1048576, replicationConfiguration.getFileChunkSizeBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidChunkSize() {
+    getConfig(
+        String.join(
+            "\n", "nodeName: \"lucene_server_foo\"", "replication:", "  fileChunkSizeBytes: 8"));
+  }
+
+  @Test
+  public void testCompressSettings() {
+    String config =
+        String.join(
+            "\n",
+            "nodeName: \"lucene_server_foo\"",
+            "replication:",
+            "  compressFiles: true",
+            "  compressSkipExtensions:",
+            "    - cfs");
+    ReplicationConfiguration replicationConfiguration = getConfig(config);
+    assertTrue(replicationConfiguration.getCompressFiles());
+    assertFalse(replicationConfiguration.shouldCompress("_0.cfs"));
+    assertTrue(replicationConfiguration.shouldCompress("_0.fdt"));
+  }
+
+  @Test
+  public void testCopyRateLimits() {
+    String config =
+        String.join(
+            "\n",
+            "nodeName: \"lucene_server_foo\"",
+            "replication:",
+            "  maxCopyMBPerSec: 200",
+            "  maxIndexCopyMBPerSec: 50.5");
+    ReplicationConfiguration replicationConfiguration = getConfig(config);
+    assertEquals(200, replicationConfiguration.getMaxCopyMBPerSec(), 0);
+    assertEquals(50.5, replicationConfiguration.getMaxIndexCopyMBPerSec(), 0);
+  }
+
+  @Test
+  public void testPeerSettings() {
+    String config =
+        String.join(
+            "\n",
+            "nodeName: \"lucene_server_foo\"",
+            "replication:",
+            "  fanout: 3",
+            "  peerWaitMs: 200");
+    ReplicationConfiguration replicationConfiguration = getConfig(config);
+    assertEquals(3, replicationConfiguration.getFanout());
+    assertEquals(200, replicationConfiguration.getPeerWaitMs());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidFanout() {
+    getConfig(
+        String.join("\n", "nodeName: \"lucene_server_foo\"", "replication:", "  fanout: -1"));
+  }
+}
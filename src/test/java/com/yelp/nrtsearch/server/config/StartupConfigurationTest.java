@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+
+public class StartupConfigurationTest {
+
+  private static StartupConfiguration getConfig(String config) {
+    return new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes()))
+        .getStartupConfiguration();
+  }
+
+  @Test
+  public void testDefaults() {
+    StartupConfiguration startupConfiguration = getConfig("nodeName: \"lucene_server_foo\"");
+    assertFalse(startupConfiguration.getStartIndices());
+    assertEquals(4, startupConfiguration.getParallelism());
+    assertTrue(startupConfiguration.getLazyIndices().isEmpty());
+  }
+
+  @Test
+  public void testSettings() {
+    String config =
+        String.join(
+            "\n",
+            "nodeName: \"lucene_server_foo\"",
+            "startup:",
+            "  startIndices: true",
+            "  parallelism: 8",
+            "  lazyIndices:",
+            "    - index_a",
+            "    - index_b");
+    StartupConfiguration startupConfiguration = getConfig(config);
+    assertTrue(startupConfiguration.getStartIndices());
+    assertEquals(8, startupConfiguration.getParallelism());
+    assertEquals(
+        new HashSet<>(Arrays.asList("index_a", "index_b")), startupConfiguration.getLazyIndices());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidParallelism() {
+    getConfig(String.join("\n", "nodeName: \"lucene_server_foo\"", "startup:", "  parallelism: 0"));
+  }
+}
@@ -17,6 +17,7 @@ package com.yelp.nrtsearch.server.config;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.nio.file.Paths;
@@ -36,5 +37,24 @@ public class ThreadPoolConfigurationTest {
         luceneServerConfiguration.getThreadPoolConfiguration().getMaxSearchingThreads(), 16);
     assertEquals(
         luceneServerConfiguration.getThreadPoolConfiguration().getMaxSearchBufferedItems(), 100);
+    assertEquals(
+        luceneServerConfiguration.getThreadPoolConfiguration().getMaxShardSearchingThreads(), 8);
+    assertEquals(
+        luceneServerConfiguration.getThreadPoolConfiguration().getMaxShardSearchBufferedItems(),
+        50);
+  }
+
+  @Test
+  public void testShardSearchDefaults() {
+    String config = "nodeName: \"lucene_server_foo\"";
+    ThreadPoolConfiguration threadPoolConfiguration =
+        new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes()))
+            .getThreadPoolConfiguration();
+    assertEquals(
+        threadPoolConfiguration.getMaxSearchingThreads(),
+        threadPoolConfiguration.getMaxShardSearchingThreads());
+    assertEquals(
+        threadPoolConfiguration.getMaxSearchBufferedItems(),
+        threadPoolConfiguration.getMaxShardSearchBufferedItems());
   }
 }
@@ -19,6 +19,8 @@ import static com.yelp.nrtsearch.server.grpc.GrpcServer.rmDir;
 import static com.yelp.nrtsearch.server.grpc.LuceneServerTest.RETRIEVED_VALUES;
 import static com.yelp.nrtsearch.server.grpc.LuceneServerTest.checkHits;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.amazonaws.auth.AnonymousAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
@@ -118,10 +120,47 @@ public class BackupRestoreIndexRequestHandlerTest {
     backupIndex();
     Path downloadPath = archiver.download("testservice", "testresource_data");
     List<String> actual = getFiles(downloadPath);
-    List<String> expected = getFiles(Paths.get(grpcServer.getIndexDir()));
+    List<String> expected = getFiles(getIndexRootDir());
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void testIncrementalBackupUpload() throws IOException, InterruptedException {
+    GrpcServer.TestServer testAddDocs =
+        new GrpcServer.TestServer(grpcServer, true, Mode.STANDALONE);
+    testAddDocs.addDocuments();
+
+    BackupIndexResponse response = backupIndex(true);
+    assertTrue(response.getDataVersionHash().endsWith(".manifest"));
+    Path downloadPath = archiver.download("testservice", "testresource_data");
+    List<String> actual = getFiles(downloadPath);
+    List<String> expected = getFiles(getIndexRootDir());
+    actual.sort(null);
+    expected.sort(null);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testBackupExcludesTranslog() throws IOException, InterruptedException {
+    GrpcServer.TestServer testAddDocs =
+        new GrpcServer.TestServer(grpcServer, true, Mode.STANDALONE);
+    LuceneServerGrpc.LuceneServerBlockingStub blockingStub = grpcServer.getBlockingStub();
+    blockingStub.settings(
+        SettingsRequest.newBuilder().setIndexName("test_index").setEnableTranslog(true).build());
+    blockingStub.stopIndex(StopIndexRequest.newBuilder().setIndexName("test_index").build());
+    blockingStub.startIndex(StartIndexRequest.newBuilder().setIndexName("test_index").build());
+    testAddDocs.addDocuments();
+    assertTrue(Files.exists(getIndexRootDir().resolve("shard0").resolve("translog")));
+
+    backupIndex();
+    Path downloadPath = archiver.download("testservice", "testresource_data");
+    List<String> actual = getFiles(downloadPath);
+    assertFalse(actual.isEmpty());
+    for (String fileName : actual) {
+      assertFalse(fileName, fileName.startsWith("translog"));
+    }
+  }
+
   @Test
   public void testRestoreHandler() throws IOException, InterruptedException {
     GrpcServer.TestServer testAddDocs =
@@ -228,17 +267,30 @@ public class BackupRestoreIndexRequestHandlerTest {
         // up version
         // which will be on version less
         .filter(x -> !x.startsWith("snapshots") && !x.startsWith("stateRefCounts"))
+        // only the files of the snapshot commit are backed up
+        .filter(x -> !x.equals("write.lock"))
         .collect(Collectors.toList());
   }
 
+  // the index dir base also holds server files, like the start requests, that are not backed up
+  private Path getIndexRootDir() {
+    return Paths.get(grpcServer.getIndexDir()).resolve(grpcServer.getTestIndex());
+  }
+
   private void backupIndex() {
-    grpcServer
+    backupIndex(false);
+  }
+
+  private BackupIndexResponse backupIndex(boolean incremental) {
+    return grpcServer
         .getBlockingStub()
         .backupIndex(
             BackupIndexRequest.newBuilder()
                 .setIndexName("test_index")
                 .setServiceName("testservice")
                 .setResourceName("testresource")
+                .setIncremental(incremental)
+                .setKeepVersions(incremental ? 1 : 0)
                 .build());
   }
 }
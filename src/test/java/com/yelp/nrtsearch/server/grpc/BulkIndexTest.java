@@ -0,0 +1,210 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.grpc;
+
+import static com.yelp.nrtsearch.server.grpc.GrpcServer.rmDir;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.luceneserver.GlobalState;
+import io.grpc.StatusRuntimeException;
+import io.grpc.testing.GrpcCleanupRule;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BulkIndexTest {
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private GrpcServer grpcServer;
+  private Path bulkIndexDir;
+
+  @Before
+  public void setUp() throws IOException {
+    bulkIndexDir = folder.newFolder("bulk_index").toPath();
+    Files.copy(
+        Paths.get("src", "test", "resources", "addDocs.csv"), bulkIndexDir.resolve("addDocs.csv"));
+    String config =
+        String.join(
+            "\n",
+            "nodeName: standalone",
+            "stateDir: " + folder.getRoot().toPath().resolve("state"),
+            "indexDir: " + folder.getRoot().toPath().resolve("index"),
+            "bulkIndexDir: " + bulkIndexDir,
+            "port: " + 9000,
+            "replicationPort: " + 9000);
+    LuceneServerConfiguration luceneServerConfiguration =
+        new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes()));
+    GlobalState globalState = new GlobalState(luceneServerConfiguration);
+    grpcServer =
+        new GrpcServer(
+            new CollectorRegistry(),
+            grpcCleanup,
+            luceneServerConfiguration,
+            folder,
+            false,
+            globalState,
+            luceneServerConfiguration.getIndexDir(),
+            "test_index",
+            globalState.getPort(),
+            null,
+            Collections.emptyList());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    grpcServer.getGlobalState().close();
+    grpcServer.shutdown();
+    rmDir(Paths.get(grpcServer.getIndexDir()).getParent());
+  }
+
+  @Test
+  public void testBulkIndexCsv() throws IOException {
+    new GrpcServer.IndexAndRoleManager(grpcServer)
+        .createStartIndexAndRegisterFields(Mode.STANDALONE);
+    BulkIndexResponse response = bulkIndex();
+    assertEquals(2, response.getNumDocs());
+    // private writer directories are removed after the load
+    Path tmpDir = grpcServer.getGlobalState().getTmpDir();
+    try (Stream<Path> files = Files.list(tmpDir)) {
+      assertEquals(0, files.count());
+    }
+    Path rootDir = grpcServer.getGlobalState().getIndex(grpcServer.getTestIndex()).rootDir;
+    assertFalse(Files.exists(rootDir.resolve("bulk_index")));
+
+    grpcServer
+        .getBlockingStub()
+        .refresh(RefreshRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    StatsResponse stats =
+        grpcServer
+            .getBlockingStub()
+            .stats(StatsRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    assertEquals(2, stats.getNumDocs());
+  }
+
+  @Test
+  public void testConcurrentBulkIndex() throws Exception {
+    new GrpcServer.IndexAndRoleManager(grpcServer)
+        .createStartIndexAndRegisterFields(Mode.STANDALONE);
+    int numLoads = 4;
+    ExecutorService executor = Executors.newFixedThreadPool(numLoads);
+    try {
+      List<Future<BulkIndexResponse>> futures = new ArrayList<>();
+      for (int i = 0; i < numLoads; ++i) {
+        futures.add(executor.submit(this::bulkIndex));
+      }
+      for (Future<BulkIndexResponse> future : futures) {
+        assertEquals(2, future.get(20, TimeUnit.SECONDS).getNumDocs());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    grpcServer
+        .getBlockingStub()
+        .refresh(RefreshRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    StatsResponse stats =
+        grpcServer
+            .getBlockingStub()
+            .stats(StatsRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    assertEquals(2 * numLoads, stats.getNumDocs());
+  }
+
+  @Test
+  public void testNonEmptyIndexWithIdRejected() throws IOException, InterruptedException {
+    GrpcServer.TestServer testServer =
+        new GrpcServer.TestServer(grpcServer, false, Mode.STANDALONE);
+    new GrpcServer.IndexAndRoleManager(grpcServer)
+        .createStartIndexAndRegisterFields(
+            Mode.STANDALONE, 0, false, "registerFieldsBasicWithId.json");
+    testServer.addDocuments();
+    assertTrue(testServer.completed);
+    try {
+      grpcServer
+          .getBlockingStub()
+          .bulkIndex(
+              BulkIndexRequest.newBuilder()
+                  .setIndexName(grpcServer.getTestIndex())
+                  .setFilePath("addDocs.csv")
+                  .setFileType("csv")
+                  .build());
+      throw new AssertionError("expected bulk index to fail");
+    } catch (StatusRuntimeException e) {
+      assertTrue(e.getMessage().contains("bulk index can only load an empty index"));
+    }
+  }
+
+  @Test
+  public void testFileOutsideBulkIndexDirRejected() throws IOException {
+    new GrpcServer.IndexAndRoleManager(grpcServer)
+        .createStartIndexAndRegisterFields(Mode.STANDALONE);
+    Path outsideFile = folder.newFile("outside.csv").toPath();
+    Files.copy(bulkIndexDir.resolve("addDocs.csv"), outsideFile, REPLACE_EXISTING);
+    Files.createSymbolicLink(bulkIndexDir.resolve("link.csv"), outsideFile);
+
+    assertBulkIndexFails(outsideFile.toString(), "must be relative to the bulk index dir");
+    assertBulkIndexFails("../outside.csv", "is not a file in the bulk index dir");
+    assertBulkIndexFails("sub/../../outside.csv", "is not a file in the bulk index dir");
+    assertBulkIndexFails("link.csv", "is not a file in the bulk index dir");
+    assertBulkIndexFails("missing.csv", "cannot be read from the bulk index dir");
+  }
+
+  private void assertBulkIndexFails(String filePath, String message) {
+    try {
+      bulkIndex(filePath);
+      throw new AssertionError("expected bulk index to fail");
+    } catch (StatusRuntimeException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+  }
+
+  private BulkIndexResponse bulkIndex() {
+    return bulkIndex("addDocs.csv");
+  }
+
+  private BulkIndexResponse bulkIndex(String filePath) {
+    return grpcServer
+        .getBlockingStub()
+        .bulkIndex(
+            BulkIndexRequest.newBuilder()
+                .setIndexName(grpcServer.getTestIndex())
+                .setFilePath(filePath)
+                .setFileType("csv")
+                .setNumWriters(2)
+                .build());
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.grpc;
+
+import static com.yelp.nrtsearch.server.grpc.GrpcServer.rmDir;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.LuceneServerTestConfigurationFactory;
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.luceneserver.GlobalState;
+import com.yelp.nrtsearch.server.luceneserver.IndexStartupManager;
+import com.yelp.nrtsearch.server.luceneserver.IndexState;
+import io.grpc.testing.GrpcCleanupRule;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexStartupTest {
+  private static final String LAZY_INDEX = "lazy_index";
+  private static final String PRIMARY_INDEX = "primary_index";
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private LuceneServerConfiguration luceneServerConfiguration;
+  private GrpcServer grpcServer;
+
+  @Before
+  public void setUp() throws Exception {
+    luceneServerConfiguration =
+        LuceneServerTestConfigurationFactory.getConfig(Mode.STANDALONE, folder.getRoot());
+    GlobalState globalState = new GlobalState(luceneServerConfiguration);
+    grpcServer =
+        new GrpcServer(
+            new CollectorRegistry(),
+            grpcCleanup,
+            luceneServerConfiguration,
+            folder,
+            false,
+            globalState,
+            luceneServerConfiguration.getIndexDir(),
+            "test_index",
+            globalState.getPort(),
+            null,
+            Collections.emptyList());
+    for (String indexName : new String[] {grpcServer.getTestIndex(), LAZY_INDEX}) {
+      LuceneServerGrpc.LuceneServerBlockingStub blockingStub = grpcServer.getBlockingStub();
+      blockingStub.createIndex(
+          CreateIndexRequest.newBuilder()
+              .setIndexName(indexName)
+              .setRootDir(grpcServer.getIndexDir())
+              .build());
+      blockingStub.startIndex(StartIndexRequest.newBuilder().setIndexName(indexName).build());
+      blockingStub.commit(CommitRequest.newBuilder().setIndexName(indexName).build());
+    }
+  }
+
+  private void startPrimaryIndex() {
+    LuceneServerGrpc.LuceneServerBlockingStub blockingStub = grpcServer.getBlockingStub();
+    blockingStub.createIndex(
+        CreateIndexRequest.newBuilder()
+            .setIndexName(PRIMARY_INDEX)
+            .setRootDir(grpcServer.getIndexDir())
+            .build());
+    blockingStub.startIndex(
+        StartIndexRequest.newBuilder()
+            .setIndexName(PRIMARY_INDEX)
+            .setMode(Mode.PRIMARY)
+            .setPrimaryGen(1)
+            .build());
+    blockingStub.commit(CommitRequest.newBuilder().setIndexName(PRIMARY_INDEX).build());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    grpcServer.getGlobalState().close();
+    grpcServer.shutdown();
+    rmDir(Paths.get(grpcServer.getIndexDir()).getParent());
+  }
+
+  private GlobalState restart() throws IOException {
+    grpcServer.getGlobalState().close();
+    String config =
+        String.join(
+            "\n",
+            "nodeName: standalone",
+            "stateDir: " + luceneServerConfiguration.getStateDir(),
+            "indexDir: " + luceneServerConfiguration.getIndexDir(),
+            "startup:",
+            "  startIndices: true",
+            "  parallelism: 2",
+            "  lazyIndices:",
+            "    - " + LAZY_INDEX);
+    return new GlobalState(
+        new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes())));
+  }
+
+  private static void waitForStartup(IndexStartupManager indexStartupManager)
+      throws InterruptedException {
+    for (int i = 0; i < 100 && indexStartupManager.isStarting(); ++i) {
+      Thread.sleep(100);
+    }
+  }
+
+  @Test
+  public void testStartIndicesOnRestart() throws Exception {
+    GlobalState globalState = restart();
+    try {
+      IndexStartupManager indexStartupManager = globalState.getIndexStartupManager();
+      indexStartupManager.startIndices(null);
+      waitForStartup(indexStartupManager);
+      assertEquals(
+          IndexStartState.STARTED,
+          indexStartupManager.getStartStates().get(grpcServer.getTestIndex()));
+      assertTrue(globalState.getIndex(grpcServer.getTestIndex()).isStarted());
+
+      // started by its first use
+      assertEquals(IndexStartState.LAZY, indexStartupManager.getStartStates().get(LAZY_INDEX));
+      assertTrue(globalState.getIndex(LAZY_INDEX).isStarted());
+      assertEquals(IndexStartState.STARTED, indexStartupManager.getStartStates().get(LAZY_INDEX));
+    } finally {
+      globalState.close();
+    }
+  }
+
+  @Test
+  public void testStoppedIndexNotStarted() throws Exception {
+    grpcServer
+        .getBlockingStub()
+        .stopIndex(StopIndexRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    GlobalState globalState = restart();
+    try {
+      IndexStartupManager indexStartupManager = globalState.getIndexStartupManager();
+      indexStartupManager.startIndices(null);
+      waitForStartup(indexStartupManager);
+      assertEquals(
+          Collections.singletonMap(LAZY_INDEX, IndexStartState.LAZY),
+          indexStartupManager.getStartStates());
+    } finally {
+      globalState.close();
+    }
+  }
+
+  @Test
+  public void testStatus() {
+    HealthCheckResponse response =
+        grpcServer.getBlockingStub().status(HealthCheckRequest.newBuilder().build());
+    assertEquals(TransferStatusCode.Done, response.getHealth());
+    assertTrue(response.getIndexStartStatesMap().isEmpty());
+  }
+
+  @Test
+  public void testStartRequestsNotInStateDir() throws Exception {
+    assertTrue(
+        Files.exists(
+            Paths.get(luceneServerConfiguration.getIndexDir())
+                .resolve(IndexStartupManager.START_REQUESTS_FILE)));
+    assertFalse(
+        Files.exists(
+            Paths.get(luceneServerConfiguration.getStateDir())
+                .resolve(IndexStartupManager.START_REQUESTS_FILE)));
+  }
+
+  @Test
+  public void testPrimaryNotStarted() throws Exception {
+    startPrimaryIndex();
+    GlobalState globalState = restart();
+    try {
+      IndexStartupManager indexStartupManager = globalState.getIndexStartupManager();
+      indexStartupManager.startIndices(null);
+      waitForStartup(indexStartupManager);
+      assertFalse(indexStartupManager.getStartStates().containsKey(PRIMARY_INDEX));
+      assertFalse(globalState.getIndex(PRIMARY_INDEX).isStarted());
+    } finally {
+      globalState.close();
+    }
+  }
+
+  @Test
+  public void testFirstAccessWaitsForStart() throws Exception {
+    GlobalState globalState = restart();
+    try {
+      IndexStartupManager indexStartupManager = globalState.getIndexStartupManager();
+      indexStartupManager.startIndices(null);
+      // no wait for startup, the lookup waits for the background start
+      assertTrue(globalState.getIndex(grpcServer.getTestIndex()).isStarted());
+      assertEquals(
+          IndexStartState.STARTED,
+          indexStartupManager.getStartStates().get(grpcServer.getTestIndex()));
+    } finally {
+      globalState.close();
+    }
+  }
+
+  @Test
+  public void testConcurrentLazyFirstAccess() throws Exception {
+    GlobalState globalState = restart();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      IndexStartupManager indexStartupManager = globalState.getIndexStartupManager();
+      indexStartupManager.startIndices(null);
+      // lazy index is used while the other index may still be starting in the background
+      List<Future<IndexState>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; ++i) {
+        futures.add(executor.submit(() -> globalState.getIndex(LAZY_INDEX)));
+      }
+      IndexState indexState = futures.get(0).get(20, TimeUnit.SECONDS);
+      for (Future<IndexState> future : futures) {
+        // all lookups see the same started index, which was started once
+        assertSame(indexState, future.get(20, TimeUnit.SECONDS));
+      }
+      assertTrue(indexState.isStarted());
+      assertEquals(IndexStartState.STARTED, indexStartupManager.getStartStates().get(LAZY_INDEX));
+    } finally {
+      executor.shutdown();
+      globalState.close();
+    }
+  }
+
+  @Test
+  public void testLazyStartIsNotServerStartup() throws Exception {
+    GlobalState globalState = restart();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      IndexStartupManager indexStartupManager = globalState.getIndexStartupManager();
+      indexStartupManager.startIndices(null);
+      waitForStartup(indexStartupManager);
+      assertFalse(indexStartupManager.isStarting());
+
+      // the server is done starting while the lazy index is started by its first request
+      Future<IndexState> lazyStart = executor.submit(() -> globalState.getIndex(LAZY_INDEX));
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+      while (lazyStart.isDone() == false) {
+        assertFalse(indexStartupManager.isStarting());
+        assertTrue(System.nanoTime() < deadline);
+      }
+      assertTrue(lazyStart.get(20, TimeUnit.SECONDS).isStarted());
+      assertEquals(IndexStartState.STARTED, indexStartupManager.getStartStates().get(LAZY_INDEX));
+      assertFalse(indexStartupManager.isStarting());
+    } finally {
+      executor.shutdown();
+      globalState.close();
+    }
+  }
+
+  @Test
+  public void testStatusReportsLazyStart() throws Exception {
+    GlobalState globalState = restart();
+    GrpcServer restartedServer =
+        new GrpcServer(
+            new CollectorRegistry(),
+            grpcCleanup,
+            luceneServerConfiguration,
+            folder,
+            false,
+            globalState,
+            luceneServerConfiguration.getIndexDir(),
+            "test_index",
+            globalState.getPort(),
+            null,
+            Collections.emptyList());
+    try {
+      globalState.getIndexStartupManager().startIndices(null);
+      waitForStartup(globalState.getIndexStartupManager());
+      HealthCheckResponse response =
+          restartedServer.getBlockingStub().status(HealthCheckRequest.newBuilder().build());
+      assertEquals(TransferStatusCode.Done, response.getHealth());
+      assertEquals(
+          IndexStartState.STARTED,
+          response.getIndexStartStatesOrThrow(grpcServer.getTestIndex()));
+      assertEquals(IndexStartState.LAZY, response.getIndexStartStatesOrThrow(LAZY_INDEX));
+
+      restartedServer
+          .getBlockingStub()
+          .refresh(RefreshRequest.newBuilder().setIndexName(LAZY_INDEX).build());
+      response = restartedServer.getBlockingStub().status(HealthCheckRequest.newBuilder().build());
+      assertEquals(IndexStartState.STARTED, response.getIndexStartStatesOrThrow(LAZY_INDEX));
+    } finally {
+      restartedServer.shutdown();
+      globalState.close();
+    }
+  }
+}
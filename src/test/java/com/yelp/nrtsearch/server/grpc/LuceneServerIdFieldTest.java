@@ -225,6 +225,42 @@ public class LuceneServerIdFieldTest {
         searchResponse.getHits(1).getFieldsMap().get("doc_id").getFieldValue(0).getTextValue());
   }
 
+  @Test
+  public void testGetDocuments() throws IOException, InterruptedException {
+    GrpcServer.TestServer testServer =
+        new GrpcServer.TestServer(grpcServer, false, Mode.STANDALONE);
+    new GrpcServer.IndexAndRoleManager(grpcServer)
+        .createStartIndexAndRegisterFields(
+            Mode.STANDALONE, 0, false, "registerFieldsBasicWithId.json");
+    testServer.addDocuments();
+    assertFalse(testServer.error);
+    assertTrue(testServer.completed);
+
+    GetDocumentsResponse response =
+        grpcServer
+            .getBlockingStub()
+            .getDocuments(
+                GetDocumentsRequest.newBuilder()
+                    .setIndexName(grpcServer.getTestIndex())
+                    .addAllIds(List.of("2", "missing", "1"))
+                    .addAllRetrieveFields(List.of("doc_id", "count"))
+                    .setRealTime(true)
+                    .build());
+    // documents are returned in request order
+    assertEquals(2, response.getDocumentsCount());
+    assertEquals(
+        "2",
+        response.getDocuments(0).getFieldsMap().get("doc_id").getFieldValue(0).getTextValue());
+    assertEquals(
+        7, response.getDocuments(0).getFieldsMap().get("count").getFieldValue(0).getIntValue());
+    assertEquals(
+        "1",
+        response.getDocuments(1).getFieldsMap().get("doc_id").getFieldValue(0).getTextValue());
+    assertEquals(
+        3, response.getDocuments(1).getFieldsMap().get("count").getFieldValue(0).getIntValue());
+    assertEquals(List.of("missing"), response.getMissingIdsList());
+  }
+
   @Test(expected = StatusRuntimeException.class)
   public void testDuplicateIdFieldInIndexState() throws IOException, InterruptedException {
     GrpcServer.TestServer testServer =
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.grpc;
+
+import static com.yelp.nrtsearch.server.grpc.GrpcServer.rmDir;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.yelp.nrtsearch.server.LuceneServerTestConfigurationFactory;
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.luceneserver.BackupIndexRequestHandler;
+import com.yelp.nrtsearch.server.luceneserver.GlobalState;
+import com.yelp.nrtsearch.server.luceneserver.IndexState;
+import com.yelp.nrtsearch.server.luceneserver.ShardState;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import io.prometheus.client.CollectorRegistry;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MultiShardTest {
+  private static final int NUM_SHARDS = 3;
+  private static final int NUM_DOCS = 30;
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private GrpcServer grpcServer;
+
+  @Before
+  public void setUp() throws Exception {
+    LuceneServerConfiguration luceneServerConfiguration =
+        LuceneServerTestConfigurationFactory.getConfig(Mode.STANDALONE, folder.getRoot());
+    GlobalState globalState = new GlobalState(luceneServerConfiguration);
+    grpcServer =
+        new GrpcServer(
+            new CollectorRegistry(),
+            grpcCleanup,
+            luceneServerConfiguration,
+            folder,
+            false,
+            globalState,
+            luceneServerConfiguration.getIndexDir(),
+            "test_index",
+            globalState.getPort(),
+            null,
+            Collections.emptyList());
+    LuceneServerGrpc.LuceneServerBlockingStub blockingStub = grpcServer.getBlockingStub();
+    blockingStub.createIndex(
+        CreateIndexRequest.newBuilder()
+            .setIndexName(grpcServer.getTestIndex())
+            .setRootDir(grpcServer.getIndexDir())
+            .build());
+    blockingStub.settings(
+        SettingsRequest.newBuilder()
+            .setIndexName(grpcServer.getTestIndex())
+            .setNumShards(NUM_SHARDS)
+            .build());
+    blockingStub.startIndex(
+        StartIndexRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    blockingStub.registerFields(
+        FieldDefRequest.newBuilder()
+            .setIndexName(grpcServer.getTestIndex())
+            .addField(Field.newBuilder().setName("doc_id").setType(FieldType._ID).setStore(true))
+            .addField(
+                Field.newBuilder()
+                    .setName("popularity")
+                    .setType(FieldType.LONG)
+                    .setSearch(true)
+                    .setStoreDocValues(true)
+                    .setSort(true))
+            .build());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    grpcServer.getGlobalState().close();
+    grpcServer.shutdown();
+    rmDir(Paths.get(grpcServer.getIndexDir()).getParent());
+  }
+
+  @Test
+  public void testDocumentsRoutedToAllShards() throws Exception {
+    addDocs();
+    IndexState indexState = grpcServer.getGlobalState().getIndex(grpcServer.getTestIndex());
+    assertEquals(NUM_SHARDS, indexState.getNumShards());
+    int totalDocs = 0;
+    for (ShardState shardState : indexState.shards.values()) {
+      int shardDocs = shardState.writer.getDocStats().numDocs;
+      assertTrue(shardDocs > 0);
+      totalDocs += shardDocs;
+    }
+    assertEquals(NUM_DOCS, totalDocs);
+  }
+
+  @Test
+  public void testSearchMergesShards() throws Exception {
+    addDocs();
+    refresh();
+    SearchResponse response =
+        grpcServer
+            .getBlockingStub()
+            .search(
+                SearchRequest.newBuilder()
+                    .setIndexName(grpcServer.getTestIndex())
+                    .setTopHits(5)
+                    // not match all, which collects in doc order
+                    .setQuery(
+                        Query.newBuilder()
+                            .setRangeQuery(
+                                RangeQuery.newBuilder()
+                                    .setField("popularity")
+                                    .setLower("0")
+                                    .setUpper(String.valueOf(NUM_DOCS))))
+                    .addRetrieveFields("doc_id")
+                    .addRetrieveFields("popularity")
+                    .setQuerySort(
+                        QuerySortField.newBuilder()
+                            .setFields(
+                                SortFields.newBuilder()
+                                    .addSortedFields(
+                                        SortType.newBuilder()
+                                            .setFieldName("popularity")
+                                            .setReverse(true))))
+                    .build());
+    assertEquals(NUM_DOCS, response.getTotalHits().getValue());
+    assertEquals(5, response.getHitsCount());
+    for (int i = 0; i < 5; ++i) {
+      SearchResponse.Hit hit = response.getHits(i);
+      // fields are loaded from the shard the hit came from
+      assertEquals(
+          String.valueOf(NUM_DOCS - i),
+          hit.getFieldsOrThrow("doc_id").getFieldValue(0).getTextValue());
+      assertEquals(
+          NUM_DOCS - i, hit.getFieldsOrThrow("popularity").getFieldValue(0).getLongValue());
+    }
+  }
+
+  @Test
+  public void testGetAndDeleteById() throws Exception {
+    addDocs();
+    GetDocumentsResponse getResponse =
+        grpcServer
+            .getBlockingStub()
+            .getDocuments(
+                GetDocumentsRequest.newBuilder()
+                    .setIndexName(grpcServer.getTestIndex())
+                    .addIds("7")
+                    .addIds("missing")
+                    .addIds("21")
+                    .addRetrieveFields("popularity")
+                    .setRealTime(true)
+                    .build());
+    assertEquals(2, getResponse.getDocumentsCount());
+    assertEquals(
+        7,
+        getResponse.getDocuments(0).getFieldsOrThrow("popularity").getFieldValue(0).getLongValue());
+    assertEquals(
+        21,
+        getResponse.getDocuments(1).getFieldsOrThrow("popularity").getFieldValue(0).getLongValue());
+    assertEquals(Collections.singletonList("missing"), getResponse.getMissingIdsList());
+
+    grpcServer
+        .getBlockingStub()
+        .delete(
+            AddDocumentRequest.newBuilder()
+                .setIndexName(grpcServer.getTestIndex())
+                .putFields(
+                    "doc_id",
+                    AddDocumentRequest.MultiValuedField.newBuilder().addValue("7").build())
+                .build());
+    refresh();
+    SearchResponse response =
+        grpcServer
+            .getBlockingStub()
+            .search(
+                SearchRequest.newBuilder()
+                    .setIndexName(grpcServer.getTestIndex())
+                    .setTopHits(NUM_DOCS)
+                    .build());
+    assertEquals(NUM_DOCS - 1, response.getTotalHits().getValue());
+  }
+
+  @Test
+  public void testStatsSumShards() throws Exception {
+    addDocs();
+    refresh();
+    StatsResponse statsResponse =
+        grpcServer
+            .getBlockingStub()
+            .stats(StatsRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    assertEquals(NUM_DOCS, statsResponse.getNumDocs());
+    assertEquals(NUM_DOCS, statsResponse.getMaxDoc());
+    assertEquals(NUM_DOCS, statsResponse.getCurrentSearcher().getNumDocs());
+  }
+
+  @Test
+  public void testBackupRejected() throws Exception {
+    addDocs();
+    IndexState indexState = grpcServer.getGlobalState().getIndex(grpcServer.getTestIndex());
+    try {
+      new BackupIndexRequestHandler(null)
+          .handle(
+              indexState,
+              BackupIndexRequest.newBuilder()
+                  .setIndexName(grpcServer.getTestIndex())
+                  .setServiceName("testservice")
+                  .setResourceName("testresource")
+                  .build());
+      fail();
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("has multiple shards"));
+    }
+  }
+
+  private void refresh() {
+    grpcServer
+        .getBlockingStub()
+        .refresh(RefreshRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+  }
+
+  private void addDocs() throws Exception {
+    CountDownLatch finishLatch = new CountDownLatch(1);
+    StreamObserver<AddDocumentRequest> requestObserver =
+        grpcServer
+            .getStub()
+            .addDocuments(
+                new StreamObserver<AddDocumentResponse>() {
+                  @Override
+                  public void onNext(AddDocumentResponse value) {}
+
+                  @Override
+                  public void onError(Throwable t) {
+                    finishLatch.countDown();
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    finishLatch.countDown();
+                  }
+                });
+    for (int i = 1; i <= NUM_DOCS; ++i) {
+      requestObserver.onNext(
+          AddDocumentRequest.newBuilder()
+              .setIndexName(grpcServer.getTestIndex())
+              .putFields(
+                  "doc_id",
+                  AddDocumentRequest.MultiValuedField.newBuilder()
+                      .addValue(String.valueOf(i))
+                      .build())
+              .putFields(
+                  "popularity",
+                  AddDocumentRequest.MultiValuedField.newBuilder()
+                      .addValue(String.valueOf(i))
+                      .build())
+              .build());
+    }
+    requestObserver.onCompleted();
+    assertTrue(finishLatch.await(20, TimeUnit.SECONDS));
+  }
+}
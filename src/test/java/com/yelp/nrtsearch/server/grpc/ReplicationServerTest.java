@@ -18,7 +18,9 @@ package com.yelp.nrtsearch.server.grpc;
 import static com.yelp.nrtsearch.server.grpc.GrpcServer.rmDir;
 import static com.yelp.nrtsearch.server.grpc.ReplicationServerClient.BINARY_MAGIC;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.amazonaws.auth.AnonymousAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
@@ -26,16 +28,25 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import com.yelp.nrtsearch.server.LuceneServerTestConfigurationFactory;
 import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
 import com.yelp.nrtsearch.server.luceneserver.GlobalState;
+import com.yelp.nrtsearch.server.luceneserver.NRTReplicaNode;
+import com.yelp.nrtsearch.server.monitoring.ReplicationMetrics;
 import com.yelp.nrtsearch.server.utils.Archiver;
 import com.yelp.nrtsearch.server.utils.ArchiverImpl;
 import com.yelp.nrtsearch.server.utils.Tar;
 import com.yelp.nrtsearch.server.utils.TarImpl;
 import io.findify.s3mock.S3Mock;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.testing.GrpcCleanupRule;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Iterator;
+import java.util.stream.Stream;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -345,6 +356,226 @@ public class ReplicationServerTest {
     validateSearchResults(searchResponseSecondary);
   }
 
+  @Test
+  public void staleReplicaRejectsSearch() throws IOException, InterruptedException {
+    GrpcServer.TestServer testServerPrimary =
+        new GrpcServer.TestServer(luceneServerPrimary, true, Mode.PRIMARY);
+    testServerPrimary.addDocuments();
+    GrpcServer.TestServer testServerReplica =
+        new GrpcServer.TestServer(luceneServerSecondary, true, Mode.REPLICA);
+    SearcherVersion searcherVersionPrimary =
+        replicationServerPrimary
+            .getReplicationServerBlockingStub()
+            .writeNRTPoint(IndexName.newBuilder().setIndexName("test_index").build());
+    SearchRequest searchRequest =
+        SearchRequest.newBuilder()
+            .setIndexName(luceneServerSecondary.getTestIndex())
+            .setTopHits(10)
+            .setMaxStalenessMs(10)
+            .build();
+    // replica is up to date once it searches the primary's version
+    luceneServerSecondary
+        .getBlockingStub()
+        .search(searchRequest.toBuilder().setVersion(searcherVersionPrimary.getVersion()).build());
+    NRTReplicaNode replicaNode =
+        luceneServerSecondary.getGlobalState().getIndex("test_index").getShard(0).nrtReplicaNode;
+    assertEquals(searcherVersionPrimary.getVersion(), replicaNode.getPrimaryVersion());
+    assertEquals(0, replicaNode.getVersionLag());
+    assertEquals(0, replicaNode.getStalenessMs());
+
+    // announce a version the replica can never copy
+    long primaryGen =
+        luceneServerPrimary
+            .getGlobalState()
+            .getIndex("test_index")
+            .getShard(0)
+            .nrtPrimaryNode
+            .getPrimaryGen();
+    replicationServerSecondary
+        .getReplicationServerBlockingStub()
+        .newNRTPoint(
+            NewNRTPoint.newBuilder()
+                .setMagicNumber(BINARY_MAGIC)
+                .setIndexName("test_index")
+                .setPrimaryGen(primaryGen)
+                .setVersion(searcherVersionPrimary.getVersion() + 1000)
+                .build());
+    Thread.sleep(50);
+    assertTrue(replicaNode.getVersionLag() >= 1000);
+    assertTrue(replicaNode.getStalenessMs() >= 50);
+    try {
+      luceneServerSecondary.getBlockingStub().search(searchRequest);
+      fail("stale replica should reject search");
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+    }
+    // searches without a limit are still served
+    luceneServerSecondary
+        .getBlockingStub()
+        .search(searchRequest.toBuilder().setMaxStalenessMs(0).build());
+  }
+
+  @Test
+  public void replicaStaleWithoutPrimaryContact() throws IOException, InterruptedException {
+    luceneServerSecondary.getGlobalState().setReplicaReplicationPortPingInterval(10);
+    GrpcServer.TestServer testServerPrimary =
+        new GrpcServer.TestServer(luceneServerPrimary, true, Mode.PRIMARY);
+    testServerPrimary.addDocuments();
+    GrpcServer.TestServer testServerReplica =
+        new GrpcServer.TestServer(luceneServerSecondary, true, Mode.REPLICA);
+    NRTReplicaNode replicaNode =
+        luceneServerSecondary.getGlobalState().getIndex("test_index").getShard(0).nrtReplicaNode;
+    SearchRequest searchRequest =
+        SearchRequest.newBuilder()
+            .setIndexName(luceneServerSecondary.getTestIndex())
+            .setTopHits(10)
+            .setMaxStalenessMs(200)
+            .build();
+    // keepalives from the primary keep an idle replica fresh
+    Thread.sleep(300);
+    assertTrue(replicaNode.getStalenessMs() < 200);
+    luceneServerSecondary.getBlockingStub().search(searchRequest);
+
+    // no new NRT points are pending, but the primary stopped answering keepalives
+    luceneServerPrimary
+        .getBlockingStub()
+        .stopIndex(StopIndexRequest.newBuilder().setIndexName("test_index").build());
+    Thread.sleep(500);
+    assertEquals(0, replicaNode.getVersionLag());
+    assertTrue(replicaNode.getStalenessMs() >= 300);
+    try {
+      luceneServerSecondary.getBlockingStub().search(searchRequest);
+      fail("replica without contact to its primary should reject search");
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.UNAVAILABLE, e.getStatus().getCode());
+    }
+  }
+
+  @Test
+  public void replicaBootstrapFromBackup() throws IOException, InterruptedException {
+    GrpcServer.TestServer testServerPrimary =
+        new GrpcServer.TestServer(luceneServerPrimary, true, Mode.PRIMARY);
+    testServerPrimary.addDocuments();
+    luceneServerPrimary
+        .getBlockingStub()
+        .backupIndex(
+            BackupIndexRequest.newBuilder()
+                .setIndexName("test_index")
+                .setServiceName("testservice")
+                .setResourceName("testresource")
+                .build());
+    // changes after the backup
+    testServerPrimary.addDocuments();
+    luceneServerPrimary
+        .getBlockingStub()
+        .refresh(RefreshRequest.newBuilder().setIndexName("test_index").build());
+
+    double reusedBytes = ReplicationMetrics.copyReusedBytesCount.labels("test_index").get();
+    // replica restores the backup, then copies the files that changed from the primary
+    new GrpcServer.TestServer(luceneServerSecondary, true, Mode.REPLICA, 0, true);
+    SearchRequest searchRequest =
+        SearchRequest.newBuilder()
+            .setIndexName(luceneServerSecondary.getTestIndex())
+            .setTopHits(10)
+            .addAllRetrieveFields(LuceneServerTest.RETRIEVED_VALUES)
+            .build();
+    SearchResponse searchResponse = luceneServerSecondary.getBlockingStub().search(searchRequest);
+    for (int i = 0; i < 100 && searchResponse.getHitsCount() < 4; ++i) {
+      Thread.sleep(50);
+      searchResponse = luceneServerSecondary.getBlockingStub().search(searchRequest);
+    }
+    validateSearchResults(searchResponse);
+    assertTrue(ReplicationMetrics.copyReusedBytesCount.labels("test_index").get() > reusedBytes);
+  }
+
+  @Test
+  public void replicaBackup() throws IOException, InterruptedException {
+    GrpcServer.TestServer testServerPrimary =
+        new GrpcServer.TestServer(luceneServerPrimary, true, Mode.PRIMARY);
+    testServerPrimary.addDocuments();
+    luceneServerPrimary
+        .getBlockingStub()
+        .refresh(RefreshRequest.newBuilder().setIndexName("test_index").build());
+    double reusedBytes = ReplicationMetrics.copyReusedBytesCount.labels("test_index").get();
+    new GrpcServer.TestServer(luceneServerSecondary, true, Mode.REPLICA);
+    testServerPrimary.addDocuments();
+    SearcherVersion searcherVersionPrimary =
+        replicationServerPrimary
+            .getReplicationServerBlockingStub()
+            .writeNRTPoint(IndexName.newBuilder().setIndexName("test_index").build());
+    // wait for the replica to reach the primary version
+    luceneServerSecondary
+        .getBlockingStub()
+        .search(
+            SearchRequest.newBuilder()
+                .setIndexName(luceneServerSecondary.getTestIndex())
+                .setVersion(searcherVersionPrimary.getVersion())
+                .build());
+    // only the catch up of a restored replica counts reused bytes, not every new NRT point
+    assertEquals(
+        reusedBytes, ReplicationMetrics.copyReusedBytesCount.labels("test_index").get(), 0);
+
+    // the replica has never committed, its backup is a commit of its current searcher
+    BackupIndexResponse response =
+        luceneServerSecondary
+            .getBlockingStub()
+            .backupIndex(
+                BackupIndexRequest.newBuilder()
+                    .setIndexName("test_index")
+                    .setServiceName("testservice")
+                    .setResourceName("testresource")
+                    .build());
+    assertFalse(response.getDataVersionHash().isEmpty());
+
+    Path downloadPath = archiver.download("testservice", "testresource_data");
+    Path indexPath;
+    try (Stream<Path> paths = Files.list(downloadPath)) {
+      indexPath = paths.findFirst().get().resolve("shard0").resolve("index");
+    }
+    try (Directory directory = FSDirectory.open(indexPath);
+        DirectoryReader reader = DirectoryReader.open(directory)) {
+      assertEquals(4, reader.numDocs());
+    }
+    // the staging dir is removed after the upload
+    try (Stream<Path> paths = Files.list(luceneServerSecondary.getGlobalState().getTmpDir())) {
+      assertEquals(0, paths.count());
+    }
+  }
+
+  @Test
+  public void replicaBackupRejectsTaxonomyFacets() throws IOException {
+    new GrpcServer.TestServer(luceneServerPrimary, true, Mode.PRIMARY);
+    new GrpcServer.TestServer(luceneServerSecondary, true, Mode.REPLICA);
+    // replicas do not open the taxonomy index, so it cannot be part of their backup
+    luceneServerSecondary
+        .getBlockingStub()
+        .registerFields(
+            FieldDefRequest.newBuilder()
+                .setIndexName("test_index")
+                .addField(
+                    Field.newBuilder()
+                        .setName("category")
+                        .setType(FieldType.ATOM)
+                        .setFacet(FacetType.HIERARCHY))
+                .build());
+    try {
+      luceneServerSecondary
+          .getBlockingStub()
+          .backupIndex(
+              BackupIndexRequest.newBuilder()
+                  .setIndexName("test_index")
+                  .setServiceName("testservice")
+                  .setResourceName("testresource")
+                  .build());
+      fail("replica backup of an index with taxonomy facets should fail");
+    } catch (StatusRuntimeException e) {
+      assertTrue(e.getMessage().contains("has taxonomy facet field: category"));
+    }
+    try (Stream<Path> paths = Files.list(luceneServerSecondary.getGlobalState().getTmpDir())) {
+      assertEquals(0, paths.count());
+    }
+  }
+
   public static void validateSearchResults(SearchResponse searchResponse) {
     assertEquals(4, searchResponse.getTotalHits().getValue());
     assertEquals(4, searchResponse.getHitsList().size());
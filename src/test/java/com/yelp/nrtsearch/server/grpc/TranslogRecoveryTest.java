@@ -0,0 +1,290 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.grpc;
+
+import static com.yelp.nrtsearch.server.grpc.GrpcServer.rmDir;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.LuceneServerTestConfigurationFactory;
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.luceneserver.GlobalState;
+import com.yelp.nrtsearch.server.luceneserver.IndexState;
+import com.yelp.nrtsearch.server.luceneserver.ShardState;
+import com.yelp.nrtsearch.server.luceneserver.UpdateDocValuesHandler;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Crashes are simulated by copying the state and index dirs of a running server, which leaves out
+ * everything that was not committed or written to the translog, and starting the index from the
+ * copy.
+ */
+public class TranslogRecoveryTest {
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private LuceneServerConfiguration luceneServerConfiguration;
+  private GrpcServer grpcServer;
+
+  @Before
+  public void setUp() throws Exception {
+    luceneServerConfiguration =
+        LuceneServerTestConfigurationFactory.getConfig(Mode.STANDALONE, folder.getRoot());
+    GlobalState globalState = new GlobalState(luceneServerConfiguration);
+    grpcServer =
+        new GrpcServer(
+            new CollectorRegistry(),
+            grpcCleanup,
+            luceneServerConfiguration,
+            folder,
+            false,
+            globalState,
+            luceneServerConfiguration.getIndexDir(),
+            "test_index",
+            globalState.getPort(),
+            null,
+            Collections.emptyList());
+    LuceneServerGrpc.LuceneServerBlockingStub blockingStub = grpcServer.getBlockingStub();
+    blockingStub.createIndex(
+        CreateIndexRequest.newBuilder()
+            .setIndexName(grpcServer.getTestIndex())
+            .setRootDir(grpcServer.getIndexDir())
+            .build());
+    blockingStub.settings(
+        SettingsRequest.newBuilder()
+            .setIndexName(grpcServer.getTestIndex())
+            .setEnableTranslog(true)
+            .build());
+    blockingStub.startIndex(
+        StartIndexRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    blockingStub.registerFields(
+        FieldDefRequest.newBuilder()
+            .setIndexName(grpcServer.getTestIndex())
+            .addField(Field.newBuilder().setName("doc_id").setType(FieldType._ID).setStore(true))
+            .addField(
+                Field.newBuilder()
+                    .setName("popularity")
+                    .setType(FieldType.LONG)
+                    .setSearch(true)
+                    .setStoreDocValues(true))
+            .build());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    grpcServer.getGlobalState().close();
+    grpcServer.shutdown();
+    rmDir(Paths.get(grpcServer.getIndexDir()).getParent());
+  }
+
+  @Test
+  public void testReplayAfterCrash() throws Exception {
+    addDocs(1, 10);
+    commit();
+    // not committed, only in the translog
+    addDocs(11, 20);
+    delete("3");
+    delete("15");
+    new UpdateDocValuesHandler.DocValuesUpdater(
+            grpcServer.getGlobalState(),
+            UpdateDocValuesRequest.newBuilder()
+                .setIndexName(grpcServer.getTestIndex())
+                .addUpdates(
+                    UpdateDocValuesRequest.DocValuesUpdate.newBuilder()
+                        .setId("5")
+                        .putFields("popularity", "100"))
+                .build())
+        .runUpdateJob();
+
+    GlobalState globalState = crashAndRestart();
+    try {
+      ShardState shardState = startIndex(globalState);
+      assertEquals(18, shardState.writer.getDocStats().numDocs);
+      assertEquals(-1, getPopularity(shardState, "3"));
+      assertEquals(-1, getPopularity(shardState, "15"));
+      assertEquals(100, getPopularity(shardState, "5"));
+      assertEquals(12, getPopularity(shardState, "12"));
+    } finally {
+      globalState.close();
+    }
+  }
+
+  @Test
+  public void testReplayDeleteAllInOrder() throws Exception {
+    addDocs(1, 10);
+    commit();
+    grpcServer
+        .getBlockingStub()
+        .deleteAll(
+            DeleteAllDocumentsRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+    addDocs(21, 25);
+
+    GlobalState globalState = crashAndRestart();
+    try {
+      ShardState shardState = startIndex(globalState);
+      assertEquals(5, shardState.writer.getDocStats().numDocs);
+      assertEquals(-1, getPopularity(shardState, "1"));
+      assertEquals(21, getPopularity(shardState, "21"));
+    } finally {
+      globalState.close();
+    }
+  }
+
+  @Test
+  public void testNothingToReplayAfterCommit() throws Exception {
+    addDocs(1, 10);
+    delete("4");
+    commit();
+
+    GlobalState globalState = crashAndRestart();
+    try {
+      ShardState shardState = startIndex(globalState);
+      assertEquals(9, shardState.writer.getDocStats().numDocs);
+      assertTrue(shardState.translog.readUncommitted().isEmpty());
+    } finally {
+      globalState.close();
+    }
+  }
+
+  /** Copy the dirs of the running server, and open a new global state on the copy. */
+  private GlobalState crashAndRestart() throws IOException {
+    Path crashDir = folder.newFolder("crash").toPath();
+    Path stateDir = crashDir.resolve("state");
+    Path indexDir = crashDir.resolve("index");
+    FileUtils.copyDirectory(
+        Paths.get(luceneServerConfiguration.getStateDir()).toFile(), stateDir.toFile());
+    FileUtils.copyDirectory(
+        Paths.get(luceneServerConfiguration.getIndexDir()).toFile(), indexDir.toFile());
+    String config =
+        String.join("\n", "nodeName: standalone", "stateDir: " + stateDir, "indexDir: " + indexDir);
+    return new GlobalState(
+        new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes())));
+  }
+
+  private ShardState startIndex(GlobalState globalState) throws Exception {
+    IndexState indexState = globalState.getIndex(grpcServer.getTestIndex());
+    indexState.start(null);
+    ShardState shardState = indexState.getShard(0);
+    shardState.maybeRefreshBlocking();
+    return shardState;
+  }
+
+  /** Get the popularity doc value of a document, or -1 if it does not exist. */
+  private static long getPopularity(ShardState shardState, String id) throws IOException {
+    SearcherTaxonomyManager.SearcherAndTaxonomy s = shardState.acquire();
+    try {
+      TopDocs topDocs = s.searcher.search(new TermQuery(new Term("doc_id", id)), 2);
+      if (topDocs.totalHits.value == 0) {
+        return -1;
+      }
+      assertEquals(TotalHits.Relation.EQUAL_TO, topDocs.totalHits.relation);
+      assertEquals(1, topDocs.totalHits.value);
+      ScoreDoc hit = topDocs.scoreDocs[0];
+      LeafReaderContext leaf =
+          s.searcher
+              .getIndexReader()
+              .leaves()
+              .get(ReaderUtil.subIndex(hit.doc, s.searcher.getIndexReader().leaves()));
+      NumericDocValues docValues = leaf.reader().getNumericDocValues("popularity");
+      assertTrue(docValues.advanceExact(hit.doc - leaf.docBase));
+      return docValues.longValue();
+    } finally {
+      shardState.release(s);
+    }
+  }
+
+  private void commit() {
+    grpcServer
+        .getBlockingStub()
+        .commit(CommitRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+  }
+
+  private void delete(String id) {
+    grpcServer
+        .getBlockingStub()
+        .delete(
+            AddDocumentRequest.newBuilder()
+                .setIndexName(grpcServer.getTestIndex())
+                .putFields(
+                    "doc_id", AddDocumentRequest.MultiValuedField.newBuilder().addValue(id).build())
+                .build());
+  }
+
+  private void addDocs(int from, int to) throws Exception {
+    CountDownLatch finishLatch = new CountDownLatch(1);
+    StreamObserver<AddDocumentRequest> requestObserver =
+        grpcServer
+            .getStub()
+            .addDocuments(
+                new StreamObserver<AddDocumentResponse>() {
+                  @Override
+                  public void onNext(AddDocumentResponse value) {}
+
+                  @Override
+                  public void onError(Throwable t) {
+                    finishLatch.countDown();
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    finishLatch.countDown();
+                  }
+                });
+    for (int i = from; i <= to; ++i) {
+      requestObserver.onNext(
+          AddDocumentRequest.newBuilder()
+              .setIndexName(grpcServer.getTestIndex())
+              .putFields(
+                  "doc_id",
+                  AddDocumentRequest.MultiValuedField.newBuilder()
+                      .addValue(String.valueOf(i))
+                      .build())
+              .putFields(
+                  "popularity",
+                  AddDocumentRequest.MultiValuedField.newBuilder()
+                      .addValue(String.valueOf(i))
+                      .build())
+              .build());
+    }
+    requestObserver.onCompleted();
+    assertTrue(finishLatch.await(20, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.grpc;
+
+import static com.yelp.nrtsearch.server.grpc.GrpcServer.rmDir;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.LuceneServerTestConfigurationFactory;
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.luceneserver.GlobalState;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import io.prometheus.client.CollectorRegistry;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UpdateDocValuesTest {
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private GrpcServer grpcServer;
+
+  @Before
+  public void setUp() throws Exception {
+    LuceneServerConfiguration luceneServerConfiguration =
+        LuceneServerTestConfigurationFactory.getConfig(Mode.STANDALONE, folder.getRoot());
+    GlobalState globalState = new GlobalState(luceneServerConfiguration);
+    grpcServer =
+        new GrpcServer(
+            new CollectorRegistry(),
+            grpcCleanup,
+            luceneServerConfiguration,
+            folder,
+            false,
+            globalState,
+            luceneServerConfiguration.getIndexDir(),
+            "test_index",
+            globalState.getPort(),
+            null,
+            Collections.emptyList());
+    new GrpcServer.IndexAndRoleManager(grpcServer)
+        .createStartIndexAndRegisterFields(
+            Mode.STANDALONE, 0, false, "registerFieldsBasicWithId.json");
+    grpcServer
+        .getBlockingStub()
+        .updateFields(
+            FieldDefRequest.newBuilder()
+                .setIndexName(grpcServer.getTestIndex())
+                .addField(
+                    Field.newBuilder()
+                        .setName("popularity")
+                        .setType(FieldType.LONG)
+                        .setStoreDocValues(true)
+                        .build())
+                .build());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    grpcServer.getGlobalState().close();
+    grpcServer.shutdown();
+    rmDir(Paths.get(grpcServer.getIndexDir()).getParent());
+  }
+
+  @Test
+  public void testUpdateDocValues() throws Exception {
+    addDoc("1", 10);
+    addDoc("2", 20);
+
+    StreamResult result =
+        updateDocValues(
+            List.of(
+                UpdateDocValuesRequest.newBuilder()
+                    .setIndexName(grpcServer.getTestIndex())
+                    .addUpdates(update("1", "popularity", "100"))
+                    .addUpdates(update("2", "popularity", "200"))
+                    .build()));
+    assertNull(result.error);
+    assertNotNull(result.response);
+    refresh();
+
+    assertEquals(100, getPopularity("1"));
+    assertEquals(200, getPopularity("2"));
+    // the documents were updated in place, not reindexed
+    assertEquals(
+        2,
+        grpcServer
+            .getBlockingStub()
+            .stats(StatsRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build())
+            .getNumDocs());
+  }
+
+  @Test
+  public void testSearchableFieldRejected() throws Exception {
+    addDoc("1", 10);
+
+    StreamResult result =
+        updateDocValues(
+            List.of(
+                UpdateDocValuesRequest.newBuilder()
+                    .setIndexName(grpcServer.getTestIndex())
+                    .addUpdates(update("1", "popularity", "100"))
+                    .addUpdates(update("1", "count", "5"))
+                    .build()));
+    assertNotNull(result.error);
+    assertTrue(
+        result
+            .error
+            .getMessage()
+            .contains("field: count cannot be searchable, stored or faceted to update doc values"));
+    refresh();
+    // batch is validated before any update is applied
+    assertEquals(10, getPopularity("1"));
+  }
+
+  @Test
+  public void testMultiValuedFieldRejected() throws Exception {
+    addDoc("1", 10);
+
+    StreamResult result =
+        updateDocValues(
+            List.of(
+                UpdateDocValuesRequest.newBuilder()
+                    .setIndexName(grpcServer.getTestIndex())
+                    .addUpdates(update("1", "double_field_multi", "1.5"))
+                    .build()));
+    assertNotNull(result.error);
+    assertTrue(
+        result
+            .error
+            .getMessage()
+            .contains(
+                "field: double_field_multi must be single valued with storeDocValues=true to update doc values"));
+  }
+
+  private UpdateDocValuesRequest.DocValuesUpdate update(String id, String field, String value) {
+    return UpdateDocValuesRequest.DocValuesUpdate.newBuilder()
+        .setId(id)
+        .putFields(field, value)
+        .build();
+  }
+
+  private void addDoc(String id, long popularity) throws Exception {
+    CountDownLatch finishLatch = new CountDownLatch(1);
+    StreamObserver<AddDocumentRequest> requestObserver =
+        grpcServer
+            .getStub()
+            .addDocuments(
+                new StreamObserver<AddDocumentResponse>() {
+                  @Override
+                  public void onNext(AddDocumentResponse value) {}
+
+                  @Override
+                  public void onError(Throwable t) {
+                    finishLatch.countDown();
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    finishLatch.countDown();
+                  }
+                });
+    requestObserver.onNext(
+        AddDocumentRequest.newBuilder()
+            .setIndexName(grpcServer.getTestIndex())
+            .putFields(
+                "doc_id", AddDocumentRequest.MultiValuedField.newBuilder().addValue(id).build())
+            .putFields(
+                "popularity",
+                AddDocumentRequest.MultiValuedField.newBuilder()
+                    .addValue(String.valueOf(popularity))
+                    .build())
+            .build());
+    requestObserver.onCompleted();
+    assertTrue(finishLatch.await(20, TimeUnit.SECONDS));
+    refresh();
+  }
+
+  private static class StreamResult {
+    AddDocumentResponse response;
+    Throwable error;
+  }
+
+  private StreamResult updateDocValues(List<UpdateDocValuesRequest> requests) throws Exception {
+    StreamResult result = new StreamResult();
+    CountDownLatch finishLatch = new CountDownLatch(1);
+    StreamObserver<UpdateDocValuesRequest> requestObserver =
+        grpcServer
+            .getStub()
+            .updateDocValues(
+                new StreamObserver<AddDocumentResponse>() {
+                  @Override
+                  public void onNext(AddDocumentResponse value) {
+                    result.response = value;
+                  }
+
+                  @Override
+                  public void onError(Throwable t) {
+                    result.error = t;
+                    finishLatch.countDown();
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    finishLatch.countDown();
+                  }
+                });
+    requests.forEach(requestObserver::onNext);
+    requestObserver.onCompleted();
+    assertTrue(finishLatch.await(20, TimeUnit.SECONDS));
+    return result;
+  }
+
+  private void refresh() {
+    grpcServer
+        .getBlockingStub()
+        .refresh(RefreshRequest.newBuilder().setIndexName(grpcServer.getTestIndex()).build());
+  }
+
+  private long getPopularity(String id) {
+    SearchResponse searchResponse =
+        grpcServer
+            .getBlockingStub()
+            .search(
+                SearchRequest.newBuilder()
+                    .setIndexName(grpcServer.getTestIndex())
+                    .setStartHit(0)
+                    .setTopHits(10)
+                    .addRetrieveFields("popularity")
+                    .setQuery(
+                        Query.newBuilder()
+                            .setTermQuery(
+                                TermQuery.newBuilder().setField("doc_id").setTextValue(id).build())
+                            .build())
+                    .build());
+    assertEquals(1, searchResponse.getHitsCount());
+    return searchResponse.getHits(0).getFieldsOrThrow("popularity").getFieldValue(0).getLongValue();
+  }
+}
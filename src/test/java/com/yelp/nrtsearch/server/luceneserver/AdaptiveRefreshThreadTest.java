@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveRefreshThreadTest {
+  private Directory directory;
+  private IndexWriter writer;
+  private SearcherManager manager;
+  private AdaptiveRefreshThread<IndexSearcher> refreshThread;
+  private final AtomicInteger numRefreshes = new AtomicInteger();
+  private volatile boolean mergesSaturated;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = new ByteBuffersDirectory();
+    // reports all merge threads busy when mergesSaturated is set
+    ConcurrentMergeScheduler mergeScheduler =
+        new ConcurrentMergeScheduler() {
+          @Override
+          public synchronized int mergeThreadCount() {
+            return mergesSaturated ? getMaxThreadCount() : super.mergeThreadCount();
+          }
+        };
+    mergeScheduler.setMaxMergesAndThreads(2, 1);
+    writer =
+        new IndexWriter(
+            directory,
+            new IndexWriterConfig(new StandardAnalyzer()).setMergeScheduler(mergeScheduler));
+    manager = new SearcherManager(writer, null);
+    manager.addListener(
+        new ReferenceManager.RefreshListener() {
+          @Override
+          public void beforeRefresh() {}
+
+          @Override
+          public void afterRefresh(boolean didRefresh) {
+            if (didRefresh) {
+              numRefreshes.incrementAndGet();
+            }
+          }
+        });
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (refreshThread != null) {
+      refreshThread.close();
+    }
+    manager.close();
+    writer.close();
+    directory.close();
+  }
+
+  private void startThread(double maxRefreshSec, double minRefreshSec) {
+    refreshThread =
+        new AdaptiveRefreshThread<>(
+            writer, manager, "test_index", maxRefreshSec, minRefreshSec, () -> 0);
+    refreshThread.start();
+  }
+
+  private void addDoc(String id) throws IOException {
+    Document document = new Document();
+    document.add(new StringField("id", id, Field.Store.NO));
+    writer.addDocument(document);
+  }
+
+  private int numDocs() throws IOException {
+    IndexSearcher searcher = manager.acquire();
+    try {
+      return searcher.getIndexReader().numDocs();
+    } finally {
+      manager.release(searcher);
+    }
+  }
+
+  @Test
+  public void testRefreshNow() throws Exception {
+    // long enough that only a request can cause the refresh
+    startThread(60, 30);
+    addDoc("1");
+    refreshThread.refreshNow();
+    assertEquals(1, numDocs());
+  }
+
+  @Test
+  public void testWaitForGeneration() throws Exception {
+    startThread(60, 0.01);
+    addDoc("1");
+    long gen = writer.getMaxCompletedSequenceNumber();
+    assertTrue(refreshThread.waitForGeneration(gen, 10000));
+    assertEquals(1, numDocs());
+  }
+
+  @Test
+  public void testWaitForGenerationTimeout() throws Exception {
+    startThread(60, 30);
+    addDoc("1");
+    long gen = writer.getMaxCompletedSequenceNumber();
+    assertFalse(refreshThread.waitForGeneration(gen, 100));
+  }
+
+  @Test
+  public void testConcurrentRequestsShareRefresh() throws Exception {
+    startThread(60, 30);
+    addDoc("1");
+    int numRequests = 20;
+    ExecutorService executor = Executors.newFixedThreadPool(numRequests);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < numRequests; ++i) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  refreshThread.refreshNow();
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, numDocs());
+    assertTrue(numRefreshes.get() < numRequests);
+  }
+
+  @Test
+  public void testRefreshNowWhileMergesSaturated() throws Exception {
+    // a waiting search would back off to maxRefreshSec
+    mergesSaturated = true;
+    startThread(60, 0.01);
+    addDoc("1");
+    long gen = writer.getMaxCompletedSequenceNumber();
+    assertFalse(refreshThread.waitForGeneration(gen, 200));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> future =
+          executor.submit(
+              () -> {
+                refreshThread.refreshNow();
+                return null;
+              });
+      future.get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, numDocs());
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.yelp.nrtsearch.server.grpc.TransferStatus;
+import com.yelp.nrtsearch.server.grpc.TransferStatusCode;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class CopyFilesHandlerTest {
+  private final AtomicLong nanoTime = new AtomicLong();
+  private final RecordingObserver observer = new RecordingObserver();
+  private final CopyFilesHandler.CopyProgressReporter reporter =
+      new CopyFilesHandler.CopyProgressReporter(observer, "[_0.cfs]", nanoTime::get);
+
+  @Test
+  public void testProgressAtMostOncePerSecond() {
+    reporter.onProgress(10, 100);
+    assertEquals(0, observer.statuses.size());
+
+    advanceMs(1000);
+    reporter.onProgress(20, 100);
+    advanceMs(500);
+    reporter.onProgress(30, 100);
+    assertEquals(1, observer.statuses.size());
+    assertEquals(TransferStatusCode.Ongoing, observer.statuses.get(0).getCode());
+    assertTrue(observer.statuses.get(0).getMessage().contains("20 of 100 bytes"));
+
+    advanceMs(500);
+    reporter.onProgress(40, 100);
+    assertEquals(2, observer.statuses.size());
+    assertTrue(observer.statuses.get(1).getMessage().contains("40 of 100 bytes"));
+    assertFalse(observer.completed);
+  }
+
+  @Test
+  public void testDone() {
+    reporter.onDone(job(false));
+    assertEquals(1, observer.statuses.size());
+    assertEquals(TransferStatusCode.Done, observer.statuses.get(0).getCode());
+    assertTrue(observer.completed);
+
+    // late progress from the job is not sent after completion
+    advanceMs(2000);
+    reporter.onProgress(100, 100);
+    assertEquals(1, observer.statuses.size());
+  }
+
+  @Test
+  public void testFailed() {
+    reporter.onDone(job(true));
+    assertEquals(1, observer.statuses.size());
+    assertEquals(TransferStatusCode.Failed, observer.statuses.get(0).getCode());
+    assertTrue(observer.completed);
+  }
+
+  @Test
+  public void testPrimaryCancelled() {
+    advanceMs(1000);
+    reporter.onProgress(10, 100);
+    reporter.onCancel();
+
+    advanceMs(1000);
+    reporter.onProgress(20, 100);
+    reporter.onDone(job(false));
+    assertEquals(1, observer.statuses.size());
+    assertFalse(observer.completed);
+  }
+
+  @Test
+  public void testSendFailsAfterCancel() {
+    // grpc throws when sending on a call the primary already cancelled
+    observer.failSend = true;
+    advanceMs(1000);
+    reporter.onProgress(10, 100);
+
+    observer.failSend = false;
+    reporter.onDone(job(false));
+    assertEquals(0, observer.statuses.size());
+    assertFalse(observer.completed);
+  }
+
+  private void advanceMs(long ms) {
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+  }
+
+  private static SimpleCopyJob job(boolean failed) {
+    SimpleCopyJob job = mock(SimpleCopyJob.class);
+    when(job.getFailed()).thenReturn(failed);
+    return job;
+  }
+
+  static class RecordingObserver implements StreamObserver<TransferStatus> {
+    final List<TransferStatus> statuses = new ArrayList<>();
+    volatile boolean failSend;
+    volatile boolean completed;
+
+    @Override
+    public synchronized void onNext(TransferStatus value) {
+      if (failSend) {
+        throw Status.CANCELLED.withDescription("call already cancelled").asRuntimeException();
+      }
+      statuses.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      throw new AssertionError("unexpected onError", t);
+    }
+
+    @Override
+    public void onCompleted() {
+      completed = true;
+    }
+  }
+}
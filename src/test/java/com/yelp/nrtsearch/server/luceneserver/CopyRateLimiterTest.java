@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CopyRateLimiterTest {
+  private static final long MB = 1024 * 1024;
+
+  @Test
+  public void testUnlimited() {
+    CopyRateLimiter rateLimiter = new CopyRateLimiter(0);
+    assertFalse(rateLimiter.isLimited());
+    long startNS = System.nanoTime();
+    rateLimiter.pause(1024 * MB);
+    assertTrue(System.nanoTime() - startNS < 1000000000L);
+  }
+
+  @Test
+  public void testLimitsRate() {
+    CopyRateLimiter rateLimiter = new CopyRateLimiter(10);
+    assertTrue(rateLimiter.isLimited());
+    long startNS = System.nanoTime();
+    // 2 MB at 10 MB/sec takes at least 200 ms
+    rateLimiter.pause(MB);
+    rateLimiter.pause(MB);
+    assertTrue(System.nanoTime() - startNS >= 190000000L);
+  }
+
+  @Test
+  public void testSharedBetweenThreads() throws InterruptedException {
+    CopyRateLimiter rateLimiter = new CopyRateLimiter(10);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i] = new Thread(() -> rateLimiter.pause(MB / 2));
+    }
+    long startNS = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // 2 MB in total, whichever thread copied it
+    assertTrue(System.nanoTime() - startNS >= 190000000L);
+  }
+}
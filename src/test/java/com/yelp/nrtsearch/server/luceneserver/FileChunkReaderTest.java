@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.util.Random;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FlushInfo;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileChunkReaderTest {
+  private static final String FILE_NAME = "_0.cfs";
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] writeFile(Directory directory) throws IOException {
+    byte[] content = new byte[100000];
+    new Random(42).nextBytes(content);
+    try (IndexOutput output = directory.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+      output.writeBytes(content, content.length);
+    }
+    return content;
+  }
+
+  private static void assertChunks(FileChunkReader reader, byte[] content) throws IOException {
+    assertEquals(content.length, reader.length());
+    int chunkSize = 4096;
+    ByteString all = ByteString.EMPTY;
+    for (long pos = 0; pos < content.length; pos += chunkSize) {
+      all = all.concat(reader.read(pos, (int) Math.min(chunkSize, content.length - pos)));
+    }
+    assertArrayEquals(content, all.toByteArray());
+  }
+
+  @Test
+  public void testMappedFile() throws IOException {
+    try (Directory directory = FSDirectory.open(folder.getRoot().toPath())) {
+      byte[] content = writeFile(directory);
+      try (FileChunkReader reader = FileChunkReader.open(directory, FILE_NAME)) {
+        assertTrue(reader instanceof FileChunkReader.MappedFileChunkReader);
+        assertChunks(reader, content);
+      }
+    }
+  }
+
+  @Test
+  public void testChunkUsableAfterClose() throws IOException {
+    try (Directory directory = FSDirectory.open(folder.getRoot().toPath())) {
+      byte[] content = writeFile(directory);
+      ByteString chunk;
+      try (FileChunkReader reader = FileChunkReader.open(directory, FILE_NAME)) {
+        chunk = reader.read(10, 100);
+      }
+      byte[] expected = new byte[100];
+      System.arraycopy(content, 10, expected, 0, 100);
+      assertArrayEquals(expected, chunk.toByteArray());
+    }
+  }
+
+  @Test
+  public void testInMemoryFile() throws IOException {
+    try (Directory directory = new ByteBuffersDirectory()) {
+      byte[] content = writeFile(directory);
+      try (FileChunkReader reader = FileChunkReader.open(directory, FILE_NAME)) {
+        assertTrue(reader instanceof FileChunkReader.IndexInputChunkReader);
+        assertChunks(reader, content);
+      }
+    }
+  }
+
+  @Test
+  public void testNRTCachedFile() throws IOException {
+    try (Directory directory =
+        new NRTCachingDirectory(FSDirectory.open(folder.getRoot().toPath()), 10, 10)) {
+      // small flushed files are held in memory by the caching directory
+      byte[] content = new byte[1000];
+      new Random(42).nextBytes(content);
+      IOContext flushContext = new IOContext(new FlushInfo(1, content.length));
+      try (IndexOutput output = directory.createOutput(FILE_NAME, flushContext)) {
+        output.writeBytes(content, content.length);
+      }
+      try (FileChunkReader reader = FileChunkReader.open(directory, FILE_NAME)) {
+        assertTrue(reader instanceof FileChunkReader.IndexInputChunkReader);
+        assertChunks(reader, content);
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene84.Lucene84Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares id lookup and update by id throughput of the default postings format and the bloom
+ * filtered postings format used for _ID fields, on an index with many segments. This is a perf
+ * test, run with: ./gradlew test -PincludePerfTests=true --tests '*IdPostingsFormatBenchmark'
+ */
+public class IdPostingsFormatBenchmark {
+  private static final Logger logger = LoggerFactory.getLogger(IdPostingsFormatBenchmark.class);
+  private static final int NUM_SEGMENTS = 100;
+  private static final int DOCS_PER_SEGMENT = 10000;
+  private static final int NUM_OPS = 200000;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void benchmark() throws IOException {
+    for (String format :
+        new String[] {ServerCodec.DEFAULT_POSTINGS_FORMAT, ServerCodec.BLOOM_POSTINGS_FORMAT}) {
+      Path path = folder.newFolder(format).toPath();
+      try (Directory dir = new MMapDirectory(path);
+          IndexWriter writer = new IndexWriter(dir, getConfig(format))) {
+        for (int segment = 0; segment < NUM_SEGMENTS; ++segment) {
+          for (int i = 0; i < DOCS_PER_SEGMENT; ++i) {
+            writer.addDocument(getDoc(segment * DOCS_PER_SEGMENT + i));
+          }
+          writer.flush();
+        }
+        writer.commit();
+
+        long lookupNanos = runLookups(writer);
+        long updateNanos = runUpdates(writer);
+        logger.info(
+            String.format(
+                "postings format: %s, segments: %s, id lookups/sec: %.0f, updates/sec: %.0f",
+                format,
+                NUM_SEGMENTS,
+                NUM_OPS / (lookupNanos / 1e9),
+                NUM_OPS / (updateNanos / 1e9)));
+      }
+    }
+  }
+
+  private IndexWriterConfig getConfig(String format) {
+    PostingsFormat idPostings = ServerCodec.getPostingsFormat(format);
+    IndexWriterConfig iwc = new IndexWriterConfig();
+    // keep the segment count fixed during the run
+    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+    iwc.setCodec(
+        new Lucene84Codec() {
+          @Override
+          public PostingsFormat getPostingsFormatForField(String field) {
+            return idPostings;
+          }
+        });
+    return iwc;
+  }
+
+  private Document getDoc(int id) {
+    Document document = new Document();
+    document.add(new StringField("id", String.valueOf(id), Store.NO));
+    document.add(new NumericDocValuesField("value", id));
+    return document;
+  }
+
+  /** Resolve random ids against every segment, the same work done to apply an update. */
+  private long runLookups(IndexWriter writer) throws IOException {
+    Random random = new Random(42);
+    int found = 0;
+    try (DirectoryReader reader = DirectoryReader.open(writer)) {
+      TermsEnum[] termsEnums = new TermsEnum[reader.leaves().size()];
+      for (LeafReaderContext context : reader.leaves()) {
+        Terms terms = context.reader().terms("id");
+        termsEnums[context.ord] = terms == null ? TermsEnum.EMPTY : terms.iterator();
+      }
+      long t0 = System.nanoTime();
+      for (int i = 0; i < NUM_OPS; ++i) {
+        BytesRef id = new BytesRef(String.valueOf(random.nextInt(NUM_SEGMENTS * DOCS_PER_SEGMENT)));
+        for (TermsEnum termsEnum : termsEnums) {
+          if (termsEnum.seekExact(id)) {
+            found++;
+            break;
+          }
+        }
+      }
+      long elapsed = System.nanoTime() - t0;
+      assertEquals(NUM_OPS, found);
+      return elapsed;
+    }
+  }
+
+  private long runUpdates(IndexWriter writer) throws IOException {
+    Random random = new Random(42);
+    long t0 = System.nanoTime();
+    for (int i = 0; i < NUM_OPS; ++i) {
+      int id = random.nextInt(NUM_SEGMENTS * DOCS_PER_SEGMENT);
+      writer.updateDocument(new Term("id", String.valueOf(id)), getDoc(id));
+    }
+    // deletes are resolved against existing segments on flush
+    writer.flush();
+    return System.nanoTime() - t0;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.monitoring.IndexingMetrics;
+import io.prometheus.client.Collector;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class IndexingChunkSizerTest {
+
+  @Test
+  public void testStaticChunkSize() {
+    IndexingChunkSizer sizer = new IndexingChunkSizer("test_index");
+    sizer.setDefaultChunkDocs(50);
+    sizer.recordChunk(50, 50 * 1024, TimeUnit.MILLISECONDS.toNanos(1));
+    assertFalse(sizer.isAdaptive());
+    assertEquals(50, sizer.getChunkDocs());
+    assertEquals(Long.MAX_VALUE, sizer.getMaxChunkBytes());
+  }
+
+  @Test
+  public void testGrowsForFastSmallDocs() {
+    IndexingChunkSizer sizer = new IndexingChunkSizer("test_index");
+    sizer.setDefaultChunkDocs(100);
+    sizer.setTargetChunkMs(100);
+    assertEquals(100, sizer.getChunkDocs());
+    // 10 microseconds per doc, target is 10000 docs per chunk
+    for (int i = 0; i < 20; ++i) {
+      int docs = sizer.getChunkDocs();
+      sizer.recordChunk(docs, docs * 100L, TimeUnit.MICROSECONDS.toNanos(10 * docs));
+    }
+    assertEquals(10000, sizer.getChunkDocs(), 100);
+  }
+
+  @Test
+  public void testGrowthIsLimitedPerSample() {
+    IndexingChunkSizer sizer = new IndexingChunkSizer("test_index");
+    sizer.setDefaultChunkDocs(100);
+    sizer.setTargetChunkMs(1000);
+    sizer.recordChunk(100, 100, TimeUnit.MICROSECONDS.toNanos(100));
+    assertEquals(200, sizer.getChunkDocs());
+  }
+
+  @Test
+  public void testLimitedByBytes() {
+    IndexingChunkSizer sizer = new IndexingChunkSizer("test_index");
+    sizer.setDefaultChunkDocs(100);
+    sizer.setTargetChunkMs(1000);
+    sizer.setMaxChunkBytes(1024 * 1024);
+    // 1MB docs that are fast to index, byte limit allows one doc per chunk
+    for (int i = 0; i < 20; ++i) {
+      int docs = sizer.getChunkDocs();
+      sizer.recordChunk(docs, docs * 1024L * 1024L, TimeUnit.MICROSECONDS.toNanos(docs));
+    }
+    assertEquals(1, sizer.getChunkDocs());
+    assertEquals(1024 * 1024, sizer.getMaxChunkBytes());
+  }
+
+  @Test
+  public void testDisable() {
+    IndexingChunkSizer sizer = new IndexingChunkSizer("test_index");
+    sizer.setDefaultChunkDocs(100);
+    sizer.setTargetChunkMs(1000);
+    sizer.recordChunk(100, 100, TimeUnit.MICROSECONDS.toNanos(100));
+    assertTrue(sizer.isAdaptive());
+    sizer.setTargetChunkMs(-1);
+    assertFalse(sizer.isAdaptive());
+    assertEquals(100, sizer.getChunkDocs());
+  }
+
+  @Test
+  public void testWithoutMetrics() {
+    List<Collector.MetricFamilySamples> chunkSizeSamples = IndexingMetrics.chunkSizeDocs.collect();
+    List<Collector.MetricFamilySamples> docSizeSamples = IndexingMetrics.avgDocSizeBytes.collect();
+    List<Collector.MetricFamilySamples> latencySamples =
+        IndexingMetrics.chunkLatencySeconds.collect();
+
+    IndexingChunkSizer sizer = IndexingChunkSizer.withoutMetrics();
+    sizer.setDefaultChunkDocs(50);
+    sizer.setTargetChunkMs(1000);
+    sizer.recordChunk(50, 50 * 1024, TimeUnit.MILLISECONDS.toNanos(1));
+    assertEquals(100, sizer.getChunkDocs());
+
+    assertEquals(chunkSizeSamples, IndexingMetrics.chunkSizeDocs.collect());
+    assertEquals(docSizeSamples, IndexingMetrics.avgDocSizeBytes.collect());
+    assertEquals(latencySamples, IndexingMetrics.chunkLatencySeconds.collect());
+  }
+}
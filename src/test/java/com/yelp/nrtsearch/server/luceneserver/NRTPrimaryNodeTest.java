@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class NRTPrimaryNodeTest {
+
+  @Test
+  public void testAllReplicasCopyFromPrimary() {
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(-1, NRTPrimaryNode.getPeerIndex(i, 0));
+    }
+  }
+
+  @Test
+  public void testPeerTree() {
+    int[] expected = {-1, -1, 0, 0, 1, 1, 2, 2, 3};
+    for (int i = 0; i < expected.length; ++i) {
+      assertEquals(expected[i], NRTPrimaryNode.getPeerIndex(i, 2));
+    }
+  }
+
+  @Test
+  public void testPeerChain() {
+    int[] expected = {-1, 0, 1, 2, 3};
+    for (int i = 0; i < expected.length; ++i) {
+      assertEquals(expected[i], NRTPrimaryNode.getPeerIndex(i, 1));
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.yelp.nrtsearch.server.grpc.RawFileChunk;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class RawFileChunkCompressionTest {
+
+  @Test
+  public void testCompressibleChunk() {
+    byte[] content = new byte[65536];
+    Arrays.fill(content, (byte) 7);
+    RawFileChunk rawFileChunk = RawFileChunkCompression.compress(ByteString.copyFrom(content));
+    assertEquals(content.length, rawFileChunk.getUncompressedLength());
+    assertTrue(rawFileChunk.getContent().size() < content.length);
+    assertArrayEquals(content, RawFileChunkCompression.getContent(rawFileChunk));
+  }
+
+  @Test
+  public void testIncompressibleChunk() {
+    byte[] content = new byte[65536];
+    new Random(42).nextBytes(content);
+    RawFileChunk rawFileChunk = RawFileChunkCompression.compress(ByteString.copyFrom(content));
+    assertEquals(0, rawFileChunk.getUncompressedLength());
+    assertArrayEquals(content, RawFileChunkCompression.getContent(rawFileChunk));
+  }
+
+  @Test
+  public void testDirectBufferChunk() {
+    byte[] content = new byte[4096];
+    for (int i = 0; i < content.length; ++i) {
+      content[i] = (byte) (i % 16);
+    }
+    ByteBuffer direct = ByteBuffer.allocateDirect(content.length);
+    direct.put(content).flip();
+    RawFileChunk rawFileChunk =
+        RawFileChunkCompression.compress(UnsafeByteOperations.unsafeWrap(direct));
+    assertEquals(content.length, rawFileChunk.getUncompressedLength());
+    assertArrayEquals(content, RawFileChunkCompression.getContent(rawFileChunk));
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.grpc.Field;
+import com.yelp.nrtsearch.server.luceneserver.field.FieldDefCreator;
+import com.yelp.nrtsearch.server.luceneserver.field.IndexableFieldDef;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.bloom.BloomFilteringPostingsFormat;
+import org.apache.lucene.codecs.lucene84.Lucene84Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+public class ServerCodecTest {
+
+  private IndexableFieldDef createFieldDef(String type, Field field) {
+    String config = "nodeName: \"lucene_server_foo\"";
+    FieldDefCreator.initialize(
+        new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes())),
+        Collections.emptyList());
+    return (IndexableFieldDef) FieldDefCreator.getInstance().createFieldDef("id", type, field);
+  }
+
+  @Test
+  public void testIdFieldDefaultsToBloom() {
+    IndexableFieldDef idField =
+        createFieldDef("_ID", Field.newBuilder().setName("id").setStore(true).build());
+    assertEquals(ServerCodec.BLOOM_POSTINGS_FORMAT, idField.getPostingsFormat());
+    assertTrue(
+        ServerCodec.getPostingsFormat(idField.getPostingsFormat())
+            instanceof BloomFilteringPostingsFormat);
+  }
+
+  @Test
+  public void testIdFieldPostingsFormatOverride() {
+    IndexableFieldDef idField =
+        createFieldDef(
+            "_ID",
+            Field.newBuilder()
+                .setName("id")
+                .setStore(true)
+                .setPostingsFormat(ServerCodec.DEFAULT_POSTINGS_FORMAT)
+                .build());
+    assertEquals(ServerCodec.DEFAULT_POSTINGS_FORMAT, idField.getPostingsFormat());
+  }
+
+  @Test
+  public void testOtherFieldsUseDefault() {
+    IndexableFieldDef atomField =
+        createFieldDef("ATOM", Field.newBuilder().setName("id").setSearch(true).build());
+    assertEquals(ServerCodec.DEFAULT_POSTINGS_FORMAT, atomField.getPostingsFormat());
+  }
+
+  @Test
+  public void testUpdateWithBloomPostings() throws IOException {
+    PostingsFormat bloom = ServerCodec.getPostingsFormat(ServerCodec.BLOOM_POSTINGS_FORMAT);
+    IndexWriterConfig iwc = new IndexWriterConfig();
+    iwc.setCodec(
+        new Lucene84Codec() {
+          @Override
+          public PostingsFormat getPostingsFormatForField(String field) {
+            return bloom;
+          }
+        });
+    try (Directory dir = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(dir, iwc)) {
+      for (int segment = 0; segment < 3; ++segment) {
+        for (int i = 0; i < 100; ++i) {
+          writer.updateDocument(new Term("id", String.valueOf(i)), getDoc(i, segment));
+        }
+        writer.commit();
+      }
+      try (DirectoryReader reader = DirectoryReader.open(writer)) {
+        assertEquals(100, reader.numDocs());
+        IndexSearcher searcher = new IndexSearcher(reader);
+        assertEquals(1, searcher.count(new TermQuery(new Term("id", "42"))));
+        // all documents were replaced by the last round of updates
+        assertEquals(100, searcher.count(new TermQuery(new Term("segment", "2"))));
+        assertEquals(0, searcher.count(new TermQuery(new Term("id", "100"))));
+      }
+    }
+  }
+
+  private Document getDoc(int id, int segment) {
+    Document document = new Document();
+    document.add(new StringField("id", String.valueOf(id), Store.NO));
+    document.add(new StringField("segment", String.valueOf(segment), Store.NO));
+    return document;
+  }
+}
@@ -0,0 +1,589 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.protobuf.ByteString;
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.config.ReplicationConfiguration;
+import com.yelp.nrtsearch.server.grpc.RawFileChunk;
+import com.yelp.nrtsearch.server.grpc.ReplicationServerClient;
+import com.yelp.nrtsearch.server.grpc.SearcherVersion;
+import com.yelp.nrtsearch.server.grpc.TransferStatusCode;
+import com.yelp.nrtsearch.server.monitoring.ReplicationMetrics;
+import io.grpc.Status;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.replicator.nrt.CopyJob;
+import org.apache.lucene.replicator.nrt.CopyState;
+import org.apache.lucene.replicator.nrt.FileMetaData;
+import org.apache.lucene.replicator.nrt.ReplicaNode;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SimpleCopyJobTest {
+  private static final String INDEX_NAME = "copy_job_test_index";
+  private static final long VERSION = 10;
+  private static final String[] ALL_FILES = {
+    "_0.si", "_0.cfs", "_0.cfe", "_1.si", "_1.cfs", "_1.cfe"
+  };
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random random = new Random(42);
+  private final Map<String, byte[]> sourceFiles = new HashMap<>();
+  private final Map<String, FileMetaData> filesMetaData = new HashMap<>();
+  private Directory destDir;
+  private ReplicaNode dest;
+  private ExecutorService copyExecutor;
+  private Jobs jobs;
+
+  @Before
+  public void setUp() throws IOException {
+    for (String segment : new String[] {"_0", "_1"}) {
+      for (String extension : new String[] {".si", ".cfs", ".cfe"}) {
+        addSourceFile(segment + extension, 1000 + random.nextInt(1000));
+      }
+    }
+    destDir = FSDirectory.open(folder.newFolder("dest").toPath());
+    dest = new TestReplicaNode(destDir);
+    copyExecutor = Executors.newCachedThreadPool();
+    jobs = new Jobs(dest, INDEX_NAME, new CopyRateLimiter(0), new CopyRateLimiter(0));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    copyExecutor.shutdownNow();
+    destDir.close();
+  }
+
+  @Test
+  public void testCopyFromPeer() throws Exception {
+    ReplicationServerClient primary = mockSource();
+    ReplicationServerClient peer = mockSource();
+    when(peer.getCurrentSearcherVersion(eq(INDEX_NAME), anyLong())).thenReturn(version(VERSION));
+    double peerJobs = ReplicationMetrics.copyJobSourceCount.labels(INDEX_NAME, "peer").get();
+
+    runJob(newJob(primary, peer, 1, 5000, "_0.si", "_0.cfs", "_0.cfe"));
+
+    assertCopied("_0.si", "_0.cfs", "_0.cfe");
+    verify(primary, never()).recvRawFile(anyString(), anyLong(), anyString(), anyBoolean());
+    assertEquals(
+        peerJobs + 1, ReplicationMetrics.copyJobSourceCount.labels(INDEX_NAME, "peer").get(), 0);
+  }
+
+  @Test
+  public void testPeerLagsCopyFromPrimary() throws Exception {
+    ReplicationServerClient primary = mockSource();
+    ReplicationServerClient peer = mockSource();
+    when(peer.getCurrentSearcherVersion(eq(INDEX_NAME), anyLong()))
+        .thenReturn(version(VERSION - 1));
+    double primaryJobs = ReplicationMetrics.copyJobSourceCount.labels(INDEX_NAME, "primary").get();
+
+    runJob(newJob(primary, peer, 1, 100, "_0.si", "_0.cfs", "_0.cfe"));
+
+    assertCopied("_0.si", "_0.cfs", "_0.cfe");
+    // polled until the wait time was over
+    verify(peer, atLeast(2)).getCurrentSearcherVersion(eq(INDEX_NAME), anyLong());
+    verify(peer, never()).recvRawFile(anyString(), anyLong(), anyString(), anyBoolean());
+    assertEquals(
+        primaryJobs + 1,
+        ReplicationMetrics.copyJobSourceCount.labels(INDEX_NAME, "primary").get(),
+        0);
+  }
+
+  @Test
+  public void testPeerUnreachableCopyFromPrimary() throws Exception {
+    ReplicationServerClient primary = mockSource();
+    ReplicationServerClient peer = mockSource();
+    when(peer.getCurrentSearcherVersion(eq(INDEX_NAME), anyLong()))
+        .thenThrow(Status.UNAVAILABLE.asRuntimeException());
+
+    runJob(newJob(primary, peer, 1, 5000, "_0.si", "_0.cfs", "_0.cfe"));
+
+    assertCopied("_0.si", "_0.cfs", "_0.cfe");
+    verify(peer, never()).recvRawFile(anyString(), anyLong(), anyString(), anyBoolean());
+  }
+
+  @Test
+  public void testPeerCopyFailsFallsBackToPrimary() throws Exception {
+    assertPeerCopyFallback(1, "_0.si", "_0.cfs", "_0.cfe");
+    assertPeerCopyFallback(4, "_1.si", "_1.cfs", "_1.cfe");
+  }
+
+  /** The second file fails on the peer, like a file the peer already merged away. */
+  private void assertPeerCopyFallback(int copyConcurrency, String... fileNames) throws Exception {
+    ReplicationServerClient primary = mockSource();
+    ReplicationServerClient peer = mockSource();
+    when(peer.getCurrentSearcherVersion(eq(INDEX_NAME), anyLong())).thenReturn(version(VERSION));
+    when(peer.recvRawFile(eq(fileNames[1]), anyLong(), anyString(), anyBoolean()))
+        .thenAnswer(invocation -> failingChunks(fileNames[1]));
+    double fallbacks = ReplicationMetrics.peerCopyFallbackCount.labels(INDEX_NAME).get();
+
+    runJob(newJob(primary, peer, copyConcurrency, 5000, fileNames));
+
+    assertCopied(fileNames);
+    verify(primary).recvRawFile(eq(fileNames[1]), eq(0L), eq(INDEX_NAME), anyBoolean());
+    verify(primary, never()).recvRawFile(eq(fileNames[0]), anyLong(), anyString(), anyBoolean());
+    assertEquals(
+        fallbacks + 1, ReplicationMetrics.peerCopyFallbackCount.labels(INDEX_NAME).get(), 0);
+    // only the copied files are left, the partial copy from the peer was removed
+    assertEquals(fileNames.length, countFiles(fileNames[0].substring(0, 3)));
+  }
+
+  @Test
+  public void testPeerCheckDoesNotBlockJobs() throws Exception {
+    ReplicationServerClient primary = mockSource();
+    ReplicationServerClient peer = mockSource();
+    CountDownLatch peerCaughtUp = new CountDownLatch(1);
+    when(peer.getCurrentSearcherVersion(eq(INDEX_NAME), anyLong()))
+        .thenAnswer(
+            invocation -> {
+              peerCaughtUp.await(10, TimeUnit.SECONDS);
+              return version(VERSION);
+            });
+    SimpleCopyJob peerJob = newJob(primary, peer, 1, 20000, "_0.si", "_0.cfs", "_0.cfe");
+    SimpleCopyJob primaryJob = newJob(primary, null, 1, 20000, "_1.si", "_1.cfs", "_1.cfe");
+    peerJob.start();
+    primaryJob.start();
+
+    jobs.start();
+    try {
+      jobs.launch(peerJob);
+      jobs.launch(primaryJob);
+      // the job waiting for its peer does not hold up the jobs thread
+      primaryJob.getCompletionFuture().get(10, TimeUnit.SECONDS);
+      assertFalse(primaryJob.getFailed());
+      assertFalse(peerJob.getCompletionFuture().isDone());
+      assertTrue(peerJob.isWaitingForPeer());
+
+      peerCaughtUp.countDown();
+      peerJob.getCompletionFuture().get(10, TimeUnit.SECONDS);
+      assertFalse(peerJob.getFailed());
+    } finally {
+      jobs.close();
+    }
+    peerJob.finish();
+    primaryJob.finish();
+    assertCopied("_0.si", "_0.cfs", "_0.cfe", "_1.si", "_1.cfs", "_1.cfe");
+    verify(primary, never()).recvRawFile(eq("_0.cfs"), anyLong(), anyString(), anyBoolean());
+  }
+
+  @Test
+  public void testConcurrentCopy() throws Exception {
+    // every copy waits until three copies have started
+    CountDownLatch started = new CountDownLatch(3);
+    ReplicationServerClient primary = mock(ReplicationServerClient.class);
+    when(primary.recvRawFile(anyString(), anyLong(), anyString(), anyBoolean()))
+        .thenAnswer(
+            invocation -> {
+              started.countDown();
+              assertTrue(started.await(10, TimeUnit.SECONDS));
+              return chunks(invocation.getArgument(0));
+            });
+    SimpleCopyJob job = newJob(primary, null, 3, 5000, ALL_FILES);
+    List<Long> progress = new ArrayList<>();
+    job.setProgressListener((bytesCopied, totalBytes) -> progress.add(bytesCopied));
+
+    runJob(job);
+
+    assertCopied(ALL_FILES);
+    // no temp files are left
+    assertEquals(ALL_FILES.length, countFiles("_"));
+    long totalBytes = 0;
+    for (byte[] bytes : sourceFiles.values()) {
+      totalBytes += bytes.length;
+    }
+    assertEquals(totalBytes, job.getTotalBytesCopied());
+    assertEquals(ALL_FILES.length, progress.size());
+    assertEquals(totalBytes, (long) progress.get(progress.size() - 1));
+    awaitCopyTasksDone();
+  }
+
+  @Test
+  public void testCancelDuringConcurrentCopy() throws Exception {
+    CountDownLatch midCopy = new CountDownLatch(3);
+    CountDownLatch release = new CountDownLatch(1);
+    ReplicationServerClient primary = mock(ReplicationServerClient.class);
+    when(primary.recvRawFile(anyString(), anyLong(), anyString(), anyBoolean()))
+        .thenAnswer(invocation -> blockingChunks(invocation.getArgument(0), midCopy, release));
+    SimpleCopyJob job = newJob(primary, null, 3, 5000, ALL_FILES);
+    job.start();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (midCopy.getCount() > 0) {
+      assertFalse(job.visit());
+      assertTrue(System.nanoTime() < deadline);
+    }
+
+    // three copies are blocked with a partial temp file
+    job.cancel("test", new IOException("cancelled by test"));
+    release.countDown();
+    assertTrue(job.visit());
+    assertTrue(job.getFailed());
+
+    awaitCopyTasksDone();
+    assertEquals(0, countFiles("_"));
+    // the remaining files were never started
+    verify(primary, times(3)).recvRawFile(anyString(), anyLong(), anyString(), anyBoolean());
+  }
+
+  @Test
+  public void testHighPriorityNotRateLimited() throws Exception {
+    // about 1KB per second, copying the files would take seconds if they were limited
+    jobs = new Jobs(dest, INDEX_NAME, new CopyRateLimiter(0.001), new CopyRateLimiter(0.001));
+    for (int copyConcurrency : new int[] {1, 3}) {
+      long startNS = System.nanoTime();
+      runJob(newJob(mockSource(), null, copyConcurrency, 5000, "_0.si", "_0.cfs", "_0.cfe"));
+      assertTrue(System.nanoTime() - startNS < TimeUnit.SECONDS.toNanos(2));
+      for (String fileName : new String[] {"_0.si", "_0.cfs", "_0.cfe"}) {
+        destDir.deleteFile(fileName);
+      }
+    }
+  }
+
+  @Test
+  public void testLowPriorityRateLimitedOffJobsThread() throws Exception {
+    // about 5KB per second, the files are at least 3KB
+    jobs = new Jobs(dest, INDEX_NAME, new CopyRateLimiter(0), new CopyRateLimiter(0.005));
+    Thread jobsThread = Thread.currentThread();
+    List<Thread> copyThreads = Collections.synchronizedList(new ArrayList<>());
+    ReplicationServerClient primary = mock(ReplicationServerClient.class);
+    when(primary.recvRawFile(anyString(), anyLong(), anyString(), anyBoolean()))
+        .thenAnswer(
+            invocation -> {
+              copyThreads.add(Thread.currentThread());
+              return chunks(invocation.getArgument(0));
+            });
+    long startNS = System.nanoTime();
+
+    // the test thread visits the job like the jobs thread would
+    runJob(newJob(primary, null, false, 1, 5000, "_0.si", "_0.cfs", "_0.cfe"));
+
+    assertTrue(System.nanoTime() - startNS > TimeUnit.MILLISECONDS.toNanos(300));
+    assertCopied("_0.si", "_0.cfs", "_0.cfe");
+    assertEquals(3, copyThreads.size());
+    assertFalse(copyThreads.contains(jobsThread));
+  }
+
+  @Test
+  public void testCompletionAfterOnceDone() throws Exception {
+    assertReportedOnCompletion(mockSource(), TransferStatusCode.Done);
+    ReplicationServerClient failing = mock(ReplicationServerClient.class);
+    when(failing.recvRawFile(anyString(), anyLong(), anyString(), anyBoolean()))
+        .thenAnswer(invocation -> failingChunks(invocation.getArgument(0)));
+    assertReportedOnCompletion(failing, TransferStatusCode.Failed);
+  }
+
+  /** Run a job on the jobs thread and report its completion like a copyFiles call. */
+  private void assertReportedOnCompletion(
+      ReplicationServerClient primary, TransferStatusCode expectedCode) throws Exception {
+    jobs = new Jobs(dest, INDEX_NAME, new CopyRateLimiter(0), new CopyRateLimiter(0));
+    AtomicBoolean onceDoneRan = new AtomicBoolean();
+    SimpleCopyJob job =
+        newJob(primary, null, false, 1, 5000, j -> onceDoneRan.set(true), "_0.si", "_0.cfs");
+    CopyFilesHandlerTest.RecordingObserver observer = new CopyFilesHandlerTest.RecordingObserver();
+    CopyFilesHandler.CopyProgressReporter reporter =
+        new CopyFilesHandler.CopyProgressReporter(observer, "[_0.si, _0.cfs]");
+    AtomicBoolean onceDoneRanBeforeCompletion = new AtomicBoolean();
+    CompletableFuture<Void> reported =
+        job.getCompletionFuture()
+            .thenAccept(
+                j -> {
+                  onceDoneRanBeforeCompletion.set(onceDoneRan.get());
+                  reporter.onDone(j);
+                });
+    job.start();
+
+    jobs.start();
+    try {
+      jobs.launch(job);
+      reported.get(10, TimeUnit.SECONDS);
+    } finally {
+      jobs.close();
+    }
+    assertTrue(onceDoneRanBeforeCompletion.get());
+    assertEquals(expectedCode == TransferStatusCode.Failed, job.getFailed());
+    assertEquals(1, observer.statuses.size());
+    assertEquals(expectedCode, observer.statuses.get(0).getCode());
+    assertTrue(observer.completed);
+    if (job.getFailed() == false) {
+      job.finish();
+      destDir.deleteFile("_0.si");
+      destDir.deleteFile("_0.cfs");
+    }
+  }
+
+  /** Wait until no file copy runs on the copy executor. */
+  private void awaitCopyTasksDone() throws InterruptedException {
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) copyExecutor;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (executor.getActiveCount() > 0) {
+      assertTrue("copy tasks still running", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+    assertEquals(0, executor.getQueue().size());
+  }
+
+  private void runJob(SimpleCopyJob job) throws Exception {
+    job.start();
+    job.runBlocking();
+    job.finish();
+  }
+
+  private SimpleCopyJob newJob(
+      ReplicationServerClient primary,
+      ReplicationServerClient peer,
+      int copyConcurrency,
+      int peerWaitMs,
+      String... fileNames)
+      throws IOException {
+    return newJob(primary, peer, true, copyConcurrency, peerWaitMs, fileNames);
+  }
+
+  private SimpleCopyJob newJob(
+      ReplicationServerClient primary,
+      ReplicationServerClient peer,
+      boolean highPriority,
+      int copyConcurrency,
+      int peerWaitMs,
+      String... fileNames)
+      throws IOException {
+    return newJob(primary, peer, highPriority, copyConcurrency, peerWaitMs, job -> {}, fileNames);
+  }
+
+  private SimpleCopyJob newJob(
+      ReplicationServerClient primary,
+      ReplicationServerClient peer,
+      boolean highPriority,
+      int copyConcurrency,
+      int peerWaitMs,
+      CopyJob.OnceDone onceDone,
+      String... fileNames)
+      throws IOException {
+    Map<String, FileMetaData> files = new HashMap<>();
+    for (String fileName : fileNames) {
+      files.put(fileName, filesMetaData.get(fileName));
+    }
+    CopyState copyState =
+        new CopyState(files, VERSION, 1, new byte[0], Collections.emptySet(), 1, null);
+    String config =
+        String.join(
+            "\n",
+            "nodeName: replica",
+            "replication:",
+            "  copyConcurrency: " + copyConcurrency,
+            "  peerWaitMs: " + peerWaitMs);
+    ReplicationConfiguration replicationConfiguration =
+        new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes()))
+            .getReplicationConfiguration();
+    return new SimpleCopyJob(
+        "test",
+        primary,
+        copyState,
+        dest,
+        files,
+        highPriority,
+        onceDone,
+        INDEX_NAME,
+        copyExecutor,
+        replicationConfiguration,
+        jobs,
+        peer);
+  }
+
+  /** Client that serves all source files. */
+  private ReplicationServerClient mockSource() {
+    ReplicationServerClient client = mock(ReplicationServerClient.class);
+    when(client.recvRawFile(anyString(), anyLong(), anyString(), anyBoolean()))
+        .thenAnswer(invocation -> chunks(invocation.getArgument(0)));
+    return client;
+  }
+
+  /** Send a file in two chunks, the last one includes the 8 checksum bytes. */
+  private Iterator<RawFileChunk> chunks(String fileName) {
+    byte[] bytes = sourceFiles.get(fileName);
+    int half = bytes.length / 2;
+    return List.of(chunk(bytes, 0, half), chunk(bytes, half, bytes.length)).iterator();
+  }
+
+  /** Send the first chunk of a file, then fail. */
+  private Iterator<RawFileChunk> failingChunks(String fileName) {
+    Iterator<RawFileChunk> chunks = chunks(fileName);
+    return new Iterator<>() {
+      private boolean first = true;
+
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public RawFileChunk next() {
+        if (first) {
+          first = false;
+          return chunks.next();
+        }
+        throw Status.NOT_FOUND.withDescription(fileName).asRuntimeException();
+      }
+    };
+  }
+
+  /** Send the first chunk of a file, then wait for the release before sending the rest. */
+  private Iterator<RawFileChunk> blockingChunks(
+      String fileName, CountDownLatch midCopy, CountDownLatch release) {
+    Iterator<RawFileChunk> chunks = chunks(fileName);
+    return new Iterator<>() {
+      private boolean first = true;
+
+      @Override
+      public boolean hasNext() {
+        return chunks.hasNext();
+      }
+
+      @Override
+      public RawFileChunk next() {
+        if (first) {
+          first = false;
+        } else {
+          midCopy.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return chunks.next();
+      }
+    };
+  }
+
+  private static RawFileChunk chunk(byte[] bytes, int from, int to) {
+    return RawFileChunk.newBuilder()
+        .setContent(ByteString.copyFrom(bytes, from, to - from))
+        .build();
+  }
+
+  private static SearcherVersion version(long version) {
+    return SearcherVersion.newBuilder().setVersion(version).build();
+  }
+
+  /** Write a file with a codec header and footer, like the files of an index. */
+  private void addSourceFile(String fileName, int size) throws IOException {
+    try (Directory directory = new ByteBuffersDirectory()) {
+      try (IndexOutput out = directory.createOutput(fileName, IOContext.DEFAULT)) {
+        CodecUtil.writeHeader(out, "test", 0);
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        out.writeBytes(content, content.length);
+        CodecUtil.writeFooter(out);
+      }
+      try (IndexInput in = directory.openInput(fileName, IOContext.DEFAULT)) {
+        byte[] bytes = new byte[(int) in.length()];
+        in.readBytes(bytes, 0, bytes.length);
+        sourceFiles.put(fileName, bytes);
+        long checksum = CodecUtil.retrieveChecksum(in);
+        filesMetaData.put(
+            fileName, new FileMetaData(new byte[0], new byte[0], bytes.length, checksum));
+      }
+    }
+  }
+
+  private void assertCopied(String... fileNames) throws IOException {
+    for (String fileName : fileNames) {
+      try (IndexInput in = destDir.openInput(fileName, IOContext.DEFAULT)) {
+        byte[] bytes = new byte[(int) in.length()];
+        in.readBytes(bytes, 0, bytes.length);
+        assertArrayEquals(sourceFiles.get(fileName), bytes);
+      }
+    }
+  }
+
+  /** Count the files in the replica dir with the given prefix, including temp files. */
+  private int countFiles(String prefix) throws IOException {
+    int count = 0;
+    for (String fileName : destDir.listAll()) {
+      if (fileName.startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Replica node that is never started, it is only the destination of the jobs under test. */
+  private static class TestReplicaNode extends ReplicaNode {
+    TestReplicaNode(Directory dir) throws IOException {
+      super(0, dir, null, null);
+    }
+
+    @Override
+    protected CopyJob newCopyJob(
+        String reason,
+        Map<String, FileMetaData> files,
+        Map<String, FileMetaData> prevFiles,
+        boolean highPriority,
+        CopyJob.OnceDone onceDone) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void launch(CopyJob job) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void sendNewReplica() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
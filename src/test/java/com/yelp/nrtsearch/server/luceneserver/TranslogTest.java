@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.grpc.AddDocumentRequest;
+import com.yelp.nrtsearch.server.grpc.DeleteAllDocumentsRequest;
+import com.yelp.nrtsearch.server.grpc.UpdateDocValuesRequest;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TranslogTest {
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReadAfterReopen() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    try (Translog translog = Translog.open(dir)) {
+      translog.sync(translog.add(List.of(op(1, "a"), op(2, "b"))));
+      translog.sync(translog.add(List.of(op(3, "c"))));
+    }
+
+    try (Translog translog = Translog.open(dir)) {
+      List<Translog.Operation> operations = translog.readUncommitted();
+      assertEquals(3, operations.size());
+      assertEquals(1, operations.get(0).seqNo);
+      assertEquals("a", getId(operations.get(0)));
+      assertEquals("c", getId(operations.get(2)));
+    }
+  }
+
+  @Test
+  public void testTornRecordIgnored() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    try (Translog translog = Translog.open(dir)) {
+      translog.sync(translog.add(List.of(op(1, "a"))));
+      translog.sync(translog.add(List.of(op(2, "b"))));
+    }
+    Path file = dir.resolve(Translog.FILE_PREFIX + 1 + Translog.FILE_SUFFIX);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      // cut the second record in half
+      channel.truncate(Files.size(file) - 5);
+    }
+
+    try (Translog translog = Translog.open(dir)) {
+      List<Translog.Operation> operations = translog.readUncommitted();
+      assertEquals(1, operations.size());
+      assertEquals("a", getId(operations.get(0)));
+    }
+  }
+
+  @Test
+  public void testTrim() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    try (Translog translog = Translog.open(dir)) {
+      translog.sync(translog.add(List.of(op(1, "a"), op(2, "b"))));
+      long gen = translog.rollGeneration();
+      // indexed before the commit, but logged after the roll
+      translog.sync(translog.add(List.of(op(3, "c"))));
+      translog.trim(gen, 3);
+      translog.sync(translog.add(List.of(op(4, "d"))));
+      assertFalse(Files.exists(dir.resolve(Translog.FILE_PREFIX + 1 + Translog.FILE_SUFFIX)));
+      assertTrue(Files.exists(dir.resolve(Translog.FILE_PREFIX + 2 + Translog.FILE_SUFFIX)));
+    }
+
+    try (Translog translog = Translog.open(dir)) {
+      List<Translog.Operation> operations = translog.readUncommitted();
+      assertEquals(1, operations.size());
+      assertEquals(4, operations.get(0).seqNo);
+      assertEquals("d", getId(operations.get(0)));
+    }
+  }
+
+  @Test
+  public void testOperationTypes() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    try (Translog translog = Translog.open(dir)) {
+      translog.sync(
+          translog.add(
+              List.of(
+                  op(1, "a"),
+                  new Translog.Operation(
+                      2,
+                      Translog.OpType.DELETE_ALL,
+                      DeleteAllDocumentsRequest.newBuilder().setIndexName("test_index").build()))));
+      translog.sync(
+          translog.add(
+              List.of(
+                  new Translog.Operation(
+                      3,
+                      Translog.OpType.UPDATE_DOC_VALUES,
+                      UpdateDocValuesRequest.newBuilder()
+                          .setIndexName("test_index")
+                          .addUpdates(
+                              UpdateDocValuesRequest.DocValuesUpdate.newBuilder()
+                                  .setId("a")
+                                  .putFields("count", "5"))
+                          .build()))));
+    }
+
+    try (Translog translog = Translog.open(dir)) {
+      List<Translog.Operation> operations = translog.readUncommitted();
+      assertEquals(3, operations.size());
+      assertEquals(Translog.OpType.ADD_DOCUMENT, operations.get(0).type);
+      assertEquals(Translog.OpType.DELETE_ALL, operations.get(1).type);
+      assertEquals(
+          "test_index", ((DeleteAllDocumentsRequest) operations.get(1).request).getIndexName());
+      assertEquals(Translog.OpType.UPDATE_DOC_VALUES, operations.get(2).type);
+      assertEquals(
+          "a", ((UpdateDocValuesRequest) operations.get(2).request).getUpdates(0).getId());
+    }
+  }
+
+  @Test
+  public void testReadInSeqNoOrder() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    try (Translog translog = Translog.open(dir)) {
+      // concurrent writers may log in a different order than they were applied
+      translog.sync(translog.add(List.of(op(2, "b"))));
+      translog.sync(translog.add(List.of(op(1, "a"))));
+    }
+
+    try (Translog translog = Translog.open(dir)) {
+      List<Translog.Operation> operations = translog.readUncommitted();
+      assertEquals(2, operations.size());
+      assertEquals("a", getId(operations.get(0)));
+      assertEquals("b", getId(operations.get(1)));
+    }
+  }
+
+  private static Translog.Operation op(long seqNo, String id) {
+    return new Translog.Operation(
+        seqNo,
+        AddDocumentRequest.newBuilder()
+            .setIndexName("test_index")
+            .putFields("id", AddDocumentRequest.MultiValuedField.newBuilder().addValue(id).build())
+            .build());
+  }
+
+  private static String getId(Translog.Operation operation) {
+    return ((AddDocumentRequest) operation.request).getFieldsOrThrow("id").getValue(0);
+  }
+}
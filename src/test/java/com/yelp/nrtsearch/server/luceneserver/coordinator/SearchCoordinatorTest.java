@@ -0,0 +1,330 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver.coordinator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.grpc.FieldType;
+import com.yelp.nrtsearch.server.grpc.GetDocumentsRequest;
+import com.yelp.nrtsearch.server.grpc.GetDocumentsResponse;
+import com.yelp.nrtsearch.server.grpc.LuceneServerClient;
+import com.yelp.nrtsearch.server.grpc.LuceneServerGrpc;
+import com.yelp.nrtsearch.server.grpc.QuerySortField;
+import com.yelp.nrtsearch.server.grpc.SearchRequest;
+import com.yelp.nrtsearch.server.grpc.SearchResponse;
+import com.yelp.nrtsearch.server.grpc.SortFields;
+import com.yelp.nrtsearch.server.grpc.SortType;
+import com.yelp.nrtsearch.server.grpc.StateRequest;
+import com.yelp.nrtsearch.server.grpc.StateResponse;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class SearchCoordinatorTest {
+  private static final Map<String, FieldType> LONG_FIELD = Map.of("field", FieldType.LONG);
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private static SearchCoordinator.ShardHit scoreHit(int shardIndex, int hitIndex, double score) {
+    return new SearchCoordinator.ShardHit(
+        shardIndex, hitIndex, SearchResponse.Hit.newBuilder().setScore(score).build());
+  }
+
+  private static SearchCoordinator.ShardHit sortHit(int shardIndex, int hitIndex, String value) {
+    return new SearchCoordinator.ShardHit(
+        shardIndex,
+        hitIndex,
+        SearchResponse.Hit.newBuilder()
+            .putSortedFields(
+                "field",
+                SearchResponse.Hit.CompositeFieldValue.newBuilder()
+                    .addFieldValue(
+                        SearchResponse.Hit.FieldValue.newBuilder().setTextValue(value))
+                    .build())
+            .build());
+  }
+
+  private static SearchRequest sortRequest(boolean reverse) {
+    return SearchRequest.newBuilder()
+        .setQuerySort(
+            QuerySortField.newBuilder()
+                .setFields(
+                    SortFields.newBuilder()
+                        .addSortedFields(
+                            SortType.newBuilder().setFieldName("field").setReverse(reverse))))
+        .build();
+  }
+
+  @Test
+  public void testSortValueComparator() {
+    Comparator<String> longComparator = SearchCoordinator.getSortValueComparator(FieldType.LONG);
+    assertTrue(longComparator.compare("9", "10") < 0);
+    assertEquals(0, longComparator.compare("7", "7"));
+    assertTrue(longComparator.compare(null, "-7") < 0);
+    Comparator<String> doubleComparator =
+        SearchCoordinator.getSortValueComparator(FieldType.DOUBLE);
+    assertTrue(doubleComparator.compare("1.5", "10") < 0);
+    assertTrue(doubleComparator.compare("-2.5", "-3") > 0);
+    // strings that look like numbers are still sorted as strings
+    Comparator<String> atomComparator = SearchCoordinator.getSortValueComparator(FieldType.ATOM);
+    assertTrue(atomComparator.compare("9", "10") > 0);
+    assertTrue(atomComparator.compare("b", "a") > 0);
+  }
+
+  @Test
+  public void testParseFieldTypes() {
+    Map<String, FieldType> fieldTypes =
+        SearchCoordinator.parseFieldTypes(
+            "{\"state\": {\"fields\": {"
+                + "\"id\": {\"name\": \"id\"}, "
+                + "\"count\": {\"name\": \"count\", \"type\": \"LONG\"}}}}");
+    assertEquals(Map.of("id", FieldType.ATOM, "count", FieldType.LONG), fieldTypes);
+  }
+
+  @Test
+  public void testMergeByScore() {
+    List<SearchCoordinator.ShardHit> shardHits =
+        Arrays.asList(
+            scoreHit(0, 0, 3.0), scoreHit(0, 1, 1.0), scoreHit(1, 0, 2.0), scoreHit(1, 1, 1.0));
+    List<SearchCoordinator.ShardHit> merged =
+        SearchCoordinator.mergeHits(
+            shardHits,
+            SearchCoordinator.getHitComparator(
+                SearchRequest.getDefaultInstance(), Collections.emptyMap()),
+            0,
+            10);
+    assertEquals(4, merged.size());
+    assertEquals(3.0, merged.get(0).hit.getScore(), 0);
+    assertEquals(2.0, merged.get(1).hit.getScore(), 0);
+    // equal scores are ordered by shard
+    assertEquals(0, merged.get(2).shardIndex);
+    assertEquals(1, merged.get(3).shardIndex);
+  }
+
+  @Test
+  public void testMergeBySortField() {
+    List<SearchCoordinator.ShardHit> shardHits =
+        Arrays.asList(sortHit(0, 0, "2"), sortHit(0, 1, "20"), sortHit(1, 0, "3"));
+    List<SearchCoordinator.ShardHit> merged =
+        SearchCoordinator.mergeHits(
+            shardHits, SearchCoordinator.getHitComparator(sortRequest(false), LONG_FIELD), 0, 10);
+    assertEquals(Arrays.asList(0, 1, 0), shardIndices(merged));
+    assertEquals(1, merged.get(2).hitIndex);
+
+    merged =
+        SearchCoordinator.mergeHits(
+            shardHits, SearchCoordinator.getHitComparator(sortRequest(true), LONG_FIELD), 0, 10);
+    assertEquals(Arrays.asList(0, 1, 0), shardIndices(merged));
+    assertEquals(1, merged.get(0).hitIndex);
+  }
+
+  @Test
+  public void testMergePaging() {
+    List<SearchCoordinator.ShardHit> shardHits =
+        Arrays.asList(
+            scoreHit(0, 0, 5.0), scoreHit(1, 0, 4.0), scoreHit(0, 1, 3.0), scoreHit(1, 1, 2.0));
+    List<SearchCoordinator.ShardHit> merged =
+        SearchCoordinator.mergeHits(
+            shardHits,
+            SearchCoordinator.getHitComparator(
+                SearchRequest.getDefaultInstance(), Collections.emptyMap()),
+            1,
+            2);
+    assertEquals(2, merged.size());
+    assertEquals(4.0, merged.get(0).hit.getScore(), 0);
+    assertEquals(3.0, merged.get(1).hit.getScore(), 0);
+
+    merged =
+        SearchCoordinator.mergeHits(
+            shardHits,
+            SearchCoordinator.getHitComparator(
+                SearchRequest.getDefaultInstance(), Collections.emptyMap()),
+            10,
+            2);
+    assertEquals(Collections.emptyList(), merged);
+  }
+
+  @Test
+  public void testFetchDocumentCountMismatch() throws Exception {
+    FakeShard shard0 = new FakeShard(FieldType.LONG, 5, "1", "2");
+    // the shard loses a document between the rounds
+    shard0.documentsResponse =
+        GetDocumentsResponse.newBuilder().addDocuments(document("first")).build();
+    FakeShard shard1 = new FakeShard(FieldType.LONG, 7, "3");
+    shard1.documentsResponse =
+        GetDocumentsResponse.newBuilder().addDocuments(document("third")).build();
+
+    SearchResponse response = search(fetchRequest(), shard0, shard1);
+    assertEquals(1, response.getShardFailuresCount());
+    assertEquals("shard0", response.getShardFailures(0).getShard());
+    assertEquals(
+        "fetch round returned 1 documents for 2 hits", response.getShardFailures(0).getError());
+    assertEquals(3, response.getHitsCount());
+    assertEquals(0, response.getHits(0).getFieldsCount());
+    assertEquals(0, response.getHits(1).getFieldsCount());
+    assertEquals(
+        "third", response.getHits(2).getFieldsOrThrow("title").getFieldValue(0).getTextValue());
+  }
+
+  @Test
+  public void testFetchSearcherPruned() throws Exception {
+    FakeShard shard0 = new FakeShard(FieldType.LONG, 5, "1");
+    shard0.documentsError =
+        Status.NOT_FOUND.withDescription("searcher version: 5 has expired").asRuntimeException();
+    FakeShard shard1 = new FakeShard(FieldType.LONG, 7, "2");
+    shard1.documentsResponse =
+        GetDocumentsResponse.newBuilder().addDocuments(document("second")).build();
+
+    SearchResponse response = search(fetchRequest(), shard0, shard1);
+    assertEquals(1, response.getShardFailuresCount());
+    assertEquals("shard0", response.getShardFailures(0).getShard());
+    assertTrue(
+        response
+            .getShardFailures(0)
+            .getError()
+            .contains("searcher version: 5 of the query round was pruned before the fetch round"));
+    assertEquals(2, response.getHitsCount());
+    assertEquals(0, response.getHits(0).getFieldsCount());
+    assertEquals(1, response.getHits(1).getFieldsCount());
+  }
+
+  @Test
+  public void testSortByFieldType() throws Exception {
+    SearchResponse response =
+        search(
+            sortRequest(false).toBuilder().setIndexName("test_index").setTopHits(10).build(),
+            new FakeShard(FieldType.LONG, 1, "9"),
+            new FakeShard(FieldType.LONG, 1, "10"));
+    assertEquals("shard0", response.getHits(0).getShard());
+    assertEquals("shard1", response.getHits(1).getShard());
+
+    // the same values sort as strings for an atom field
+    response =
+        search(
+            sortRequest(false).toBuilder().setIndexName("test_index").setTopHits(10).build(),
+            new FakeShard(FieldType.ATOM, 1, "9"),
+            new FakeShard(FieldType.ATOM, 1, "10"));
+    assertEquals("shard1", response.getHits(0).getShard());
+    assertEquals("shard0", response.getHits(1).getShard());
+  }
+
+  private SearchResponse search(SearchRequest request, FakeShard... fakeShards)
+      throws IOException, InterruptedException {
+    List<String> shards = new ArrayList<>();
+    List<LuceneServerClient> clients = new ArrayList<>();
+    for (FakeShard fakeShard : fakeShards) {
+      int port =
+          grpcCleanup
+              .register(ServerBuilder.forPort(0).addService(fakeShard).build().start())
+              .getPort();
+      shards.add("shard" + shards.size());
+      clients.add(new LuceneServerClient("localhost", port));
+    }
+    try (SearchCoordinator coordinator = new SearchCoordinator(shards, clients, 10000, true)) {
+      return coordinator.search(request);
+    }
+  }
+
+  private static SearchRequest fetchRequest() {
+    return sortRequest(false)
+        .toBuilder()
+        .setIndexName("test_index")
+        .setTopHits(10)
+        .addRetrieveFields("title")
+        .build();
+  }
+
+  private static SearchResponse.Hit document(String title) {
+    return SearchResponse.Hit.newBuilder()
+        .putFields(
+            "title",
+            SearchResponse.Hit.CompositeFieldValue.newBuilder()
+                .addFieldValue(SearchResponse.Hit.FieldValue.newBuilder().setTextValue(title))
+                .build())
+        .build();
+  }
+
+  /** Shard that returns fixed hits sorted by "field", and fixed documents for the fetch round. */
+  private static class FakeShard extends LuceneServerGrpc.LuceneServerImplBase {
+    private final FieldType fieldType;
+    private final long searcherVersion;
+    private final String[] sortValues;
+    GetDocumentsResponse documentsResponse = GetDocumentsResponse.getDefaultInstance();
+    RuntimeException documentsError;
+
+    FakeShard(FieldType fieldType, long searcherVersion, String... sortValues) {
+      this.fieldType = fieldType;
+      this.searcherVersion = searcherVersion;
+      this.sortValues = sortValues;
+    }
+
+    @Override
+    public void state(StateRequest request, StreamObserver<StateResponse> responseObserver) {
+      responseObserver.onNext(
+          StateResponse.newBuilder()
+              .setResponse(
+                  String.format(
+                      "{\"state\": {\"fields\": {\"field\": {\"name\": \"field\", "
+                          + "\"type\": \"%s\"}}}}",
+                      fieldType))
+              .build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void search(SearchRequest request, StreamObserver<SearchResponse> responseObserver) {
+      SearchResponse.Builder response =
+          SearchResponse.newBuilder()
+              .setSearchState(
+                  SearchResponse.SearchState.newBuilder().setSearcherVersion(searcherVersion));
+      for (int i = 0; i < sortValues.length; ++i) {
+        response.addHits(sortHit(0, i, sortValues[i]).hit.toBuilder().setLuceneDocId(i).build());
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getDocuments(
+        GetDocumentsRequest request, StreamObserver<GetDocumentsResponse> responseObserver) {
+      if (documentsError != null) {
+        responseObserver.onError(documentsError);
+        return;
+      }
+      responseObserver.onNext(documentsResponse);
+      responseObserver.onCompleted();
+    }
+  }
+
+  private static List<Integer> shardIndices(List<SearchCoordinator.ShardHit> hits) {
+    Integer[] indices = new Integer[hits.size()];
+    for (int i = 0; i < hits.size(); ++i) {
+      indices[i] = hits.get(i).shardIndex;
+    }
+    return Arrays.asList(indices);
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver.merge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.yelp.nrtsearch.server.config.LuceneServerConfiguration;
+import com.yelp.nrtsearch.server.plugins.MergePolicyPlugin;
+import com.yelp.nrtsearch.server.plugins.Plugin;
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergePolicyCreatorTest {
+
+  @Before
+  public void init() {
+    init(Collections.emptyList());
+  }
+
+  private void init(List<Plugin> plugins) {
+    MergePolicyCreator.initialize(getEmptyConfig(), plugins);
+  }
+
+  private LuceneServerConfiguration getEmptyConfig() {
+    String config = "nodeName: \"lucene_server_foo\"";
+    return new LuceneServerConfiguration(new ByteArrayInputStream(config.getBytes()));
+  }
+
+  static class TestMergePolicyPlugin extends Plugin implements MergePolicyPlugin {
+    @Override
+    public Map<String, MergePolicyProvider<? extends MergePolicy>> getMergePolicies() {
+      return Collections.singletonMap("log_byte_size", settings -> new LogByteSizeMergePolicy());
+    }
+  }
+
+  @Test
+  public void testTieredSettings() {
+    MergePolicy mergePolicy =
+        MergePolicyCreator.getInstance()
+            .createMergePolicy(
+                MergePolicyCreator.TIERED, new MergePolicySettings(100, 5, 25, 0));
+    assertTrue(mergePolicy instanceof TieredMergePolicy);
+    TieredMergePolicy tieredMergePolicy = (TieredMergePolicy) mergePolicy;
+    assertEquals(100, tieredMergePolicy.getMaxMergedSegmentMB(), 0);
+    assertEquals(5, tieredMergePolicy.getSegmentsPerTier(), 0);
+    assertEquals(25, tieredMergePolicy.getDeletesPctAllowed(), 0);
+  }
+
+  @Test
+  public void testTieredDefaults() {
+    TieredMergePolicy mergePolicy =
+        (TieredMergePolicy)
+            MergePolicyCreator.getInstance()
+                .createMergePolicy(MergePolicyCreator.TIERED, MergePolicySettings.DEFAULT);
+    TieredMergePolicy defaultPolicy = new TieredMergePolicy();
+    assertEquals(defaultPolicy.getMaxMergedSegmentMB(), mergePolicy.getMaxMergedSegmentMB(), 0);
+    assertEquals(defaultPolicy.getDeletesPctAllowed(), mergePolicy.getDeletesPctAllowed(), 0);
+  }
+
+  @Test
+  public void testReplicationAwareDefaults() {
+    MergePolicy mergePolicy =
+        MergePolicyCreator.getInstance()
+            .createMergePolicy(MergePolicyCreator.REPLICATION_AWARE, MergePolicySettings.DEFAULT);
+    assertTrue(mergePolicy instanceof ReplicationAwareMergePolicy);
+    ReplicationAwareMergePolicy replicationAwareMergePolicy =
+        (ReplicationAwareMergePolicy) mergePolicy;
+    assertEquals(
+        ReplicationAwareMergePolicy.DEFAULT_MAX_MERGED_SEGMENT_MB,
+        replicationAwareMergePolicy.getMaxMergedSegmentMB(),
+        0);
+    assertEquals(
+        ReplicationAwareMergePolicy.DEFAULT_DELETES_PCT_ALLOWED,
+        replicationAwareMergePolicy.getDeletesPctAllowed(),
+        0);
+    assertEquals(
+        (long) (ReplicationAwareMergePolicy.DEFAULT_MAX_PENDING_MERGE_MB * 1024 * 1024),
+        replicationAwareMergePolicy.getMaxPendingMergeBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownMergePolicy() {
+    MergePolicyCreator.getInstance().createMergePolicy("unknown", MergePolicySettings.DEFAULT);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidDeletesPct() {
+    MergePolicyCreator.getInstance()
+        .createMergePolicy(MergePolicyCreator.TIERED, new MergePolicySettings(0, 0, 5, 0));
+  }
+
+  @Test
+  public void testPluginMergePolicy() {
+    init(Collections.singletonList(new TestMergePolicyPlugin()));
+    MergePolicy mergePolicy =
+        MergePolicyCreator.getInstance()
+            .createMergePolicy("log_byte_size", MergePolicySettings.DEFAULT);
+    assertTrue(mergePolicy instanceof LogByteSizeMergePolicy);
+  }
+}
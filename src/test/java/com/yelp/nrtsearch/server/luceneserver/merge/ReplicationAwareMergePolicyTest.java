@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.luceneserver.merge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.InfoStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplicationAwareMergePolicyTest {
+  private Directory directory;
+  private List<SegmentCommitInfo> segments;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = new ByteBuffersDirectory();
+    IndexWriterConfig iwc =
+        new IndexWriterConfig(new StandardAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE);
+    try (IndexWriter writer = new IndexWriter(directory, iwc)) {
+      // three segments, the last one with half its documents deleted
+      for (int segment = 0; segment < 3; ++segment) {
+        for (int i = 0; i < 10; ++i) {
+          Document document = new Document();
+          document.add(new StringField("id", segment + "_" + i, Field.Store.NO));
+          writer.addDocument(document);
+        }
+        writer.commit();
+      }
+      for (int i = 0; i < 5; ++i) {
+        writer.deleteDocuments(new Term("id", "2_" + i));
+      }
+      writer.commit();
+    }
+    segments = SegmentInfos.readLatestCommit(directory).asList();
+    assertEquals(3, segments.size());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    directory.close();
+  }
+
+  private static class TestMergeContext implements MergePolicy.MergeContext {
+    private final Set<SegmentCommitInfo> mergingSegments;
+
+    TestMergeContext(Set<SegmentCommitInfo> mergingSegments) {
+      this.mergingSegments = mergingSegments;
+    }
+
+    @Override
+    public int numDeletesToMerge(SegmentCommitInfo info) {
+      return info.getDelCount();
+    }
+
+    @Override
+    public int numDeletedDocs(SegmentCommitInfo info) {
+      return info.getDelCount();
+    }
+
+    @Override
+    public InfoStream getInfoStream() {
+      return InfoStream.NO_OUTPUT;
+    }
+
+    @Override
+    public Set<SegmentCommitInfo> getMergingSegments() {
+      return mergingSegments;
+    }
+  }
+
+  private MergePolicy.MergeSpecification getSpec() {
+    MergePolicy.MergeSpecification spec = new MergePolicy.MergeSpecification();
+    spec.add(new MergePolicy.OneMerge(segments.subList(0, 1)));
+    spec.add(new MergePolicy.OneMerge(segments.subList(2, 3)));
+    return spec;
+  }
+
+  private ReplicationAwareMergePolicy getPolicy(double maxPendingMergeMB) {
+    return new ReplicationAwareMergePolicy(new MergePolicySettings(0, 0, 0, maxPendingMergeMB));
+  }
+
+  @Test
+  public void testAllMergesFitBudget() throws IOException {
+    MergePolicy.MergeSpecification limited =
+        getPolicy(1024).limitPendingMerges(getSpec(), new TestMergeContext(Collections.emptySet()));
+    assertEquals(2, limited.merges.size());
+    // merge reclaiming deletes comes first
+    assertEquals(segments.get(2), limited.merges.get(0).segments.get(0));
+  }
+
+  @Test
+  public void testPrefersReclaimingDeletes() throws IOException {
+    // budget smaller than any segment, so only one merge can start
+    MergePolicy.MergeSpecification limited =
+        getPolicy(0.0001)
+            .limitPendingMerges(getSpec(), new TestMergeContext(Collections.emptySet()));
+    assertEquals(1, limited.merges.size());
+    assertEquals(segments.get(2), limited.merges.get(0).segments.get(0));
+  }
+
+  @Test
+  public void testBudgetUsedByPendingMerges() throws IOException {
+    MergePolicy.MergeSpecification limited =
+        getPolicy(0.0001)
+            .limitPendingMerges(
+                getSpec(), new TestMergeContext(Collections.singleton(segments.get(1))));
+    assertNull(limited);
+  }
+}
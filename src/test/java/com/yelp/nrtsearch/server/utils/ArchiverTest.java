@@ -16,6 +16,8 @@
 package com.yelp.nrtsearch.server.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.amazonaws.auth.AnonymousAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
@@ -31,8 +33,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 import net.jpountz.lz4.LZ4FrameInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -86,6 +96,41 @@ public class ArchiverTest {
     assertEquals("testcontent", allLines.get(0));
   }
 
+  @Test
+  public void testUploadDownloadInChunks() throws IOException {
+    String service = "testservice";
+    String resource = "testresource";
+    Path sourceDir = createDirWithFiles(service, resource);
+    Files.writeString(sourceDir.resolve("test3"), "test3content".repeat(1000));
+    // small chunks, so the tar is uploaded in many parts and downloaded with many ranged requests
+    Archiver chunkedArchiver =
+        new ArchiverImpl(
+            s3, BUCKET_NAME, archiverDirectory, new TarImpl(TarImpl.CompressionMode.LZ4), 64, 128);
+    String versionHash = chunkedArchiver.upload(service, resource, sourceDir);
+    chunkedArchiver.blessVersion(service, resource, versionHash);
+
+    Path downloadPath = chunkedArchiver.download(service, resource);
+    assertTrue(
+        TarImplTest.dirsMatch(downloadPath.resolve(resource).toFile(), sourceDir.toFile()));
+  }
+
+  @Test
+  public void testUploadPartBytesFromSourceSize() throws IOException {
+    Path sourceDir = createDirWithFiles("testservice", "testresource");
+    Files.write(sourceDir.resolve("large"), new byte[100000]);
+    ArchiverImpl smallPartArchiver =
+        new ArchiverImpl(
+            s3, BUCKET_NAME, archiverDirectory, new TarImpl(TarImpl.CompressionMode.LZ4), 64, 1);
+    long sourceBytes = FileUtils.sizeOfDirectory(sourceDir.toFile());
+    // spread over half the s3 part limit
+    assertEquals((sourceBytes + 4999) / 5000, smallPartArchiver.getUploadPartBytes(sourceDir));
+    ArchiverImpl largePartArchiver =
+        new ArchiverImpl(
+            s3, BUCKET_NAME, archiverDirectory, new TarImpl(TarImpl.CompressionMode.LZ4), 64, 128);
+    // never below the configured part size
+    assertEquals(128, largePartArchiver.getUploadPartBytes(sourceDir));
+  }
+
   @Test
   public void testUpload() throws IOException {
     String service = "testservice";
@@ -121,6 +166,88 @@ public class ArchiverTest {
     assertEquals(true, path.toFile().exists());
   }
 
+  @Test
+  public void testIncrementalUploadDownload() throws IOException {
+    String service = "testservice";
+    String resource = "testresource";
+    Path sourceDir = createDirWithFiles(service, resource);
+    Files.createDirectory(sourceDir.resolve("emptyDir"));
+    String versionHash = archiver.uploadIncremental(service, resource, sourceDir);
+    assertTrue(versionHash.endsWith(ArchiverImpl.MANIFEST_SUFFIX));
+    archiver.blessVersion(service, resource, versionHash);
+
+    Path downloadPath = archiver.download(service, resource);
+    assertTrue(
+        TarImplTest.dirsMatch(downloadPath.resolve(resource).toFile(), sourceDir.toFile()));
+    assertTrue(Files.isDirectory(downloadPath.resolve(resource).resolve("emptyDir")));
+  }
+
+  @Test
+  public void testIncrementalUploadReusesFiles() throws IOException {
+    String service = "testservice";
+    String resource = "testresource";
+    Path sourceDir = createDirWithFiles(service, resource);
+    archiver.uploadIncremental(service, resource, sourceDir);
+    List<String> firstFiles = getUploadedFiles(service, resource);
+    assertEquals(2, firstFiles.size());
+
+    Files.writeString(sourceDir.resolve("test3"), "test3content");
+    archiver.uploadIncremental(service, resource, sourceDir);
+    List<String> secondFiles = getUploadedFiles(service, resource);
+    assertEquals(3, secondFiles.size());
+    assertTrue(secondFiles.containsAll(firstFiles));
+  }
+
+  @Test
+  public void testCleanupIncremental() throws IOException {
+    String service = "testservice";
+    String resource = "testresource";
+    Path sourceDir = createDirWithFiles(service, resource);
+    String firstVersion = archiver.uploadIncremental(service, resource, sourceDir);
+    archiver.blessVersion(service, resource, firstVersion);
+
+    Files.delete(sourceDir.resolve("test1"));
+    Files.writeString(sourceDir.resolve("test3"), "test3content");
+    String secondVersion = archiver.uploadIncremental(service, resource, sourceDir);
+    archiver.blessVersion(service, resource, secondVersion);
+
+    archiver.cleanupIncremental(service, resource, 2);
+    assertEquals(3, getUploadedFiles(service, resource).size());
+
+    archiver.cleanupIncremental(service, resource, 1);
+    List<String> files = getUploadedFiles(service, resource);
+    assertEquals(2, files.size());
+    assertTrue(files.stream().noneMatch(f -> f.startsWith("test1_")));
+    assertFalse(
+        s3.doesObjectExist(
+            BUCKET_NAME, String.format("%s/%s/%s", service, resource, firstVersion)));
+
+    Path downloadPath = archiver.download(service, resource);
+    assertTrue(
+        TarImplTest.dirsMatch(downloadPath.resolve(resource).toFile(), sourceDir.toFile()));
+  }
+
+  @Test
+  public void testChecksumUsesLuceneFooter() throws IOException {
+    Path file = archiverDirectory.resolve("_0.si");
+    try (Directory directory = FSDirectory.open(archiverDirectory);
+        IndexOutput output = directory.createOutput("_0.si", IOContext.DEFAULT)) {
+      output.writeString("content");
+      CodecUtil.writeFooter(output);
+    }
+    try (Directory directory = FSDirectory.open(archiverDirectory);
+        IndexInput input = directory.openInput("_0.si", IOContext.DEFAULT)) {
+      assertEquals(CodecUtil.retrieveChecksum(input), ArchiverImpl.getChecksum(file));
+    }
+  }
+
+  private List<String> getUploadedFiles(String service, String resource) {
+    String prefix = String.format("%s/%s/_files/", service, resource);
+    return s3.listObjects(BUCKET_NAME, prefix).getObjectSummaries().stream()
+        .map(summary -> summary.getKey().substring(prefix.length()))
+        .collect(Collectors.toList());
+  }
+
   private Path createDirWithFiles(String service, String resource) throws IOException {
     Path serviceDir = Files.createDirectory(archiverDirectory.resolve(service));
     Path resourceDir = Files.createDirectory(serviceDir.resolve(resource));
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import io.findify.s3mock.S3Mock;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MultipartUploadOutputStreamTest {
+  private final String BUCKET_NAME = "archiver-unittest";
+  private S3Mock api;
+  private AmazonS3 s3;
+  private ExecutorService executor;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setup() throws IOException {
+    api = S3Mock.create(8011, folder.newFolder("s3").getAbsolutePath());
+    api.start();
+    s3 = new AmazonS3Client(new AnonymousAWSCredentials());
+    s3.setEndpoint("http://127.0.0.1:8011");
+    s3.createBucket(BUCKET_NAME);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void teardown() {
+    executor.shutdownNow();
+    api.shutdown();
+  }
+
+  private byte[] getObject(String key) throws IOException {
+    try (S3Object s3Object = s3.getObject(BUCKET_NAME, key)) {
+      return IOUtils.toByteArray(s3Object.getObjectContent());
+    }
+  }
+
+  private byte[] upload(String key, int size, int partBytes, int partsInFlight)
+      throws IOException {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    try (MultipartUploadOutputStream outputStream =
+        new MultipartUploadOutputStream(
+            s3, BUCKET_NAME, key, partBytes, partsInFlight, executor)) {
+      // mix of single byte and array writes spanning parts
+      outputStream.write(data, 0, size / 2);
+      if (size > 0) {
+        outputStream.write(data[size / 2]);
+        outputStream.write(data, size / 2 + 1, size - size / 2 - 1);
+      }
+    }
+    return data;
+  }
+
+  @Test
+  public void testUploadInParts() throws IOException {
+    assertArrayEquals(upload("test_key", 10000, 1000, 2), getObject("test_key"));
+    // part size not dividing the object size
+    assertArrayEquals(upload("test_key_2", 10000, 333, 3), getObject("test_key_2"));
+    // single part
+    assertArrayEquals(upload("test_key_3", 100, 1000, 2), getObject("test_key_3"));
+  }
+
+  @Test
+  public void testEmptyUpload() throws IOException {
+    upload("empty_key", 0, 1000, 2);
+    assertEquals(0, getObject("empty_key").length);
+  }
+
+  @Test
+  public void testAbort() throws IOException {
+    MultipartUploadOutputStream outputStream =
+        new MultipartUploadOutputStream(s3, BUCKET_NAME, "aborted_key", 10, 2, executor);
+    outputStream.write(new byte[100]);
+    outputStream.abort();
+    outputStream.close();
+    assertFalse(s3.doesObjectExist(BUCKET_NAME, "aborted_key"));
+  }
+
+  @Test
+  public void testPartSizeGrows() {
+    MultipartUploadOutputStream outputStream =
+        new MultipartUploadOutputStream(s3, BUCKET_NAME, "grow_key", 1000, 2, executor);
+    assertEquals(1000, outputStream.getPartBytes(1));
+    assertEquals(1000, outputStream.getPartBytes(MultipartUploadOutputStream.PARTS_PER_SIZE_STEP));
+    assertEquals(
+        2000, outputStream.getPartBytes(MultipartUploadOutputStream.PARTS_PER_SIZE_STEP + 1));
+    assertEquals(16000, outputStream.getPartBytes(MultipartUploadOutputStream.MAX_PARTS));
+    outputStream.abort();
+
+    outputStream =
+        new MultipartUploadOutputStream(
+            s3,
+            BUCKET_NAME,
+            "max_key",
+            MultipartUploadOutputStream.MAX_PART_BYTES / 2,
+            2,
+            executor);
+    assertEquals(
+        MultipartUploadOutputStream.MAX_PART_BYTES,
+        outputStream.getPartBytes(MultipartUploadOutputStream.MAX_PARTS));
+    outputStream.abort();
+  }
+
+  @Test
+  public void testTooManyParts() throws IOException {
+    // parts are not sent to the s3 mock, 10000 of them would be slow
+    AmazonS3 mockS3 = mock(AmazonS3.class);
+    InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+    initiateResult.setUploadId("upload_id");
+    when(mockS3.initiateMultipartUpload(any())).thenReturn(initiateResult);
+    when(mockS3.uploadPart(any()))
+        .thenAnswer(
+            invocation -> {
+              UploadPartResult result = new UploadPartResult();
+              result.setPartNumber(invocation.<UploadPartRequest>getArgument(0).getPartNumber());
+              result.setETag("etag");
+              return result;
+            });
+    MultipartUploadOutputStream outputStream =
+        new MultipartUploadOutputStream(mockS3, BUCKET_NAME, "large_key", 1, 2, executor);
+    // fills all the parts, which double in size every PARTS_PER_SIZE_STEP parts
+    int maxBytes = 0;
+    for (int part = 1; part <= MultipartUploadOutputStream.MAX_PARTS; ++part) {
+      maxBytes += outputStream.getPartBytes(part);
+    }
+    outputStream.write(new byte[maxBytes]);
+    try {
+      outputStream.write(0);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("at most 10000 parts"));
+    }
+    // the last full part was started, nothing past it
+    verify(mockS3, timeout(5000).times(MultipartUploadOutputStream.MAX_PARTS)).uploadPart(any());
+    outputStream.abort();
+    verify(mockS3).abortMultipartUpload(any());
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelLZ4OutputStreamTest {
+  private ExecutorService executor;
+
+  @Before
+  public void setup() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void teardown() {
+    executor.shutdownNow();
+  }
+
+  private byte[] compress(byte[] data, int blockBytes, int blocksInFlight) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (ParallelLZ4OutputStream outputStream =
+        new ParallelLZ4OutputStream(compressed, executor, blockBytes, blocksInFlight)) {
+      outputStream.write(data, 0, data.length / 2);
+      if (data.length > 0) {
+        outputStream.write(data[data.length / 2]);
+        outputStream.write(data, data.length / 2 + 1, data.length - data.length / 2 - 1);
+      }
+    }
+    return compressed.toByteArray();
+  }
+
+  private byte[] decompress(byte[] compressed, int blocksInFlight) throws IOException {
+    try (ParallelLZ4InputStream inputStream =
+        new ParallelLZ4InputStream(
+            new ByteArrayInputStream(compressed), executor, blocksInFlight)) {
+      return IOUtils.toByteArray(inputStream);
+    }
+  }
+
+  private static byte[] getData(int size) {
+    // compressible, repeating random runs
+    byte[] data = new byte[size];
+    Random random = new Random(size);
+    for (int i = 0; i < size; i += 100) {
+      byte value = (byte) random.nextInt();
+      for (int j = i; j < Math.min(size, i + 100); ++j) {
+        data[j] = value;
+      }
+    }
+    return data;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    byte[] data = getData(100000);
+    assertArrayEquals(data, decompress(compress(data, 1000, 3), 2));
+    // block size not dividing the data size
+    assertArrayEquals(data, decompress(compress(data, 777, 1), 5));
+    // single block
+    assertArrayEquals(data, decompress(compress(data, 1000000, 2), 2));
+  }
+
+  @Test
+  public void testIncompressibleData() throws IOException {
+    byte[] data = new byte[10000];
+    new Random(0).nextBytes(data);
+    assertArrayEquals(data, decompress(compress(data, 1000, 3), 3));
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    assertEquals(0, decompress(compress(new byte[0], 1000, 2), 2).length);
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptBlock() throws IOException {
+    byte[] compressed = compress(getData(10000), 1000, 2);
+    // flip a byte in the first block's data
+    int offset =
+        ParallelLZ4OutputStream.MAGIC.length + ParallelLZ4OutputStream.BLOCK_HEADER_BYTES + 10;
+    compressed[offset] ^= 0xFF;
+    decompress(compressed, 2);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws IOException {
+    byte[] compressed = compress(getData(10000), 1000, 2);
+    byte[] truncated = new byte[compressed.length - 20];
+    System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+    decompress(truncated, 2);
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidMagic() throws IOException {
+    decompress(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, 2);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 Yelp Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yelp.nrtsearch.server.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import io.findify.s3mock.S3Mock;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelRangeInputStreamTest {
+  private final String BUCKET_NAME = "archiver-unittest";
+  private S3Mock api;
+  private AmazonS3 s3;
+  private ExecutorService executor;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setup() throws IOException {
+    api = S3Mock.create(8011, folder.newFolder("s3").getAbsolutePath());
+    api.start();
+    s3 = new AmazonS3Client(new AnonymousAWSCredentials());
+    s3.setEndpoint("http://127.0.0.1:8011");
+    s3.createBucket(BUCKET_NAME);
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void teardown() {
+    executor.shutdownNow();
+    api.shutdown();
+  }
+
+  private byte[] putObject(String key, int size) {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(size);
+    s3.putObject(BUCKET_NAME, key, new ByteArrayInputStream(data), metadata);
+    return data;
+  }
+
+  private byte[] readObject(String key, int chunkBytes, int chunksInFlight) throws IOException {
+    try (ParallelRangeInputStream inputStream =
+        new ParallelRangeInputStream(s3, BUCKET_NAME, key, chunkBytes, chunksInFlight, executor)) {
+      return IOUtils.toByteArray(inputStream);
+    }
+  }
+
+  @Test
+  public void testReadInOrder() throws IOException {
+    byte[] data = putObject("test_key", 10000);
+    assertArrayEquals(data, readObject("test_key", 1000, 3));
+    // chunk size not dividing the object size
+    assertArrayEquals(data, readObject("test_key", 333, 4));
+    // single chunk
+    assertArrayEquals(data, readObject("test_key", 20000, 2));
+  }
+
+  @Test
+  public void testSingleByteReads() throws IOException {
+    byte[] data = putObject("test_key", 100);
+    try (ParallelRangeInputStream inputStream =
+        new ParallelRangeInputStream(s3, BUCKET_NAME, "test_key", 7, 2, executor)) {
+      assertEquals(100, inputStream.getObjectSize());
+      for (byte b : data) {
+        assertEquals(b & 0xFF, inputStream.read());
+      }
+      assertEquals(-1, inputStream.read());
+    }
+  }
+
+  @Test
+  public void testEmptyObject() throws IOException {
+    putObject("empty_key", 0);
+    assertEquals(0, readObject("empty_key", 1000, 2).length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidChunkSize() {
+    new ParallelRangeInputStream(s3, BUCKET_NAME, "test_key", 0, 2, executor);
+  }
+}
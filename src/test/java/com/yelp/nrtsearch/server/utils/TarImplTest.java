@@ -96,6 +96,38 @@ public class TarImplTest {
     }
   }
 
+  @Test
+  public void buildTarParallel() throws IOException {
+    Path sourceDir = Files.createDirectory(tarTestBaseDirectory.resolve("dirToTar"));
+    Path subDir = Files.createDirectory(sourceDir.resolve("subDir"));
+    Files.writeString(sourceDir.resolve("test1"), "test1content");
+    Files.writeString(subDir.resolve("test2"), "test2content".repeat(100000));
+    Path destTarFile = tarTestBaseDirectory.resolve("result.tar.lz4p");
+    TarImpl parallelTar = new TarImpl(Tar.CompressionMode.LZ4_PARALLEL, 4);
+    parallelTar.buildTar(sourceDir, destTarFile);
+
+    Path destDir = tarTestBaseDirectory.resolve("test_extract");
+    parallelTar.extractTar(destTarFile, destDir);
+    assertEquals(true, dirsMatch(sourceDir.toFile(), destDir.resolve("dirToTar").toFile()));
+
+    // the format is detected when extracting, whatever the configured mode
+    Path lz4DestDir = tarTestBaseDirectory.resolve("test_extract_lz4");
+    new TarImpl(Tar.CompressionMode.LZ4).extractTar(destTarFile, lz4DestDir);
+    assertEquals(true, dirsMatch(sourceDir.toFile(), lz4DestDir.resolve("dirToTar").toFile()));
+  }
+
+  @Test
+  public void extractLZ4TarInParallelMode() throws IOException {
+    Path sourceTarFile = tarTestBaseDirectory.resolve("test_tar.tar.lz4");
+    Path destDir = tarTestBaseDirectory.resolve("extractedDir");
+    Files.write(sourceTarFile, getTarFile(Arrays.asList(tarEntry1, tarEntry2)));
+    new TarImpl(Tar.CompressionMode.LZ4_PARALLEL).extractTar(sourceTarFile, destDir);
+
+    assertEquals(Files.readAllLines(destDir.resolve("foo")).get(0), tarEntry1.content);
+    assertEquals(
+        Files.readAllLines(destDir.resolve("bar").resolve("baz")).get(0), tarEntry2.content);
+  }
+
   static boolean dirsMatch(File file1, File file2) throws IOException {
     if (file1.isDirectory() && file2.isDirectory()) {
       File[] files1 = file1.listFiles();